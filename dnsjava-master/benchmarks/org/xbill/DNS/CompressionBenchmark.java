@@ -0,0 +1,143 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares rendering with the hash-indexed Compression table against the
+ * previous implementation, which used a fixed 17-bucket chained table and
+ * created a Name for every suffix it looked up.
+ * <p>
+ * Run with: mvn -P benchmarks test-compile exec:exec
+ * (-Dbenchmark=CompressionBenchmark selects only these benchmarks).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+/* The previous implementation, kept for comparison. */
+private static class LegacyCompression {
+	private static class Entry {
+		Name name;
+		int pos;
+		Entry next;
+	}
+
+	private static final int TABLE_SIZE = 17;
+	private static final int MAX_POINTER = 0x3FFF;
+	private Entry [] table = new Entry[TABLE_SIZE];
+
+	void
+	add(int pos, Name name) {
+		if (pos > MAX_POINTER)
+			return;
+		int row = (name.hashCode() & 0x7FFFFFFF) % TABLE_SIZE;
+		Entry entry = new Entry();
+		entry.name = name;
+		entry.pos = pos;
+		entry.next = table[row];
+		table[row] = entry;
+	}
+
+	int
+	get(Name name) {
+		int row = (name.hashCode() & 0x7FFFFFFF) % TABLE_SIZE;
+		int pos = -1;
+		for (Entry entry = table[row]; entry != null; entry = entry.next) {
+			if (entry.name.equals(name))
+				pos = entry.pos;
+		}
+		return pos;
+	}
+}
+
+@Param({"10", "100", "1000"})
+public int records;
+
+private Message message;
+private Name [] names;
+/* The labels of each name, so the legacy code doesn't copy them. */
+private byte [][][] labels;
+
+@Setup
+public void
+setup() throws Exception {
+	Name zone = Name.fromString("example.com.");
+	InetAddress addr = InetAddress.getByName("192.0.2.1");
+	message = new Message();
+	List list = new ArrayList();
+	for (int i = 0; i < records; i++) {
+		Name owner = Name.fromString("host" + i + ".sub" + (i % 16),
+					     zone);
+		Name target = Name.fromString("mail" + (i % 32), zone);
+		Record a = new ARecord(owner, DClass.IN, 3600, addr);
+		Record mx = new MXRecord(owner, DClass.IN, 3600, 10, target);
+		message.addRecord(a, Section.ANSWER);
+		message.addRecord(mx, Section.ANSWER);
+		list.add(owner);
+		list.add(owner);
+		list.add(target);
+	}
+	names = (Name []) list.toArray(new Name[list.size()]);
+	labels = new byte[names.length][][];
+	for (int i = 0; i < names.length; i++) {
+		labels[i] = new byte[names[i].labels()][];
+		for (int j = 0; j < labels[i].length; j++)
+			labels[i][j] = names[i].getLabel(j);
+	}
+}
+
+private static void
+legacyToWire(Name name, byte [][] labels, DNSOutput out,
+	     LegacyCompression c)
+{
+	int n = name.labels();
+	for (int i = 0; i < n - 1; i++) {
+		Name tname = (i == 0) ? name : new Name(name, i);
+		int pos = c.get(tname);
+		if (pos >= 0) {
+			out.writeU16(pos | 0xC000);
+			return;
+		}
+		c.add(out.current(), tname);
+		out.writeByteArray(labels[i]);
+	}
+	out.writeU8(0);
+}
+
+@Benchmark
+public byte []
+renderMessage() {
+	return message.toWire();
+}
+
+@Benchmark
+public int
+compressNames() {
+	Compression c = new Compression(names.length);
+	DNSOutput out = new DNSOutput();
+	for (int i = 0; i < names.length; i++)
+		names[i].toWire(out, c);
+	return out.current();
+}
+
+@Benchmark
+public int
+compressNamesLegacy() {
+	LegacyCompression c = new LegacyCompression();
+	DNSOutput out = new DNSOutput();
+	for (int i = 0; i < names.length; i++)
+		legacyToWire(names[i], labels[i], out, c);
+	return out.current();
+}
+
+}
@@ -0,0 +1,146 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares a large Cache or Zone kept on the heap against one whose data is
+ * kept in a {@link RecordStore}.  The heap retained by the data is printed
+ * when each trial is set up; the fullGC benchmark measures the time taken
+ * by a full collection while the data is reachable, and lookup measures the
+ * cost of converting records back into objects.
+ * <p>
+ * Run with: mvn -P benchmarks test-compile exec:exec
+ * (-Dbenchmark=RecordStoreBenchmark selects only these benchmarks, and
+ * -Dbenchmark="RecordStoreBenchmark -prof gc" also reports allocation and
+ * collection counts).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class RecordStoreBenchmark {
+
+@Param({"cache", "zone"})
+public String kind;
+
+@Param({"false", "true"})
+public boolean store;
+
+@Param({"200000"})
+public int names;
+
+private Name [] owners;
+private Cache cache;
+private Zone zone;
+private long storeBytes;
+private Random random = new Random(1);
+
+/* Collects until the heap in use stops shrinking, and returns it. */
+private static long
+usedHeap() {
+	long used = Long.MAX_VALUE;
+	for (int i = 0; i < 10; i++) {
+		System.gc();
+		long now = 0;
+		Iterator it;
+		it = ManagementFactory.getMemoryPoolMXBeans().iterator();
+		while (it.hasNext()) {
+			MemoryPoolMXBean pool = (MemoryPoolMXBean) it.next();
+			if (pool.getType() == MemoryType.HEAP &&
+			    pool.getCollectionUsage() != null)
+				now += pool.getCollectionUsage().getUsed();
+		}
+		if (now >= used)
+			break;
+		used = now;
+	}
+	return used;
+}
+
+private void
+build(Name origin) throws Exception {
+	Name ns = Name.fromString("ns", origin);
+	byte [] addr = new byte[4];
+	addr[0] = 10;
+	RecordStore rs = store ? new RecordStore() : null;
+	if (kind.equals("cache")) {
+		cache = store ? new Cache(DClass.IN, rs) : new Cache(DClass.IN);
+		cache.setMaxEntries(names * 2);
+		for (int i = 0; i < names; i++) {
+			addr[2] = (byte) (i >>> 8);
+			addr[3] = (byte) i;
+			InetAddress a = InetAddress.getByAddress(addr);
+			cache.addRecord(new ARecord(owners[i], DClass.IN,
+						    3600, a),
+					Credibility.AUTH_ANSWER, null);
+			cache.addRecord(new MXRecord(owners[i], DClass.IN,
+						     3600, 10, ns),
+					Credibility.AUTH_ANSWER, null);
+		}
+	} else {
+		List list = new ArrayList();
+		list.add(new SOARecord(origin, DClass.IN, 3600, ns,
+				       Name.fromString("admin", origin),
+				       1, 3600, 600, 86400, 300));
+		list.add(new NSRecord(origin, DClass.IN, 3600, ns));
+		for (int i = 0; i < names; i++) {
+			addr[2] = (byte) (i >>> 8);
+			addr[3] = (byte) i;
+			InetAddress a = InetAddress.getByAddress(addr);
+			list.add(new ARecord(owners[i], DClass.IN, 3600, a));
+			list.add(new MXRecord(owners[i], DClass.IN, 3600, 10,
+					      ns));
+		}
+		Record [] records = (Record []) list.toArray(new Record[0]);
+		zone = store ? new Zone(origin, records, rs)
+			     : new Zone(origin, records);
+	}
+	storeBytes = store ? rs.getBytes() : 0;
+}
+
+@Setup(Level.Trial)
+public void
+setup() throws Exception {
+	Name origin = Name.fromString("example.com.");
+	owners = new Name[names];
+	for (int i = 0; i < names; i++)
+		owners[i] = Name.fromString("host" + i, origin);
+
+	long before = usedHeap();
+	build(origin);
+	long after = usedHeap();
+	System.out.println();
+	System.out.println(kind + (store ? " with" : " without") +
+			   " RecordStore: " + (after - before) / 1024 +
+			   " KB retained on the heap" +
+			   (store ? ", " + storeBytes / 1024 +
+				    " KB in the store" : ""));
+}
+
+@Benchmark
+@BenchmarkMode(Mode.AverageTime)
+public void
+fullGC() {
+	System.gc();
+}
+
+@Benchmark
+public Object
+lookup() {
+	Name name = owners[random.nextInt(names)];
+	if (cache != null)
+		return cache.lookupRecords(name, Type.A, Credibility.NORMAL);
+	else
+		return zone.findRecords(name, Type.A);
+}
+
+}
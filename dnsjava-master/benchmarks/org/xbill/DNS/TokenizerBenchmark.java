@@ -0,0 +1,264 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the buffered Tokenizer against the previous implementation,
+ * which read a PushbackInputStream one byte at a time and collected every
+ * token in a StringBuffer, on master file text like that in TokenizerTest.
+ * <p>
+ * Run with: mvn -P benchmarks test-compile exec:exec
+ * (-Dbenchmark=TokenizerBenchmark selects only these benchmarks).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenizerBenchmark {
+
+/* The previous implementation, kept for comparison. */
+private static class LegacyTokenizer {
+	private static final String delim = " \t\n;()\"";
+	private static final String quotes = "\"";
+
+	private PushbackInputStream is;
+	private int multiline;
+	private boolean quoting;
+	private String delimiters = delim;
+	private StringBuffer sb = new StringBuffer();
+	private int type;
+	private String value;
+
+	LegacyTokenizer(InputStream is) {
+		this.is = new PushbackInputStream(new BufferedInputStream(is),
+						  2);
+	}
+
+	private int
+	getChar() throws IOException {
+		int c = is.read();
+		if (c == '\r') {
+			int next = is.read();
+			if (next != '\n')
+				is.unread(next);
+			c = '\n';
+		}
+		return c;
+	}
+
+	private void
+	ungetChar(int c) throws IOException {
+		if (c != -1)
+			is.unread(c);
+	}
+
+	private void
+	skipWhitespace() throws IOException {
+		while (true) {
+			int c = getChar();
+			if (c != ' ' && c != '\t' &&
+			    !(c == '\n' && multiline > 0))
+			{
+				ungetChar(c);
+				return;
+			}
+		}
+	}
+
+	private int
+	set(int type) {
+		this.type = type;
+		this.value = (type >= Tokenizer.IDENTIFIER) ? sb.toString()
+							    : null;
+		return type;
+	}
+
+	/* Gets the next token, ignoring whitespace and comments. */
+	int
+	get() throws IOException {
+		int type = Tokenizer.IDENTIFIER;
+		skipWhitespace();
+		sb.setLength(0);
+		while (true) {
+			int c = getChar();
+			if (c == -1 || delimiters.indexOf(c) != -1) {
+				if (c == -1)
+					return set(sb.length() == 0 ?
+						   Tokenizer.EOF : type);
+				if (sb.length() == 0 &&
+				    type != Tokenizer.QUOTED_STRING)
+				{
+					if (c == '(') {
+						multiline++;
+						skipWhitespace();
+						continue;
+					} else if (c == ')') {
+						multiline--;
+						skipWhitespace();
+						continue;
+					} else if (c == '"') {
+						if (!quoting) {
+							quoting = true;
+							delimiters = quotes;
+							type = Tokenizer.QUOTED_STRING;
+						} else {
+							quoting = false;
+							delimiters = delim;
+							skipWhitespace();
+						}
+						continue;
+					} else if (c == '\n') {
+						return set(Tokenizer.EOL);
+					} else if (c == ';') {
+						while (true) {
+							c = getChar();
+							if (c == '\n' ||
+							    c == -1)
+								break;
+							sb.append((char)c);
+						}
+						sb.setLength(0);
+						if (c == -1)
+							return set(Tokenizer.EOF);
+						else if (multiline > 0) {
+							skipWhitespace();
+							continue;
+						}
+						return set(Tokenizer.EOL);
+					}
+				} else
+					ungetChar(c);
+				break;
+			} else if (c == '\\') {
+				c = getChar();
+				sb.append('\\');
+			}
+			sb.append((char)c);
+		}
+		return set(type);
+	}
+}
+
+@Param({"1000"})
+public int records;
+
+private String text;
+private byte [] bytes;
+private ByteBuffer direct;
+private Name origin;
+
+@Setup
+public void
+setup() throws Exception {
+	origin = Name.fromString("example.com.");
+	StringBuffer sb = new StringBuffer();
+	for (int i = 0; i < records; i++) {
+		sb.append("host" + i + "\t3600\tIN\tMX\t10 mail" + (i % 32) +
+			  " ; comment\n");
+		sb.append("\t1D\tIN\tTXT\t\"a quoted \\\" string\"\n");
+		sb.append("\t3600\tIN\tSOA\tns admin (\r\n\t\t" + i +
+			  " 3600 600 86400 300 )\n");
+	}
+	text = sb.toString();
+	bytes = text.getBytes("US-ASCII");
+	direct = ByteBuffer.allocateDirect(bytes.length);
+	direct.put(bytes);
+	direct.flip();
+}
+
+private static int
+tokenize(Tokenizer t) throws IOException {
+	int n = 0;
+	while (t.get().type != Tokenizer.EOF)
+		n++;
+	return n;
+}
+
+@Benchmark
+public int
+tokenizeStreamLegacy() throws IOException {
+	LegacyTokenizer t;
+	t = new LegacyTokenizer(new ByteArrayInputStream(bytes));
+	int n = 0;
+	while (t.get() != Tokenizer.EOF)
+		n++;
+	return n;
+}
+
+@Benchmark
+public int
+tokenizeStream() throws IOException {
+	return tokenize(new Tokenizer(new ByteArrayInputStream(bytes)));
+}
+
+@Benchmark
+public int
+tokenizeString() throws IOException {
+	return tokenize(new Tokenizer(text));
+}
+
+@Benchmark
+public int
+tokenizeMapped() throws IOException {
+	return tokenize(new Tokenizer(direct));
+}
+
+/*
+ * Parses each line's owner, TTL and first number the way the previous
+ * implementation did: through a String for every token.
+ */
+@Benchmark
+public long
+typedLegacy() throws IOException {
+	LegacyTokenizer t;
+	t = new LegacyTokenizer(new ByteArrayInputStream(bytes));
+	long sum = 0;
+	for (int i = 0; i < records; i++) {
+		t.get();
+		sum += Name.fromString(t.value, origin).labels();
+		t.get();
+		sum += TTL.parseTTL(t.value);
+		t.get();
+		t.get();
+		t.get();
+		sum += Long.parseLong(t.value);
+		while (t.get() != Tokenizer.EOL)
+			;
+		while (t.get() != Tokenizer.EOL)
+			;
+		while (t.get() != Tokenizer.EOL)
+			;
+	}
+	return sum;
+}
+
+@Benchmark
+public long
+typed() throws IOException {
+	Tokenizer t = new Tokenizer(direct);
+	long sum = 0;
+	for (int i = 0; i < records; i++) {
+		sum += t.getName(origin).labels();
+		sum += t.getTTL();
+		t.get();
+		t.get();
+		sum += t.getUInt32();
+		while (t.get().type != Tokenizer.EOL)
+			;
+		while (t.get().type != Tokenizer.EOL)
+			;
+		while (t.get().type != Tokenizer.EOL)
+			;
+	}
+	return sum;
+}
+
+}
@@ -2,20 +2,301 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 import org.xbill.DNS.*;
 
-/** @author Brian Wellington &lt;bwelling@xbill.org&gt; */
+/**
+ * A simple DNS server.  All sockets are handled by one thread using a
+ * selector, and queries are answered by a bounded pool of worker threads.
+ * Rendered answers from zones are cached, and reused (with the ID and
+ * question copied from the query) until the zone changes.
+ *
+ * @author Brian Wellington &lt;bwelling@xbill.org&gt;
+ */
 
 public class jnamed {
 
 static final int FLAG_DNSSECOK = 1;
 static final int FLAG_SIGONLY = 2;
 
+/* The maximum amount of queued output on a TCP connection. */
+private static final int MAX_TCP_QUEUE = 256 * 1024;
+
+/* The maximum number of queries being answered for a TCP connection. */
+private static final int MAX_TCP_PENDING = 64;
+
+/*
+ * The number of zone transfer messages rendered each time a connection is
+ * writable, so that one fast client doesn't hold up the selector.
+ */
+private static final int XFR_BATCH = 4;
+
 Map caches;
 Map znames;
 Map TSIGs;
 
+private Selector selector;
+private ExecutorService workers;
+private int threads = Runtime.getRuntime().availableProcessors();
+private List selectorTasks = new ArrayList();
+
+private Map answers;
+private int maxAnswers = 10000;
+private final Lock evictLock = new ReentrantLock();
+private Iterator hand;
+
+/*
+ * Identifies a rendered answer in the cache.  Whether the query had an OPT
+ * record is part of the key, since the response has one only if it did.
+ */
+private static class AnswerKey {
+	Name name;
+	int type;
+	int dclass;
+	int flags;
+	boolean edns;
+	int maxLength;
+
+	AnswerKey(Name name, int type, int dclass, int flags, boolean edns,
+		  int maxLength)
+	{
+		this.name = name;
+		this.type = type;
+		this.dclass = dclass;
+		this.flags = flags;
+		this.edns = edns;
+		this.maxLength = maxLength;
+	}
+
+	public int
+	hashCode() {
+		return name.hashCode() + 31 * type + 17 * dclass + flags +
+		       (edns ? 7 : 0) + maxLength;
+	}
+
+	public boolean
+	equals(Object o) {
+		if (!(o instanceof AnswerKey))
+			return false;
+		AnswerKey k = (AnswerKey) o;
+		return (type == k.type && dclass == k.dclass &&
+			flags == k.flags && edns == k.edns &&
+			maxLength == k.maxLength &&
+			name.equals(k.name));
+	}
+}
+
+/*
+ * A rendered answer, valid until its zone changes.  It is marked when it is
+ * used, so that eviction passes over it once.
+ */
+private static class Answer {
+	Zone zone;
+	long generation;
+	byte [] wire;
+	volatile boolean referenced;
+
+	Answer(Zone zone, long generation, byte [] wire) {
+		this.zone = zone;
+		this.generation = generation;
+		this.wire = wire;
+	}
+}
+
+/*
+ * A TCP connection.  Queries are read by the selector thread and answered
+ * by workers, possibly out of order; responses are queued and written by
+ * the selector thread.  The messages of a zone transfer are rendered by the
+ * selector thread as the client takes them.  No more queries are read while
+ * too many are being answered or too much output is queued, so a client
+ * which doesn't read its responses only holds up itself.
+ */
+private class TCPConnection {
+	SocketChannel channel;
+	SelectionKey key;
+	ByteBuffer length = ByteBuffer.allocate(2);
+	ByteBuffer in;
+	LinkedList out = new LinkedList();
+	int queued;
+	int pending;
+	ZoneTransferOut xfr;
+	boolean closing;
+	boolean closed;
+
+	TCPConnection(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/* Reads queries, and passes complete ones to workers. */
+	void
+	read() throws IOException {
+		while (true) {
+			if (in == null) {
+				if (channel.read(length) < 0) {
+					close();
+					return;
+				}
+				if (length.hasRemaining())
+					return;
+				length.flip();
+				in = ByteBuffer.allocate(length.getShort() &
+							 0xFFFF);
+				length.clear();
+			}
+			if (channel.read(in) < 0) {
+				close();
+				return;
+			}
+			if (in.hasRemaining())
+				return;
+			final byte [] query = in.array();
+			in = null;
+			synchronized (this) {
+				pending++;
+			}
+			try {
+				workers.execute(new Runnable() {
+					public void run() {
+						done(reply(query,
+							   TCPConnection.this));
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				/* The server is overloaded. */
+				done(servfailMessage(query));
+			}
+			synchronized (this) {
+				if (pending >= MAX_TCP_PENDING ||
+				    queued > MAX_TCP_QUEUE)
+				{
+					updateInterest();
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Sets the events of interest from the connection's state; called
+	 * by the selector thread.
+	 */
+	void
+	updateInterest() {
+		if (!key.isValid())
+			return;
+		int ops = 0;
+		synchronized (this) {
+			if (!out.isEmpty() || xfr != null)
+				ops |= SelectionKey.OP_WRITE;
+			if (!closing && xfr == null &&
+			    pending < MAX_TCP_PENDING && queued <= MAX_TCP_QUEUE)
+				ops |= SelectionKey.OP_READ;
+		}
+		key.interestOps(ops);
+	}
+
+	/* Queues the response to a query, if there is one. */
+	void
+	done(byte [] response) {
+		synchronized (this) {
+			pending--;
+			if (response == null || closed)
+				return;
+			enqueue(response);
+		}
+		onSelector(new Runnable() {
+			public void run() {
+				updateInterest();
+			}
+		});
+	}
+
+	/*
+	 * Sends a zone transfer, and closes the connection once it has been
+	 * written.  No more queries are read.
+	 */
+	void
+	transfer(ZoneTransferOut xfr) {
+		synchronized (this) {
+			if (closed)
+				return;
+			this.xfr = xfr;
+		}
+		onSelector(new Runnable() {
+			public void run() {
+				updateInterest();
+			}
+		});
+	}
+
+	/* Queues a message; the caller holds the lock. */
+	private void
+	enqueue(byte [] message) {
+		ByteBuffer buf = ByteBuffer.allocate(message.length + 2);
+		buf.putShort((short) message.length);
+		buf.put(message);
+		buf.flip();
+		out.add(buf);
+		queued += buf.remaining();
+	}
+
+	/*
+	 * Writes queued output, rendering the next messages of a zone
+	 * transfer when it has all been written.
+	 */
+	void
+	write() throws IOException {
+		synchronized (this) {
+			int rendered = 0;
+			while (true) {
+				if (out.isEmpty()) {
+					if (xfr == null ||
+					    rendered++ == XFR_BATCH)
+						break;
+					byte [] b = xfr.nextMessage();
+					if (b == null) {
+						xfr = null;
+						closing = true;
+						break;
+					}
+					enqueue(b);
+				}
+				ByteBuffer buf = (ByteBuffer) out.getFirst();
+				int n = channel.write(buf);
+				queued -= n;
+				if (buf.hasRemaining())
+					break;
+				out.removeFirst();
+			}
+			if (closing && out.isEmpty()) {
+				close();
+				return;
+			}
+		}
+		updateInterest();
+	}
+
+	void
+	close() {
+		synchronized (this) {
+			closed = true;
+			xfr = null;
+			out.clear();
+		}
+		key.cancel();
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+		}
+	}
+}
+
 private static String
 addrport(InetAddress addr, int port) {
 	return addr.getHostAddress() + "#" + port;
@@ -75,6 +356,10 @@ jnamed(String conffile) throws IOException, ZoneTransferException {
 			} else if (keyword.equals("address")) {
 				String addr = st.nextToken();
 				addresses.add(Address.getByAddress(addr));
+			} else if (keyword.equals("threads")) {
+				threads = Integer.parseInt(st.nextToken());
+			} else if (keyword.equals("answercache")) {
+				maxAnswers = Integer.parseInt(st.nextToken());
 			} else {
 				System.out.println("unknown keyword: " +
 						   keyword);
@@ -88,6 +373,17 @@ jnamed(String conffile) throws IOException, ZoneTransferException {
 		if (addresses.size() == 0)
 			addresses.add(Address.getByAddress("0.0.0.0"));
 
+		if (maxAnswers > 0)
+			answers = new ConcurrentHashMap();
+		workers = new ThreadPoolExecutor(threads, threads,
+					0, TimeUnit.SECONDS,
+					new ArrayBlockingQueue(threads * 256));
+		selector = Selector.open();
+		Thread t = new Thread(new Runnable() {
+				public void run() {serve();}});
+		t.setName("jnamed");
+		t.start();
+
 		Iterator iaddr = addresses.iterator();
 		while (iaddr.hasNext()) {
 			InetAddress addr = (InetAddress) iaddr.next();
@@ -112,7 +408,7 @@ addPrimaryZone(String zname, String zonefile) throws IOException {
 	Name origin = null;
 	if (zname != null)
 		origin = Name.fromString(zname, Name.root);
-	Zone newzone = new Zone(origin, zonefile);
+	Zone newzone = new Zone(origin, zonefile, true);
 	znames.put(newzone.getOrigin(), newzone);
 }
 
@@ -121,7 +417,8 @@ addSecondaryZone(String zone, String remote)
 throws IOException, ZoneTransferException
 {
 	Name zname = Name.fromString(zone, Name.root);
-	Zone newzone = new Zone(zname, DClass.IN, remote);
+	ZoneTransferIn xfrin = ZoneTransferIn.newAXFR(zname, remote, null);
+	Zone newzone = new Zone(xfrin, true);
 	znames.put(zname, newzone);
 }
 
@@ -131,7 +428,7 @@ addTSIG(String algstr, String namestr, String key) throws IOException {
 	TSIGs.put(name, new TSIG(algstr, namestr, key));
 }
 
-public Cache
+public synchronized Cache
 getCache(int dclass) {
 	Cache c = (Cache) caches.get(new Integer(dclass));
 	if (c == null) {
@@ -342,42 +639,14 @@ addAnswer(Message response, Name name, int type, int dclass,
 }
 
 byte []
-doAXFR(Name name, Message query, TSIG tsig, TSIGRecord qtsig, Socket s) {
+doAXFR(Name name, Message query, TSIG tsig, TCPConnection conn)
+{
 	Zone zone = (Zone) znames.get(name);
-	boolean first = true;
 	if (zone == null)
 		return errorMessage(query, Rcode.REFUSED);
-	Iterator it = zone.AXFR();
-	try {
-		DataOutputStream dataOut;
-		dataOut = new DataOutputStream(s.getOutputStream());
-		int id = query.getHeader().getID();
-		while (it.hasNext()) {
-			RRset rrset = (RRset) it.next();
-			Message response = new Message(id);
-			Header header = response.getHeader();
-			header.setFlag(Flags.QR);
-			header.setFlag(Flags.AA);
-			addRRset(rrset.getName(), response, rrset,
-				 Section.ANSWER, FLAG_DNSSECOK);
-			if (tsig != null) {
-				tsig.applyStream(response, qtsig, first);
-				qtsig = response.getTSIG();
-			}
-			first = false;
-			byte [] out = response.toWire();
-			dataOut.writeShort(out.length);
-			dataOut.write(out);
-		}
-	}
-	catch (IOException ex) {
-		System.out.println("AXFR failed");
-	}
-	try {
-		s.close();
-	}
-	catch (IOException ex) {
-	}
+	ZoneTransferOut xfr = ZoneTransferOut.newAXFR(zone, query, tsig);
+	xfr.setSignInterval(100);
+	conn.transfer(xfr);
 	return null;
 }
 
@@ -387,7 +656,7 @@ doAXFR(Name name, Message query, TSIG tsig, TSIGRecord qtsig, Socket s) {
  * TCP.
  */
 byte []
-generateReply(Message query, byte [] in, int length, Socket s)
+generateReply(Message query, byte [] in, int length, TCPConnection s)
 throws IOException
 {
 	Header header;
@@ -438,10 +707,14 @@ throws IOException
 	int type = queryRecord.getType();
 	int dclass = queryRecord.getDClass();
 	if (type == Type.AXFR && s != null)
-		return doAXFR(name, query, tsig, queryTSIG, s);
+		return doAXFR(name, query, tsig, s);
 	if (!Type.isRR(type) && type != Type.ANY)
 		return errorMessage(query, Rcode.NOTIMP);
 
+	/* Read before the lookup, so that a concurrent change is noticed. */
+	Zone zone = findBestZone(name);
+	long generation = (zone != null) ? zone.getGeneration() : 0;
+
 	byte rcode = addAnswer(response, name, type, dclass, 0, flags);
 	if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN)
 		return errorMessage(query, rcode);
@@ -456,7 +729,140 @@ throws IOException
 	}
 
 	response.setTSIG(tsig, Rcode.NOERROR, queryTSIG);
-	return response.toWire(maxLength);
+	byte [] wire = response.toWire(maxLength);
+	if (answers != null && tsig == null && zone != null &&
+	    inZone(response, zone))
+	{
+		if (answers.size() >= maxAnswers)
+			evictAnswers();
+		AnswerKey key = new AnswerKey(name, type, dclass, flags,
+					      queryOPT != null, maxLength);
+		answers.put(key, new Answer(zone, generation, wire));
+	}
+	return wire;
+}
+
+/*
+ * Makes room in the answer cache.  As in Cache, a clock hand passes over the
+ * answers, removing those which are out of date or haven't been used since
+ * it last passed.
+ */
+private void
+evictAnswers() {
+	/* If another thread is already evicting, let it do the work. */
+	if (!evictLock.tryLock())
+		return;
+	try {
+		int steps = 2 * answers.size() + 1;
+		while (answers.size() >= maxAnswers && steps-- > 0) {
+			if (hand == null || !hand.hasNext())
+				hand = answers.entrySet().iterator();
+			if (!hand.hasNext())
+				break;
+			Map.Entry entry = (Map.Entry) hand.next();
+			Answer answer = (Answer) entry.getValue();
+			if (answer.referenced &&
+			    answer.zone.getGeneration() == answer.generation)
+			{
+				answer.referenced = false;
+				continue;
+			}
+			answers.remove(entry.getKey(), answer);
+		}
+	}
+	finally {
+		evictLock.unlock();
+	}
+}
+
+/*
+ * Determines whether all of the data in a response came from a zone, in
+ * which case it can be cached until the zone changes.
+ */
+private boolean
+inZone(Message response, Zone zone) {
+	for (int i = Section.ANSWER; i <= Section.ADDITIONAL; i++) {
+		Record [] records = response.getSectionArray(i);
+		for (int j = 0; j < records.length; j++) {
+			if (records[j].getType() == Type.OPT)
+				continue;
+			if (findBestZone(records[j].getName()) != zone)
+				return false;
+		}
+	}
+	return true;
+}
+
+/*
+ * Returns a cached answer to a query, with the query's ID, RD flag and
+ * question name (which may differ in case) copied into it, or null.
+ */
+private byte []
+cachedReply(Message query, byte [] in, boolean tcp) {
+	Header header = query.getHeader();
+	if (header.getFlag(Flags.QR) ||
+	    header.getOpcode() != Opcode.QUERY ||
+	    header.getRcode() != Rcode.NOERROR ||
+	    header.getCount(Section.QUESTION) != 1)
+		return null;
+	Record question = query.getQuestion();
+	Name name = question.getName();
+	int nameLength = name.length();
+	/* The question must be uncompressed. */
+	if (in.length < 12 + nameLength || in[12 + nameLength - 1] != 0)
+		return null;
+	if (query.getTSIG() != null)
+		return null;
+
+	OPTRecord opt = query.getOPT();
+	int maxLength, flags = 0;
+	if (tcp)
+		maxLength = 65535;
+	else if (opt != null)
+		maxLength = Math.max(opt.getPayloadSize(), 512);
+	else
+		maxLength = 512;
+	if (opt != null && (opt.getFlags() & ExtendedFlags.DO) != 0)
+		flags = FLAG_DNSSECOK;
+
+	AnswerKey key = new AnswerKey(name, question.getType(),
+				      question.getDClass(), flags, opt != null,
+				      maxLength);
+	Answer answer = (Answer) answers.get(key);
+	if (answer == null)
+		return null;
+	if (answer.zone.getGeneration() != answer.generation) {
+		answers.remove(key);
+		return null;
+	}
+	answer.referenced = true;
+	byte [] wire = answer.wire.clone();
+	wire[0] = in[0];
+	wire[1] = in[1];
+	wire[2] = (byte) ((wire[2] & ~0x01) | (in[2] & 0x01));
+	System.arraycopy(in, 12, wire, 12, nameLength);
+	return wire;
+}
+
+/* Answers a query; called by workers. */
+byte []
+reply(byte [] in, TCPConnection conn) {
+	try {
+		Message query = new Message(in, true);
+		if (answers != null) {
+			byte [] wire = cachedReply(query, in, conn != null);
+			if (wire != null)
+				return wire;
+		}
+		return generateReply(query, in, in.length, conn);
+	}
+	catch (IOException e) {
+		return formerrMessage(in);
+	}
+	catch (IllegalStateException e) {
+		/* A malformed record in a lazily parsed query. */
+		return formerrMessage(in);
+	}
 }
 
 byte []
@@ -483,136 +889,175 @@ formerrMessage(byte [] in) {
 	return buildErrorMessage(header, Rcode.FORMERR, null);
 }
 
+/* Returns a SERVFAIL response to a query that couldn't be answered. */
+byte []
+servfailMessage(byte [] in) {
+	try {
+		return errorMessage(new Message(in), Rcode.SERVFAIL);
+	}
+	catch (IOException e) {
+		return formerrMessage(in);
+	}
+}
+
 public byte []
 errorMessage(Message query, int rcode) {
 	return buildErrorMessage(query.getHeader(), rcode,
 				 query.getQuestion());
 }
 
-public void
-TCPclient(Socket s) {
-	try {
-		int inLength;
-		DataInputStream dataIn;
-		DataOutputStream dataOut;
-		byte [] in;
-
-		InputStream is = s.getInputStream();
-		dataIn = new DataInputStream(is);
-		inLength = dataIn.readUnsignedShort();
-		in = new byte[inLength];
-		dataIn.readFully(in);
-
-		Message query;
-		byte [] response = null;
-		try {
-			query = new Message(in);
-			response = generateReply(query, in, in.length, s);
-			if (response == null)
-				return;
-		}
-		catch (IOException e) {
-			response = formerrMessage(in);
-		}
-		dataOut = new DataOutputStream(s.getOutputStream());
-		dataOut.writeShort(response.length);
-		dataOut.write(response);
+/* Runs a task on the selector thread. */
+private void
+onSelector(Runnable task) {
+	synchronized (selectorTasks) {
+		selectorTasks.add(task);
 	}
-	catch (IOException e) {
-		System.out.println("TCPclient(" +
-				   addrport(s.getLocalAddress(),
-					    s.getLocalPort()) +
-				   "): " + e);
+	selector.wakeup();
+}
+
+private void
+runSelectorTasks() {
+	Runnable [] tasks;
+	synchronized (selectorTasks) {
+		if (selectorTasks.isEmpty())
+			return;
+		tasks = (Runnable []) selectorTasks.toArray(
+					new Runnable[selectorTasks.size()]);
+		selectorTasks.clear();
 	}
-	finally {
-		try {
-			s.close();
-		}
-		catch (IOException e) {}
+	for (int i = 0; i < tasks.length; i++)
+		tasks[i].run();
+}
+
+private void
+accept(SelectionKey key) throws IOException {
+	ServerSocketChannel server = (ServerSocketChannel) key.channel();
+	SocketChannel channel;
+	while ((channel = server.accept()) != null) {
+		channel.configureBlocking(false);
+		TCPConnection conn = new TCPConnection(channel);
+		conn.key = channel.register(selector, SelectionKey.OP_READ,
+					    conn);
 	}
 }
 
-public void
-serveTCP(InetAddress addr, int port) {
-	try {
-		ServerSocket sock = new ServerSocket(port, 128, addr);
-		while (true) {
-			final Socket s = sock.accept();
-			Thread t;
-			t = new Thread(new Runnable() {
-					public void run() {TCPclient(s);}});
-			t.start();
+private void
+readUDP(SelectionKey key, ByteBuffer buf) throws IOException {
+	final DatagramChannel channel = (DatagramChannel) key.channel();
+	while (true) {
+		buf.clear();
+		final SocketAddress from = channel.receive(buf);
+		if (from == null)
+			return;
+		buf.flip();
+		final byte [] query = new byte[buf.remaining()];
+		buf.get(query);
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					byte [] response = reply(query, null);
+					if (response == null)
+						return;
+					try {
+						channel.send(
+						    ByteBuffer.wrap(response),
+						    from);
+					}
+					catch (IOException e) {
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			/* Overloaded; the client will retry. */
 		}
-	}
-	catch (IOException e) {
-		System.out.println("serveTCP(" + addrport(addr, port) + "): " +
-				   e);
 	}
 }
 
-public void
-serveUDP(InetAddress addr, int port) {
-	try {
-		DatagramSocket sock = new DatagramSocket(port, addr);
-		final short udpLength = 512;
-		byte [] in = new byte[udpLength];
-		DatagramPacket indp = new DatagramPacket(in, in.length);
-		DatagramPacket outdp = null;
-		while (true) {
-			indp.setLength(in.length);
-			try {
-				sock.receive(indp);
-			}
-			catch (InterruptedIOException e) {
-				continue;
-			}
-			Message query;
-			byte [] response = null;
+/* The selector loop, which handles all sockets. */
+private void
+serve() {
+	ByteBuffer buf = ByteBuffer.allocate(65535);
+	while (true) {
+		try {
+			selector.select();
+		}
+		catch (IOException e) {
+			System.out.println("select: " + e);
+			return;
+		}
+		runSelectorTasks();
+		Iterator it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey key = (SelectionKey) it.next();
+			it.remove();
+			Object att = key.attachment();
 			try {
-				query = new Message(in);
-				response = generateReply(query, in,
-							 indp.getLength(),
-							 null);
-				if (response == null)
+				if (!key.isValid())
 					continue;
+				if (key.isAcceptable())
+					accept(key);
+				else if (att instanceof TCPConnection) {
+					TCPConnection conn;
+					conn = (TCPConnection) att;
+					if (key.isReadable())
+						conn.read();
+					if (key.isValid() && key.isWritable())
+						conn.write();
+				} else if (key.isReadable())
+					readUDP(key, buf);
 			}
 			catch (IOException e) {
-				response = formerrMessage(in);
-			}
-			if (outdp == null)
-				outdp = new DatagramPacket(response,
-							   response.length,
-							   indp.getAddress(),
-							   indp.getPort());
-			else {
-				outdp.setData(response);
-				outdp.setLength(response.length);
-				outdp.setAddress(indp.getAddress());
-				outdp.setPort(indp.getPort());
+				if (att instanceof TCPConnection)
+					((TCPConnection) att).close();
+				else
+					System.out.println("serve(" + att +
+							   "): " + e);
 			}
-			sock.send(outdp);
 		}
 	}
-	catch (IOException e) {
-		System.out.println("serveUDP(" + addrport(addr, port) + "): " +
-				   e);
-	}
 }
 
 public void
-addTCP(final InetAddress addr, final int port) {
-	Thread t;
-	t = new Thread(new Runnable() {
-			public void run() {serveTCP(addr, port);}});
-	t.start();
+addTCP(final InetAddress addr, final int port) throws IOException {
+	final ServerSocketChannel channel = ServerSocketChannel.open();
+	channel.socket().bind(new InetSocketAddress(addr, port), 128);
+	channel.configureBlocking(false);
+	onSelector(new Runnable() {
+		public void run() {
+			try {
+				channel.register(selector,
+						 SelectionKey.OP_ACCEPT,
+						 addrport(addr, port));
+			}
+			catch (IOException e) {
+				System.out.println("addTCP(" +
+						   addrport(addr, port) +
+						   "): " + e);
+			}
+		}
+	});
 }
 
 public void
-addUDP(final InetAddress addr, final int port) {
-	Thread t;
-	t = new Thread(new Runnable() {
-			public void run() {serveUDP(addr, port);}});
-	t.start();
+addUDP(final InetAddress addr, final int port) throws IOException {
+	final DatagramChannel channel = DatagramChannel.open();
+	channel.socket().bind(new InetSocketAddress(addr, port));
+	channel.configureBlocking(false);
+	onSelector(new Runnable() {
+		public void run() {
+			try {
+				channel.register(selector,
+						 SelectionKey.OP_READ,
+						 addrport(addr, port));
+			}
+			catch (IOException e) {
+				System.out.println("addUDP(" +
+						   addrport(addr, port) +
+						   "): " + e);
+			}
+		}
+	});
 }
 
 public static void main(String [] args) {
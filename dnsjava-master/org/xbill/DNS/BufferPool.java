@@ -0,0 +1,111 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of ByteBuffers, used to receive, parse and render messages without
+ * allocating a new buffer for each one.  A buffer taken from the pool with
+ * {@link #acquire} should be returned with {@link #release} when it is no
+ * longer used; a buffer which is not returned is simply garbage collected.
+ * <p>
+ * Buffers can be parsed with {@link Message#Message(ByteBuffer)} and
+ * rendered into with {@link Message#toWire(ByteBuffer)}.
+ *
+ * @see DNSInput
+ * @see DNSOutput
+ */
+
+public final class BufferPool {
+
+private static BufferPool defaultPool;
+
+private final int bufferSize;
+private final boolean direct;
+private final ByteBuffer [] idle;
+private int count;
+
+/**
+ * Creates a new BufferPool.
+ * @param bufferSize The capacity of each buffer.
+ * @param maxIdle The maximum number of unused buffers kept in the pool.
+ * @param direct Whether the buffers are direct buffers.
+ */
+public
+BufferPool(int bufferSize, int maxIdle, boolean direct) {
+	if (bufferSize <= 0)
+		throw new IllegalArgumentException("invalid buffer size");
+	if (maxIdle < 0)
+		throw new IllegalArgumentException("invalid maximum idle " +
+						   "buffers");
+	this.bufferSize = bufferSize;
+	this.direct = direct;
+	this.idle = new ByteBuffer[maxIdle];
+}
+
+/**
+ * Returns the default pool, which contains direct buffers large enough to
+ * hold any DNS message.
+ */
+public static synchronized BufferPool
+getDefault() {
+	if (defaultPool == null) {
+		int n = Runtime.getRuntime().availableProcessors();
+		defaultPool = new BufferPool(Message.MAXLENGTH, 2 * n, true);
+	}
+	return defaultPool;
+}
+
+/** Returns the capacity of the buffers in this pool. */
+public int
+getBufferSize() {
+	return bufferSize;
+}
+
+/** Returns whether the buffers in this pool are direct buffers. */
+public boolean
+isDirect() {
+	return direct;
+}
+
+/**
+ * Takes a cleared buffer from the pool, or allocates a new one if the pool
+ * is empty.
+ */
+public ByteBuffer
+acquire() {
+	ByteBuffer buffer = null;
+	synchronized (this) {
+		if (count > 0) {
+			buffer = idle[--count];
+			idle[count] = null;
+		}
+	}
+	if (buffer == null) {
+		if (direct)
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		else
+			buffer = ByteBuffer.allocate(bufferSize);
+	}
+	buffer.clear();
+	return buffer;
+}
+
+/**
+ * Returns a buffer to the pool.  The buffer must not be used afterwards.
+ * Buffers which did not come from a pool like this one, and buffers
+ * returned when the pool is full, are discarded.
+ * @param buffer The buffer.
+ */
+public void
+release(ByteBuffer buffer) {
+	if (buffer.capacity() != bufferSize || buffer.isDirect() != direct)
+		return;
+	synchronized (this) {
+		if (count < idle.length)
+			idle[count++] = buffer;
+	}
+}
+
+}
@@ -0,0 +1,432 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Resolves a large number of queries asynchronously.  The queries are
+ * taken from an Iterator (such as that of a Stream) as they are needed,
+ * at most a fixed number of them are outstanding at once, and the results
+ * are returned in the order in which they complete.  Queries are spread
+ * over one or more Resolvers, each of which may be limited to a number of
+ * queries per second.
+ * <p>
+ * Each result has the same result codes as a {@link Lookup}, and CNAMEs and
+ * DNAMEs are followed in the same way.  No cache or search path is used.
+ * <p>
+ * The queries are sent and the responses processed by the thread which
+ * iterates over the results, so queries are only taken from the input as
+ * fast as results are consumed.
+ * <pre>
+ * BulkLookup bulk = new BulkLookup(new Resolver [] {r1, r2});
+ * bulk.setMaxOutstanding(500);
+ * bulk.setRate(1000);
+ * Iterator it = bulk.run(questions);
+ * while (it.hasNext()) {
+ *	BulkLookup.Result result = (BulkLookup.Result) it.next();
+ *	...
+ * }
+ * </pre>
+ *
+ * @see Lookup
+ * @see Resolver
+ */
+
+public class BulkLookup {
+
+/** The result of one query. */
+public static class Result {
+	private Record question;
+	private Name current;
+	private int iterations;
+	private List aliases;
+	private Record [] answers;
+	private int result = -1;
+	private String error;
+	private Upstream upstream;
+
+	Result(Record question) {
+		this.question = question;
+		this.current = question.getName();
+	}
+
+	/** Returns the question which was asked. */
+	public Record
+	getQuestion() {
+		return question;
+	}
+
+	/**
+	 * Returns the result code, which is one of the codes defined in
+	 * {@link Lookup}, such as {@link Lookup#SUCCESSFUL} or
+	 * {@link Lookup#HOST_NOT_FOUND}.
+	 */
+	public int
+	getResult() {
+		return result;
+	}
+
+	/** Returns the answers, or null if none were found. */
+	public Record []
+	getAnswers() {
+		return answers;
+	}
+
+	/** Returns the aliases which were followed to find the answers. */
+	public Name []
+	getAliases() {
+		if (aliases == null)
+			return new Name[0];
+		return (Name []) aliases.toArray(new Name[aliases.size()]);
+	}
+
+	/** Returns an error string describing the result code. */
+	public String
+	getErrorString() {
+		if (error != null)
+			return error;
+		switch (result) {
+			case Lookup.SUCCESSFUL:		return "successful";
+			case Lookup.UNRECOVERABLE:	return "unrecoverable error";
+			case Lookup.TRY_AGAIN:		return "try again";
+			case Lookup.HOST_NOT_FOUND:	return "host not found";
+			case Lookup.TYPE_NOT_FOUND:	return "type not found";
+		}
+		throw new IllegalStateException("unknown result");
+	}
+
+	public String
+	toString() {
+		return question.getName() + " " +
+		       Type.string(question.getType()) + ": " +
+		       getErrorString();
+	}
+}
+
+/* A response, or the exception thrown instead, for a pending result. */
+private static class Completion {
+	Result result;
+	Message query;
+	Message response;
+	Throwable error;
+}
+
+/*
+ * A resolver and its rate limit, which is enforced with a token bucket
+ * holding up to one second's worth of queries.
+ */
+private static class Upstream {
+	Resolver resolver;
+	double tokens;
+	long last;
+
+	Upstream(Resolver resolver) {
+		this.resolver = resolver;
+		this.last = System.nanoTime();
+	}
+
+	/*
+	 * Takes a token if one is available.  Otherwise, returns the number
+	 * of nanoseconds until one will be.
+	 */
+	long
+	take(int rate) {
+		if (rate <= 0)
+			return 0;
+		long now = System.nanoTime();
+		tokens = Math.min(rate, tokens + (now - last) * rate / 1e9);
+		last = now;
+		if (tokens >= 1) {
+			tokens -= 1;
+			return 0;
+		}
+		return Math.max((long) ((1 - tokens) * 1e9 / rate), 1);
+	}
+}
+
+private Upstream [] upstreams;
+private int nextUpstream;
+private int maxOutstanding = 100;
+private int rate;
+
+/**
+ * Creates a BulkLookup which sends all queries to one Resolver.
+ * @param resolver The resolver.
+ */
+public
+BulkLookup(Resolver resolver) {
+	this(new Resolver [] {resolver});
+}
+
+/**
+ * Creates a BulkLookup which spreads queries over several Resolvers, in
+ * turn.
+ * @param resolvers The resolvers.
+ */
+public
+BulkLookup(Resolver [] resolvers) {
+	if (resolvers.length == 0)
+		throw new IllegalArgumentException("no resolvers");
+	upstreams = new Upstream[resolvers.length];
+	for (int i = 0; i < resolvers.length; i++)
+		upstreams[i] = new Upstream(resolvers[i]);
+}
+
+/**
+ * Sets the maximum number of queries outstanding at once.  The default
+ * is 100.
+ */
+public void
+setMaxOutstanding(int max) {
+	if (max <= 0)
+		throw new IllegalArgumentException("invalid limit");
+	maxOutstanding = max;
+}
+
+/**
+ * Sets the maximum number of queries sent to each Resolver per second.
+ * The default is 0, which means no limit.
+ */
+public void
+setRate(int queriesPerSecond) {
+	if (queriesPerSecond < 0)
+		throw new IllegalArgumentException("invalid rate");
+	rate = queriesPerSecond;
+}
+
+/**
+ * Resolves a sequence of queries.
+ * @param questions An Iterator over the questions to ask, as Records such as
+ * those returned by {@link Record#newRecord(Name, int, int)}.  The type may
+ * not be a meta type other than ANY.
+ * @return An Iterator over the {@link Result}s, in the order in which they
+ * complete.  Its methods may block until queries complete.
+ */
+public Iterator
+run(final Iterator questions) {
+	return new Iterator() {
+		private BlockingQueue completions = new LinkedBlockingQueue();
+		private LinkedList aliases = new LinkedList();
+		private Cache cache;
+		private Result ready;
+		private int outstanding;
+
+		public boolean
+		hasNext() {
+			try {
+				while (ready == null) {
+					if (outstanding == 0 &&
+					    !questions.hasNext())
+						return false;
+					ready = poll();
+				}
+				return true;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted");
+			}
+		}
+
+		/*
+		 * Sends as many queries as are allowed, then waits for a
+		 * completion and processes it.  Returns a result if one
+		 * is finished, or null.  The queries which follow aliases
+		 * are sent first, and are limited by the same rate.
+		 */
+		private Result
+		poll() throws InterruptedException {
+			long wait = -1;
+			while (!aliases.isEmpty()) {
+				Result r = (Result) aliases.getFirst();
+				wait = r.upstream.take(rate);
+				if (wait > 0)
+					break;
+				aliases.removeFirst();
+				send(r, completions);
+			}
+			while (wait <= 0 && outstanding < maxOutstanding &&
+			       questions.hasNext())
+			{
+				Upstream u = upstreams[nextUpstream];
+				wait = u.take(rate);
+				if (wait > 0)
+					break;
+				nextUpstream = (nextUpstream + 1) %
+					       upstreams.length;
+				Record q = (Record) questions.next();
+				Result r = new Result(q);
+				r.upstream = u;
+				if (send(r, completions))
+					outstanding++;
+				else
+					return r;
+			}
+			Completion c;
+			if (wait > 0) {
+				c = (Completion) completions.poll(wait,
+						TimeUnit.NANOSECONDS);
+				if (c == null)
+					return null;
+			} else
+				c = (Completion) completions.take();
+			Result r = c.result;
+			if (process(c, scratch(r.question.getDClass()))) {
+				aliases.add(r);
+				return null;
+			}
+			outstanding--;
+			return r;
+		}
+
+		/* Returns an empty Cache for interpreting a response. */
+		private Cache
+		scratch(int dclass) {
+			if (cache == null || cache.getDClass() != dclass)
+				cache = new Cache(dclass);
+			else
+				cache.clearCache();
+			return cache;
+		}
+
+		public Object
+		next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Result r = ready;
+			ready = null;
+			return r;
+		}
+
+		public void
+		remove() {
+			throw new UnsupportedOperationException();
+		}
+	};
+}
+
+/*
+ * Sends the query for a result's current name.  Returns false if the
+ * query couldn't be sent, in which case the result is finished.
+ */
+private boolean
+send(final Result r, final BlockingQueue completions) {
+	Record question = r.question;
+	int type = question.getType();
+	if (!Type.isRR(type) && type != Type.ANY) {
+		r.result = Lookup.UNRECOVERABLE;
+		r.error = "Cannot query for meta-types other than ANY";
+		return false;
+	}
+	Record q = Record.newRecord(r.current, type, question.getDClass());
+	final Message query = Message.newQuery(q);
+	r.upstream.resolver.sendAsync(query).whenComplete(
+		new BiConsumer<Message, Throwable>() {
+			public void
+			accept(Message response, Throwable error) {
+				Completion c = new Completion();
+				c.result = r;
+				c.query = query;
+				c.response = response;
+				c.error = error;
+				completions.add(c);
+			}
+		});
+	return true;
+}
+
+/*
+ * Processes a response.  Returns true if an alias was found, and another
+ * query should be sent for its target, or false if the result is finished.
+ * The cache is empty, and is used only to interpret the response.
+ */
+private boolean
+process(Completion c, Cache cache) {
+	Result r = c.result;
+	Throwable error = c.error;
+	if (error instanceof CompletionException && error.getCause() != null)
+		error = error.getCause();
+	if (error != null) {
+		r.result = Lookup.TRY_AGAIN;
+		if (error instanceof InterruptedIOException)
+			r.error = "timed out";
+		else
+			r.error = "network error";
+		return false;
+	}
+
+	Message response = c.response;
+	int rcode = response.getHeader().getRcode();
+	if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
+		r.result = Lookup.TRY_AGAIN;
+		r.error = Rcode.string(rcode);
+		return false;
+	}
+	if (!c.query.getQuestion().equals(response.getQuestion())) {
+		r.result = Lookup.TRY_AGAIN;
+		r.error = "response does not match query";
+		return false;
+	}
+
+	/* The empty cache interprets the response as a Lookup would. */
+	SetResponse sr = cache.addMessage(response);
+	if (sr == null)
+		sr = cache.lookupRecords(r.current, r.question.getType(),
+					 Credibility.NORMAL);
+
+	Name target;
+	if (sr.isSuccessful()) {
+		RRset [] rrsets = sr.answers();
+		List l = new ArrayList();
+		for (int i = 0; i < rrsets.length; i++) {
+			Iterator it = rrsets[i].rrs();
+			while (it.hasNext())
+				l.add(it.next());
+		}
+		r.result = Lookup.SUCCESSFUL;
+		r.answers = (Record []) l.toArray(new Record[l.size()]);
+		return false;
+	} else if (sr.isNXDOMAIN()) {
+		r.result = Lookup.HOST_NOT_FOUND;
+		return false;
+	} else if (sr.isNXRRSET()) {
+		r.result = Lookup.TYPE_NOT_FOUND;
+		return false;
+	} else if (sr.isCNAME()) {
+		target = sr.getCNAME().getTarget();
+	} else if (sr.isDNAME()) {
+		try {
+			target = r.current.fromDNAME(sr.getDNAME());
+		}
+		catch (NameTooLongException e) {
+			r.result = Lookup.UNRECOVERABLE;
+			r.error = "Invalid DNAME target";
+			return false;
+		}
+	} else if (sr.isDelegation()) {
+		r.result = Lookup.UNRECOVERABLE;
+		r.error = "referral";
+		return false;
+	} else {
+		r.result = Lookup.TRY_AGAIN;
+		r.error = "no answer";
+		return false;
+	}
+
+	if (++r.iterations >= 10 || target.equals(r.current)) {
+		r.result = Lookup.UNRECOVERABLE;
+		r.error = "CNAME loop";
+		return false;
+	}
+	if (r.aliases == null)
+		r.aliases = new ArrayList();
+	r.aliases.add(r.current);
+	r.current = target;
+	return true;
+}
+
+}
@@ -3,7 +3,12 @@
 package org.xbill.DNS;
 
 import java.io.*;
+import java.lang.ref.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 /**
  * A cache of DNS records.  The cache obeys TTLs, so items are purged after
@@ -11,6 +16,17 @@ import java.util.*;
  * avoid repeated failed DNS queries.  The credibility of each RRset is
  * maintained, so that more credible records replace less credible records,
  * and lookups can specify the minimum credibility of data they are requesting.
+ * <p>
+ * By default, all access to a Cache is serialized.  A concurrent Cache
+ * (see {@link #Cache(int, boolean)}) allows lookups to proceed without
+ * locking and serializes updates only among entries with the same name
+ * hash, which is more appropriate when a Cache is shared by many threads.
+ * A very large Cache may keep its data outside of the Java heap in a
+ * {@link RecordStore}.
+ * <p>
+ * The contents of a Cache can be saved with {@link #dump} and loaded into
+ * another Cache with {@link #restore}, so that a restarted resolver doesn't
+ * start with an empty cache.
  * @see RRset
  * @see Credibility
  *
@@ -23,6 +39,10 @@ private interface Element {
 	public boolean expired();
 	public int compareCredibility(int cred);
 	public int getType();
+	public Name getName();
+	public int getSize();
+	public boolean isReferenced();
+	public void setReferenced(boolean referenced);
 }
 
 private static int
@@ -40,6 +60,8 @@ private static class CacheRRset extends RRset implements Element {
 	
 	int credibility;
 	int expire;
+	transient int size = -1;
+	transient boolean referenced;
 
 	public
 	CacheRRset(Record rec, int cred, long maxttl) {
@@ -56,6 +78,13 @@ private static class CacheRRset extends RRset implements Element {
 		this.expire = limitExpire(rrset.getTTL(), maxttl);
 	}
 
+	public
+	CacheRRset(CacheRRset crrset) {
+		super(crrset);
+		this.credibility = crrset.credibility;
+		this.expire = crrset.expire;
+	}
+
 	public final boolean
 	expired() {
 		int now = (int)(System.currentTimeMillis() / 1000);
@@ -67,6 +96,36 @@ private static class CacheRRset extends RRset implements Element {
 		return credibility - cred;
 	}
 
+	public final int
+	getSize() {
+		/*
+		 * The size is computed once, so that it is still accurate
+		 * when the element is removed even if the RRset has been
+		 * modified in the meantime.
+		 */
+		if (size < 0) {
+			int total = 64;
+			Iterator it = rrs(false);
+			while (it.hasNext())
+				total += recordSize((Record) it.next());
+			it = sigs();
+			while (it.hasNext())
+				total += recordSize((Record) it.next());
+			size = total;
+		}
+		return size;
+	}
+
+	public final boolean
+	isReferenced() {
+		return referenced;
+	}
+
+	public final void
+	setReferenced(boolean referenced) {
+		this.referenced = referenced;
+	}
+
 	public String
 	toString() {
 		StringBuffer sb = new StringBuffer();
@@ -82,6 +141,7 @@ private static class NegativeElement implements Element {
 	Name name;
 	int credibility;
 	int expire;
+	boolean referenced;
 
 	public
 	NegativeElement(Name name, int type, SOARecord soa, int cred,
@@ -101,6 +161,11 @@ private static class NegativeElement implements Element {
 		return type;
 	}
 
+	public Name
+	getName() {
+		return name;
+	}
+
 	public final boolean
 	expired() {
 		int now = (int)(System.currentTimeMillis() / 1000);
@@ -112,6 +177,21 @@ private static class NegativeElement implements Element {
 		return credibility - cred;
 	}
 
+	public final int
+	getSize() {
+		return 48 + name.length();
+	}
+
+	public final boolean
+	isReferenced() {
+		return referenced;
+	}
+
+	public final void
+	setReferenced(boolean referenced) {
+		this.referenced = referenced;
+	}
+
 	public String
 	toString() {
 		StringBuffer sb = new StringBuffer();
@@ -125,7 +205,23 @@ private static class NegativeElement implements Element {
 	}
 }
 
-private static class CacheMap extends LinkedHashMap {
+private static int
+recordSize(Record r) {
+	return 32 + r.getName().length() + r.rdataToWireCanonical().length;
+}
+
+/*
+ * The data maps each Name to either a single Element or an array of
+ * Elements.  The arrays are never modified once they have been stored;
+ * an update replaces the array, so that readers of a concurrent cache
+ * never see a partially modified entry.
+ */
+private interface ElementMap extends Map {
+	int getMaxSize();
+	void setMaxSize(int maxsize);
+}
+
+private static class CacheMap extends LinkedHashMap implements ElementMap {
 	private int maxsize = -1;
 
 	CacheMap(int maxsize) {
@@ -133,12 +229,12 @@ private static class CacheMap extends LinkedHashMap {
 		this.maxsize = maxsize;
 	}
 
-	int
+	public int
 	getMaxSize() {
 		return maxsize;
 	}
 
-	void
+	public void
 	setMaxSize(int maxsize) {
 		/*
 		 * Note that this doesn't shrink the size of the map if
@@ -153,12 +249,249 @@ private static class CacheMap extends LinkedHashMap {
 	}
 }
 
-private CacheMap data;
+/*
+ * The storage for a concurrent cache.  Reads never modify the map; the
+ * cache instead marks the elements it returns as referenced, and eviction
+ * uses the CLOCK algorithm (an approximation of LRU) to pass over names
+ * with referenced elements, clearing the marks as it goes.  The map is
+ * bounded both by number of names and by the approximate amount of memory
+ * used by the cached data.
+ */
+private static class ConcurrentCacheMap extends ConcurrentHashMap
+	implements ElementMap
+{
+	private static final long serialVersionUID = -5766761502021115887L;
+
+	private volatile int maxsize;
+	private volatile long maxbytes;
+	private final AtomicLong bytes = new AtomicLong();
+	private final Lock evictLock = new ReentrantLock();
+	private transient Iterator hand;
+
+	ConcurrentCacheMap(int maxsize, long maxbytes) {
+		super(16, (float) 0.75, lockStripes);
+		this.maxsize = maxsize;
+		this.maxbytes = maxbytes;
+	}
+
+	public int
+	getMaxSize() {
+		return maxsize;
+	}
+
+	public void
+	setMaxSize(int maxsize) {
+		this.maxsize = maxsize;
+		evict();
+	}
+
+	long
+	getMaxBytes() {
+		return maxbytes;
+	}
+
+	void
+	setMaxBytes(long maxbytes) {
+		this.maxbytes = maxbytes;
+		evict();
+	}
+
+	long
+	getBytes() {
+		return bytes.get();
+	}
+
+	private static long
+	weigh(Object types) {
+		if (types == null)
+			return 0;
+		Element [] elements = allElements(types);
+		long total = 0;
+		for (int i = 0; i < elements.length; i++)
+			total += elements[i].getSize();
+		return total;
+	}
+
+	public Object
+	put(Object key, Object value) {
+		Object old = super.put(key, value);
+		bytes.addAndGet(weigh(value) - weigh(old));
+		evict();
+		return old;
+	}
+
+	public Object
+	remove(Object key) {
+		Object old = super.remove(key);
+		if (old != null)
+			bytes.addAndGet(-weigh(old));
+		return old;
+	}
+
+	public boolean
+	remove(Object key, Object value) {
+		if (!super.remove(key, value))
+			return false;
+		bytes.addAndGet(-weigh(value));
+		return true;
+	}
+
+	public void
+	clear() {
+		Iterator it = keySet().iterator();
+		while (it.hasNext())
+			remove(it.next());
+	}
+
+	private boolean
+	overLimit() {
+		return (maxsize >= 0 && size() > maxsize) ||
+		       (maxbytes >= 0 && bytes.get() > maxbytes);
+	}
+
+	/*
+	 * Checks whether any element of a name has been referenced since the
+	 * last pass of the clock hand, and clears the marks.
+	 */
+	private static boolean
+	referenced(Object types) {
+		Element [] elements = allElements(types);
+		boolean referenced = false;
+		for (int i = 0; i < elements.length; i++) {
+			if (elements[i].isReferenced()) {
+				elements[i].setReferenced(false);
+				if (!elements[i].expired())
+					referenced = true;
+			}
+		}
+		return referenced;
+	}
+
+	private void
+	evict() {
+		if (!overLimit())
+			return;
+		/* If another thread is already evicting, let it do the work. */
+		if (!evictLock.tryLock())
+			return;
+		try {
+			int steps = 2 * size() + 1;
+			while (overLimit() && steps-- > 0) {
+				if (hand == null || !hand.hasNext())
+					hand = entrySet().iterator();
+				if (!hand.hasNext())
+					break;
+				Map.Entry entry = (Map.Entry) hand.next();
+				Object types = entry.getValue();
+				if (referenced(types))
+					continue;
+				remove(entry.getKey(), types);
+			}
+		}
+		finally {
+			evictLock.unlock();
+		}
+	}
+}
+
+/*
+ * The storage for a cache whose data is kept in a RecordStore.  The elements
+ * of a name are stored in the same form as in a snapshot, and the names
+ * which were changed least recently are evicted first.
+ */
+private static class StoreCacheMap extends RecordStore.StoreMap
+	implements ElementMap
+{
+	private static final long serialVersionUID = -2360308224870372398L;
+
+	private int maxsize;
+
+	StoreCacheMap(RecordStore store, int maxsize) {
+		super(store, new RecordStore.Codec() {
+			public void
+			encode(Object types, DNSOutput out) {
+				Element [] elements = allElements(types);
+				out.writeU8(elements.length);
+				for (int i = 0; i < elements.length; i++)
+					dumpElement(elements[i], out);
+			}
+
+			public Object
+			decode(Name name, DNSInput in) throws IOException {
+				int count = in.readU8();
+				if (count == 1)
+					return readElement(in);
+				Element [] elements = new Element[count];
+				for (int i = 0; i < count; i++)
+					elements[i] = readElement(in);
+				return elements;
+			}
+		});
+		this.maxsize = maxsize;
+	}
+
+	public int
+	getMaxSize() {
+		return maxsize;
+	}
+
+	public void
+	setMaxSize(int maxsize) {
+		this.maxsize = maxsize;
+	}
+
+	public Object
+	put(Object key, Object value) {
+		super.put(key, value);
+		while (maxsize >= 0 && size() > maxsize)
+			store.removeEldest();
+		return null;
+	}
+}
+
+/*
+ * Periodically removes expired data from a cache.  The task only holds a
+ * weak reference to the cache, and cancels itself once the cache has been
+ * garbage collected.
+ */
+private static class Cleaner extends TimerTask {
+	private final Reference cacheRef;
+
+	Cleaner(Cache cache) {
+		this.cacheRef = new WeakReference(cache);
+	}
+
+	public void
+	run() {
+		Cache cache = (Cache) cacheRef.get();
+		if (cache == null)
+			cancel();
+		else
+			cache.removeExpired();
+	}
+}
+
+private static Timer cleanTimer;
+
+private static synchronized Timer
+getCleanTimer() {
+	if (cleanTimer == null)
+		cleanTimer = new Timer("dnsjava cache cleaner", true);
+	return cleanTimer;
+}
+
+private ElementMap data;
+private Object [] locks;
 private int maxncache = -1;
 private int maxcache = -1;
 private int dclass;
+private int cleanInterval;
+private TimerTask cleaner;
 
 private static final int defaultMaxEntries = 50000;
+private static final long defaultMaxBytes = 32 * 1024 * 1024;
+private static final int defaultCleanInterval = 60;
+private static final int lockStripes = 64;
 
 /**
  * Creates an empty Cache
@@ -168,8 +501,54 @@ private static final int defaultMaxEntries = 50000;
  */
 public
 Cache(int dclass) {
+	this(dclass, false);
+}
+
+/**
+ * Creates an empty Cache, which may be a concurrent Cache.  Lookups in a
+ * concurrent Cache do not lock, and updates only lock a small portion of
+ * the Cache.  A concurrent Cache is bounded both by the number of entries
+ * and by the approximate amount of memory used by the cached data, evicts
+ * entries that have not recently been used when either limit is exceeded,
+ * and periodically removes expired data.
+ *
+ * @param dclass The DNS class of this cache
+ * @param concurrent Whether this cache should be a concurrent cache.
+ * @see DClass
+ * @see #setMaxBytes
+ * @see #setCleanInterval
+ */
+public
+Cache(int dclass, boolean concurrent) {
 	this.dclass = dclass;
-	data = new CacheMap(defaultMaxEntries);
+	if (concurrent) {
+		data = new ConcurrentCacheMap(defaultMaxEntries,
+					      defaultMaxBytes);
+		locks = new Object[lockStripes];
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = new Object();
+		setCleanInterval(defaultCleanInterval);
+	} else
+		data = new CacheMap(defaultMaxEntries);
+}
+
+/**
+ * Creates an empty Cache whose data is kept in a {@link RecordStore}, outside
+ * of the Java heap.  This is intended for very large caches.  Records are
+ * converted to objects each time they are found, and access to the Cache is
+ * serialized.  When the maximum number of entries is exceeded, the entries
+ * which were changed least recently are evicted.
+ *
+ * @param dclass The DNS class of this cache
+ * @param store The store to keep the data in, which must be empty and not
+ * used by any other Cache or Zone.
+ * @throws IllegalArgumentException The store is already in use.
+ * @see DClass
+ */
+public
+Cache(int dclass, RecordStore store) {
+	this.dclass = dclass;
+	data = new StoreCacheMap(store, defaultMaxEntries);
 }
 
 /**
@@ -193,38 +572,40 @@ Cache(String file) throws IOException {
 		addRecord(record, Credibility.HINT, m);
 }
 
-private synchronized Object
-exactName(Name name) {
-	return data.get(name);
-}
-
-private synchronized void
-removeName(Name name) {
-	data.remove(name);
+/**
+ * Returns the object which must be held while modifying the data for a
+ * name.  A concurrent cache uses one of a fixed set of locks, chosen by
+ * the name's hash; otherwise, the whole cache is locked.
+ */
+private Object
+lockFor(Name name) {
+	if (locks == null)
+		return this;
+	int hash = name.hashCode();
+	hash ^= (hash >>> 16);
+	return locks[hash & (locks.length - 1)];
 }
 
-private synchronized Element []
+private static Element []
 allElements(Object types) {
-	if (types instanceof List) {
-		List typelist = (List) types;
-		int size = typelist.size();
-		return (Element []) typelist.toArray(new Element[size]);
-	} else {
+	if (types instanceof Element [])
+		return (Element []) types;
+	else {
 		Element set = (Element) types;
 		return new Element[] {set};
 	}
 }
 
-private synchronized Element
+private Element
 oneElement(Name name, Object types, int type, int minCred) {
 	Element found = null;
 
 	if (type == Type.ANY)
 		throw new IllegalArgumentException("oneElement(ANY)");
-	if (types instanceof List) {
-		List list = (List) types;
-		for (int i = 0; i < list.size(); i++) {
-			Element set = (Element) list.get(i);
+	if (types instanceof Element []) {
+		Element [] elements = (Element []) types;
+		for (int i = 0; i < elements.length; i++) {
+			Element set = elements[i];
 			if (set.getType() == type) {
 				found = set;
 				break;
@@ -238,82 +619,142 @@ oneElement(Name name, Object types, int type, int minCred) {
 	if (found == null)
 		return null;
 	if (found.expired()) {
-		removeElement(name, type);
+		removeElement(name, type, found);
 		return null;
 	}
 	if (found.compareCredibility(minCred) < 0)
 		return null;
+	if (!found.isReferenced())
+		found.setReferenced(true);
 	return found;
 }
 
-private synchronized Element
+private Element
 findElement(Name name, int type, int minCred) {
-	Object types = exactName(name);
+	Object types = data.get(name);
 	if (types == null)
 		return null;
 	return oneElement(name, types, type, minCred);
 }
 
-private synchronized void
+private void
 addElement(Name name, Element element) {
-	Object types = data.get(name);
-	if (types == null) {
-		data.put(name, element);
-		return;
-	}
-	int type = element.getType();
-	if (types instanceof List) {
-		List list = (List) types;
-		for (int i = 0; i < list.size(); i++) {
-			Element elt = (Element) list.get(i);
-			if (elt.getType() == type) {
-				list.set(i, element);
+	synchronized (lockFor(name)) {
+		Object types = data.get(name);
+		if (types == null) {
+			data.put(name, element);
+			return;
+		}
+		int type = element.getType();
+		Element [] elements = allElements(types);
+		for (int i = 0; i < elements.length; i++) {
+			if (elements[i].getType() == type) {
+				if (elements.length == 1)
+					data.put(name, element);
+				else {
+					Element [] newElements;
+					newElements = elements.clone();
+					newElements[i] = element;
+					data.put(name, newElements);
+				}
 				return;
 			}
 		}
-		list.add(element);
-	} else {
-		Element elt = (Element) types;
-		if (elt.getType() == type)
-			data.put(name, element);
-		else {
-			LinkedList list = new LinkedList();
-			list.add(elt);
-			list.add(element);
-			data.put(name, list);
-		}
+		Element [] newElements = new Element[elements.length + 1];
+		System.arraycopy(elements, 0, newElements, 0, elements.length);
+		newElements[elements.length] = element;
+		data.put(name, newElements);
 	}
 }
 
-private synchronized void
-removeElement(Name name, int type) {
-	Object types = data.get(name);
-	if (types == null) {
-		return;
-	}
-	if (types instanceof List) {
-		List list = (List) types;
-		for (int i = 0; i < list.size(); i++) {
-			Element elt = (Element) list.get(i);
-			if (elt.getType() == type) {
-				list.remove(i);
-				if (list.size() == 0)
-					data.remove(name);
+/*
+ * Removes the element of the given type from a name.  If expected is not
+ * null, the element is only removed if it has not been replaced.
+ */
+private void
+removeElement(Name name, int type, Element expected) {
+	synchronized (lockFor(name)) {
+		Object types = data.get(name);
+		if (types == null)
+			return;
+		Element [] elements = allElements(types);
+		for (int i = 0; i < elements.length; i++) {
+			if (elements[i].getType() != type)
+				continue;
+			/*
+			 * Elements are only replaced concurrently in a
+			 * concurrent cache.  In one backed by a RecordStore,
+			 * each lookup returns new objects.
+			 */
+			if (expected != null && locks != null &&
+			    elements[i] != expected)
 				return;
+			if (elements.length == 1)
+				data.remove(name);
+			else if (elements.length == 2)
+				data.put(name, elements[1 - i]);
+			else {
+				Element [] newElements;
+				newElements = new Element[elements.length - 1];
+				System.arraycopy(elements, 0, newElements, 0, i);
+				System.arraycopy(elements, i + 1, newElements, i,
+						 elements.length - i - 1);
+				data.put(name, newElements);
 			}
-		}
-	} else {
-		Element elt = (Element) types;
-		if (elt.getType() != type)
 			return;
-		data.remove(name);
+		}
 	}
 }
 
+private void
+removeElement(Name name, int type) {
+	removeElement(name, type, null);
+}
+
 /** Empties the Cache. */
-public synchronized void
+public void
 clearCache() {
-	data.clear();
+	if (locks != null) {
+		data.clear();
+		return;
+	}
+	synchronized (this) {
+		data.clear();
+	}
+}
+
+/**
+ * Removes all expired data from the Cache.  Expired data is otherwise only
+ * removed when it is found by a lookup, or periodically if a clean
+ * interval is set.
+ * @return The number of RRsets and negative entries removed.
+ * @see #setCleanInterval
+ */
+public int
+removeExpired() {
+	if (locks != null)
+		return doRemoveExpired();
+	synchronized (this) {
+		return doRemoveExpired();
+	}
+}
+
+private int
+doRemoveExpired() {
+	List expired = new ArrayList();
+	Iterator it = data.values().iterator();
+	while (it.hasNext()) {
+		Element [] elements = allElements(it.next());
+		for (int i = 0; i < elements.length; i++)
+			if (elements[i].expired())
+				expired.add(elements[i]);
+	}
+	it = expired.iterator();
+	while (it.hasNext()) {
+		Element element = (Element) it.next();
+		removeElement(element.getName(), element.getType(), element);
+	}
+	return expired.size();
 }
 
 /**
@@ -323,20 +764,28 @@ clearCache() {
  * @param o The source of the record (this could be a Message, for example)
  * @see Record
  */
-public synchronized void
+public void
 addRecord(Record r, int cred, Object o) {
 	Name name = r.getName();
 	int type = r.getRRsetType();
 	if (!Type.isRR(type))
 		return;
-	Element element = findElement(name, type, cred);
-	if (element == null) {
-		CacheRRset crrset = new CacheRRset(r, cred, maxcache);
-		addRRset(crrset, cred);
-	} else if (element.compareCredibility(cred) == 0) {
-		if (element instanceof CacheRRset) {
-			CacheRRset crrset = (CacheRRset) element;
-			crrset.addRR(r);
+	synchronized (lockFor(name)) {
+		Element element = findElement(name, type, cred);
+		if (element == null) {
+			CacheRRset crrset = new CacheRRset(r, cred, maxcache);
+			addRRset(crrset, cred);
+		} else if (element.compareCredibility(cred) == 0) {
+			if (element instanceof CacheRRset) {
+				/*
+				 * Replace the RRset rather than modifying it,
+				 * since it may be in use by other threads.
+				 */
+				CacheRRset crrset;
+				crrset = new CacheRRset((CacheRRset) element);
+				crrset.addRR(r);
+				addElement(name, crrset);
+			}
 		}
 	}
 }
@@ -347,25 +796,30 @@ addRecord(Record r, int cred, Object o) {
  * @param cred The credibility of these records
  * @see RRset
  */
-public synchronized void
+public void
 addRRset(RRset rrset, int cred) {
 	long ttl = rrset.getTTL();
 	Name name = rrset.getName();
 	int type = rrset.getType();
-	Element element = findElement(name, type, 0);
-	if (ttl == 0) {
-		if (element != null && element.compareCredibility(cred) <= 0)
-			removeElement(name, type);
-	} else {
-		if (element != null && element.compareCredibility(cred) <= 0)
-			element = null;
-		if (element == null) {
-			CacheRRset crrset;
-			if (rrset instanceof CacheRRset)
-				crrset = (CacheRRset) rrset;
-			else
-				crrset = new CacheRRset(rrset, cred, maxcache);
-			addElement(name, crrset);
+	synchronized (lockFor(name)) {
+		Element element = findElement(name, type, 0);
+		if (ttl == 0) {
+			if (element != null &&
+			    element.compareCredibility(cred) <= 0)
+				removeElement(name, type);
+		} else {
+			if (element != null &&
+			    element.compareCredibility(cred) <= 0)
+				element = null;
+			if (element == null) {
+				CacheRRset crrset;
+				if (rrset instanceof CacheRRset)
+					crrset = (CacheRRset) rrset;
+				else
+					crrset = new CacheRRset(rrset, cred,
+								maxcache);
+				addElement(name, crrset);
+			}
 		}
 	}
 }
@@ -378,34 +832,48 @@ addRRset(RRset rrset, int cred) {
  * The negative cache ttl is derived from the SOA.
  * @param cred The credibility of the negative entry
  */
-public synchronized void
+public void
 addNegative(Name name, int type, SOARecord soa, int cred) {
 	long ttl = 0;
 	if (soa != null)
 		ttl = soa.getTTL();
-	Element element = findElement(name, type, 0);
-	if (ttl == 0) {
-		if (element != null && element.compareCredibility(cred) <= 0)
-			removeElement(name, type);
-	} else {
-		if (element != null && element.compareCredibility(cred) <= 0)
-			element = null;
-		if (element == null)
-			addElement(name, new NegativeElement(name, type,
-							     soa, cred,
-							     maxncache));
+	synchronized (lockFor(name)) {
+		Element element = findElement(name, type, 0);
+		if (ttl == 0) {
+			if (element != null &&
+			    element.compareCredibility(cred) <= 0)
+				removeElement(name, type);
+		} else {
+			if (element != null &&
+			    element.compareCredibility(cred) <= 0)
+				element = null;
+			if (element == null)
+				addElement(name, new NegativeElement(name, type,
+								     soa, cred,
+								     maxncache));
+		}
 	}
 }
 
 /**
  * Finds all matching sets or something that causes the lookup to stop.
  */
-protected synchronized SetResponse
+protected SetResponse
 lookup(Name name, int type, int minCred) {
+	if (locks != null)
+		return doLookup(name, type, minCred);
+	synchronized (this) {
+		return doLookup(name, type, minCred);
+	}
+}
+
+private SetResponse
+doLookup(Name name, int type, int minCred) {
 	int labels;
 	int tlabels;
 	Element element;
 	Name tname;
+	Name probe = null;
 	Object types;
 	SetResponse sr;
 
@@ -419,12 +887,19 @@ lookup(Name name, int type, int minCred) {
 			tname = Name.root;
 		else if (isExact)
 			tname = name;
-		else
-			tname = new Name(name, labels - tlabels);
+		else {
+			if (probe == null)
+				probe = new Name(name, labels - tlabels);
+			else
+				probe.setSuffix(name, labels - tlabels);
+			tname = probe;
+		}
 
 		types = data.get(tname);
 		if (types == null)
 			continue;
+		if (tname == probe)
+			tname = new Name(name, labels - tlabels);
 
 		/*
 		 * If this is the name, look for the actual type or a CNAME
@@ -438,13 +913,16 @@ lookup(Name name, int type, int minCred) {
 			for (int i = 0; i < elements.length; i++) {
 				element = elements[i];
 				if (element.expired()) {
-					removeElement(tname, element.getType());
+					removeElement(tname, element.getType(),
+						      element);
 					continue;
 				}
 				if (!(element instanceof CacheRRset))
 					continue;
 				if (element.compareCredibility(minCred) < 0)
 					continue;
+				if (!element.isReferenced())
+					element.setReferenced(true);
 				sr.addRRset((CacheRRset)element);
 				added++;
 			}
@@ -513,6 +991,22 @@ lookupRecords(Name name, int type, int minCred) {
 	return lookup(name, type, minCred);
 }
 
+/*
+ * Returns whether an RRset found in this Cache has less than a percentage
+ * of its lifetime left.
+ */
+boolean
+isExpiring(RRset rrset, int percent) {
+	if (!(rrset instanceof CacheRRset))
+		return false;
+	CacheRRset crrset = (CacheRRset) rrset;
+	long lifetime = crrset.getTTL();
+	if (maxcache >= 0 && maxcache < lifetime)
+		lifetime = maxcache;
+	long left = crrset.expire - System.currentTimeMillis() / 1000;
+	return (left * 100 < lifetime * percent);
+}
+
 private RRset []
 findRecords(Name name, int type, int minCred) {
 	SetResponse cr = lookupRecords(name, type, minCred);
@@ -740,7 +1234,200 @@ flushSet(Name name, int type) {
  */
 public void
 flushName(Name name) {
-	removeName(name);
+	synchronized (lockFor(name)) {
+		data.remove(name);
+	}
+}
+
+private static final int snapshotMagic = 0x444e5343;	/* "DNSC" */
+private static final int snapshotVersion = 1;
+private static final int snapshotEnd = 0;
+private static final int snapshotRRset = 1;
+private static final int snapshotNegative = 2;
+
+/*
+ * Renders an element for a snapshot.  Names are compressed within the
+ * element, so that elements can be read back one at a time.
+ */
+private static void
+dumpElement(Element element, DNSOutput out) {
+	Compression c = new Compression();
+	if (element instanceof CacheRRset) {
+		CacheRRset crrset = (CacheRRset) element;
+		out.writeU8(snapshotRRset);
+		out.writeU8(crrset.credibility);
+		out.writeU32(crrset.expire & 0xFFFFFFFFL);
+		int countPos = out.current();
+		out.writeU16(0);
+		int count = 0;
+		Iterator it = crrset.rrs(false);
+		while (it.hasNext()) {
+			((Record) it.next()).toWire(out, Section.ANSWER, c);
+			count++;
+		}
+		it = crrset.sigs();
+		while (it.hasNext()) {
+			((Record) it.next()).toWire(out, Section.ANSWER, c);
+			count++;
+		}
+		out.writeU16At(count, countPos);
+	} else {
+		NegativeElement negative = (NegativeElement) element;
+		out.writeU8(snapshotNegative);
+		out.writeU8(negative.credibility);
+		out.writeU32(negative.expire & 0xFFFFFFFFL);
+		negative.name.toWire(out, c);
+		out.writeU16(negative.type);
+	}
+}
+
+private void
+dumpElements(DataOutputStream out) throws IOException {
+	DNSOutput element = new DNSOutput(512);
+	Iterator it = data.values().iterator();
+	while (it.hasNext()) {
+		Element [] elements = allElements(it.next());
+		for (int i = 0; i < elements.length; i++) {
+			if (elements[i].expired())
+				continue;
+			element.jump(0);
+			dumpElement(elements[i], element);
+			ByteBuffer b = element.contents();
+			out.writeInt(b.remaining());
+			out.write(b.array(), b.arrayOffset(), b.remaining());
+		}
+	}
+}
+
+/**
+ * Writes a snapshot of the Cache to a stream.  The snapshot is in a compact
+ * binary format, and contains each RRset and negative entry along with its
+ * credibility and the time at which it expires.  Expired data is left out.
+ * The stream is not closed.
+ * @param stream The stream to write to.
+ * @throws IOException An error occurred while writing.
+ * @see #restore
+ */
+public void
+dump(OutputStream stream) throws IOException {
+	DataOutputStream out;
+	out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+	out.writeInt(snapshotMagic);
+	out.writeByte(snapshotVersion);
+	out.writeShort(dclass);
+	if (locks != null)
+		dumpElements(out);
+	else {
+		synchronized (this) {
+			dumpElements(out);
+		}
+	}
+	out.writeInt(snapshotEnd);
+	out.flush();
+}
+
+/* Limits the expiration time of restored data to the maximum TTL. */
+private static int
+limitRestored(int expire, long maxttl) {
+	if (maxttl < 0)
+		return expire;
+	return Math.min(expire, limitExpire(maxttl, -1));
+}
+
+/* Reads an element written by dumpElement. */
+private static Element
+readElement(DNSInput in) throws IOException {
+	int kind = in.readU8();
+	int cred = in.readU8();
+	long expire = in.readU32();
+	if (expire > Integer.MAX_VALUE)
+		throw new WireParseException("invalid expiration time");
+	if (kind == snapshotRRset) {
+		int count = in.readU16();
+		if (count == 0)
+			throw new WireParseException("empty RRset");
+		RRset rrset = new RRset();
+		for (int i = 0; i < count; i++)
+			rrset.addRR(Record.fromWire(in, Section.ANSWER));
+		CacheRRset crrset = new CacheRRset(rrset, cred, -1);
+		crrset.expire = (int) expire;
+		return crrset;
+	} else if (kind == snapshotNegative) {
+		Name name = new Name(in);
+		int type = in.readU16();
+		NegativeElement negative;
+		negative = new NegativeElement(name, type, null, cred, -1);
+		negative.expire = (int) expire;
+		return negative;
+	} else
+		throw new WireParseException("invalid snapshot entry");
+}
+
+/* Reads an element from a snapshot, or returns null if it has expired. */
+private Element
+restoreElement(DNSInput in) throws IOException {
+	Element e = readElement(in);
+	if (e.expired())
+		return null;
+	if (e instanceof CacheRRset) {
+		CacheRRset crrset = (CacheRRset) e;
+		crrset.expire = limitRestored(crrset.expire, maxcache);
+	} else {
+		NegativeElement negative = (NegativeElement) e;
+		negative.expire = limitRestored(negative.expire, maxncache);
+	}
+	return e;
+}
+
+/**
+ * Loads a snapshot written by {@link #dump} into the Cache.  Data which has
+ * expired since the snapshot was written is skipped, as is data which is
+ * less credible than data already in the Cache.  The stream is not closed.
+ * @param stream The stream to read from.
+ * @return The number of RRsets and negative entries loaded.
+ * @throws IOException An error occurred while reading, or the stream does
+ * not contain a valid snapshot for this Cache's class.
+ * @see #dump
+ */
+public int
+restore(InputStream stream) throws IOException {
+	DataInputStream in;
+	in = new DataInputStream(new BufferedInputStream(stream, 65536));
+	if (in.readInt() != snapshotMagic)
+		throw new IOException("not a cache snapshot");
+	if (in.readUnsignedByte() != snapshotVersion)
+		throw new IOException("unsupported cache snapshot version");
+	if (in.readUnsignedShort() != dclass)
+		throw new IOException("cache snapshot has the wrong class");
+	byte [] b = new byte[512];
+	int loaded = 0;
+	while (true) {
+		int length = in.readInt();
+		if (length == snapshotEnd)
+			break;
+		if (length < 0)
+			throw new IOException("invalid cache snapshot");
+		if (length > b.length)
+			b = new byte[Math.max(length, b.length * 2)];
+		in.readFully(b, 0, length);
+		DNSInput element = new DNSInput(b);
+		element.setActive(length);
+		Element e = restoreElement(element);
+		if (e == null)
+			continue;
+		Name name = e.getName();
+		int type = e.getType();
+		synchronized (lockFor(name)) {
+			/* Compare the two credibilities. */
+			Element old = findElement(name, type, 0);
+			if (old != null && old.compareCredibility(0) >
+					   e.compareCredibility(0))
+				continue;
+			addElement(name, e);
+		}
+		loaded++;
+	}
+	return loaded;
 }
 
 /**
@@ -816,6 +1503,92 @@ setMaxEntries(int entries) {
 	data.setMaxSize(entries);
 }
 
+/**
+ * Gets the approximate amount of memory, in bytes, that the data in a
+ * concurrent Cache may use.  A negative value is treated as an infinite
+ * limit.  A Cache which is not concurrent is not bounded by memory use,
+ * and always returns -1.
+ */
+public long
+getMaxBytes() {
+	if (locks == null)
+		return -1;
+	return ((ConcurrentCacheMap) data).getMaxBytes();
+}
+
+/**
+ * Sets the approximate amount of memory, in bytes, that the data in a
+ * concurrent Cache may use.  A negative value is treated as an infinite
+ * limit.  When the limit is exceeded, entries which have not recently been
+ * used are evicted.
+ *
+ * The default limit is 32 megabytes.
+ *
+ * @param bytes The maximum amount of memory used by the Cache.
+ * @throws IllegalStateException The Cache is not a concurrent Cache.
+ */
+public void
+setMaxBytes(long bytes) {
+	if (locks == null)
+		throw new IllegalStateException("only a concurrent cache " +
+						"is bounded by memory use");
+	((ConcurrentCacheMap) data).setMaxBytes(bytes);
+}
+
+/**
+ * Gets the approximate amount of memory, in bytes, used by the data in a
+ * concurrent Cache or a Cache backed by a {@link RecordStore}, or -1 for
+ * any other Cache.
+ */
+public long
+getBytes() {
+	if (data instanceof StoreCacheMap) {
+		synchronized (this) {
+			return ((StoreCacheMap) data).store.getBytes();
+		}
+	}
+	if (locks == null)
+		return -1;
+	return ((ConcurrentCacheMap) data).getBytes();
+}
+
+/**
+ * Gets the interval between periodic removals of expired data from the
+ * Cache.  A value of 0 indicates that expired data is only removed when
+ * it is found by a lookup.
+ */
+public int
+getCleanInterval() {
+	return cleanInterval;
+}
+
+/**
+ * Sets the interval between periodic removals of expired data from the
+ * Cache, which are done by a background thread.  A value of 0 disables
+ * periodic removal, so that expired data is only removed when it is found
+ * by a lookup.
+ *
+ * The default is 60 seconds for a concurrent Cache and 0 otherwise.
+ *
+ * @param seconds The interval, in seconds.
+ * @see #removeExpired
+ */
+public synchronized void
+setCleanInterval(int seconds) {
+	if (seconds < 0)
+		throw new IllegalArgumentException("invalid clean interval");
+	if (cleaner != null) {
+		cleaner.cancel();
+		cleaner = null;
+	}
+	cleanInterval = seconds;
+	if (seconds > 0) {
+		cleaner = new Cleaner(this);
+		long period = seconds * 1000L;
+		getCleanTimer().schedule(cleaner, period, period);
+	}
+}
+
 /**
  * Returns the DNS class of this cache.
  */
@@ -830,17 +1603,26 @@ getDClass() {
 public String
 toString() {
 	StringBuffer sb = new StringBuffer();
-	synchronized (this) {
-		Iterator it = data.values().iterator();
-		while (it.hasNext()) {
-			Element [] elements = allElements(it.next());
-			for (int i = 0; i < elements.length; i++) {
-				sb.append(elements[i]);
-				sb.append("\n");
-			}
+	if (locks != null)
+		appendElements(sb);
+	else {
+		synchronized (this) {
+			appendElements(sb);
 		}
 	}
 	return sb.toString();
 }
 
+private void
+appendElements(StringBuffer sb) {
+	Iterator it = data.values().iterator();
+	while (it.hasNext()) {
+		Element [] elements = allElements(it.next());
+		for (int i = 0; i < elements.length; i++) {
+			sb.append(elements[i]);
+			sb.append("\n");
+		}
+	}
+}
+
 }
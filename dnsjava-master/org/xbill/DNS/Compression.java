@@ -2,8 +2,16 @@
 
 package org.xbill.DNS;
 
+import java.util.Arrays;
+
 /**
- * DNS Name Compression object.
+ * DNS Name Compression object.  Names written to a message are recorded in
+ * an open-addressed hash table, which grows with the number of names.  When
+ * a name is rendered, each of its suffixes is looked up by hash, and
+ * candidates are compared directly against the labels already written to
+ * the output, so no Name objects are created for the suffixes.  A
+ * Compression object can be reused for another message by calling
+ * {@link #reset}.
  * @see Message
  * @see Name
  *
@@ -12,15 +20,19 @@ package org.xbill.DNS;
 
 public class Compression {
 
-private static class Entry {
-	Name name;
-	int pos;
-	Entry next;
-}
-
-private static final int TABLE_SIZE = 17;
+private static final int MIN_TABLE_SIZE = 16;
 private static final int MAX_POINTER = 0x3FFF;
-private Entry [] table;
+
+private static final ThreadLocal cache = new ThreadLocal();
+
+/* Entries are stored in parallel arrays; a position of 0 is empty. */
+private int [] hashes;
+private int [] positions;
+/* Names added with add(int, Name); null for entries added by rendering. */
+private Name [] names;
+private int count;
+/* The output to which names were rendered. */
+private DNSOutput output;
 private boolean verbose = Options.check("verbosecompression");
 
 /**
@@ -28,7 +40,112 @@ private boolean verbose = Options.check("verbosecompression");
  */
 public
 Compression() {
-	table = new Entry[TABLE_SIZE];
+	this(0);
+}
+
+/**
+ * Creates a new Compression object sized for a message containing
+ * approximately the given number of names.
+ * @param expected The expected number of names.
+ */
+public
+Compression(int expected) {
+	allocate(tableSize(expected));
+}
+
+private static int
+tableSize(int expected) {
+	int size = MIN_TABLE_SIZE;
+	/* Keep the table at most half full. */
+	while (size < expected * 2 && size < (1 << 30))
+		size <<= 1;
+	return size;
+}
+
+private void
+allocate(int size) {
+	hashes = new int[size];
+	positions = new int[size];
+	names = new Name[size];
+	count = 0;
+	output = null;
+}
+
+/**
+ * Removes all entries, so that the object can be used for another message.
+ * @param expected The expected number of names in the next message.
+ */
+public void
+reset(int expected) {
+	int size = tableSize(expected);
+	if (size > positions.length || size * 8 < positions.length) {
+		/* Don't keep clearing a large table for small messages. */
+		allocate(size);
+		return;
+	}
+	clear();
+}
+
+/* Removes all entries, and drops the references to names and output. */
+private void
+clear() {
+	if (count > 0) {
+		Arrays.fill(positions, 0);
+		Arrays.fill(names, null);
+		count = 0;
+	}
+	output = null;
+}
+
+/*
+ * Returns a cleared Compression object belonging to the current thread, or
+ * a new one if it is in use.  It should be returned with release().
+ */
+static Compression
+acquire(int expected) {
+	Compression c = (Compression) cache.get();
+	if (c == null)
+		return new Compression(expected);
+	cache.set(null);
+	c.reset(expected);
+	return c;
+}
+
+/*
+ * Returns a Compression object to the current thread.  It is cleared now,
+ * so that it doesn't keep the last message's names and output alive.
+ */
+static void
+release(Compression c) {
+	c.clear();
+	cache.set(c);
+}
+
+private void
+insert(int hash, int pos, Name name) {
+	if ((count + 1) * 2 > positions.length)
+		grow();
+	int mask = positions.length - 1;
+	int i = hash & mask;
+	while (positions[i] != 0)
+		i = (i + 1) & mask;
+	hashes[i] = hash;
+	positions[i] = pos + 1;
+	names[i] = name;
+	count++;
+}
+
+private void
+grow() {
+	int [] oldHashes = hashes;
+	int [] oldPositions = positions;
+	Name [] oldNames = names;
+	DNSOutput oldOutput = output;
+	allocate(positions.length * 2);
+	output = oldOutput;
+	for (int i = 0; i < oldPositions.length; i++)
+		if (oldPositions[i] != 0)
+			insert(oldHashes[i], oldPositions[i] - 1, oldNames[i]);
 }
 
 /**
@@ -40,33 +157,83 @@ public void
 add(int pos, Name name) {
 	if (pos > MAX_POINTER)
 		return;
-	int row = (name.hashCode() & 0x7FFFFFFF) % TABLE_SIZE;
-	Entry entry = new Entry();
-	entry.name = name;
-	entry.pos = pos;
-	entry.next = table[row];
-	table[row] = entry;
+	insert(name.hashCode(), pos, name);
 	if (verbose)
 		System.err.println("Adding " + name + " at " + pos);
 }
 
 /**
  * Retrieves the position of the given name, if it has been previously
- * included in the message.
+ * included in the message with {@link #add}.
  * @param name The name to find in the compression table.
  * @return The position of the name, or -1 if not found.
  */
 public int
 get(Name name) {
-	int row = (name.hashCode() & 0x7FFFFFFF) % TABLE_SIZE;
+	int hash = name.hashCode();
+	int mask = positions.length - 1;
 	int pos = -1;
-	for (Entry entry = table[row]; entry != null; entry = entry.next) {
-		if (entry.name.equals(name))
-			pos = entry.pos;
+	for (int i = hash & mask; positions[i] != 0; i = (i + 1) & mask) {
+		if (hashes[i] != hash)
+			continue;
+		if (matches(i, name, 0, output)) {
+			pos = positions[i] - 1;
+			break;
+		}
 	}
 	if (verbose)
 		System.err.println("Looking for " + name + ", found " + pos);
 	return pos;
 }
 
+/*
+ * Checks whether an entry matches the labels of a name starting at a label.
+ * Entries added with a Name are compared with it; other entries are
+ * compared against the output, unless they have been discarded from it.
+ */
+private boolean
+matches(int i, Name name, int label, DNSOutput out) {
+	if (names[i] != null)
+		return name.suffixEquals(label, names[i]);
+	int pos = positions[i] - 1;
+	if (out == null || pos >= out.current())
+		return false;
+	return name.suffixEquals(label, out, pos, this);
+}
+
+/* Returns the name which was added at a position with add(int, Name). */
+Name
+nameAt(int pos) {
+	for (int i = 0; i < positions.length; i++)
+		if (positions[i] == pos + 1 && names[i] != null)
+			return names[i];
+	return null;
+}
+
+/*
+ * Finds a name which matches the labels of the given name starting at a
+ * label.  The hash must be the hash code of that suffix.
+ */
+int
+find(Name name, int label, int hash, DNSOutput out) {
+	int mask = positions.length - 1;
+	for (int i = hash & mask; positions[i] != 0; i = (i + 1) & mask) {
+		if (hashes[i] == hash && matches(i, name, label, out))
+			return positions[i] - 1;
+	}
+	return -1;
+}
+
+/*
+ * Records that the labels of a name starting at a label were written at a
+ * position in the output.
+ */
+void
+add(int pos, int hash, DNSOutput out) {
+	if (pos > MAX_POINTER)
+		return;
+	output = out;
+	insert(hash, pos, null);
+}
+
 }
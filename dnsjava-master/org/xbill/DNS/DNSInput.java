@@ -13,6 +13,8 @@ import java.nio.ByteBuffer;
 public class DNSInput {
 
 private ByteBuffer byteBuffer;
+private int offset;
+private int end;
 private int saved_pos;
 private int saved_end;
 
@@ -22,18 +24,24 @@ private int saved_end;
  */
 public
 DNSInput(byte [] input) {
-	byteBuffer = ByteBuffer.wrap(input);
-	saved_pos = -1;
-	saved_end = -1;
+	this(ByteBuffer.wrap(input));
 }
 
 /**
- * Creates a new DNSInput from the given {@link ByteBuffer}
+ * Creates a new DNSInput from the given {@link ByteBuffer}.  The input
+ * consists of the bytes between the buffer's position and its limit, and
+ * positions in the input (including those in compression pointers) are
+ * relative to the buffer's position.  The buffer may be a direct buffer;
+ * its contents are not copied, and its position and limit are changed as
+ * the input is read.  Values are always read in network byte order,
+ * whatever the buffer's byte order.
  * @param byteBuffer The ByteBuffer
  */
 public
 DNSInput(ByteBuffer byteBuffer) {
 	this.byteBuffer = byteBuffer;
+	offset = byteBuffer.position();
+	end = byteBuffer.limit();
 	saved_pos = -1;
 	saved_end = -1;
 }
@@ -43,7 +51,7 @@ DNSInput(ByteBuffer byteBuffer) {
  */
 public int
 current() {
-	return byteBuffer.position();
+	return byteBuffer.position() - offset;
 }
 
 /**
@@ -70,7 +78,7 @@ require(int n) throws WireParseException{
  */
 public void
 setActive(int len) {
-	if (len > byteBuffer.capacity() - byteBuffer.position()) {
+	if (len > end - byteBuffer.position()) {
 		throw new IllegalArgumentException("cannot set active " +
 						   "region past end of input");
 	}
@@ -83,7 +91,7 @@ setActive(int len) {
  */
 public void
 clearActive() {
-	byteBuffer.limit(byteBuffer.capacity());
+	byteBuffer.limit(end);
 }
 
 /**
@@ -91,7 +99,7 @@ clearActive() {
  */
 public int
 saveActive() {
-	return byteBuffer.limit();
+	return byteBuffer.limit() - offset;
 }
 
 /**
@@ -102,11 +110,11 @@ saveActive() {
  */
 public void
 restoreActive(int pos) {
-	if (pos > byteBuffer.capacity()) {
+	if (pos > end - offset) {
 		throw new IllegalArgumentException("cannot set active " +
 						   "region past end of input");
 	}
-	byteBuffer.limit(byteBuffer.position());
+	byteBuffer.limit(offset + pos);
 }
 
 /**
@@ -117,12 +125,12 @@ restoreActive(int pos) {
  */
 public void
 jump(int index) {
-	if (index >= byteBuffer.capacity()) {
+	if (index >= end - offset) {
 		throw new IllegalArgumentException("cannot jump past " +
 						   "end of input");
 	}
-	byteBuffer.position(index);
-	byteBuffer.limit(byteBuffer.capacity());
+	byteBuffer.position(offset + index);
+	byteBuffer.limit(end);
 }
 
 /**
@@ -150,6 +158,29 @@ restore() {
 	saved_end = -1;
 }
 
+/**
+ * Skips over bytes in the stream.
+ * @param len The number of bytes to skip.
+ * @throws WireParseException The end of the stream was reached.
+ */
+public void
+skip(int len) throws WireParseException {
+	require(len);
+	byteBuffer.position(byteBuffer.position() + len);
+}
+
+/*
+ * Returns the byte at the given position without moving the current
+ * position, or -1 if the position is outside the stream.  The active
+ * region is ignored.
+ */
+int
+byteAt(int index) {
+	if (index < 0 || index >= end - offset)
+		return -1;
+	return (byteBuffer.get(offset + index) & 0xFF);
+}
+
 /**
  * Reads an unsigned 8 bit value from the stream, as an int.
  * @return An unsigned 8 bit value.
@@ -169,7 +200,9 @@ readU8() throws WireParseException {
 public int
 readU16() throws WireParseException {
 	require(2);
-	return (byteBuffer.getShort() & 0xFFFF);
+	int b1 = byteBuffer.get() & 0xFF;
+	int b2 = byteBuffer.get() & 0xFF;
+	return ((b1 << 8) + b2);
 }
 
 /**
@@ -180,7 +213,11 @@ readU16() throws WireParseException {
 public long
 readU32() throws WireParseException {
 	require(4);
-	return (byteBuffer.getInt() & 0xFFFFFFFFL);
+	int b1 = byteBuffer.get() & 0xFF;
+	int b2 = byteBuffer.get() & 0xFF;
+	int b3 = byteBuffer.get() & 0xFF;
+	int b4 = byteBuffer.get() & 0xFF;
+	return (((long)b1 << 24) + (b2 << 16) + (b3 << 8) + b4);
 }
 
 /**
@@ -2,6 +2,8 @@
 
 package org.xbill.DNS;
 
+import java.nio.*;
+
 /**
  * A class for rendering DNS messages.
  *
@@ -11,7 +13,9 @@ package org.xbill.DNS;
 
 public class DNSOutput {
 
-private byte [] array;
+private ByteBuffer buffer;
+private int offset;
+private boolean fixed;
 private int pos;
 private int saved_pos;
 
@@ -21,7 +25,26 @@ private int saved_pos;
  */
 public
 DNSOutput(int size) {
-	array = new byte[size];
+	buffer = ByteBuffer.allocate(size);
+	offset = 0;
+	pos = 0;
+	saved_pos = -1;
+}
+
+/**
+ * Create a new DNSOutput which renders into the given {@link ByteBuffer},
+ * starting at its position.  The buffer may be a direct buffer.  It is not
+ * grown; writing past its limit throws a BufferOverflowException.  Positions
+ * in the output are relative to the buffer's initial position, and the
+ * buffer's own position is not changed.  Values are always written in
+ * network byte order, whatever the buffer's byte order.
+ * @param buffer The ByteBuffer to render into.
+ */
+public
+DNSOutput(ByteBuffer buffer) {
+	this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+	offset = buffer.position();
+	fixed = true;
 	pos = 0;
 	saved_pos = -1;
 }
@@ -54,16 +77,19 @@ check(long val, int bits) {
 
 private void
 need(int n) {
-	if (array.length - pos >= n) {
+	if (buffer.limit() - offset - pos >= n) {
 		return;
 	}
-	int newsize = array.length * 2;
+	if (fixed) {
+		throw new BufferOverflowException();
+	}
+	int newsize = buffer.capacity() * 2;
 	if (newsize < pos + n) {
 		newsize = pos + n;
 	}
-	byte [] newarray = new byte[newsize];
-	System.arraycopy(array, 0, newarray, 0, pos);
-	array = newarray;
+	ByteBuffer newbuffer = ByteBuffer.allocate(newsize);
+	System.arraycopy(buffer.array(), 0, newbuffer.array(), 0, pos);
+	buffer = newbuffer;
 }
 
 /**
@@ -109,7 +135,7 @@ public void
 writeU8(int val) {
 	check(val, 8);
 	need(1);
-	array[pos++] = (byte)(val & 0xFF);
+	buffer.put(offset + pos++, (byte)(val & 0xFF));
 }
 
 /**
@@ -120,8 +146,8 @@ public void
 writeU16(int val) {
 	check(val, 16);
 	need(2);
-	array[pos++] = (byte)((val >>> 8) & 0xFF);
-	array[pos++] = (byte)(val & 0xFF);
+	buffer.putShort(offset + pos, (short) val);
+	pos += 2;
 }
 
 /**
@@ -135,8 +161,7 @@ writeU16At(int val, int where) {
 	if (where > pos - 2)
 		throw new IllegalArgumentException("cannot write past " +
 						   "end of data");
-	array[where++] = (byte)((val >>> 8) & 0xFF);
-	array[where++] = (byte)(val & 0xFF);
+	buffer.putShort(offset + where, (short) val);
 }
 
 /**
@@ -147,10 +172,8 @@ public void
 writeU32(long val) {
 	check(val, 32);
 	need(4);
-	array[pos++] = (byte)((val >>> 24) & 0xFF);
-	array[pos++] = (byte)((val >>> 16) & 0xFF);
-	array[pos++] = (byte)((val >>> 8) & 0xFF);
-	array[pos++] = (byte)(val & 0xFF);
+	buffer.putInt(offset + pos, (int) val);
+	pos += 4;
 }
 
 /**
@@ -162,7 +185,14 @@ writeU32(long val) {
 public void
 writeByteArray(byte [] b, int off, int len) {
 	need(len);
-	System.arraycopy(b, off, array, pos, len);
+	if (buffer.hasArray()) {
+		System.arraycopy(b, off, buffer.array(),
+				 buffer.arrayOffset() + offset + pos, len);
+	} else {
+		ByteBuffer dup = buffer.duplicate();
+		dup.position(offset + pos);
+		dup.put(b, off, len);
+	}
 	pos += len;
 }
 
@@ -186,17 +216,42 @@ writeCountedString(byte [] s) {
 		throw new IllegalArgumentException("Invalid counted string");
 	}
 	need(1 + s.length);
-	array[pos++] = (byte)(s.length & 0xFF);
+	buffer.put(offset + pos++, (byte)(s.length & 0xFF));
 	writeByteArray(s, 0, s.length);
 }
 
+/* Returns the unsigned byte which was written at a position. */
+int
+byteAt(int index) {
+	return buffer.get(offset + index) & 0xFF;
+}
+
+/*
+ * Returns a buffer holding the current contents of the stream, which
+ * shares its storage.
+ */
+ByteBuffer
+contents() {
+	ByteBuffer dup = buffer.duplicate();
+	dup.limit(offset + pos);
+	dup.position(offset);
+	return dup.slice();
+}
+
 /**
  * Returns a byte array containing the current contents of the stream.
  */
 public byte []
 toByteArray() {
 	byte [] out = new byte[pos];
-	System.arraycopy(array, 0, out, 0, pos);
+	if (buffer.hasArray()) {
+		System.arraycopy(buffer.array(), buffer.arrayOffset() + offset,
+				 out, 0, pos);
+	} else {
+		ByteBuffer dup = buffer.duplicate();
+		dup.position(offset);
+		dup.get(out);
+	}
 	return out;
 }
 
@@ -4,10 +4,12 @@ package org.xbill.DNS;
 
 import java.io.*;
 import java.math.*;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.interfaces.*;
 import java.security.spec.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Constants and methods relating to DNSSEC.
@@ -116,6 +118,70 @@ public static class Algorithm {
 private
 DNSSEC() { }
 
+private static final int defaultKeyCacheSize = 1024;
+private static final int defaultVerifiedCacheSize = 8192;
+
+/* Parsed public keys, by the rdata of the KEY/DNSKEY record. */
+private static Map keyCache = new ConcurrentHashMap();
+private static volatile int keyCacheSize = defaultKeyCacheSize;
+
+/*
+ * Signatures which have verified, by a hash of the signed data, the
+ * signature and the key.  The value is the expiration time of the signature.
+ */
+private static Map verifiedCache = new ConcurrentHashMap();
+private static volatile int verifiedCacheSize = defaultVerifiedCacheSize;
+
+/* Signature and MessageDigest objects, reused by each thread. */
+private static class Engines {
+	Map signatures = new HashMap();
+	MessageDigest sha256;
+}
+
+private static final ThreadLocal engines = new ThreadLocal() {
+	protected Object
+	initialValue() {
+		return new Engines();
+	}
+};
+
+/**
+ * Sets the maximum number of parsed public keys which are kept, so that the
+ * keys of KEY and DNSKEY records with the same data are only parsed once.
+ * The default is 1024; 0 disables the cache.
+ */
+public static void
+setKeyCacheSize(int size) {
+	if (size < 0)
+		throw new IllegalArgumentException("invalid cache size");
+	keyCacheSize = size;
+	keyCache.clear();
+}
+
+/**
+ * Sets the maximum number of successful verifications which are remembered.
+ * A signature which has already been verified over the same data with the
+ * same key is accepted again without any cryptographic operation, until it
+ * expires.  The default is 8192; 0 disables the cache.
+ */
+public static void
+setVerifiedCacheSize(int size) {
+	if (size < 0)
+		throw new IllegalArgumentException("invalid cache size");
+	verifiedCacheSize = size;
+	verifiedCache.clear();
+}
+
+/* Adds an entry to a cache, discarding its contents if it is full. */
+private static void
+cachePut(Map cache, int size, Object key, Object value) {
+	if (size == 0)
+		return;
+	if (cache.size() >= size)
+		cache.clear();
+	cache.put(key, value);
+}
+
 private static void
 digestSIG(DNSOutput out, SIGBase sig) {
 	out.writeU16(sig.getTypeCovered());
@@ -141,18 +207,14 @@ digestRRset(RRSIGRecord rrsig, RRset rrset) {
 	DNSOutput out = new DNSOutput();
 	digestSIG(out, rrsig);
 
-	int size = rrset.size();
-	Record [] records = new Record[size];
+	/* This is cached by an ImmutableRRset. */
+	byte [][] rdata = rrset.canonicalRdata();
 
-	Iterator it = rrset.rrs();
 	Name name = rrset.getName();
 	Name wild = null;
 	int sigLabels = rrsig.getLabels() + 1; // Add the root label back.
 	if (name.labels() > sigLabels)
 		wild = name.wild(name.labels() - sigLabels);
-	while (it.hasNext())
-		records[--size] = (Record) it.next();
-	Arrays.sort(records);
 
 	DNSOutput header = new DNSOutput();
 	if (wild != null)
@@ -162,16 +224,10 @@ digestRRset(RRSIGRecord rrsig, RRset rrset) {
 	header.writeU16(rrset.getType());
 	header.writeU16(rrset.getDClass());
 	header.writeU32(rrsig.getOrigTTL());
-	for (int i = 0; i < records.length; i++) {
-		out.writeByteArray(header.toByteArray());
-		int lengthPosition = out.current();
-		out.writeU16(0);
-		out.writeByteArray(records[i].rdataToWireCanonical());
-		int rrlength = out.current() - lengthPosition - 2;
-		out.save();
-		out.jump(lengthPosition);
-		out.writeU16(rrlength);
-		out.restore();
+	byte [] h = header.toByteArray();
+	for (int i = 0; i < rdata.length; i++) {
+		out.writeByteArray(h);
+		out.writeByteArray(rdata[i]);
 	}
 	return out.toByteArray();
 }
@@ -524,6 +580,19 @@ toECDSAPublicKey(KEYBase r, ECKeyInfo keyinfo) throws IOException,
 /** Converts a KEY/DNSKEY record into a PublicKey */
 static PublicKey
 toPublicKey(KEYBase r) throws DNSSECException {
+	if (keyCacheSize == 0)
+		return parsePublicKey(r);
+	Object cacheKey = ByteBuffer.wrap(r.rdataToWireCanonical());
+	PublicKey key = (PublicKey) keyCache.get(cacheKey);
+	if (key == null) {
+		key = parsePublicKey(r);
+		cachePut(keyCache, keyCacheSize, cacheKey, key);
+	}
+	return key;
+}
+
+private static PublicKey
+parsePublicKey(KEYBase r) throws DNSSECException {
 	int alg = r.getAlgorithm();
 	try {
 		switch (alg) {
@@ -886,7 +955,7 @@ throws DNSSECException
 	}
 
 	try {
-		Signature s = Signature.getInstance(algString(alg));
+		Signature s = verifier(alg);
 		s.initVerify(key);
 		s.update(data);
 		if (!s.verify(signature))
@@ -897,6 +966,38 @@ throws DNSSECException
 	}
 }
 
+/* Returns a Signature object for verification, reused by this thread. */
+private static Signature
+verifier(int alg) throws DNSSECException, GeneralSecurityException {
+	Engines e = (Engines) engines.get();
+	Integer key = Mnemonic.toInteger(alg);
+	Signature s = (Signature) e.signatures.get(key);
+	if (s == null) {
+		s = Signature.getInstance(algString(alg));
+		e.signatures.put(key, s);
+	}
+	return s;
+}
+
+/* Returns the key under which a verified signature is cached. */
+private static Object
+verifiedKey(byte [] data, RRSIGRecord rrsig, DNSKEYRecord key) {
+	Engines e = (Engines) engines.get();
+	try {
+		if (e.sha256 == null)
+			e.sha256 = MessageDigest.getInstance("SHA-256");
+	}
+	catch (NoSuchAlgorithmException ex) {
+		return null;
+	}
+	MessageDigest digest = e.sha256;
+	digest.reset();
+	digest.update(data);
+	digest.update(rrsig.getSignature());
+	digest.update(key.rdataToWireCanonical());
+	return ByteBuffer.wrap(digest.digest());
+}
+
 private static boolean
 matches(SIGBase sig, KEYBase key)
 {
@@ -931,8 +1032,94 @@ verify(RRset rrset, RRSIGRecord rrsig, DNSKEYRecord key) throws DNSSECException
 		throw new SignatureNotYetValidException(rrsig.getTimeSigned(),
 							now);
 
-	verify(key.getPublicKey(), rrsig.getAlgorithm(),
-	       digestRRset(rrsig, rrset), rrsig.getSignature());
+	byte [] data = digestRRset(rrsig, rrset);
+	Object cacheKey = null;
+	if (verifiedCacheSize > 0) {
+		cacheKey = verifiedKey(data, rrsig, key);
+		if (cacheKey != null && verifiedCache.containsKey(cacheKey))
+			return;
+	}
+	verify(key.getPublicKey(), rrsig.getAlgorithm(), data,
+	       rrsig.getSignature());
+	if (cacheKey != null)
+		cachePut(verifiedCache, verifiedCacheSize, cacheKey,
+			 rrsig.getExpire());
+}
+
+/* Verifies part of a batch. */
+private static class VerifyTask extends RecursiveAction {
+	private static final long serialVersionUID = -6558362150111996115L;
+
+	private static final int THRESHOLD = 8;
+
+	private RRset [] rrsets;
+	private RRSIGRecord [] rrsigs;
+	private DNSKEYRecord [] keys;
+	private DNSSECException [] results;
+	private int start, end;
+
+	VerifyTask(RRset [] rrsets, RRSIGRecord [] rrsigs, DNSKEYRecord [] keys,
+		   DNSSECException [] results, int start, int end)
+	{
+		this.rrsets = rrsets;
+		this.rrsigs = rrsigs;
+		this.keys = keys;
+		this.results = results;
+		this.start = start;
+		this.end = end;
+	}
+
+	protected void
+	compute() {
+		if (end - start > THRESHOLD) {
+			int mid = (start + end) >>> 1;
+			invokeAll(new VerifyTask(rrsets, rrsigs, keys, results,
+						 start, mid),
+				  new VerifyTask(rrsets, rrsigs, keys, results,
+						 mid, end));
+			return;
+		}
+		for (int i = start; i < end; i++) {
+			try {
+				verify(rrsets[i], rrsigs[i], keys[i]);
+			}
+			catch (DNSSECException e) {
+				results[i] = e;
+			}
+		}
+	}
+}
+
+/**
+ * Verifies many DNSSEC signatures in parallel, on the common fork/join pool.
+ * The i'th RRset is verified with the i'th RRSIG record and DNSKEY record.
+ * @return An array with an entry for each signature, which is null if the
+ * signature verified, or the exception describing the failure.
+ * @see #verify(RRset, RRSIGRecord, DNSKEYRecord)
+ */
+public static DNSSECException []
+verify(RRset [] rrsets, RRSIGRecord [] rrsigs, DNSKEYRecord [] keys) {
+	return verify(rrsets, rrsigs, keys, ForkJoinPool.commonPool());
+}
+
+/**
+ * Verifies many DNSSEC signatures in parallel.
+ * The i'th RRset is verified with the i'th RRSIG record and DNSKEY record.
+ * @param pool The pool on which to verify the signatures.
+ * @return An array with an entry for each signature, which is null if the
+ * signature verified, or the exception describing the failure.
+ * @see #verify(RRset, RRSIGRecord, DNSKEYRecord)
+ */
+public static DNSSECException []
+verify(RRset [] rrsets, RRSIGRecord [] rrsigs, DNSKEYRecord [] keys,
+       ForkJoinPool pool)
+{
+	if (rrsigs.length != rrsets.length || keys.length != rrsets.length)
+		throw new IllegalArgumentException("array lengths differ");
+	DNSSECException [] results = new DNSSECException[rrsets.length];
+	pool.invoke(new VerifyTask(rrsets, rrsigs, keys, results, 0,
+				   rrsets.length));
+	return results;
 }
 
 private static byte []
@@ -22,6 +22,9 @@ public static class Code {
 	/** Client Subnet, defined in draft-vandergaast-edns-client-subnet-02 */
 	public final static int CLIENT_SUBNET = 8;
 
+	/** TCP Keepalive, RFC 7828 */
+	public final static int TCP_KEEPALIVE = 11;
+
 	private static Mnemonic codes = new Mnemonic("EDNS Option Codes",
 						     Mnemonic.CASE_UPPER);
 
@@ -32,6 +35,7 @@ public static class Code {
 
 		codes.add(NSID, "NSID");
 		codes.add(CLIENT_SUBNET, "CLIENT_SUBNET");
+		codes.add(TCP_KEEPALIVE, "TCP_KEEPALIVE");
 	}
 
 	/**
@@ -131,6 +135,9 @@ fromWire(DNSInput in) throws IOException {
 	case Code.CLIENT_SUBNET:
 		option = new ClientSubnetOption();
 		break;
+	case Code.TCP_KEEPALIVE:
+		option = new TCPKeepaliveOption();
+		break;
 	default:
 		option = new GenericEDNSOption(code);
 		break;
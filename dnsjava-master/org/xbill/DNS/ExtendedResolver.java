@@ -9,6 +9,14 @@ import java.net.*;
 /**
  * An implementation of Resolver that can send queries to multiple servers,
  * sending the queries multiple times if necessary.
+ * <p>
+ * The round trip time of each server is measured, and servers which fail
+ * repeatedly are backed off.  If latency awareness is enabled, servers are
+ * chosen by their round trip times rather than in a fixed order (see
+ * {@link #setLatencyAware}).  If hedging is enabled, a query which hasn't
+ * been answered by the time most queries to its first server have been is
+ * also sent to the next server, and whichever answer arrives first is used
+ * (see {@link #setHedging}).
  * @see Resolver
  *
  * @author Brian Wellington
@@ -16,9 +24,86 @@ import java.net.*;
 
 public class ExtendedResolver implements Resolver {
 
+/* Round trip time and failure statistics for one server. */
+private static class ServerStats {
+	private static final int samples = 64;
+
+	private long [] rtts = new long[samples];
+	private int count;
+	private int next;
+	private long srtt = -1;
+	private int failures;
+	private long backoffUntil;
+
+	/* Records a response, which arrived rtt microseconds after the query. */
+	synchronized void
+	success(long rtt) {
+		rtts[next] = rtt;
+		next = (next + 1) % samples;
+		if (count < samples)
+			count++;
+		if (srtt < 0)
+			srtt = rtt;
+		else
+			srtt += (rtt - srtt) / 8;
+		failures = 0;
+		backoffUntil = 0;
+	}
+
+	/*
+	 * Records a timeout or network error.  After several in a row, the
+	 * server is backed off for exponentially increasing periods.
+	 */
+	synchronized void
+	failure() {
+		failures++;
+		if (failures >= maxFailures) {
+			int shift = Math.min(failures - maxFailures, 6);
+			backoffUntil = System.currentTimeMillis() +
+				       (1000L << shift);
+		}
+	}
+
+	synchronized boolean
+	backedOff(long now) {
+		return (now < backoffUntil);
+	}
+
+	/* Returns the smoothed round trip time, or -1 if there is none. */
+	synchronized long
+	getSRTT() {
+		return srtt;
+	}
+
+	/*
+	 * Returns the 95th percentile of the recent round trip times, or -1
+	 * if there are too few of them.
+	 */
+	synchronized long
+	getP95() {
+		if (count < minSamples)
+			return -1;
+		long [] sorted = new long[count];
+		System.arraycopy(rtts, 0, sorted, 0, count);
+		Arrays.sort(sorted);
+		return sorted[(count * 95) / 100];
+	}
+}
+
+private static Timer hedgeTimer;
+
+private static synchronized Timer
+getHedgeTimer() {
+	if (hedgeTimer == null)
+		hedgeTimer = new Timer("dnsjava hedge timer", true);
+	return hedgeTimer;
+}
+
 private static class Resolution implements ResolverListener {
+	ExtendedResolver eres;
 	Resolver [] resolvers;
 	int [] sent;
+	long [] sendTimes;
 	Object [] inprogress;
 	int retries;
 	int outstanding;
@@ -31,8 +116,11 @@ private static class Resolution implements ResolverListener {
 	public
 	Resolution(ExtendedResolver eres, Message query) {
 		List l = eres.resolvers;
+		this.eres = eres;
 		resolvers = (Resolver []) l.toArray (new Resolver[l.size()]);
-		if (eres.loadBalance) {
+		if (eres.latencyAware)
+			resolvers = eres.order(resolvers);
+		else if (eres.loadBalance) {
 			int nresolvers = resolvers.length;
 			/*
 			 * Note: this is not synchronized, since the
@@ -52,6 +140,7 @@ private static class Resolution implements ResolverListener {
 			}
 		}
 		sent = new int[resolvers.length];
+		sendTimes = new long[resolvers.length];
 		inprogress = new Object[resolvers.length];
 		retries = eres.retries;
 		this.query = query;
@@ -62,6 +151,7 @@ private static class Resolution implements ResolverListener {
 	send(int n) {
 		sent[n]++;
 		outstanding++;
+		sendTimes[n] = System.nanoTime();
 		try {
 			inprogress[n] = resolvers[n].sendAsync(query, this);
 		}
@@ -80,26 +170,40 @@ private static class Resolution implements ResolverListener {
 	/* Start a synchronous resolution */
 	public Message
 	start() throws IOException {
-		try {
-			/*
-			 * First, try sending synchronously.  If this works,
-			 * we're done.  Otherwise, we'll get an exception
-			 * and continue.  It would be easier to call send(0),
-			 * but this avoids a thread creation.  If and when
-			 * SimpleResolver.sendAsync() can be made to not
-			 * create a thread, this could be changed.
-			 */
-			sent[0]++;
-			outstanding++;
-			inprogress[0] = new Object();
-			return resolvers[0].send(query);
-		}
-		catch (Exception e) {
+		if (eres.hedging && resolvers.length > 1) {
 			/*
-			 * This will either cause more queries to be sent
-			 * asynchronously or will set the 'done' flag.
+			 * The query may have to be sent to a second server
+			 * while waiting for the first, so it can't be sent
+			 * synchronously.
 			 */
-			handleException(inprogress[0], e);
+			send(0);
+			hedge();
+		} else {
+			try {
+				/*
+				 * First, try sending synchronously.  If this
+				 * works, we're done.  Otherwise, we'll get an
+				 * exception and continue.  It would be easier
+				 * to call send(0), but this avoids handing the
+				 * response off between threads in the common
+				 * case.
+				 */
+				sent[0]++;
+				outstanding++;
+				inprogress[0] = new Object();
+				long start = System.nanoTime();
+				Message m = resolvers[0].send(query);
+				eres.success(resolvers[0], start);
+				return m;
+			}
+			catch (Exception e) {
+				/*
+				 * This will either cause more queries to be
+				 * sent asynchronously or will set the 'done'
+				 * flag.
+				 */
+				handleException(inprogress[0], e);
+			}
 		}
 		/*
 		 * Wait for a successful response or for each
@@ -133,6 +237,40 @@ private static class Resolution implements ResolverListener {
 	startAsync(ResolverListener listener) {
 		this.listener = listener;
 		send(0);
+		if (eres.hedging && resolvers.length > 1)
+			hedge();
+	}
+
+	/*
+	 * Arranges for the query to be sent to the second server if the
+	 * first hasn't answered within its usual time.
+	 */
+	private void
+	hedge() {
+		TimerTask task = new TimerTask() {
+			public void
+			run() {
+				synchronized (Resolution.this) {
+					if (done || sent[1] > 0)
+						return;
+					if (Options.check("verbose"))
+						System.err.println(
+							"ExtendedResolver: " +
+							"hedging");
+					send(1);
+				}
+			}
+		};
+		getHedgeTimer().schedule(task, eres.hedgeDelay(resolvers[0]));
+	}
+
+	/* Finds the server to which a query was sent. */
+	private int
+	indexOf(Object id) {
+		for (int n = 0; n < inprogress.length; n++)
+			if (inprogress[n] == id)
+				return n;
+		return -1;
 	}
 
 	/*
@@ -145,6 +283,9 @@ private static class Resolution implements ResolverListener {
 			System.err.println("ExtendedResolver: " +
 					   "received message");
 		synchronized (this) {
+			int n = indexOf(id);
+			if (n >= 0)
+				eres.success(resolvers[n], sendTimes[n]);
 			if (done)
 				return;
 			response = m;
@@ -167,21 +308,23 @@ private static class Resolution implements ResolverListener {
 			System.err.println("ExtendedResolver: got " + e);
 		synchronized (this) {
 			outstanding--;
+			int n = indexOf(id);
+			if (n >= 0 && (e instanceof InterruptedIOException ||
+				       e instanceof SocketException))
+				eres.failure(resolvers[n]);
 			if (done)
 				return;
-			int n;
-			for (n = 0; n < inprogress.length; n++)
-				if (inprogress[n] == id)
-					break;
 			/* If we don't know what this is, do nothing. */
-			if (n == inprogress.length)
+			if (n < 0)
 				return;
 			boolean startnext = false;
 			/*
 			 * If this is the first response from server n, 
-			 * we should start sending queries to server n + 1.
+			 * we should start sending queries to server n + 1,
+			 * unless they have already been hedged.
 			 */
-			if (sent[n] == 1 && n < resolvers.length - 1)
+			if (sent[n] == 1 && n < resolvers.length - 1 &&
+			    sent[n + 1] == 0)
 				startnext = true;
 			if (e instanceof InterruptedIOException) {
 				/* Got a timeout; resend */
@@ -233,8 +376,22 @@ private static class Resolution implements ResolverListener {
 
 private static final int quantum = 5;
 
+/* Failures in a row after which a server is backed off. */
+private static final int maxFailures = 3;
+
+/* Round trip times measured before the hedging delay is based on them. */
+private static final int minSamples = 10;
+
+/* The hedging delay used until then, in milliseconds. */
+private static final long defaultHedgeDelay = 100;
+
+private static Random random = new Random();
+
 private List resolvers;
+private Map stats = new HashMap();
 private boolean loadBalance = false;
+private boolean latencyAware = false;
+private boolean hedging = false;
 private int lbStart = 0;
 private int retries = 3;
 
@@ -296,6 +453,110 @@ ExtendedResolver(Resolver [] res) throws UnknownHostException {
 		resolvers.add(res[i]);
 }
 
+private ServerStats
+statsFor(Resolver r) {
+	synchronized (stats) {
+		ServerStats s = (ServerStats) stats.get(r);
+		if (s == null) {
+			s = new ServerStats();
+			stats.put(r, s);
+		}
+		return s;
+	}
+}
+
+/* Records a response from a server to a query sent at a time (in ns). */
+private void
+success(Resolver r, long sendTime) {
+	statsFor(r).success((System.nanoTime() - sendTime) / 1000);
+}
+
+private void
+failure(Resolver r) {
+	statsFor(r).failure();
+}
+
+/* Returns how long to wait for a server before hedging, in milliseconds. */
+private long
+hedgeDelay(Resolver r) {
+	long p95 = statsFor(r).getP95();
+	if (p95 < 0)
+		return defaultHedgeDelay;
+	return Math.max(p95 / 1000, 1);
+}
+
+/*
+ * Orders the servers for a query.  The first is chosen at random from
+ * those which aren't backed off, with a probability inversely proportional
+ * to its smoothed round trip time.  The rest follow from fastest to
+ * slowest, and those which are backed off go last.  Servers which haven't
+ * answered yet are treated as being as fast as the fastest one, so that
+ * they are tried.
+ */
+private Resolver []
+order(Resolver [] list) {
+	int n = list.length;
+	long now = System.currentTimeMillis();
+	long [] rtt = new long[n];
+	boolean [] off = new boolean[n];
+	long fastest = -1;
+	for (int i = 0; i < n; i++) {
+		ServerStats s = statsFor(list[i]);
+		rtt[i] = s.getSRTT();
+		off[i] = s.backedOff(now);
+		if (rtt[i] >= 0 && (fastest < 0 || rtt[i] < fastest))
+			fastest = rtt[i];
+	}
+	for (int i = 0; i < n; i++) {
+		if (rtt[i] < 0)
+			rtt[i] = (fastest < 0) ? 1 : fastest;
+		if (rtt[i] == 0)
+			rtt[i] = 1;
+	}
+
+	double total = 0;
+	for (int i = 0; i < n; i++)
+		if (!off[i])
+			total += 1.0 / rtt[i];
+	int first = -1;
+	double r = random.nextDouble() * total;
+	for (int i = 0; i < n && total > 0; i++) {
+		if (off[i])
+			continue;
+		first = i;
+		r -= 1.0 / rtt[i];
+		if (r <= 0)
+			break;
+	}
+
+	List rest = new ArrayList();
+	for (int i = 0; i < n; i++)
+		if (i != first)
+			rest.add(Mnemonic.toInteger(i));
+	final long [] rtts = rtt;
+	final boolean [] offs = off;
+	Collections.sort(rest, new Comparator() {
+		public int
+		compare(Object o1, Object o2) {
+			int i1 = ((Integer) o1).intValue();
+			int i2 = ((Integer) o2).intValue();
+			if (offs[i1] != offs[i2])
+				return offs[i1] ? 1 : -1;
+			if (rtts[i1] != rtts[i2])
+				return rtts[i1] < rtts[i2] ? -1 : 1;
+			return 0;
+		}
+	});
+
+	Resolver [] ordered = new Resolver[n];
+	int pos = 0;
+	if (first >= 0)
+		ordered[pos++] = list[first];
+	for (Iterator it = rest.iterator(); it.hasNext(); )
+		ordered[pos++] = list[((Integer) it.next()).intValue()];
+	return ordered;
+}
+
 public void
 setPort(int port) {
 	for (int i = 0; i < resolvers.size(); i++)
@@ -399,6 +660,9 @@ addResolver(Resolver r) {
 public void
 deleteResolver(Resolver r) {
 	resolvers.remove(r);
+	synchronized (stats) {
+		stats.remove(r);
+	}
 }
 
 /** Sets whether the servers should be load balanced.
@@ -410,6 +674,32 @@ setLoadBalance(boolean flag) {
 	loadBalance = flag;
 }
 
+/**
+ * Sets whether servers should be chosen by their round trip times.  If so,
+ * each query is first sent to a server chosen at random, with faster
+ * servers more likely to be chosen, and then to the others from fastest to
+ * slowest.  Servers which have repeatedly timed out or failed are tried
+ * last, for a period which grows while they keep failing.  This overrides
+ * load balancing.
+ */
+public void
+setLatencyAware(boolean flag) {
+	latencyAware = flag;
+}
+
+/**
+ * Sets whether queries should be hedged.  If so, a query which the first
+ * server hasn't answered within the 95th percentile of its recent round trip
+ * times (or 100 milliseconds, until enough have been measured) is also sent
+ * to the second server, and the first answer to arrive is used.  This
+ * reduces the effect of one slow server on the time taken by queries, at
+ * the cost of some extra queries.
+ */
+public void
+setHedging(boolean flag) {
+	hedging = flag;
+}
+
 /** Sets the number of retries sent to each server per query */
 public void
 setRetries(int retries) {
@@ -3,6 +3,7 @@
 package org.xbill.DNS;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -67,6 +68,16 @@ Header(byte [] b) throws IOException {
 	this(new DNSInput(b));
 }
 
+/**
+ * Creates a new Header from its DNS wire format representation, starting at
+ * the buffer's position.  The buffer's position is moved past the header.
+ * @param b A ByteBuffer containing the DNS Header.
+ */
+public
+Header(ByteBuffer b) throws IOException {
+	this(new DNSInput(b));
+}
+
 void
 toWire(DNSOutput out) {
 	out.writeU16(getID());
@@ -0,0 +1,163 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * An RRset which cannot be changed.  Reading an ImmutableRRset never locks,
+ * so it can be shared by many threads; records are cycled for round-robin
+ * with an atomic counter, and the canonical form used to sign and verify
+ * the set with DNSSEC is computed once and reused.
+ * <p>
+ * An ImmutableRRset is created by copying an RRset, which can be used to
+ * collect the records first.
+ * <pre>
+ * RRset rrset = new RRset();
+ * rrset.addRR(r1);
+ * rrset.addRR(r2);
+ * ImmutableRRset immutable = new ImmutableRRset(rrset);
+ * </pre>
+ * @see DNSSEC
+ */
+
+public final class ImmutableRRset extends RRset {
+
+private static final long serialVersionUID = 4160914880284925512L;
+
+private final Record [] records;
+private final Record [] sigs;
+private final AtomicInteger position = new AtomicInteger();
+private transient volatile byte [][] canonical;
+
+private static RRset
+newRRset(Record [] records) {
+	RRset rrset = new RRset();
+	for (int i = 0; i < records.length; i++)
+		rrset.addRR(records[i]);
+	return rrset;
+}
+
+private static Record []
+toArray(Iterator it) {
+	List list = new ArrayList();
+	while (it.hasNext())
+		list.add(it.next());
+	return (Record []) list.toArray(new Record[list.size()]);
+}
+
+/**
+ * Creates an ImmutableRRset with the contents of an RRset.
+ * @param rrset The RRset to copy.
+ * @throws IllegalArgumentException The RRset is empty.
+ */
+public
+ImmutableRRset(RRset rrset) {
+	super(rrset);
+	records = toArray(super.rrs(false));
+	sigs = toArray(super.sigs());
+	if (records.length == 0 && sigs.length == 0)
+		throw new IllegalArgumentException("rrset is empty");
+}
+
+/**
+ * Creates an ImmutableRRset from an array of records, which may include
+ * signatures.  The records must all belong to the same RRset; as in
+ * {@link RRset#addRR}, their TTLs are set to the lowest of them.
+ * @param records The records.
+ * @throws IllegalArgumentException The records do not belong to the same
+ * RRset, or there are none.
+ */
+public
+ImmutableRRset(Record [] records) {
+	this(newRRset(records));
+}
+
+/**
+ * Always throws an exception, since the set cannot be changed.
+ * @throws UnsupportedOperationException
+ */
+public void
+addRR(Record r) {
+	throw new UnsupportedOperationException("rrset is immutable");
+}
+
+/**
+ * Always throws an exception, since the set cannot be changed.
+ * @throws UnsupportedOperationException
+ */
+public void
+deleteRR(Record r) {
+	throw new UnsupportedOperationException("rrset is immutable");
+}
+
+/**
+ * Always throws an exception, since the set cannot be changed.
+ * @throws UnsupportedOperationException
+ */
+public void
+clear() {
+	throw new UnsupportedOperationException("rrset is immutable");
+}
+
+/**
+ * Returns an Iterator listing all (data) records.
+ * @param cycle If true, cycle through the records so that each Iterator will
+ * start with a different record.
+ */
+public Iterator
+rrs(boolean cycle) {
+	int size = records.length;
+	if (!cycle || size <= 1)
+		return Collections.unmodifiableList(Arrays.asList(records))
+				  .iterator();
+	int start = (position.getAndIncrement() & Integer.MAX_VALUE) % size;
+	List list = new ArrayList(size);
+	for (int i = 0; i < size; i++)
+		list.add(records[(start + i) % size]);
+	return list.iterator();
+}
+
+/**
+ * Returns an Iterator listing all (data) records.  This cycles through
+ * the records, so each Iterator will start with a different record.
+ */
+public Iterator
+rrs() {
+	return rrs(true);
+}
+
+/** Returns an Iterator listing all signature records */
+public Iterator
+sigs() {
+	return Collections.unmodifiableList(Arrays.asList(sigs)).iterator();
+}
+
+/** Returns the number of (data) records */
+public int
+size() {
+	return records.length;
+}
+
+/** Returns the ttl of the records */
+public long
+getTTL() {
+	return first().getTTL();
+}
+
+/** Returns the first record */
+public Record
+first() {
+	return (records.length > 0) ? records[0] : sigs[0];
+}
+
+byte [][]
+canonicalRdata() {
+	byte [][] rdata = canonical;
+	if (rdata == null)
+		canonical = rdata = canonicalRdata(records);
+	return rdata;
+}
+
+}
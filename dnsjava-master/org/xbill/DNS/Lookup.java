@@ -3,6 +3,7 @@
 package org.xbill.DNS;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import java.net.*;
 
@@ -16,6 +17,11 @@ import java.net.*;
  * also determined by the ResolverConfig class.
  *
  * A Lookup object may be reused, but should not be used by multiple threads.
+ * When several threads look up the same name, type, and class with the same
+ * Resolver at once, only one query is sent, and its response is shared.
+ * A Lookup can also refresh cached records in the background shortly
+ * before they expire, so that names which are looked up often stay cached
+ * (see {@link #setRefreshAhead}).
  *
  * @see Cache
  * @see Resolver
@@ -30,12 +36,18 @@ private static Resolver defaultResolver;
 private static Name [] defaultSearchPath;
 private static Map defaultCaches;
 private static int defaultNdots;
+private static int defaultRefreshAhead;
+
+private static Map flights = new HashMap();
+private static Set refreshing = new HashSet();
+private static ExecutorService refresher;
 
 private Resolver resolver;
 private Name [] searchPath;
 private Cache cache;
 private boolean temporary_cache;
 private int credibility;
+private int refreshAhead;
 private Name name;
 private int type;
 private int dclass;
@@ -79,6 +91,44 @@ public static final int HOST_NOT_FOUND = 3;
 /** The host exists, but has no records associated with the queried type. */
 public static final int TYPE_NOT_FOUND = 4;
 
+/*
+ * A query which is being sent on behalf of every lookup that needs its
+ * response.
+ */
+private static class Flight {
+	private Message response;
+	private IOException error;
+	private boolean done;
+
+	synchronized void
+	finish(Message response, IOException error) {
+		this.response = response;
+		this.error = error;
+		done = true;
+		notifyAll();
+	}
+
+	/*
+	 * Waits for the response.  Each waiter gets its own copy, so that
+	 * nothing is shared with the lookup which sent the query.
+	 */
+	synchronized Message
+	await() throws IOException {
+		while (!done) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted");
+			}
+		}
+		if (error != null)
+			throw error;
+		return (Message) response.clone();
+	}
+}
+
 public static synchronized void
 refreshDefault() {
 
@@ -115,9 +165,31 @@ setDefaultResolver(Resolver resolver) {
 	defaultResolver = resolver;
 }
 
+/**
+ * Gets the default percentage of a cached RRset's lifetime within which it
+ * is refreshed in the background; see {@link #setRefreshAhead}.
+ */
+public static synchronized int
+getDefaultRefreshAhead() {
+	return defaultRefreshAhead;
+}
+
+/**
+ * Sets the default percentage of a cached RRset's lifetime within which it
+ * is refreshed in the background.  The default is 0, which disables this.
+ * @see #setRefreshAhead
+ */
+public static synchronized void
+setDefaultRefreshAhead(int percent) {
+	if (percent < 0 || percent > 100)
+		throw new IllegalArgumentException("invalid percentage");
+	defaultRefreshAhead = percent;
+}
+
 /**
  * Gets the Cache that will be used as the default for the specified
- * class by future Lookups.
+ * class by future Lookups.  If the "concurrentcache" option is set, a newly
+ * created default Cache is a concurrent Cache.
  * @param dclass The class whose cache is being retrieved.
  * @return The default cache for the specified class.
  */
@@ -126,7 +198,7 @@ getDefaultCache(int dclass) {
 	DClass.check(dclass);
 	Cache c = (Cache) defaultCaches.get(Mnemonic.toInteger(dclass));
 	if (c == null) {
-		c = new Cache(dclass);
+		c = new Cache(dclass, Options.check("concurrentcache"));
 		defaultCaches.put(Mnemonic.toInteger(dclass), c);
 	}
 	return c;
@@ -239,6 +311,7 @@ Lookup(Name name, int type, int dclass) {
 		this.resolver = getDefaultResolver();
 		this.searchPath = getDefaultSearchPath();
 		this.cache = getDefaultCache(dclass);
+		this.refreshAhead = defaultRefreshAhead;
 	}
 	this.credibility = Credibility.NORMAL;
 	this.verbose = Options.check("verbose");
@@ -391,6 +464,141 @@ setCredibility(int credibility) {
 	this.credibility = credibility;
 }
 
+/**
+ * Sets the percentage of a cached RRset's lifetime within which it is
+ * refreshed.  When this lookup finds an answer in the cache which has less
+ * than this much of its lifetime left, the query is sent again in the
+ * background and the cache is updated, so that later lookups don't miss.
+ * The default is set by {@link #setDefaultRefreshAhead}; 0 disables this.
+ * @param percent The percentage, between 0 and 100.
+ */
+public void
+setRefreshAhead(int percent) {
+	if (percent < 0 || percent > 100)
+		throw new IllegalArgumentException("invalid percentage");
+	this.refreshAhead = percent;
+}
+
+/*
+ * Sends a query, unless the same query is already being sent with the same
+ * resolver, in which case this waits for and shares its response.
+ */
+private static Message
+send(Resolver resolver, Message query) throws IOException {
+	Record question = query.getQuestion();
+	Object key = Arrays.asList(new Object [] {
+			resolver, question.getName(),
+			Mnemonic.toInteger(question.getType()),
+			Mnemonic.toInteger(question.getDClass())});
+	Flight flight;
+	synchronized (flights) {
+		flight = (Flight) flights.get(key);
+		if (flight == null)
+			flights.put(key, new Flight());
+	}
+	if (flight != null)
+		return flight.await();
+
+	Message response = null;
+	IOException error = null;
+	try {
+		response = resolver.send(query);
+		return response;
+	}
+	catch (IOException e) {
+		error = e;
+		throw e;
+	}
+	finally {
+		synchronized (flights) {
+			flight = (Flight) flights.remove(key);
+		}
+		if (response == null && error == null)
+			error = new IOException("query failed");
+		flight.finish(response, error);
+	}
+}
+
+private static synchronized Executor
+getRefresher() {
+	if (refresher == null) {
+		ThreadFactory factory = new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread
+			newThread(Runnable r) {
+				Thread t = new Thread(r, "dnsjava refresh " +
+						      count++);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		refresher = new ThreadPoolExecutor(0, 4, 30, TimeUnit.SECONDS,
+						   new LinkedBlockingQueue(256),
+						   factory);
+	}
+	return refresher;
+}
+
+/*
+ * Refreshes a name in the background, if it isn't already being refreshed.
+ */
+private void
+refresh(final Name current) {
+	final Resolver resolver = this.resolver;
+	final Cache cache = this.cache;
+	final Record question = Record.newRecord(current, type, dclass);
+	final Object key = Arrays.asList(new Object [] {cache, question});
+	synchronized (refreshing) {
+		if (!refreshing.add(key))
+			return;
+	}
+	Runnable task = new Runnable() {
+		public void
+		run() {
+			try {
+				Message query = Message.newQuery(question);
+				Message response = send(resolver, query);
+				int rcode = response.getHeader().getRcode();
+				if ((rcode == Rcode.NOERROR ||
+				     rcode == Rcode.NXDOMAIN) &&
+				    question.equals(response.getQuestion()))
+					cache.addMessage(response);
+			}
+			catch (IOException e) {
+				// The entry will expire normally.
+			}
+			finally {
+				synchronized (refreshing) {
+					refreshing.remove(key);
+				}
+			}
+		}
+	};
+	try {
+		getRefresher().execute(task);
+	}
+	catch (RejectedExecutionException e) {
+		synchronized (refreshing) {
+			refreshing.remove(key);
+		}
+	}
+}
+
+/* Checks whether any of the answers found in the cache are expiring. */
+private void
+checkRefresh(Name current, SetResponse sr) {
+	if (!sr.isSuccessful())
+		return;
+	RRset [] rrsets = sr.answers();
+	for (int i = 0; i < rrsets.length; i++) {
+		if (cache.isExpiring(rrsets[i], refreshAhead)) {
+			refresh(current);
+			return;
+		}
+	}
+}
+
 private void
 follow(Name name, Name oldname) {
 	foundAlias = true;
@@ -466,6 +674,8 @@ lookup(Name current) {
 				   Type.string(type));
 		System.err.println(sr);
 	}
+	if (refreshAhead > 0)
+		checkRefresh(current, sr);
 	processResponse(current, sr);
 	if (done || doneCurrent)
 		return;
@@ -474,7 +684,7 @@ lookup(Name current) {
 	Message query = Message.newQuery(question);
 	Message response = null;
 	try {
-		response = resolver.send(query);
+		response = send(resolver, query);
 	}
 	catch (IOException e) {
 		// A network error occurred.  Press on.
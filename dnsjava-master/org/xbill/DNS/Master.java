@@ -40,6 +40,17 @@ Master(File file, Name origin, long initialTTL) throws IOException {
 	defaultTTL = initialTTL;
 }
 
+/*
+ * Initializes the master file reader to read part of a file, which has
+ * already been opened.  The file is used to find included files.
+ */
+Master(Tokenizer st, File file, Name origin, long initialTTL) {
+	this.file = file;
+	this.st = st;
+	this.origin = origin;
+	defaultTTL = initialTTL;
+}
+
 /**
  * Initializes the master file reader and opens the specified master file.
  * @param filename The master file.
@@ -0,0 +1,421 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A parallel master file parser for large files.  The file is memory mapped
+ * and split into chunks which begin at record boundaries, and the chunks are
+ * parsed by the tasks of a fork/join pool.  Records are returned in the
+ * order in which they appear in the file, and only a limited number of
+ * chunks are parsed ahead of the caller, so the whole file is never held in
+ * memory.
+ * <p>
+ * The file is split only at lines which begin with an owner name, outside of
+ * parentheses, and only once a default TTL is known (from a $TTL directive
+ * or the initial TTL), since otherwise records may take their TTL from the
+ * preceding record.  A file without a default TTL is parsed as one chunk.
+ * $ORIGIN and $TTL directives are tracked while splitting, so that each
+ * chunk starts with the correct state; $INCLUDE and $GENERATE directives are
+ * handled by the chunk containing them.
+ *
+ * @see Master
+ */
+
+public class MasterLoader {
+
+/**
+ * Receives the records of a master file from {@link #load}.
+ */
+public static interface RecordHandler {
+	/**
+	 * Handles a record.  Records are passed in the order in which they
+	 * appear in the file, in the thread which called load().
+	 */
+	public void handleRecord(Record r) throws IOException;
+}
+
+/* The size of the regions mapped while scanning the file. */
+private static final int WINDOW = 1 << 28;
+
+private static final int defaultChunkSize = 4 * 1024 * 1024;
+
+private File file;
+private FileChannel channel;
+private long size;
+private int chunkSize = defaultChunkSize;
+private ForkJoinPool pool = ForkJoinPool.commonPool();
+private int maxPending;
+
+/* The state of the scanner which splits the file into chunks. */
+private ByteBuffer window;
+private long windowStart;
+private long scanPos;
+private int line = 1;
+private Name origin;
+private long defaultTTL;
+
+private LinkedList pending = new LinkedList();
+private Iterator current;
+private long records;
+private long startTime;
+private long endTime;
+
+/**
+ * Opens the specified master file.
+ * @param file The master file.
+ * @param origin The initial origin to append to relative names.
+ * @param ttl The initial default TTL, or -1 if there is none.
+ * @throws IOException The master file could not be opened.
+ */
+public
+MasterLoader(File file, Name origin, long ttl) throws IOException {
+	if (origin != null && !origin.isAbsolute())
+		throw new RelativeNameException(origin);
+	this.file = file;
+	this.origin = origin;
+	defaultTTL = ttl;
+	channel = new FileInputStream(file).getChannel();
+	size = channel.size();
+}
+
+/**
+ * Opens the specified master file.
+ * @param filename The master file.
+ * @param origin The initial origin to append to relative names.
+ * @throws IOException The master file could not be opened.
+ */
+public
+MasterLoader(String filename, Name origin) throws IOException {
+	this(new File(filename), origin, -1);
+}
+
+/**
+ * Sets the approximate size of the chunks parsed by each task.  The default
+ * is 4 MB.
+ */
+public void
+setChunkSize(int bytes) {
+	if (bytes <= 0)
+		throw new IllegalArgumentException("invalid chunk size");
+	chunkSize = bytes;
+}
+
+/**
+ * Sets the pool used to parse chunks.  The default is the common fork/join
+ * pool.
+ */
+public void
+setPool(ForkJoinPool pool) {
+	this.pool = pool;
+}
+
+/* Returns the byte at a position in the file, or -1 at the end. */
+private int
+byteAt(long pos) throws IOException {
+	if (pos >= size)
+		return -1;
+	if (window == null || pos < windowStart ||
+	    pos >= windowStart + window.limit())
+	{
+		windowStart = pos;
+		long len = Math.min(WINDOW, size - pos);
+		window = channel.map(FileChannel.MapMode.READ_ONLY,
+				     pos, len);
+	}
+	return window.get((int) (pos - windowStart)) & 0xFF;
+}
+
+/* Returns the text of the line starting at a position. */
+private String
+lineAt(long pos) throws IOException {
+	StringBuffer sb = new StringBuffer();
+	int c;
+	while ((c = byteAt(pos++)) >= 0 && c != '\n' && c != '\r')
+		sb.append((char) c);
+	return sb.toString();
+}
+
+/* Applies an $ORIGIN or $TTL directive to the scanner's state. */
+private void
+directive(String text) {
+	Tokenizer st = new Tokenizer(text);
+	try {
+		String s = st.getString();
+		if (s.equalsIgnoreCase("$ORIGIN"))
+			origin = st.getName(Name.root);
+		else if (s.equalsIgnoreCase("$TTL"))
+			defaultTTL = st.getTTL();
+	}
+	catch (IOException e) {
+		/* The parser will report the error. */
+	}
+}
+
+/*
+ * Scans forward from the current position, which is the start of a line
+ * outside of parentheses, to the first suitable record boundary at or after
+ * the given position, or the end of the file.  Returns the boundary.
+ */
+private long
+nextBoundary(long target) throws IOException {
+	long pos = scanPos;
+	int depth = 0;
+	boolean lineStart = true;
+	while (true) {
+		int c = byteAt(pos);
+		if (c < 0)
+			return size;
+		if (lineStart) {
+			lineStart = false;
+			if (depth == 0 && c == '$')
+				directive(lineAt(pos));
+			else if (depth == 0 && pos > scanPos &&
+				 pos >= target && defaultTTL >= 0 &&
+				 c != ' ' && c != '\t' && c != ';' &&
+				 c != '\n' && c != '\r' && c != '(')
+				return pos;
+		}
+		pos++;
+		switch (c) {
+		case '\r':
+		case '\n':
+			if (c == '\r' && byteAt(pos) == '\n')
+				pos++;
+			line++;
+			lineStart = true;
+			break;
+		case ';':
+			while ((c = byteAt(pos)) >= 0 &&
+			       c != '\n' && c != '\r')
+				pos++;
+			break;
+		case '"':
+			while ((c = byteAt(pos)) >= 0 && c != '"' &&
+			       c != '\n' && c != '\r')
+			{
+				pos++;
+				if (c == '\\' && byteAt(pos) >= 0)
+					pos++;
+			}
+			if (c == '"')
+				pos++;
+			break;
+		case '\\':
+			c = byteAt(pos);
+			if (c >= 0 && c != '\n' && c != '\r')
+				pos++;
+			break;
+		case '(':
+			depth++;
+			break;
+		case ')':
+			if (depth > 0)
+				depth--;
+			break;
+		}
+	}
+}
+
+/* Parses the records in part of the file. */
+private static class Chunk implements Callable {
+	private File file;
+	private FileChannel channel;
+	private long start, end;
+	private int line;
+	private Name origin;
+	private long ttl;
+
+	Chunk(File file, FileChannel channel, long start, long end, int line,
+	      Name origin, long ttl)
+	{
+		this.file = file;
+		this.channel = channel;
+		this.start = start;
+		this.end = end;
+		this.line = line;
+		this.origin = origin;
+		this.ttl = ttl;
+	}
+
+	/*
+	 * Maps the chunk.  A large chunk (which happens when the file can't
+	 * be split) is mapped as several regions, which are read in turn.
+	 */
+	private ByteBuffer []
+	open() throws IOException {
+		List regions = new ArrayList();
+		for (long pos = start; pos < end; pos += WINDOW) {
+			long len = Math.min(WINDOW, end - pos);
+			regions.add(channel.map(FileChannel.MapMode.READ_ONLY,
+						pos, len));
+		}
+		return (ByteBuffer []) regions.toArray(new ByteBuffer[0]);
+	}
+
+	/*
+	 * Returns a List of the records.  If parsing fails, the exception is
+	 * added after the records before it, so that it is thrown in order;
+	 * the pool would otherwise wrap it.
+	 */
+	public Object
+	call() {
+		List list = new ArrayList();
+		try {
+			Tokenizer st;
+			st = new Tokenizer(open(), file.getName(), line);
+			Master m = new Master(st, file, origin, ttl);
+			Record r;
+			while ((r = m.nextRecord()) != null)
+				list.add(r);
+		}
+		catch (IOException e) {
+			list.add(e);
+		}
+		catch (RuntimeException e) {
+			list.add(e);
+		}
+		return list;
+	}
+}
+
+/* Starts parsing chunks until enough are pending. */
+private void
+fill() throws IOException {
+	if (maxPending == 0)
+		maxPending = pool.getParallelism() * 2;
+	while (pending.size() < maxPending && scanPos < size) {
+		long start = scanPos;
+		int startLine = line;
+		Name startOrigin = origin;
+		long startTTL = defaultTTL;
+		long end = nextBoundary(start + chunkSize);
+		scanPos = end;
+		Chunk chunk = new Chunk(file, channel, start, end, startLine,
+					startOrigin, startTTL);
+		pending.add(pool.submit(chunk));
+	}
+}
+
+private static List
+result(Future f) throws IOException {
+	try {
+		return (List) f.get();
+	}
+	catch (InterruptedException e) {
+		throw new InterruptedIOException("interrupted while loading");
+	}
+	catch (ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof IOException)
+			throw (IOException) cause;
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if (cause instanceof Error)
+			throw (Error) cause;
+		throw new IOException(cause.toString());
+	}
+}
+
+/**
+ * Returns the next record in the master file.
+ * @return The next record, or null at the end of the file.
+ * @throws IOException The master file could not be read, or was syntactically
+ * invalid.  The loader is closed.
+ */
+public Record
+nextRecord() throws IOException {
+	if (startTime == 0)
+		startTime = System.nanoTime();
+	try {
+		while (current == null || !current.hasNext()) {
+			fill();
+			if (pending.isEmpty()) {
+				if (endTime == 0)
+					endTime = System.nanoTime();
+				close();
+				return null;
+			}
+			current = result((Future) pending.removeFirst())
+					.iterator();
+		}
+	}
+	catch (IOException e) {
+		close();
+		throw e;
+	}
+	catch (RuntimeException e) {
+		close();
+		throw e;
+	}
+	Object o = current.next();
+	if (o instanceof Record) {
+		records++;
+		return (Record) o;
+	}
+	close();
+	if (o instanceof IOException)
+		throw (IOException) o;
+	throw (RuntimeException) o;
+}
+
+/**
+ * Passes every record in the master file to a handler.
+ * @return The number of records loaded.
+ * @throws IOException The master file could not be read, or was syntactically
+ * invalid, or the handler threw an exception.
+ */
+public long
+load(RecordHandler handler) throws IOException {
+	try {
+		Record r;
+		while ((r = nextRecord()) != null)
+			handler.handleRecord(r);
+	}
+	finally {
+		close();
+	}
+	return records;
+}
+
+/** Returns the number of records returned so far. */
+public long
+getRecordCount() {
+	return records;
+}
+
+/**
+ * Returns the number of records returned per second, from the first call to
+ * nextRecord() until the end of the file (or now, if the file has not been
+ * completely read).
+ */
+public double
+getRecordsPerSecond() {
+	if (startTime == 0)
+		return 0;
+	long end = (endTime != 0) ? endTime : System.nanoTime();
+	long elapsed = Math.max(end - startTime, 1);
+	return records * 1e9 / elapsed;
+}
+
+/** Stops loading and closes the file. */
+public void
+close() {
+	for (Iterator it = pending.iterator(); it.hasNext(); )
+		((Future) it.next()).cancel(false);
+	pending.clear();
+	scanPos = size;
+	window = null;
+	try {
+		channel.close();
+	}
+	catch (IOException e) {
+	}
+}
+
+}
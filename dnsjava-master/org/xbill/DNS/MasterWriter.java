@@ -0,0 +1,213 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Writes records in master file format as they are produced, so that a
+ * large zone can be exported without holding its text in memory.  Output
+ * is collected in a buffer which is reused, and may be compressed with gzip.
+ * <p>
+ * After {@link #setOrigin} is called, owner names are written relative to
+ * the origin, and the owner of each record with the same name as the
+ * previous record is left out, which makes the output considerably smaller.
+ * Names in the data of records are always written in full.
+ * <pre>
+ * MasterWriter w = new MasterWriter(channel, true);
+ * w.setOrigin(zone.getOrigin());
+ * w.write(zone);
+ * w.close();
+ * </pre>
+ *
+ * @see Master
+ * @see Zone#toMasterFile(Writer)
+ */
+
+public class MasterWriter {
+
+private static final int bufferSize = 64 * 1024;
+
+private Writer writer;
+private OutputStream stream;
+private char [] chars = new char[bufferSize];
+private byte [] bytes;
+private int count;
+private StringBuffer line = new StringBuffer(256);
+private Name origin;
+private Name lastOwner;
+private long records;
+
+/**
+ * Creates a MasterWriter which writes text to a Writer.
+ * @param out The Writer.
+ */
+public
+MasterWriter(Writer out) {
+	writer = out;
+}
+
+/**
+ * Creates a MasterWriter which writes to an OutputStream.
+ * @param out The stream.
+ * @param gzip Whether the output should be compressed with gzip.
+ * @throws IOException An error occurred while writing the gzip header.
+ */
+public
+MasterWriter(OutputStream out, boolean gzip) throws IOException {
+	if (gzip)
+		out = new GZIPOutputStream(out, bufferSize);
+	stream = out;
+	bytes = new byte[bufferSize];
+}
+
+/**
+ * Creates a MasterWriter which writes to a channel, such as a FileChannel.
+ * @param channel The channel.
+ * @param gzip Whether the output should be compressed with gzip.
+ * @throws IOException An error occurred while writing the gzip header.
+ */
+public
+MasterWriter(WritableByteChannel channel, boolean gzip) throws IOException {
+	this(Channels.newOutputStream(channel), gzip);
+}
+
+/* Writes out the buffered text. */
+private void
+drain() throws IOException {
+	if (writer != null)
+		writer.write(chars, 0, count);
+	else {
+		/* Master files are ASCII; anything else is escaped. */
+		for (int i = 0; i < count; i++)
+			bytes[i] = (byte) chars[i];
+		stream.write(bytes, 0, count);
+	}
+	count = 0;
+}
+
+/* Appends the current line, and a newline, to the buffer. */
+private void
+writeLine() throws IOException {
+	line.append('\n');
+	int length = line.length();
+	int pos = 0;
+	while (pos < length) {
+		if (count == chars.length)
+			drain();
+		int n = Math.min(length - pos, chars.length - count);
+		line.getChars(pos, pos + n, chars, count);
+		count += n;
+		pos += n;
+	}
+	line.setLength(0);
+}
+
+/**
+ * Writes an $ORIGIN directive.  Until the origin is changed, owner names
+ * are written relative to the origin, and repeated owner names are left
+ * out.
+ * @param origin The origin, or null to write names in full again.  No
+ * directive is written in that case.
+ * @throws IOException An error occurred while writing.
+ */
+public void
+setOrigin(Name origin) throws IOException {
+	this.origin = origin;
+	lastOwner = null;
+	if (origin != null) {
+		line.append("$ORIGIN ");
+		line.append(origin);
+		writeLine();
+	}
+}
+
+/**
+ * Writes a record.
+ * @param r The record.
+ * @throws IOException An error occurred while writing.
+ */
+public void
+write(Record r) throws IOException {
+	Name name = r.getName();
+	String owner;
+	if (origin == null)
+		owner = name.toString();
+	else if (name.equals(lastOwner))
+		owner = "";
+	else if (name.equals(origin))
+		owner = "@";
+	else
+		owner = name.relativize(origin).toString();
+	lastOwner = name;
+	r.toString(line, owner);
+	writeLine();
+	records++;
+}
+
+/**
+ * Writes the records and signatures of an RRset.
+ * @param rrset The RRset.
+ * @throws IOException An error occurred while writing.
+ */
+public void
+write(RRset rrset) throws IOException {
+	Iterator it = rrset.rrs(false);
+	while (it.hasNext())
+		write((Record) it.next());
+	it = rrset.sigs();
+	while (it.hasNext())
+		write((Record) it.next());
+}
+
+/**
+ * Writes the contents of a Zone, starting with the records at its origin.
+ * @param zone The zone.
+ * @throws IOException An error occurred while writing.
+ */
+public void
+write(Zone zone) throws IOException {
+	zone.write(this);
+}
+
+/** Returns the number of records written. */
+public long
+getRecordCount() {
+	return records;
+}
+
+/**
+ * Writes any buffered text, and flushes the underlying Writer or stream.
+ * @throws IOException An error occurred while writing.
+ */
+public void
+flush() throws IOException {
+	drain();
+	if (writer != null)
+		writer.flush();
+	else
+		stream.flush();
+}
+
+/**
+ * Writes any buffered text, finishes the compressed data if the output is
+ * compressed, and closes the underlying Writer, stream or channel.
+ * @throws IOException An error occurred while writing.
+ */
+public void
+close() throws IOException {
+	try {
+		drain();
+	}
+	finally {
+		if (writer != null)
+			writer.close();
+		else
+			stream.close();
+	}
+}
+
+}
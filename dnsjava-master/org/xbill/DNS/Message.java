@@ -4,7 +4,7 @@ package org.xbill.DNS;
 
 import java.util.*;
 import java.io.*;
-import java.nio.ByteBuffer;
+import java.nio.*;
 
 /**
  * A DNS Message.  A message is the basic unit of communication between
@@ -28,6 +28,7 @@ private int size;
 private TSIG tsigkey;
 private TSIGRecord querytsig;
 private int tsigerror;
+private WireSections unparsed;
 
 int tsigstart;
 int tsigState;
@@ -51,6 +52,22 @@ static final int TSIG_SIGNED = 3;
  */
 static final int TSIG_FAILED = 4;
 
+/*
+ * The wire format of a message parsed lazily, and the positions of the
+ * sections which have not yet been parsed.
+ */
+private static class WireSections {
+	byte [] wire;
+	int [] offsets = new int[4];
+	int [] counts = new int[4];
+	/* A bit for each section which has not been parsed. */
+	int pending;
+	boolean isUpdate;
+	boolean truncated;
+	/* Whether the wire format can be reused when rendering. */
+	boolean reusable;
+}
+
 private static Record [] emptyRecordArray = new Record[0];
 private static RRset [] emptyRRsetArray = new RRset[0];
 
@@ -97,29 +114,41 @@ newUpdate(Name zone) {
 }
 
 Message(DNSInput in) throws IOException {
+	this(in, null);
+}
+
+/*
+ * Parses a message.  If the wire format is supplied, only the header and
+ * question are parsed, and the other sections are indexed.
+ */
+private
+Message(DNSInput in, byte [] wire) throws IOException {
 	this(new Header(in));
 	boolean isUpdate = (header.getOpcode() == Opcode.UPDATE);
 	boolean truncated = header.getFlag(Flags.TC);
+	if (wire != null) {
+		unparsed = new WireSections();
+		unparsed.wire = wire;
+		unparsed.isUpdate = isUpdate;
+		unparsed.truncated = truncated;
+	}
 	try {
 		for (int i = 0; i < 4; i++) {
 			int count = header.getCount(i);
-			if (count > 0)
-				sections[i] = new ArrayList(count);
-			for (int j = 0; j < count; j++) {
-				int pos = in.current();
-				Record rec = Record.fromWire(in, i, isUpdate);
-				sections[i].add(rec);
-				if (i == Section.ADDITIONAL) {
-					if (rec.getType() == Type.TSIG)
-						tsigstart = pos;
-					if (rec.getType() == Type.SIG) {
-						SIGRecord sig = (SIGRecord) rec;
-						if (sig.getTypeCovered() == 0)
-							sig0start = pos;
-					}
-				}
+			if (unparsed != null && i != Section.QUESTION) {
+				if (count == 0)
+					continue;
+				unparsed.offsets[i] = in.current();
+				unparsed.counts[i] = count;
+				unparsed.pending |= (1 << i);
+				for (int j = 0; j < count; j++)
+					skipRecord(in, i);
+				continue;
 			}
+			parseRecords(in, i, count, isUpdate);
 		}
+		if (unparsed != null)
+			unparsed.reusable = true;
 	} catch (WireParseException e) {
 		if (!truncated)
 			throw e;
@@ -127,6 +156,94 @@ Message(DNSInput in) throws IOException {
 	size = in.current();
 }
 
+private void
+parseRecords(DNSInput in, int section, int count, boolean isUpdate)
+throws IOException
+{
+	if (count > 0)
+		sections[section] = new ArrayList(count);
+	for (int j = 0; j < count; j++) {
+		int pos = in.current();
+		Record rec = Record.fromWire(in, section, isUpdate);
+		sections[section].add(rec);
+		if (section == Section.ADDITIONAL) {
+			if (rec.getType() == Type.TSIG)
+				tsigstart = pos;
+			if (rec.getType() == Type.SIG) {
+				SIGRecord sig = (SIGRecord) rec;
+				if (sig.getTypeCovered() == 0)
+					sig0start = pos;
+			}
+		}
+	}
+}
+
+/* Skips over a record, checking only that its lengths are valid. */
+private static void
+skipRecord(DNSInput in, int section) throws WireParseException {
+	while (true) {
+		int len = in.readU8();
+		if ((len & 0xC0) == 0xC0) {
+			in.readU8();
+			break;
+		}
+		if ((len & 0xC0) != 0)
+			throw new WireParseException("bad label type");
+		if (len == 0)
+			break;
+		in.skip(len);
+	}
+	in.skip(4);
+	if (section == Section.QUESTION)
+		return;
+	in.skip(4);
+	in.skip(in.readU16());
+}
+
+/*
+ * Returns the records in a section, parsing them first if the message was
+ * parsed lazily.
+ */
+private List
+section(int section) {
+	if (unparsed == null || (unparsed.pending & (1 << section)) == 0)
+		return sections[section];
+	unparsed.pending &= ~(1 << section);
+	DNSInput in = new DNSInput(unparsed.wire);
+	in.jump(unparsed.offsets[section]);
+	try {
+		parseRecords(in, section, unparsed.counts[section],
+			     unparsed.isUpdate);
+	}
+	catch (IOException e) {
+		if (!(e instanceof WireParseException) || !unparsed.truncated)
+		{
+			IllegalStateException ise;
+			ise = new IllegalStateException("invalid " +
+						Section.string(section) +
+						" section: " + e.getMessage());
+			ise.initCause(e);
+			throw ise;
+		}
+	}
+	return sections[section];
+}
+
+/* Parses all sections which have not yet been parsed. */
+private void
+parseAll() {
+	for (int i = 0; i < 4; i++)
+		section(i);
+}
+
+/* Called when a section is changed, so the wire format is out of date. */
+private void
+modified(int section) {
+	section(section);
+	if (unparsed != null)
+		unparsed.reusable = false;
+}
+
 /**
  * Creates a new Message from its DNS wire format representation
  * @param b A byte array containing the DNS Message.
@@ -137,8 +254,32 @@ Message(byte [] b) throws IOException {
 }
 
 /**
- * Creates a new Message from its DNS wire format representation
+ * Creates a new Message from its DNS wire format representation, optionally
+ * parsing it lazily.  A lazily parsed message parses its header and question
+ * immediately, and only checks that the lengths of the records in the other
+ * sections are valid; the records in a section are parsed when the section
+ * is first accessed.  This makes it much cheaper to parse a message if only
+ * its header or question are needed.  If such a message is rendered without
+ * being modified (other than its header), its original wire format is reused,
+ * so it can be forwarded unchanged.
+ * <p>
+ * Since a section is parsed when it is accessed, an invalid record is not
+ * detected when the message is created, and accessing the section containing
+ * it throws an IllegalStateException.
+ * @param b A byte array containing the DNS Message.  It must not be
+ * modified while the message is in use.
+ * @param lazy Whether to parse the message lazily.
+ */
+public
+Message(byte [] b, boolean lazy) throws IOException {
+	this(new DNSInput(b), lazy ? b : null);
+}
+
+/**
+ * Creates a new Message from its DNS wire format representation.  The
+ * message is read from the buffer's position to its limit.
  * @param byteBuffer A ByteBuffer containing the DNS Message.
+ * @see DNSInput#DNSInput(ByteBuffer)
  */
 public
 Message(ByteBuffer byteBuffer) throws IOException {
@@ -170,6 +311,7 @@ getHeader() {
  */
 public void
 addRecord(Record r, int section) {
+	modified(section);
 	if (sections[section] == null)
 		sections[section] = new LinkedList();
 	header.incCount(section);
@@ -183,6 +325,7 @@ addRecord(Record r, int section) {
  */
 public boolean
 removeRecord(Record r, int section) {
+	modified(section);
 	if (sections[section] != null && sections[section].remove(r)) {
 		header.decCount(section);
 		return true;
@@ -198,6 +341,7 @@ removeRecord(Record r, int section) {
  */
 public void
 removeAllRecords(int section) {
+	modified(section);
 	sections[section] = null;
 	header.setCount(section, 0);
 }
@@ -209,7 +353,8 @@ removeAllRecords(int section) {
  */
 public boolean
 findRecord(Record r, int section) {
-	return (sections[section] != null && sections[section].contains(r));
+	List l = section(section);
+	return (l != null && l.contains(r));
 }
 
 /**
@@ -220,7 +365,7 @@ findRecord(Record r, int section) {
 public boolean
 findRecord(Record r) {
 	for (int i = Section.ANSWER; i <= Section.ADDITIONAL; i++)
-		if (sections[i] != null && sections[i].contains(r))
+		if (findRecord(r, i))
 			return true;
 	return false;
 }
@@ -233,10 +378,11 @@ findRecord(Record r) {
  */
 public boolean
 findRRset(Name name, int type, int section) {
-	if (sections[section] == null)
+	List l = section(section);
+	if (l == null)
 		return false;
-	for (int i = 0; i < sections[section].size(); i++) {
-		Record r = (Record) sections[section].get(i);
+	for (int i = 0; i < l.size(); i++) {
+		Record r = (Record) l.get(i);
 		if (r.getType() == type && name.equals(r.getName()))
 			return true;
 	}
@@ -263,7 +409,7 @@ findRRset(Name name, int type) {
  */
 public Record
 getQuestion() {
-	List l = sections[Section.QUESTION];
+	List l = section(Section.QUESTION);
 	if (l == null || l.size() == 0)
 		return null;
 	return (Record) l.get(0);
@@ -280,7 +426,7 @@ getTSIG() {
 	int count = header.getCount(Section.ADDITIONAL);
 	if (count == 0)
 		return null;
-	List l = sections[Section.ADDITIONAL];
+	List l = section(Section.ADDITIONAL);
 	Record rec = (Record) l.get(count - 1);
 	if (rec.type !=  Type.TSIG)
 		return null;
@@ -342,9 +488,9 @@ getRcode() {
  */
 public Record []
 getSectionArray(int section) {
-	if (sections[section] == null)
+	List l = section(section);
+	if (l == null)
 		return emptyRecordArray;
-	List l = sections[section];
 	return (Record []) l.toArray(new Record[l.size()]);
 }
 
@@ -363,7 +509,7 @@ sameSet(Record r1, Record r2) {
  */
 public RRset []
 getSectionRRsets(int section) {
-	if (sections[section] == null)
+	if (section(section) == null)
 		return emptyRRsetArray;
 	List sets = new LinkedList();
 	Record [] recs = getSectionArray(section);
@@ -393,10 +539,28 @@ getSectionRRsets(int section) {
 	return (RRset []) sets.toArray(new RRset[sets.size()]);
 }
 
+/*
+ * Renders a lazily parsed message which has not been modified by copying its
+ * original wire format.  The header is rendered, since it may have changed.
+ */
+private boolean
+copyWire(DNSOutput out, int maxLength) {
+	if (unparsed == null || !unparsed.reusable || tsigkey != null ||
+	    size > maxLength)
+		return false;
+	header.toWire(out);
+	out.writeByteArray(unparsed.wire, Header.LENGTH,
+			   size - Header.LENGTH);
+	return true;
+}
+
 void
 toWire(DNSOutput out) {
+	if (copyWire(out, MAXLENGTH))
+		return;
+	parseAll();
 	header.toWire(out);
-	Compression c = new Compression();
+	Compression c = Compression.acquire(expectedNames());
 	for (int i = 0; i < 4; i++) {
 		if (sections[i] == null)
 			continue;
@@ -405,6 +569,21 @@ toWire(DNSOutput out) {
 			rec.toWire(out, i, c);
 		}
 	}
+	Compression.release(c);
+}
+
+/*
+ * Estimates the number of names which will be added to the compression
+ * table when rendering the message: every owner name and most names in
+ * rdata contribute several suffixes, but share most of them.
+ */
+private int
+expectedNames() {
+	int n = 0;
+	for (int i = 0; i < 4; i++)
+		if (sections[i] != null)
+			n += sections[i].size();
+	return 4 * n;
 }
 
 /* Returns the number of records not successfully rendered. */
@@ -430,7 +609,14 @@ sectionToWire(DNSOutput out, int section, Compression c,
 			rendered = i;
 		}
 		lastrec = rec;
-		rec.toWire(out, section, c);
+		try {
+			rec.toWire(out, section, c);
+		}
+		catch (BufferOverflowException e) {
+			/* The output is a fixed buffer, which is full. */
+			out.jump(pos);
+			return n - rendered + skipped;
+		}
 		if (out.current() > maxLength) {
 			out.jump(pos);
 			return n - rendered + skipped;
@@ -444,6 +630,9 @@ private boolean
 toWire(DNSOutput out, int maxLength) {
 	if (maxLength < Header.LENGTH)
 		return false;
+	if (copyWire(out, maxLength))
+		return true;
+	parseAll();
 
 	Header newheader = null;
 
@@ -460,7 +649,7 @@ toWire(DNSOutput out, int maxLength) {
 
 	int startpos = out.current();
 	header.toWire(out);
-	Compression c = new Compression();
+	Compression c = Compression.acquire(expectedNames());
 	int flags = header.getFlagsByte();
 	int additionalCount = 0;
 	for (int i = 0; i < 4; i++) {
@@ -499,6 +688,7 @@ toWire(DNSOutput out, int maxLength) {
 		out.writeU16At(additionalCount + 1, startpos + 10);
 	}
 
+	Compression.release(c);
 	return true;
 }
 
@@ -534,6 +724,29 @@ toWire(int maxLength) {
 	return out.toByteArray();
 }
 
+/**
+ * Renders the Message into a buffer, starting at the buffer's position,
+ * without allocating an array for it.  As with {@link #toWire(int)}, this
+ * will generate a truncated message (with the TC bit) if the message doesn't
+ * fit in the space remaining in the buffer, and will sign the message with
+ * the TSIG key set by a call to setTSIG().  The buffer's position is moved
+ * past the message.
+ * @param buffer The buffer, which may be a direct buffer.
+ * @return The length of the message, or -1 if the message could not be
+ * rendered into the space remaining in the buffer.
+ * @see BufferPool
+ */
+public int
+toWire(ByteBuffer buffer) {
+	int maxLength = Math.min(buffer.remaining(), MAXLENGTH);
+	DNSOutput out = new DNSOutput(buffer);
+	if (!toWire(out, maxLength))
+		return -1;
+	size = out.current();
+	buffer.position(buffer.position() + size);
+	return size;
+}
+
 /**
  * Sets the TSIG key and other necessary information to sign a message.
  * @param key The TSIG key.
@@ -621,6 +834,7 @@ toString() {
  */
 public Object
 clone() {
+	parseAll();
 	Message m = new Message();
 	for (int i = 0; i < sections.length; i++) {
 		if (sections[i] != null)
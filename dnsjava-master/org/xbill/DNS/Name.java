@@ -4,6 +4,7 @@ package org.xbill.DNS;
 
 import java.io.*;
 import java.text.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * A representation of a domain name.  It may either be absolute (fully
@@ -62,6 +63,9 @@ private static final byte lowercase[] = new byte[256];
 /* Used in wildcard names. */
 private static final Name wild;
 
+/* The intern pool, or null if it is disabled. */
+private static volatile AtomicReferenceArray pool;
+
 static {
 	byteFormat.setMinimumIntegerDigits(3);
 	for (int i = 0; i < lowercase.length; i++) {
@@ -76,6 +80,9 @@ static {
 	empty.name = new byte[0];
 	wild = new Name();
 	wild.appendSafe(wildLabel, 0, 1);
+	int size = Options.intValue("namepoolsize");
+	if (size > 0)
+		setPoolSize(size);
 }
 
 private
@@ -168,12 +175,12 @@ append(byte [] array, int start, int n) throws NameTooLongException {
 }
 
 private static TextParseException
-parseException(String str, String message) {
+parseException(CharSequence str, String message) {
 	return new TextParseException("'" + str + "': " + message);
 }
 
 private final void
-appendFromString(String fullName, byte [] array, int start, int n)
+appendFromString(CharSequence fullName, byte [] array, int start, int n)
 throws TextParseException
 {
 	try {
@@ -203,15 +210,20 @@ appendSafe(byte [] array, int start, int n) {
  */
 public
 Name(String s, Name origin) throws TextParseException {
-	if (s.equals(""))
+	this((CharSequence) s, origin);
+}
+
+/* Creates a name from any text, such as a Tokenizer's buffer. */
+Name(CharSequence s, Name origin) throws TextParseException {
+	if (s.length() == 0)
 		throw parseException(s, "empty name");
-	else if (s.equals("@")) {
+	else if (isSpecial(s, '@')) {
 		if (origin == null)
 			copy(empty, this);
 		else
 			copy(origin, this);
 		return;
-	} else if (s.equals(".")) {
+	} else if (isSpecial(s, '.')) {
 		copy(root, this);
 		return;
 	}
@@ -299,9 +311,21 @@ Name(String s) throws TextParseException {
  */
 public static Name
 fromString(String s, Name origin) throws TextParseException {
-	if (s.equals("@") && origin != null)
+	return fromString((CharSequence) s, origin);
+}
+
+/* Checks whether a name's text is a single special character. */
+private static boolean
+isSpecial(CharSequence s, char c) {
+	return (s.length() == 1 && s.charAt(0) == c);
+}
+
+/* Creates a name from any text, such as a Tokenizer's buffer. */
+static Name
+fromString(CharSequence s, Name origin) throws TextParseException {
+	if (isSpecial(s, '@') && origin != null)
 		return origin;
-	else if (s.equals("."))
+	else if (isSpecial(s, '.'))
 		return (root);
 
 	return new Name(s, origin);
@@ -416,6 +440,22 @@ Name(Name src, int n) {
 		setoffset(i, src.offset(i + n));
 }
 
+/*
+ * Makes this name refer to the labels of another name, starting at the given
+ * label.  This is only used for lookup keys which are never stored, so that
+ * walking up the tree does not create a Name for each level.
+ */
+final void
+setSuffix(Name src, int n) {
+	int slabels = src.labels();
+	name = src.name;
+	offsets = 0;
+	hashcode = 0;
+	setlabels(slabels - n);
+	for (int i = 0; i < MAXOFFSETS && i < slabels - n; i++)
+		setoffset(i, src.offset(i + n));
+}
+
 /**
  * Creates a new name by concatenating two existing names.
  * @param prefix The prefix name.
@@ -687,21 +727,19 @@ toWire(DNSOutput out, Compression c) {
 	
 	int labels = labels();
 	for (int i = 0; i < labels - 1; i++) {
-		Name tname;
-		if (i == 0)
-			tname = this;
-		else
-			tname = new Name(this, i);
 		int pos = -1;
-		if (c != null)
-			pos = c.get(tname);
+		int hash = 0;
+		if (c != null) {
+			hash = (i == 0) ? hashCode() : suffixHash(i);
+			pos = c.find(this, i, hash, out);
+		}
 		if (pos >= 0) {
 			pos |= (LABEL_MASK << 8);
 			out.writeU16(pos);
 			return;
 		} else {
 			if (c != null)
-				c.add(out.current(), tname);
+				c.add(out.current(), hash, out);
 			int off = offset(i);
 			out.writeByteArray(name, off, name[off] + 1);
 		}
@@ -767,6 +805,178 @@ toWire(DNSOutput out, Compression c, boolean canonical) {
 		toWire(out, c);
 }
 
+/*
+ * Computes the hash code of the name formed by the labels starting at the
+ * given label, without creating it.
+ */
+final int
+suffixHash(int label) {
+	int code = 0;
+	for (int i = offset(label); i < name.length; i++)
+		code += ((code << 3) + lowercase[(name[i] & 0xFF)]);
+	return code;
+}
+
+/*
+ * Determines whether the labels starting at the given label are equal to
+ * another name.
+ */
+final boolean
+suffixEquals(int label, Name other) {
+	int pos = offset(label);
+	int opos = other.offset(0);
+	int len = name.length - pos;
+	if (len != other.name.length - opos)
+		return false;
+	for (int i = 0; i < len; i++)
+		if (lowercase[(name[pos + i] & 0xFF)] !=
+		    lowercase[(other.name[opos + i] & 0xFF)])
+			return false;
+	return true;
+}
+
+/*
+ * Determines whether the labels starting at the given label are equal to
+ * a name which has been written to the output at the given position,
+ * following any compression pointers.  Pointers to positions outside the
+ * output must refer to names added to the compression table.
+ */
+final boolean
+suffixEquals(int label, DNSOutput out, int opos, Compression c) {
+	int labels = labels();
+	int pos = offset(label);
+	for (int i = label; i < labels; i++) {
+		int olen = out.byteAt(opos);
+		while ((olen & LABEL_MASK) == LABEL_COMPRESSION) {
+			opos = ((olen & ~LABEL_MASK) << 8) +
+			       out.byteAt(opos + 1);
+			if (opos >= out.current()) {
+				/* A pointer to a name added to the table. */
+				Name rest = c.nameAt(opos);
+				return (rest != null &&
+					suffixEquals(i, rest));
+			}
+			olen = out.byteAt(opos);
+		}
+		int len = name[pos++];
+		if (len != olen)
+			return false;
+		opos++;
+		for (int j = 0; j < len; j++)
+			if (lowercase[(name[pos++] & 0xFF)] !=
+			    lowercase[out.byteAt(opos++)])
+				return false;
+	}
+	return true;
+}
+
+/**
+ * Computes the hashcode of the name at the current position of a DNS wire
+ * format message, without reading it.  This is the value that
+ * {@link #hashCode} returns for the name.  If the name is not valid, the
+ * result is undefined.
+ * @param in A stream positioned at the start of a name.
+ */
+public static int
+wireHashCode(DNSInput in) {
+	int pos = in.current();
+	int limit = pos + in.remaining();
+	int code = 0;
+	for (int n = 0; n <= MAXNAME; ) {
+		int len = in.byteAt(pos);
+		if (len < 0 || pos >= limit)
+			break;
+		if ((len & LABEL_MASK) == LABEL_COMPRESSION) {
+			int low = in.byteAt(pos + 1);
+			int ptr = ((len & ~LABEL_MASK) << 8) + low;
+			if (low < 0 || pos + 1 >= limit || ptr >= pos)
+				break;
+			pos = ptr;
+			limit = Integer.MAX_VALUE;
+			continue;
+		}
+		if (len > MAXLABEL)
+			break;
+		for (int i = 0; i <= len; i++) {
+			int b = in.byteAt(pos++);
+			if (b < 0)
+				return code;
+			code += ((code << 3) + lowercase[b]);
+		}
+		if (len == 0)
+			break;
+		n += len + 1;
+	}
+	return code;
+}
+
+/**
+ * Determines whether the name at the current position of a DNS wire format
+ * message is equal to this name, without reading it.  Compression pointers
+ * are followed, and the comparison is case-insensitive.  Malformed names are
+ * not equal to any name.
+ * @param in A stream positioned at the start of a name.
+ */
+public boolean
+wireEquals(DNSInput in) {
+	return wireEquals(in, false);
+}
+
+private boolean
+wireEquals(DNSInput in, boolean exact) {
+	if (!isAbsolute())
+		return false;
+	int pos = in.current();
+	int limit = pos + in.remaining();
+	int labels = labels();
+	int npos = offset(0);
+	for (int i = 0; i < labels; i++) {
+		int len = in.byteAt(pos);
+		while (len >= 0 &&
+		       (len & LABEL_MASK) == LABEL_COMPRESSION)
+		{
+			int low = in.byteAt(pos + 1);
+			int ptr = ((len & ~LABEL_MASK) << 8) + low;
+			if (low < 0 || pos + 1 >= limit || ptr >= pos)
+				return false;
+			pos = ptr;
+			limit = Integer.MAX_VALUE;
+			len = in.byteAt(pos);
+		}
+		if (len != name[npos++] || pos + len >= limit)
+			return false;
+		pos++;
+		for (int j = 0; j < len; j++) {
+			int b = in.byteAt(pos++);
+			byte c = name[npos++];
+			if (b < 0)
+				return false;
+			if (exact ? (byte) b != c
+				  : lowercase[b] != lowercase[c & 0xFF])
+				return false;
+		}
+	}
+	return true;
+}
+
+/*
+ * Returns the number of bytes occupied in the stream by a well formed name,
+ * which is the length of its labels up to and including the terminating
+ * empty label or the first compression pointer.
+ */
+private static int
+wireLength(DNSInput in) {
+	int start = in.current();
+	int pos = start;
+	int len;
+	while ((len = in.byteAt(pos)) != 0) {
+		if ((len & LABEL_MASK) == LABEL_COMPRESSION)
+			return pos + 2 - start;
+		pos += len + 1;
+	}
+	return pos + 1 - start;
+}
+
 private final boolean
 equals(byte [] b, int bpos) {
 	int labels = labels();
@@ -820,6 +1030,98 @@ hashCode() {
 	return hashcode;
 }
 
+/*
+ * Determines whether two names are equal, including the case of each
+ * character.
+ */
+private final boolean
+exactEquals(Name d) {
+	int pos = offset(0);
+	int dpos = d.offset(0);
+	int len = name.length - pos;
+	if (d.labels() != labels() || d.name.length - dpos != len)
+		return false;
+	for (int i = 0; i < len; i++)
+		if (name[pos + i] != d.name[dpos + i])
+			return false;
+	return true;
+}
+
+private static int
+poolIndex(AtomicReferenceArray p, int hash) {
+	return (hash ^ (hash >>> 16)) & (p.length() - 1);
+}
+
+/**
+ * Sets the number of entries in the pool used by {@link #intern}.  The pool
+ * is a fixed size table; when two names map to the same entry, the more
+ * recent one replaces the other.  When the pool is enabled, it is also used
+ * for the owner names of records read from DNS messages.  A value of 0
+ * disables the pool, which is the default unless the "namepoolsize" option
+ * is set.
+ * @param entries The number of entries, which is rounded up to a power of 2.
+ */
+public static void
+setPoolSize(int entries) {
+	if (entries < 0)
+		throw new IllegalArgumentException("invalid pool size");
+	if (entries == 0) {
+		pool = null;
+		return;
+	}
+	int size = 1;
+	while (size < entries && size < (1 << 30))
+		size <<= 1;
+	pool = new AtomicReferenceArray(size);
+}
+
+/**
+ * Gets the number of entries in the pool used by {@link #intern}, or 0 if
+ * the pool is disabled.
+ */
+public static int
+getPoolSize() {
+	AtomicReferenceArray p = pool;
+	return (p == null) ? 0 : p.length();
+}
+
+/**
+ * Returns a canonical representation of the name.  If an identical name
+ * (including case) is in the pool, it is returned; otherwise this name is
+ * added to the pool and returned.  If the pool is disabled, this name is
+ * returned.
+ * @see #setPoolSize
+ */
+public Name
+intern() {
+	AtomicReferenceArray p = pool;
+	if (p == null)
+		return this;
+	int index = poolIndex(p, hashCode());
+	Name n = (Name) p.get(index);
+	if (n != null && n.exactEquals(this))
+		return n;
+	p.set(index, this);
+	return this;
+}
+
+/*
+ * Reads a name from DNS wire format.  If the pool is enabled and contains an
+ * identical name, that name is returned without creating a new one.
+ */
+static Name
+fromWire(DNSInput in) throws WireParseException {
+	AtomicReferenceArray p = pool;
+	if (p == null)
+		return new Name(in);
+	Name n = (Name) p.get(poolIndex(p, wireHashCode(in)));
+	if (n != null && n.wireEquals(in, true)) {
+		in.skip(wireLength(in));
+		return n;
+	}
+	return new Name(in).intern();
+}
+
 /**
  * Compares this Name to another Object.
  * @param o The Object to be compared.
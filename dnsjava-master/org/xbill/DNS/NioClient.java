@@ -0,0 +1,954 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Performs UDP and TCP exchanges without blocking the calling thread.  All
+ * in-flight exchanges are multiplexed over a small number of selector
+ * threads, so the number of threads does not grow with the number of
+ * outstanding queries.  The number of selector threads can be set with the
+ * "selectorthreads" option, and defaults to 1.
+ * <p>
+ * A UDP exchange uses a channel connected to the server, so only datagrams
+ * from the server's address are read, and datagrams whose message ID does
+ * not match the query are ignored.  Futures are completed on a separate,
+ * bounded pool of threads, so that code run when they complete never
+ * delays the selector threads.
+ * <p>
+ * TCP queries may also be sent on persistent connections, as described in
+ * RFC 7766.  Each selector thread keeps its connections to a server open
+ * while they are in use and for an idle period afterwards, and several
+ * queries may be outstanding on one connection at once; responses are
+ * matched to queries by message ID, so they may arrive in any order.
+ */
+final class NioClient {
+
+private static abstract class Transaction implements Comparable {
+	private static final AtomicLong serials = new AtomicLong();
+
+	final SocketAddress local;
+	final SocketAddress remote;
+	final byte [] data;
+	final long endTime;
+	final long serial;
+	final CompletableFuture<byte []> future;
+	Worker worker;
+	SelectionKey key;
+
+	Transaction(SocketAddress local, SocketAddress remote, byte [] data,
+		    long endTime)
+	{
+		this.local = local;
+		this.remote = remote;
+		this.data = data;
+		this.endTime = endTime;
+		this.serial = serials.getAndIncrement();
+		this.future = new CompletableFuture<byte []>();
+	}
+
+	/*
+	 * Does any setup which may block, such as binding a channel; called
+	 * on the caller's thread, before the transaction is submitted.
+	 */
+	void
+	open() throws IOException {
+	}
+
+	/* Opens the channel and registers it with the selector. */
+	abstract void
+	start(Selector selector) throws IOException;
+
+	/* Makes as much progress as possible once the channel is ready. */
+	abstract void
+	ready() throws IOException;
+
+	void
+	close() {
+		if (key == null)
+			return;
+		key.cancel();
+		try {
+			key.channel().close();
+		}
+		catch (IOException e) {
+		}
+	}
+
+	public int
+	compareTo(Object o) {
+		Transaction other = (Transaction) o;
+		if (endTime != other.endTime)
+			return endTime < other.endTime ? -1 : 1;
+		if (serial != other.serial)
+			return serial < other.serial ? -1 : 1;
+		return 0;
+	}
+}
+
+private static class UDPTransaction extends Transaction {
+	private final int max;
+	private final int id;
+	private DatagramChannel channel;
+
+	UDPTransaction(SocketAddress local, SocketAddress remote,
+		       byte [] data, int max, long endTime)
+	{
+		super(local, remote, data, endTime);
+		this.max = max;
+		this.id = ((data[0] & 0xFF) << 8) + (data[1] & 0xFF);
+	}
+
+	/*
+	 * Binding to a random port may take several attempts, so it is done
+	 * here rather than on the selector thread.
+	 */
+	void
+	open() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			UDPClient.bind(channel, local);
+			channel.connect(remote);
+			this.channel = channel;
+		}
+		finally {
+			if (this.channel == null)
+				channel.close();
+		}
+	}
+
+	void
+	start(Selector selector) throws IOException {
+		key = channel.register(selector, SelectionKey.OP_WRITE, this);
+	}
+
+	void
+	close() {
+		if (key != null)
+			super.close();
+		else if (channel != null) {
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	void
+	ready() throws IOException {
+		DatagramChannel channel = (DatagramChannel) key.channel();
+		if (key.isWritable()) {
+			Client.verboseLog("UDP write",
+					  channel.socket().getLocalSocketAddress(),
+					  remote, data);
+			if (channel.write(ByteBuffer.wrap(data)) > 0)
+				key.interestOps(SelectionKey.OP_READ);
+			return;
+		}
+		if (!key.isReadable())
+			return;
+		BufferPool pool = BufferPool.getDefault();
+		ByteBuffer buffer = pool.acquire();
+		byte [] in;
+		try {
+			buffer.limit(Math.min(max, buffer.capacity()));
+			int n = channel.read(buffer);
+			if (n <= 0)
+				return;
+			in = new byte[n];
+			buffer.flip();
+			buffer.get(in);
+		}
+		finally {
+			pool.release(buffer);
+		}
+		Client.verboseLog("UDP read",
+				  channel.socket().getLocalSocketAddress(),
+				  remote, in);
+		if (in.length < 2 ||
+		    ((in[0] & 0xFF) << 8) + (in[1] & 0xFF) != id)
+		{
+			/* Not a response to this query; keep waiting. */
+			if (Options.check("verbose"))
+				System.err.println("invalid message id: " +
+						   "expected " + id);
+			return;
+		}
+		complete(this, in);
+	}
+}
+
+private static class TCPTransaction extends Transaction {
+	private ByteBuffer [] out;
+	private ByteBuffer lengthBuffer;
+	private ByteBuffer in;
+
+	TCPTransaction(SocketAddress local, SocketAddress remote,
+		       byte [] data, long endTime)
+	{
+		super(local, remote, data, endTime);
+		byte [] lengthArray = new byte[2];
+		lengthArray[0] = (byte)(data.length >>> 8);
+		lengthArray[1] = (byte)(data.length & 0xFF);
+		out = new ByteBuffer[2];
+		out[0] = ByteBuffer.wrap(lengthArray);
+		out[1] = ByteBuffer.wrap(data);
+		lengthBuffer = ByteBuffer.allocate(2);
+	}
+
+	void
+	start(Selector selector) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			if (local != null)
+				channel.socket().bind(local);
+			int ops;
+			if (channel.connect(remote))
+				ops = SelectionKey.OP_WRITE;
+			else
+				ops = SelectionKey.OP_CONNECT;
+			key = channel.register(selector, ops, this);
+		}
+		finally {
+			if (key == null)
+				channel.close();
+		}
+	}
+
+	void
+	ready() throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		if (key.isConnectable()) {
+			if (channel.finishConnect())
+				key.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+		if (key.isWritable()) {
+			if (out[0].position() == 0 && out[1].position() == 0)
+				Client.verboseLog("TCP write",
+					channel.socket().getLocalSocketAddress(),
+					remote, data);
+			if (channel.write(out) < 0)
+				throw new EOFException();
+			if (!out[1].hasRemaining())
+				key.interestOps(SelectionKey.OP_READ);
+			return;
+		}
+		if (!key.isReadable())
+			return;
+		if (in == null) {
+			if (channel.read(lengthBuffer) < 0)
+				throw new EOFException();
+			if (lengthBuffer.hasRemaining())
+				return;
+			int length = ((lengthBuffer.get(0) & 0xFF) << 8) +
+				     (lengthBuffer.get(1) & 0xFF);
+			in = ByteBuffer.allocate(length);
+		}
+		if (channel.read(in) < 0)
+			throw new EOFException();
+		if (in.hasRemaining())
+			return;
+		byte [] response = in.array();
+		Client.verboseLog("TCP read",
+				  channel.socket().getLocalSocketAddress(),
+				  remote, response);
+		complete(this, response);
+	}
+}
+
+/*
+ * A query sent on a persistent TCP connection.  A transaction used for a
+ * zone transfer may receive several messages, which are queued for the
+ * reader rather than completing the future.
+ */
+private static class PipelinedTransaction extends Transaction {
+	final int id;
+	final BlockingQueue messages;
+	Connection connection;
+	boolean retried;
+
+	PipelinedTransaction(SocketAddress local, SocketAddress remote,
+			     byte [] data, long endTime, boolean stream)
+	{
+		super(local, remote, data, endTime);
+		this.id = ((data[0] & 0xFF) << 8) + (data[1] & 0xFF);
+		this.messages = stream ? new LinkedBlockingQueue() : null;
+	}
+
+	void
+	start(Selector selector) throws IOException {
+		worker.connectionFor(this).add(this);
+	}
+
+	/* Readiness is handled by the connection. */
+	void
+	ready() {
+	}
+
+	void
+	close() {
+		if (connection != null) {
+			Connection c = connection;
+			connection = null;
+			c.remove(this);
+		}
+	}
+}
+
+/*
+ * A persistent TCP connection to a server, owned by a single worker.
+ */
+private static class Connection {
+	final Worker worker;
+	final Object key;
+	final SocketAddress local;
+	final SocketAddress remote;
+	/* Outstanding transactions, indexed by message ID. */
+	final Map pending = new HashMap();
+	private final LinkedList writes = new LinkedList();
+	private final ByteBuffer lengthBuffer = ByteBuffer.allocate(2);
+	private ByteBuffer body;
+	private SelectionKey selectionKey;
+	private boolean connected;
+	private boolean closed;
+	/* Set when no new queries should be sent on the connection. */
+	boolean draining;
+	int responses;
+	long idleTimeout = defaultIdleTimeout;
+	long idleSince = System.currentTimeMillis();
+
+	Connection(Worker worker, Object key, SocketAddress local,
+		   SocketAddress remote)
+	{
+		this.worker = worker;
+		this.key = key;
+		this.local = local;
+		this.remote = remote;
+	}
+
+	void
+	open(Selector selector) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			if (local != null)
+				channel.socket().bind(local);
+			connected = channel.connect(remote);
+			int ops;
+			if (connected)
+				ops = SelectionKey.OP_READ;
+			else
+				ops = SelectionKey.OP_CONNECT;
+			selectionKey = channel.register(selector, ops, this);
+		}
+		finally {
+			if (selectionKey == null)
+				channel.close();
+		}
+	}
+
+	void
+	add(PipelinedTransaction t) {
+		byte [] lengthArray = new byte[2];
+		lengthArray[0] = (byte)(t.data.length >>> 8);
+		lengthArray[1] = (byte)(t.data.length & 0xFF);
+		pending.put(Integer.valueOf(t.id), t);
+		t.connection = this;
+		writes.add(ByteBuffer.wrap(lengthArray));
+		writes.add(ByteBuffer.wrap(t.data));
+		SocketChannel channel = (SocketChannel) selectionKey.channel();
+		Client.verboseLog("TCP write",
+				  channel.socket().getLocalSocketAddress(),
+				  remote, t.data);
+		updateInterest();
+	}
+
+	void
+	remove(PipelinedTransaction t) {
+		Integer id = Integer.valueOf(t.id);
+		if (pending.get(id) == t)
+			pending.remove(id);
+		if (!pending.isEmpty())
+			return;
+		idleSince = System.currentTimeMillis();
+		if (draining)
+			close();
+	}
+
+	private void
+	updateInterest() {
+		if (closed || !connected)
+			return;
+		int ops = SelectionKey.OP_READ;
+		if (!writes.isEmpty())
+			ops |= SelectionKey.OP_WRITE;
+		selectionKey.interestOps(ops);
+	}
+
+	void
+	ready() throws IOException {
+		SocketChannel channel = (SocketChannel) selectionKey.channel();
+		if (selectionKey.isConnectable()) {
+			if (channel.finishConnect()) {
+				connected = true;
+				updateInterest();
+			}
+			return;
+		}
+		if (selectionKey.isWritable())
+			write(channel);
+		if (!closed && selectionKey.isReadable())
+			read(channel);
+	}
+
+	private void
+	write(SocketChannel channel) throws IOException {
+		ByteBuffer [] out = new ByteBuffer[writes.size()];
+		writes.toArray(out);
+		if (channel.write(out) < 0)
+			throw new EOFException();
+		while (!writes.isEmpty() &&
+		       !((ByteBuffer) writes.getFirst()).hasRemaining())
+			writes.removeFirst();
+		updateInterest();
+	}
+
+	private void
+	read(SocketChannel channel) throws IOException {
+		while (!closed) {
+			ByteBuffer buffer = (body != null) ? body : lengthBuffer;
+			if (channel.read(buffer) < 0)
+				throw new EOFException();
+			if (buffer.hasRemaining())
+				return;
+			if (body == null) {
+				int length = ((lengthBuffer.get(0) & 0xFF) << 8) +
+					     (lengthBuffer.get(1) & 0xFF);
+				body = ByteBuffer.allocate(length);
+				continue;
+			}
+			byte [] in = body.array();
+			body = null;
+			lengthBuffer.clear();
+			Client.verboseLog("TCP read",
+					  channel.socket().getLocalSocketAddress(),
+					  remote, in);
+			dispatch(in);
+		}
+	}
+
+	private void
+	dispatch(byte [] in) {
+		PipelinedTransaction t = null;
+		if (in.length >= 2) {
+			int id = ((in[0] & 0xFF) << 8) + (in[1] & 0xFF);
+			t = (PipelinedTransaction) pending.get(Integer.valueOf(id));
+		}
+		if (t == null) {
+			/* Probably a late response to an abandoned query. */
+			if (Options.check("verbose"))
+				System.err.println("unexpected message id");
+			return;
+		}
+		responses++;
+		if (t.messages != null)
+			t.messages.add(in);
+		else
+			complete(t, in);
+	}
+
+	void
+	close() {
+		if (closed)
+			return;
+		closed = true;
+		selectionKey.cancel();
+		try {
+			selectionKey.channel().close();
+		}
+		catch (IOException e) {
+		}
+		worker.removeConnection(this);
+	}
+
+	/*
+	 * Closes the connection after an error.  If the connection has
+	 * already been used, the server may have closed it while idle, so
+	 * queries which are still outstanding are sent once more on another
+	 * connection.
+	 */
+	void
+	fail(IOException e) {
+		close();
+		List list = new ArrayList(pending.values());
+		pending.clear();
+		Iterator it = list.iterator();
+		while (it.hasNext()) {
+			PipelinedTransaction t;
+			t = (PipelinedTransaction) it.next();
+			t.connection = null;
+			if (responses > 0 && t.messages == null && !t.retried) {
+				t.retried = true;
+				try {
+					worker.connectionFor(t).add(t);
+					continue;
+				}
+				catch (IOException e2) {
+				}
+			}
+			worker.finish(t);
+			NioClient.fail(t, e);
+		}
+	}
+}
+
+/**
+ * An exchange on a persistent TCP connection which may return several
+ * messages, such as a zone transfer.
+ */
+static final class Stream {
+	private final PipelinedTransaction t;
+
+	Stream(PipelinedTransaction t) {
+		this.t = t;
+	}
+
+	/**
+	 * Waits for the next message, until the end time of the exchange.
+	 */
+	byte []
+	recv() throws IOException {
+		Object o;
+		try {
+			long timeout = t.endTime - System.currentTimeMillis();
+			o = t.messages.poll(Math.max(timeout, 0),
+					    TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		if (o == null)
+			throw new SocketTimeoutException();
+		if (o instanceof IOException)
+			throw (IOException) o;
+		return (byte []) o;
+	}
+
+	/**
+	 * Ends the exchange.  If it did not end cleanly, more messages may
+	 * still arrive, so the connection is not used for new queries.
+	 */
+	void
+	close(final boolean clean) {
+		final Worker w = t.worker;
+		if (w == null)
+			return;
+		w.execute(new Runnable() {
+			public void run() {
+				if (!clean && t.connection != null)
+					t.connection.draining = true;
+				w.finish(t);
+			}
+		});
+	}
+}
+
+private static class Worker extends Thread {
+	private final Selector selector;
+	/* Transactions to start and tasks to run on the worker thread. */
+	private final Queue pending = new ConcurrentLinkedQueue();
+	/* Only accessed by the worker thread. */
+	private final TreeSet active = new TreeSet();
+	private final Map connections = new HashMap();
+
+	Worker(int n) throws IOException {
+		super("dnsjava NIO selector " + n);
+		selector = Selector.open();
+		setDaemon(true);
+	}
+
+	void
+	submit(Transaction t) {
+		t.worker = this;
+		pending.add(t);
+		selector.wakeup();
+	}
+
+	void
+	execute(Runnable task) {
+		pending.add(task);
+		selector.wakeup();
+	}
+
+	void
+	finish(Transaction t) {
+		active.remove(t);
+		t.close();
+	}
+
+	/*
+	 * Finds a persistent connection on which a query can be sent, or
+	 * opens a new one.  A connection is not used if another query with
+	 * the same ID is outstanding on it.
+	 */
+	Connection
+	connectionFor(PipelinedTransaction t) throws IOException {
+		Object key = Arrays.asList(new Object[] {t.local, t.remote});
+		List list = (List) connections.get(key);
+		if (list != null) {
+			Integer id = Integer.valueOf(t.id);
+			Iterator it = list.iterator();
+			while (it.hasNext()) {
+				Connection c = (Connection) it.next();
+				if (!c.draining && !c.pending.containsKey(id))
+					return c;
+			}
+		}
+		Connection c = new Connection(this, key, t.local, t.remote);
+		c.open(selector);
+		if (list == null) {
+			list = new ArrayList();
+			connections.put(key, list);
+		}
+		list.add(c);
+		return c;
+	}
+
+	void
+	removeConnection(Connection c) {
+		List list = (List) connections.get(c.key);
+		if (list == null)
+			return;
+		list.remove(c);
+		if (list.isEmpty())
+			connections.remove(c.key);
+	}
+
+	void
+	setIdleTimeout(Object key, long timeout) {
+		List list = (List) connections.get(key);
+		if (list == null)
+			return;
+		Iterator it = list.iterator();
+		while (it.hasNext())
+			((Connection) it.next()).idleTimeout = timeout;
+	}
+
+	/*
+	 * Closes connections which have been idle for too long, and returns
+	 * the time until the next one should be closed, or 0 if none are idle.
+	 */
+	private long
+	closeIdle() {
+		long now = System.currentTimeMillis();
+		long next = 0;
+		List expired = new ArrayList();
+		Iterator it = connections.values().iterator();
+		while (it.hasNext()) {
+			Iterator it2 = ((List) it.next()).iterator();
+			while (it2.hasNext()) {
+				Connection c = (Connection) it2.next();
+				if (!c.pending.isEmpty())
+					continue;
+				long left = c.idleSince + c.idleTimeout - now;
+				if (left <= 0)
+					expired.add(c);
+				else if (next == 0 || left < next)
+					next = left;
+			}
+		}
+		it = expired.iterator();
+		while (it.hasNext())
+			((Connection) it.next()).close();
+		return next;
+	}
+
+	private void
+	registerPending() {
+		Object o;
+		while ((o = pending.poll()) != null) {
+			if (o instanceof Runnable) {
+				((Runnable) o).run();
+				continue;
+			}
+			Transaction t = (Transaction) o;
+			try {
+				t.start(selector);
+				active.add(t);
+			}
+			catch (IOException e) {
+				t.close();
+				fail(t, e);
+			}
+		}
+	}
+
+	private void
+	processSelected() {
+		Iterator it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey key = (SelectionKey) it.next();
+			it.remove();
+			if (!key.isValid())
+				continue;
+			if (key.attachment() instanceof Connection) {
+				Connection c = (Connection) key.attachment();
+				try {
+					c.ready();
+				}
+				catch (IOException e) {
+					c.fail(e);
+				}
+				continue;
+			}
+			Transaction t = (Transaction) key.attachment();
+			try {
+				t.ready();
+			}
+			catch (IOException e) {
+				finish(t);
+				fail(t, e);
+			}
+		}
+	}
+
+	private void
+	expire() {
+		long now = System.currentTimeMillis();
+		while (!active.isEmpty()) {
+			Transaction t = (Transaction) active.first();
+			if (t.endTime > now)
+				break;
+			if (t instanceof PipelinedTransaction) {
+				/* A late response may still arrive. */
+				Connection c = ((PipelinedTransaction) t).connection;
+				if (c != null)
+					c.draining = true;
+			}
+			finish(t);
+			fail(t, new SocketTimeoutException());
+		}
+	}
+
+	public void
+	run() {
+		while (true) {
+			try {
+				long timeout = 0;
+				if (!active.isEmpty()) {
+					Transaction t;
+					t = (Transaction) active.first();
+					timeout = t.endTime -
+						  System.currentTimeMillis();
+					if (timeout <= 0)
+						timeout = 1;
+				}
+				long idle = closeIdle();
+				if (idle > 0 && (timeout == 0 || idle < timeout))
+					timeout = idle;
+				selector.select(timeout);
+				registerPending();
+				processSelected();
+				expire();
+			}
+			catch (Exception e) {
+				if (Options.check("verbose"))
+					e.printStackTrace();
+			}
+		}
+	}
+}
+
+/* How long an unused persistent connection is kept open, by default. */
+private static final long defaultIdleTimeout = 10 * 1000;
+
+private static Worker [] workers;
+private static int nextWorker;
+private static ExecutorService callbackExecutor;
+
+private
+NioClient() {}
+
+private static synchronized void
+startWorkers() throws IOException {
+	if (workers == null) {
+		int n = Options.intValue("selectorthreads");
+		if (n <= 0)
+			n = 1;
+		Worker [] w = new Worker[n];
+		for (int i = 0; i < n; i++)
+			w[i] = new Worker(i);
+		for (int i = 0; i < n; i++)
+			w[i].start();
+		workers = w;
+	}
+}
+
+private static synchronized Worker
+getWorker() throws IOException {
+	startWorkers();
+	Worker w = workers[nextWorker];
+	nextWorker = (nextWorker + 1) % workers.length;
+	return w;
+}
+
+/*
+ * Gets the worker which owns the persistent connections for a local and
+ * remote address, so that queries to the same server share connections.
+ */
+private static synchronized Worker
+getWorker(Object key) throws IOException {
+	startWorkers();
+	return workers[(key.hashCode() & 0x7FFFFFFF) % workers.length];
+}
+
+private static synchronized Executor
+getCallbackExecutor() {
+	if (callbackExecutor == null) {
+		int n = Runtime.getRuntime().availableProcessors();
+		ThreadFactory factory = new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread
+			newThread(Runnable r) {
+				Thread t = new Thread(r, "dnsjava NIO " +
+						      "callback " + count++);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		callbackExecutor = Executors.newFixedThreadPool(n, factory);
+	}
+	return callbackExecutor;
+}
+
+private static void
+complete(Transaction t, final byte [] data) {
+	final CompletableFuture<byte []> future = t.future;
+	t.worker.finish(t);
+	getCallbackExecutor().execute(new Runnable() {
+		public void run() {
+			future.complete(data);
+		}
+	});
+}
+
+private static void
+fail(Transaction t, final Exception e) {
+	if (t instanceof PipelinedTransaction) {
+		BlockingQueue messages = ((PipelinedTransaction) t).messages;
+		if (messages != null) {
+			messages.add(e);
+			return;
+		}
+	}
+	final CompletableFuture<byte []> future = t.future;
+	getCallbackExecutor().execute(new Runnable() {
+		public void run() {
+			future.completeExceptionally(e);
+		}
+	});
+}
+
+private static CompletableFuture<byte []>
+submit(Transaction t) {
+	try {
+		t.open();
+		if (t instanceof PipelinedTransaction)
+			getWorker(Arrays.asList(new Object[] {t.local, t.remote}))
+				.submit(t);
+		else
+			getWorker().submit(t);
+	}
+	catch (IOException e) {
+		t.close();
+		fail(t, e);
+	}
+	return t.future;
+}
+
+/**
+ * Sends a UDP query and returns a future which completes with the
+ * response, or with an IOException if there is no response before the
+ * end time.
+ */
+static CompletableFuture<byte []>
+sendrecv(SocketAddress local, SocketAddress remote, byte [] data, int max,
+	 long endTime)
+{
+	return submit(new UDPTransaction(local, remote, data, max, endTime));
+}
+
+/**
+ * Sends a TCP query and returns a future which completes with the
+ * response, or with an IOException if there is no response before the
+ * end time.
+ */
+static CompletableFuture<byte []>
+sendrecv(SocketAddress local, SocketAddress remote, byte [] data,
+	 long endTime)
+{
+	return submit(new TCPTransaction(local, remote, data, endTime));
+}
+
+/**
+ * Sends a TCP query on a persistent connection, which may be shared with
+ * other queries to the same server.  The future completes with the
+ * response, or with an IOException if there is no response before the end
+ * time.
+ */
+static CompletableFuture<byte []>
+sendrecvPersistent(SocketAddress local, SocketAddress remote, byte [] data,
+		   long endTime)
+{
+	return submit(new PipelinedTransaction(local, remote, data, endTime,
+					       false));
+}
+
+/**
+ * Sends a TCP query on a persistent connection, and returns a stream from
+ * which the response messages can be read.
+ */
+static Stream
+openStream(SocketAddress local, SocketAddress remote, byte [] data,
+	   long endTime)
+{
+	PipelinedTransaction t;
+	t = new PipelinedTransaction(local, remote, data, endTime, true);
+	submit(t);
+	return new Stream(t);
+}
+
+/**
+ * Sets the time for which idle persistent connections to a server are kept
+ * open, usually from the EDNS TCP keepalive option in a response.
+ */
+static void
+setIdleTimeout(SocketAddress local, SocketAddress remote, final long timeout) {
+	final Object key = Arrays.asList(new Object[] {local, remote});
+	final Worker w;
+	try {
+		w = getWorker(key);
+	}
+	catch (IOException e) {
+		return;
+	}
+	w.execute(new Runnable() {
+		public void run() {
+			w.setIdleTimeout(key, timeout);
+		}
+	});
+}
+
+}
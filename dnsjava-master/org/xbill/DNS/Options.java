@@ -14,10 +14,15 @@ import java.util.*;
  * verbosecompression - Print messages related to name compression<BR>
  * verbosesec - Print messages related to signature verification<BR>
  * verbosecache - Print messages related to cache lookups<BR>
+ * concurrentcache - Create concurrent default caches in Lookup<BR>
  * <BR>
  * Valued options:<BR>
  * tsigfudge=n - Sets the default TSIG fudge value (in seconds)<BR>
  * sig0validity=n - Sets the default SIG(0) validity period (in seconds)<BR>
+ * selectorthreads=n - Sets the number of threads used for asynchronous
+ * queries<BR>
+ * udppoolsize=n - Sets the number of idle UDP sockets kept per server<BR>
+ * namepoolsize=n - Sets the number of entries in the Name intern pool<BR>
  *
  * @author Brian Wellington
  */
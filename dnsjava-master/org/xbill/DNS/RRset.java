@@ -8,6 +8,9 @@ import java.util.*;
 /**
  * A set of Records with the same name, type, and class.  Also included
  * are all RRSIG records signing the data records.
+ * <p>
+ * All access to an RRset is synchronized.  An RRset which will not change
+ * and is read by many threads can be copied into an {@link ImmutableRRset}.
  * @see Record
  * @see RRSIGRecord 
  *
@@ -221,6 +224,49 @@ first() {
 	return (Record) rrs.get(0);
 }
 
+/* Orders rdata prefixed by its length, ignoring the length. */
+private static final Comparator canonicalOrder = new Comparator() {
+	public int
+	compare(Object o1, Object o2) {
+		byte [] b1 = (byte []) o1;
+		byte [] b2 = (byte []) o2;
+		for (int i = 2; i < b1.length && i < b2.length; i++) {
+			int n = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+			if (n != 0)
+				return n;
+		}
+		return b1.length - b2.length;
+	}
+};
+
+/*
+ * Returns the canonical wire format rdata of the data records, each
+ * preceded by its length, in canonical order (RFC 4034, section 6.3).
+ */
+byte [][]
+canonicalRdata() {
+	Record [] records;
+	synchronized (this) {
+		List data = rrs.subList(0, rrs.size() - nsigs);
+		records = (Record []) data.toArray(new Record[data.size()]);
+	}
+	return canonicalRdata(records);
+}
+
+static byte [][]
+canonicalRdata(Record [] records) {
+	byte [][] rdata = new byte[records.length][];
+	for (int i = 0; i < records.length; i++) {
+		byte [] b = records[i].rdataToWireCanonical();
+		rdata[i] = new byte[b.length + 2];
+		rdata[i][0] = (byte) (b.length >>> 8);
+		rdata[i][1] = (byte) b.length;
+		System.arraycopy(b, 0, rdata[i], 2, b.length);
+	}
+	Arrays.sort(rdata, canonicalOrder);
+	return rdata;
+}
+
 private String
 iteratorToString(Iterator it) {
 	StringBuffer sb = new StringBuffer();
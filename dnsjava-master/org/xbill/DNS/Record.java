@@ -3,6 +3,7 @@
 package org.xbill.DNS;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.text.*;
 import java.util.*;
 import org.xbill.DNS.utils.*;
@@ -180,7 +181,7 @@ fromWire(DNSInput in, int section, boolean isUpdate) throws IOException {
 	Name name;
 	Record rec;
 
-	name = new Name(in);
+	name = Name.fromWire(in);
 	type = in.readU16();
 	dclass = in.readU16();
 
@@ -209,6 +210,15 @@ fromWire(byte [] b, int section) throws IOException {
 	return fromWire(new DNSInput(b), section, false);
 }
 
+/**
+ * Builds a Record from DNS uncompressed wire format, starting at the
+ * buffer's position.  The buffer's position is moved past the record.
+ */
+public static Record
+fromWire(ByteBuffer b, int section) throws IOException {
+	return fromWire(new DNSInput(b), section, false);
+}
+
 void
 toWire(DNSOutput out, int section, Compression c) {
 	name.toWire(out, c);
@@ -301,10 +311,21 @@ rdataToString() {
 public String
 toString() {
 	StringBuffer sb = new StringBuffer();
-	sb.append(name);
-	if (sb.length() < 8)
+	toString(sb, name.toString());
+	return sb.toString();
+}
+
+/*
+ * Appends the text form of the record to a buffer, with the owner name
+ * written as given.
+ */
+void
+toString(StringBuffer sb, String owner) {
+	int start = sb.length();
+	sb.append(owner);
+	if (sb.length() - start < 8)
 		sb.append("\t");
-	if (sb.length() < 16)
+	if (sb.length() - start < 16)
 		sb.append("\t");
 	sb.append("\t");
 	if (Options.check("BINDTTL"))
@@ -322,7 +343,6 @@ toString() {
 		sb.append("\t");
 		sb.append(rdata);
 	}
-	return sb.toString();
 }
 
 /**
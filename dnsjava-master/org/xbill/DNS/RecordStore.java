@@ -0,0 +1,548 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Storage for the data of a {@link Cache} or {@link Zone} outside of the Java
+ * heap.  The records of each name are kept in DNS wire format in large
+ * direct buffers, and are indexed by a hash table which is itself stored in
+ * a direct buffer, so that a very large cache or zone adds few objects for
+ * the garbage collector to trace.  Records are converted back into objects
+ * when they are looked up.
+ * <p>
+ * Changing the data of a name appends its new contents to the store, and the
+ * old contents become garbage.  The store is compacted when there is more
+ * garbage than live data, or when {@link #compact} is called.
+ * <p>
+ * A RecordStore may be used by only one Cache or Zone, and is not safe to use
+ * from several threads at once; the Cache or Zone serializes access to it.
+ * <pre>
+ * Cache cache = new Cache(DClass.IN, new RecordStore());
+ * </pre>
+ *
+ * @see Cache#Cache(int, RecordStore)
+ * @see Zone#Zone(Name, String, RecordStore)
+ */
+
+public class RecordStore {
+
+/*
+ * Converts the data of a name to and from wire format.  The value is read
+ * from an input which starts at the beginning of the encoded value.
+ */
+interface Codec {
+	void encode(Object value, DNSOutput out);
+	Object decode(Name name, DNSInput in) throws IOException;
+}
+
+/*
+ * A Map view of a store, in which Names are mapped to the objects converted
+ * by a codec.  Iteration is in the order in which the names were last
+ * changed.  A serialized map is an ordinary sorted map.
+ */
+static class StoreMap extends AbstractMap implements Serializable {
+	private static final long serialVersionUID = 2816290874536702734L;
+
+	final RecordStore store;
+	private final Codec codec;
+
+	StoreMap(RecordStore store, Codec codec) {
+		if (store.attached)
+			throw new IllegalArgumentException("record store " +
+							   "is already in use");
+		store.attached = true;
+		this.store = store;
+		this.codec = codec;
+	}
+
+	public int
+	size() {
+		return store.size;
+	}
+
+	public boolean
+	containsKey(Object key) {
+		if (!(key instanceof Name))
+			return false;
+		return store.find((Name) key) != 0;
+	}
+
+	public Object
+	get(Object key) {
+		if (!(key instanceof Name))
+			return null;
+		Name name = (Name) key;
+		long ref = store.find(name);
+		if (ref == 0)
+			return null;
+		return decode(name, ref);
+	}
+
+	/* Unlike most maps, this does not return the previous value. */
+	public Object
+	put(Object key, Object value) {
+		store.put((Name) key, codec, value);
+		return null;
+	}
+
+	/* Unlike most maps, this does not return the previous value. */
+	public Object
+	remove(Object key) {
+		if (key instanceof Name)
+			store.remove((Name) key);
+		return null;
+	}
+
+	public void
+	clear() {
+		store.clear();
+	}
+
+	private Object
+	decode(Name name, long ref) {
+		try {
+			return codec.decode(name, store.value(ref));
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("invalid data in " +
+							"record store: " + e);
+		}
+	}
+
+	public Set
+	entrySet() {
+		return new AbstractSet() {
+			public int
+			size() {
+				return store.size;
+			}
+
+			public Iterator
+			iterator() {
+				return new EntryIterator();
+			}
+		};
+	}
+
+	private class EntryIterator implements Iterator {
+		private final int mods = store.mods;
+		private long next = store.nextLive(0);
+		private Name last;
+
+		public boolean
+		hasNext() {
+			return next != 0;
+		}
+
+		public Object
+		next() {
+			if (store.mods != mods)
+				throw new ConcurrentModificationException();
+			if (next == 0)
+				throw new NoSuchElementException();
+			long ref = next;
+			next = store.nextLive(ref);
+			last = store.name(ref);
+			return new SimpleImmutableEntry(last,
+							decode(last, ref));
+		}
+
+		public void
+		remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private Object
+	writeReplace() {
+		return new TreeMap(this);
+	}
+}
+
+private static final int defaultChunkSize = 16 * 1024 * 1024;
+private static final int minIndexSize = 1024;
+
+/* Each entry starts with its length, a live flag and its name's length. */
+private static final int headerSize = 6;
+private static final int LIVE = 1;
+
+private final int chunkSize;
+private ByteBuffer [] chunks = new ByteBuffer[4];
+private int [] ends = new int[4];
+private int nchunks;
+
+/*
+ * The index is an open addressing hash table.  Each slot holds a reference
+ * to an entry, which is its chunk number and position plus 1, or 0 if the
+ * slot is empty or -1 if its entry was removed, along with the hash of the
+ * entry's name.
+ */
+private LongBuffer refs;
+private IntBuffer hashes;
+private int slots;
+private int removedSlots;
+
+private int size;
+private long liveBytes;
+private long usedBytes;
+private int mods;
+private boolean attached;
+
+/* The first entry which has not been evicted. */
+private long eldest;
+
+private final DNSOutput scratch = new DNSOutput(512);
+
+/**
+ * Creates an empty RecordStore, which allocates memory in chunks of 16
+ * megabytes.
+ */
+public
+RecordStore() {
+	this(defaultChunkSize);
+}
+
+/**
+ * Creates an empty RecordStore.
+ * @param chunkSize The size, in bytes, of each buffer allocated to hold
+ * records.  Data for a name which is larger than this is stored in a buffer
+ * of its own.
+ */
+public
+RecordStore(int chunkSize) {
+	if (chunkSize < 1024)
+		throw new IllegalArgumentException("invalid chunk size");
+	this.chunkSize = chunkSize;
+	newIndex(minIndexSize);
+}
+
+private void
+newIndex(int n) {
+	refs = ByteBuffer.allocateDirect(n * 8).asLongBuffer();
+	hashes = ByteBuffer.allocateDirect(n * 4).asIntBuffer();
+	slots = n;
+	removedSlots = 0;
+}
+
+private static int
+hash(Name name) {
+	int h = name.hashCode();
+	return h ^ (h >>> 16);
+}
+
+private static long
+ref(int chunk, int pos) {
+	return (((long) chunk << 32) | pos) + 1;
+}
+
+private static int
+chunk(long ref) {
+	return (int) ((ref - 1) >>> 32);
+}
+
+private static int
+pos(long ref) {
+	return (int) (ref - 1);
+}
+
+private int
+length(long ref) {
+	return chunks[chunk(ref)].getInt(pos(ref));
+}
+
+/* Returns an input positioned at the name of an entry. */
+private DNSInput
+entry(long ref) {
+	ByteBuffer b = chunks[chunk(ref)].duplicate();
+	int pos = pos(ref);
+	b.limit(pos + length(ref));
+	b.position(pos + headerSize);
+	return new DNSInput(b.slice());
+}
+
+/* Returns an input positioned at the start of an entry's value. */
+DNSInput
+value(long ref) {
+	ByteBuffer b = chunks[chunk(ref)].duplicate();
+	int pos = pos(ref);
+	int nameLength = b.get(pos + 5) & 0xFF;
+	b.limit(pos + length(ref));
+	b.position(pos + headerSize + nameLength);
+	return new DNSInput(b.slice());
+}
+
+Name
+name(long ref) {
+	try {
+		return new Name(entry(ref));
+	}
+	catch (WireParseException e) {
+		throw new IllegalStateException("invalid data in record store");
+	}
+}
+
+/* Finds the slot holding a name, or -1. */
+private int
+slot(Name name) {
+	int h = hash(name);
+	int mask = slots - 1;
+	for (int i = h & mask; ; i = (i + 1) & mask) {
+		long ref = refs.get(i);
+		if (ref == 0)
+			return -1;
+		if (ref > 0 && hashes.get(i) == h && name.wireEquals(entry(ref)))
+			return i;
+	}
+}
+
+/* Returns the reference to the entry for a name, or 0. */
+long
+find(Name name) {
+	int i = slot(name);
+	return (i < 0) ? 0 : refs.get(i);
+}
+
+private void
+insert(int h, long ref) {
+	int mask = slots - 1;
+	int i = h & mask;
+	while (refs.get(i) > 0)
+		i = (i + 1) & mask;
+	if (refs.get(i) < 0)
+		removedSlots--;
+	refs.put(i, ref);
+	hashes.put(i, h);
+}
+
+/* Rebuilds the index, leaving out removed slots. */
+private void
+rehash(int n) {
+	LongBuffer oldRefs = refs;
+	IntBuffer oldHashes = hashes;
+	int oldSlots = slots;
+	newIndex(n);
+	for (int i = 0; i < oldSlots; i++) {
+		long ref = oldRefs.get(i);
+		if (ref > 0)
+			insert(oldHashes.get(i), ref);
+	}
+}
+
+/* Finds space for an entry of the given length, allocating if needed. */
+private long
+allocate(int length) {
+	if (nchunks > 0) {
+		int last = nchunks - 1;
+		if (chunks[last].capacity() - ends[last] >= length) {
+			long ref = ref(last, ends[last]);
+			ends[last] += length;
+			return ref;
+		}
+	}
+	if (nchunks == chunks.length) {
+		ByteBuffer [] newChunks = new ByteBuffer[nchunks * 2];
+		System.arraycopy(chunks, 0, newChunks, 0, nchunks);
+		chunks = newChunks;
+		int [] newEnds = new int[nchunks * 2];
+		System.arraycopy(ends, 0, newEnds, 0, nchunks);
+		ends = newEnds;
+	}
+	chunks[nchunks] = ByteBuffer.allocateDirect(Math.max(length,
+							     chunkSize));
+	ends[nchunks] = length;
+	return ref(nchunks++, 0);
+}
+
+/* Appends an entry, and returns its reference. */
+private long
+append(Name name, ByteBuffer value) {
+	int nameLength = name.length();
+	int length = headerSize + nameLength + value.remaining();
+	long ref = allocate(length);
+	ByteBuffer b = chunks[chunk(ref)].duplicate();
+	b.position(pos(ref));
+	b.putInt(length);
+	b.put((byte) LIVE);
+	b.put((byte) nameLength);
+	DNSOutput out = new DNSOutput(b.slice());
+	name.toWire(out, null);
+	b.position(b.position() + nameLength);
+	b.put(value);
+	usedBytes += length;
+	liveBytes += length;
+	return ref;
+}
+
+private void
+kill(long ref) {
+	chunks[chunk(ref)].put(pos(ref) + 4, (byte) 0);
+	liveBytes -= length(ref);
+}
+
+void
+put(Name name, Codec codec, Object value) {
+	scratch.jump(0);
+	codec.encode(value, scratch);
+	ByteBuffer encoded = scratch.contents();
+	int i = slot(name);
+	if (i >= 0) {
+		kill(refs.get(i));
+		refs.put(i, append(name, encoded));
+	} else {
+		if ((size + removedSlots + 1) * 4 > slots * 3)
+			rehash(size * 2 + 2 > slots ? slots * 2 : slots);
+		insert(hash(name), append(name, encoded));
+		size++;
+	}
+	mods++;
+	if (usedBytes > chunkSize && liveBytes * 2 < usedBytes)
+		compact();
+}
+
+void
+remove(Name name) {
+	int i = slot(name);
+	if (i < 0)
+		return;
+	kill(refs.get(i));
+	refs.put(i, -1);
+	removedSlots++;
+	size--;
+	mods++;
+}
+
+/*
+ * Returns the reference to the first live entry after the given one, or
+ * the first live entry if the reference is 0.  Returns 0 if there is none.
+ */
+long
+nextLive(long ref) {
+	int chunk = 0;
+	int pos = 0;
+	if (ref != 0) {
+		chunk = chunk(ref);
+		pos = pos(ref) + length(ref);
+	}
+	for (; chunk < nchunks; chunk++, pos = 0) {
+		ByteBuffer b = chunks[chunk];
+		while (pos < ends[chunk]) {
+			if (b.get(pos + 4) == LIVE)
+				return ref(chunk, pos);
+			pos += b.getInt(pos);
+		}
+	}
+	return 0;
+}
+
+/*
+ * Removes the entry which was changed least recently, and returns its
+ * name, or null if the store is empty.
+ */
+Name
+removeEldest() {
+	if (eldest == 0 || chunks[chunk(eldest)].get(pos(eldest) + 4) != LIVE)
+		eldest = nextLive(eldest);
+	if (eldest == 0)
+		eldest = nextLive(0);
+	if (eldest == 0)
+		return null;
+	Name name = name(eldest);
+	remove(name);
+	return name;
+}
+
+/** Removes all data from the store, and frees its memory. */
+public void
+clear() {
+	chunks = new ByteBuffer[4];
+	ends = new int[4];
+	nchunks = 0;
+	newIndex(minIndexSize);
+	size = 0;
+	liveBytes = 0;
+	usedBytes = 0;
+	eldest = 0;
+	mods++;
+}
+
+/**
+ * Copies the live data into new buffers, freeing the space used by data
+ * which has been changed or removed.
+ */
+public void
+compact() {
+	ByteBuffer [] oldChunks = chunks;
+	int [] oldEnds = ends;
+	int oldCount = nchunks;
+	chunks = new ByteBuffer[4];
+	ends = new int[4];
+	nchunks = 0;
+	usedBytes = 0;
+	liveBytes = 0;
+	eldest = 0;
+	newIndex(Math.max(minIndexSize,
+			  Integer.highestOneBit(Math.max(size, 1) * 2) * 2));
+	for (int c = 0; c < oldCount; c++) {
+		ByteBuffer b = oldChunks[c].duplicate();
+		int pos = 0;
+		while (pos < oldEnds[c]) {
+			int length = b.getInt(pos);
+			if (b.get(pos + 4) == LIVE) {
+				b.limit(pos + length);
+				b.position(pos);
+				long ref = allocate(length);
+				ByteBuffer to = chunks[chunk(ref)].duplicate();
+				to.position(pos(ref));
+				to.put(b);
+				b.limit(b.capacity());
+				usedBytes += length;
+				liveBytes += length;
+				insert(hash(name(ref)), ref);
+			}
+			pos += length;
+		}
+	}
+	mods++;
+}
+
+/** Returns the number of names in the store. */
+public int
+size() {
+	return size;
+}
+
+/** Returns the number of bytes used by live data. */
+public long
+getBytes() {
+	return liveBytes;
+}
+
+/** Returns the number of bytes used by data which has been replaced. */
+public long
+getGarbage() {
+	return usedBytes - liveBytes;
+}
+
+/**
+ * Returns the number of bytes of memory allocated outside of the heap,
+ * including the index.
+ */
+public long
+getCapacity() {
+	long total = slots * 12L;
+	for (int i = 0; i < nchunks; i++)
+		total += chunks[i].capacity();
+	return total;
+}
+
+public String
+toString() {
+	return "RecordStore: " + size + " names, " + liveBytes +
+	       " bytes live, " + (usedBytes - liveBytes) + " bytes garbage";
+}
+
+}
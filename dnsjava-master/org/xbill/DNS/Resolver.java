@@ -4,6 +4,7 @@ package org.xbill.DNS;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Interface describing a resolver.
@@ -92,4 +93,31 @@ Message send(Message query) throws IOException;
  */
 Object sendAsync(final Message query, final ResolverListener listener);
 
+/**
+ * Asynchronously sends a message, returning a future which completes with
+ * the response.  Multiple asynchronous lookups can be performed in parallel.
+ * The default implementation is built on
+ * {@link #sendAsync(Message, ResolverListener)}.
+ * @param query The query to send
+ * @return A future which completes with the response, or exceptionally with
+ * the error which occurred while sending or receiving.
+ */
+default CompletableFuture<Message>
+sendAsync(Message query) {
+	final CompletableFuture<Message> result;
+	result = new CompletableFuture<Message>();
+	sendAsync(query, new ResolverListener() {
+		public void
+		receiveMessage(Object id, Message m) {
+			result.complete(m);
+		}
+
+		public void
+		handleException(Object id, Exception e) {
+			result.completeExceptionally(e);
+		}
+	});
+	return result;
+}
+
 }
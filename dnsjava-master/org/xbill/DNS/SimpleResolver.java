@@ -3,6 +3,8 @@
 package org.xbill.DNS;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 import java.io.*;
 import java.net.*;
 
@@ -28,7 +30,7 @@ public static final int DEFAULT_EDNS_PAYLOADSIZE = 1280;
 
 private InetSocketAddress address;
 private InetSocketAddress localAddress;
-private boolean useTCP, ignoreTruncation;
+private boolean useTCP, ignoreTruncation, persistentTCP;
 private OPTRecord queryOPT;
 private TSIG tsig;
 private long timeoutValue = 10 * 1000;
@@ -132,6 +134,23 @@ setTCP(boolean flag) {
 	this.useTCP = flag;
 }
 
+/**
+ * Sets whether queries sent over TCP use persistent connections, as
+ * described in RFC 7766.  A persistent connection is kept open after a
+ * response is received, and is shared by all SimpleResolvers sending queries
+ * from the same local address to the same server, so several queries may be
+ * outstanding on it at once.  When EDNS is used, queries include the TCP
+ * keepalive option (RFC 7828), and an idle connection is kept open for as
+ * long as the server indicates.  Zone transfers also use persistent
+ * connections.  This is disabled by default.
+ * @param flag Whether to use persistent TCP connections.
+ * @see TCPKeepaliveOption
+ */
+public void
+setPersistentTCP(boolean flag) {
+	this.persistentTCP = flag;
+}
+
 public void
 setIgnoreTruncation(boolean flag) {
 	this.ignoreTruncation = flag;
@@ -207,6 +226,50 @@ applyEDNS(Message query) {
 	query.addRecord(queryOPT, Section.ADDITIONAL);
 }
 
+/*
+ * Prepares a copy of a query to be sent on a persistent TCP connection,
+ * adding the TCP keepalive option if EDNS is in use.
+ */
+private Message
+persistentQuery(Message query) {
+	query = (Message) query.clone();
+	applyEDNS(query);
+	OPTRecord opt = query.getOPT();
+	if (opt != null &&
+	    opt.getOptions(EDNSOption.Code.TCP_KEEPALIVE).isEmpty())
+	{
+		List options = new ArrayList(opt.getOptions());
+		options.add(new TCPKeepaliveOption());
+		query.removeRecord(opt, Section.ADDITIONAL);
+		query.addRecord(new OPTRecord(opt.getPayloadSize(),
+					      opt.getExtendedRcode(),
+					      opt.getVersion(), opt.getFlags(),
+					      options),
+				Section.ADDITIONAL);
+	}
+	if (tsig != null)
+		tsig.apply(query, null);
+	return query;
+}
+
+/*
+ * Applies the idle timeout from a TCP keepalive option in a response to the
+ * persistent connections to the server.
+ */
+private void
+applyKeepalive(Message response) {
+	OPTRecord opt = response.getOPT();
+	if (opt == null)
+		return;
+	Iterator it = opt.getOptions(EDNSOption.Code.TCP_KEEPALIVE).iterator();
+	while (it.hasNext()) {
+		TCPKeepaliveOption option = (TCPKeepaliveOption) it.next();
+		if (option.getTimeout() >= 0)
+			NioClient.setIdleTimeout(localAddress, address,
+						 option.getTimeout() * 100L);
+	}
+}
+
 private int
 maxUDPSize(Message query) {
 	OPTRecord opt = query.getOPT();
@@ -236,6 +299,7 @@ send(Message query) throws IOException {
 			return sendAXFR(query);
 	}
 
+	Message original = query;
 	query = (Message) query.clone();
 	applyEDNS(query);
 	if (tsig != null)
@@ -250,6 +314,8 @@ send(Message query) throws IOException {
 
 		if (useTCP || out.length > udpSize)
 			tcp = true;
+		if (tcp && persistentTCP)
+			return sendPersistent(original, endTime);
 		if (tcp)
 			in = TCPClient.sendrecv(localAddress, address, out,
 						endTime);
@@ -296,6 +362,157 @@ send(Message query) throws IOException {
 	} while (true);
 }
 
+/*
+ * Sends a query on a persistent TCP connection and waits for the response.
+ */
+private Message
+sendPersistent(Message query, long endTime) throws IOException {
+	Message sent = persistentQuery(query);
+	byte [] out = sent.toWire(Message.MAXLENGTH);
+	byte [] in;
+	try {
+		in = NioClient.sendrecvPersistent(localAddress, address, out,
+						  endTime).get();
+	}
+	catch (InterruptedException e) {
+		throw new InterruptedIOException();
+	}
+	catch (ExecutionException e) {
+		if (e.getCause() instanceof IOException)
+			throw (IOException) e.getCause();
+		throw new IOException(e.getCause().toString());
+	}
+	Message response = parseResponse(sent, in);
+	applyKeepalive(response);
+	return response;
+}
+
+/**
+ * Asynchronously sends a message to a single server.  The query is sent
+ * without blocking the calling thread or creating a new one; all outstanding
+ * queries share a small number of selector threads.  The returned future is
+ * completed on a thread from a shared pool, which is also used for callbacks
+ * from other outstanding queries, so actions triggered by its completion
+ * should not block for long periods.
+ * @param query The query to send
+ * @return A future which completes with the response, or exceptionally with
+ * the error which occurred while sending or receiving.
+ */
+public CompletableFuture<Message>
+sendAsync(Message query) {
+	final CompletableFuture<Message> result;
+	result = new CompletableFuture<Message>();
+
+	if (query.getHeader().getOpcode() == Opcode.QUERY) {
+		Record question = query.getQuestion();
+		if (question != null && question.getType() == Type.AXFR) {
+			/* Zone transfers are always done in a thread. */
+			Thread thread = new ResolveThread(this, query, null,
+				new ResolverListener() {
+					public void
+					receiveMessage(Object id, Message m) {
+						result.complete(m);
+					}
+
+					public void
+					handleException(Object id, Exception e) {
+						result.completeExceptionally(e);
+					}
+				});
+			thread.setDaemon(true);
+			thread.start();
+			return result;
+		}
+	}
+
+	Message original = query;
+	query = (Message) query.clone();
+	applyEDNS(query);
+	if (tsig != null)
+		tsig.apply(query, null);
+
+	byte [] out = query.toWire(Message.MAXLENGTH);
+	int udpSize = maxUDPSize(query);
+	boolean tcp = (useTCP || out.length > udpSize);
+	long endTime = System.currentTimeMillis() + timeoutValue;
+	if (tcp && persistentTCP)
+		query = persistentQuery(original);
+	sendAsync(original, query, udpSize, tcp, endTime, result);
+	return result;
+}
+
+/*
+ * Sends a prepared query, and resends it over TCP if the response is
+ * truncated.  The original query is needed to prepare a query for a
+ * persistent TCP connection.
+ */
+private void
+sendAsync(final Message original, final Message query, final int udpSize,
+	  final boolean tcp, final long endTime,
+	  final CompletableFuture<Message> result)
+{
+	byte [] out = query.toWire(Message.MAXLENGTH);
+	CompletableFuture<byte []> f;
+	if (tcp && persistentTCP)
+		f = NioClient.sendrecvPersistent(localAddress, address, out,
+						 endTime);
+	else if (tcp)
+		f = NioClient.sendrecv(localAddress, address, out, endTime);
+	else
+		f = NioClient.sendrecv(localAddress, address, out, udpSize,
+				       endTime);
+	f.whenComplete(new BiConsumer<byte [], Throwable>() {
+		public void
+		accept(byte [] in, Throwable t) {
+			if (t != null) {
+				result.completeExceptionally(t);
+				return;
+			}
+			Message response;
+			try {
+				response = parseResponse(query, in);
+			}
+			catch (WireParseException e) {
+				result.completeExceptionally(e);
+				return;
+			}
+			if (!tcp && !ignoreTruncation &&
+			    response.getHeader().getFlag(Flags.TC))
+			{
+				Message next = query;
+				if (persistentTCP)
+					next = persistentQuery(original);
+				sendAsync(original, next, udpSize, true,
+					  endTime, result);
+				return;
+			}
+			if (tcp && persistentTCP)
+				applyKeepalive(response);
+			result.complete(response);
+		}
+	});
+}
+
+/*
+ * Checks and parses a response received by an asynchronous query.  Unlike
+ * the synchronous case, UDP responses with the wrong ID have already been
+ * discarded.
+ */
+private Message
+parseResponse(Message query, byte [] in) throws WireParseException {
+	if (in.length < Header.LENGTH)
+		throw new WireParseException("invalid DNS header - " +
+					     "too short");
+	int id = ((in[0] & 0xFF) << 8) + (in[1] & 0xFF);
+	int qid = query.getHeader().getID();
+	if (id != qid)
+		throw new WireParseException("invalid message id: expected " +
+					     qid + "; got id " + id);
+	Message response = parseMessage(in);
+	verifyTSIG(query, response, in, tsig);
+	return response;
+}
+
 /**
  * Asynchronously sends a message to a single server, registering a listener
  * to receive a callback on success or exception.  Multiple asynchronous
@@ -304,6 +521,7 @@ send(Message query) throws IOException {
  * @param query The query to send
  * @param listener The object containing the callbacks.
  * @return An identifier, which is also a parameter in the callback
+ * @see #sendAsync(Message)
  */
 public Object
 sendAsync(final Message query, final ResolverListener listener) {
@@ -311,17 +529,23 @@ sendAsync(final Message query, final ResolverListener listener) {
 	synchronized (this) {
 		id = new Integer(uniqueID++);
 	}
-	Record question = query.getQuestion();
-	String qname;
-	if (question != null)
-		qname = question.getName().toString();
-	else
-		qname = "(none)";
-	String name = this.getClass() + ": " + qname;
-	Thread thread = new ResolveThread(this, query, id, listener);
-	thread.setName(name);
-	thread.setDaemon(true);
-	thread.start();
+	sendAsync(query).whenComplete(new BiConsumer<Message, Throwable>() {
+		public void
+		accept(Message response, Throwable t) {
+			if (t == null) {
+				listener.receiveMessage(id, response);
+				return;
+			}
+			if (t instanceof CompletionException &&
+			    t.getCause() != null)
+				t = t.getCause();
+			if (t instanceof Exception)
+				listener.handleException(id, (Exception) t);
+			else
+				listener.handleException(id,
+					new RuntimeException(t.getMessage()));
+		}
+	});
 	return id;
 }
 
@@ -331,6 +555,7 @@ sendAXFR(Message query) throws IOException {
 	ZoneTransferIn xfrin = ZoneTransferIn.newAXFR(qname, address, tsig);
 	xfrin.setTimeout((int)(getTimeout() / 1000));
 	xfrin.setLocalAddress(localAddress);
+	xfrin.setPersistentTCP(persistentTCP);
 	try {
 		xfrin.run();
 	}
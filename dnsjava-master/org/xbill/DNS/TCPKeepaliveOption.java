@@ -0,0 +1,72 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+/**
+ * The TCP Keepalive EDNS Option, defined in RFC 7828.  A client sends the
+ * option without a timeout in a query sent over TCP to indicate that it
+ * would like to keep the connection open; the server may respond with the
+ * time for which it will keep an idle connection open.
+ *
+ * @see OPTRecord
+ * @see SimpleResolver#setPersistentTCP
+ */
+public class TCPKeepaliveOption extends EDNSOption {
+
+private static final long serialVersionUID = -2163713591637387711L;
+
+private int timeout;
+
+/**
+ * Construct a TCP Keepalive option with no timeout, as sent in queries.
+ */
+public
+TCPKeepaliveOption() {
+	super(EDNSOption.Code.TCP_KEEPALIVE);
+	timeout = -1;
+}
+
+/**
+ * Construct a TCP Keepalive option with a timeout, as sent in responses.
+ * @param timeout The idle timeout, in units of 100 milliseconds.
+ */
+public
+TCPKeepaliveOption(int timeout) {
+	super(EDNSOption.Code.TCP_KEEPALIVE);
+	this.timeout = Record.checkU16("timeout", timeout);
+}
+
+/**
+ * Returns the idle timeout in units of 100 milliseconds, or -1 if the
+ * option does not contain a timeout.
+ */
+public int
+getTimeout() {
+	return timeout;
+}
+
+void
+optionFromWire(DNSInput in) throws WireParseException {
+	int length = in.remaining();
+	if (length == 0)
+		timeout = -1;
+	else if (length == 2)
+		timeout = in.readU16();
+	else
+		throw new WireParseException("invalid TCP keepalive option");
+}
+
+void
+optionToWire(DNSOutput out) {
+	if (timeout >= 0)
+		out.writeU16(timeout);
+}
+
+String
+optionToString() {
+	if (timeout < 0)
+		return "-";
+	return String.valueOf(timeout);
+}
+
+}
@@ -2,11 +2,16 @@
 
 package org.xbill.DNS;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import javax.crypto.SecretKey;
 import javax.crypto.Mac;
+import javax.crypto.MacSpi;
 import org.xbill.DNS.utils.base64;
 
 /**
@@ -86,6 +91,9 @@ public static final short FUDGE		= 300;
 
 private Name name, alg;
 private Mac hmac;
+private SecretKey secret;
+private ThreadLocal macs = new ThreadLocal();
+private volatile boolean shared;
 
 /**
  * Verifies the data (computes the secure hash and compares it to the input)
@@ -122,6 +130,7 @@ init_hmac(String macAlgorithm, SecretKey key) {
 	try {
 		hmac = Mac.getInstance(macAlgorithm);
 		hmac.init(key);
+		secret = key;
 	}
 	catch (GeneralSecurityException ex) {
 		throw new IllegalArgumentException("Caught security " +
@@ -130,6 +139,158 @@ init_hmac(String macAlgorithm, SecretKey key) {
 	}
 }
 
+/*
+ * Returns a copy of the key's HMAC, or null if the provider can't copy it.
+ */
+Mac
+copyMac() {
+	if (shared)
+		return null;
+	try {
+		return (Mac) hmac.clone();
+	}
+	catch (CloneNotSupportedException e) {
+		shared = true;
+		return null;
+	}
+}
+
+/*
+ * Collects the data digested by a stream, and computes each MAC with the
+ * key's HMAC while holding its lock.  This is used for streams when the
+ * HMAC can't be copied, since the stream's state must survive other
+ * messages being signed or verified with the key in between.
+ */
+private static class SharedMacSpi extends MacSpi {
+	private final Mac hmac;
+	private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+	SharedMacSpi(Mac hmac) {
+		this.hmac = hmac;
+	}
+
+	protected int
+	engineGetMacLength() {
+		return hmac.getMacLength();
+	}
+
+	protected void
+	engineInit(Key key, AlgorithmParameterSpec params) {
+	}
+
+	protected void
+	engineUpdate(byte input) {
+		data.write(input);
+	}
+
+	protected void
+	engineUpdate(byte [] input, int offset, int len) {
+		data.write(input, offset, len);
+	}
+
+	protected byte []
+	engineDoFinal() {
+		byte [] b = data.toByteArray();
+		data.reset();
+		synchronized (hmac) {
+			hmac.reset();
+			hmac.update(b);
+			return hmac.doFinal();
+		}
+	}
+
+	protected void
+	engineReset() {
+		data.reset();
+	}
+}
+
+private static class SharedMac extends Mac {
+	SharedMac(Mac hmac) {
+		super(new SharedMacSpi(hmac), hmac.getProvider(),
+		      hmac.getAlgorithm());
+		try {
+			init(null);
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+}
+
+/*
+ * Returns an HMAC which a multiple message stream can use for as long as
+ * it lasts: a copy of the key's HMAC, a new one made from the key, or (if
+ * neither can be made) one which shares the key's HMAC.
+ */
+Mac
+streamMac() {
+	Mac mac = copyMac();
+	if (mac != null)
+		return mac;
+	if (secret != null) {
+		try {
+			mac = Mac.getInstance(hmac.getAlgorithm(),
+					      hmac.getProvider());
+			mac.init(secret);
+			return mac;
+		}
+		catch (GeneralSecurityException e) {
+		}
+	}
+	return new SharedMac(hmac);
+}
+
+/*
+ * Returns the calling thread's copy of the key's HMAC, reset.  If copies
+ * can't be made, this returns null, and the caller must use hmac itself
+ * while holding its lock.
+ */
+private Mac
+threadMac() {
+	Mac mac = (Mac) macs.get();
+	if (mac == null) {
+		mac = copyMac();
+		if (mac == null)
+			return null;
+		macs.set(mac);
+	}
+	mac.reset();
+	return mac;
+}
+
+/* Digests a 16 bit value. */
+private static void
+update16(Mac mac, int val) {
+	mac.update((byte)(val >>> 8));
+	mac.update((byte)val);
+}
+
+/* Digests the time signed and fudge fields of a TSIG record. */
+private static void
+updateTime(Mac mac, Date timeSigned, int fudge) {
+	long time = timeSigned.getTime() / 1000;
+	update16(mac, (int) (time >> 32));
+	update16(mac, (int) (time >> 16));
+	update16(mac, (int) time);
+	update16(mac, fudge);
+}
+
+/*
+ * Digests the header of a message in wire format.  If the message is
+ * signed, the TSIG record is left out of the additional count, as it was
+ * when the message was signed.
+ */
+private static void
+updateHeader(Mac mac, byte [] b, boolean signed) {
+	if (!signed) {
+		mac.update(b, 0, Header.LENGTH);
+		return;
+	}
+	mac.update(b, 0, Header.LENGTH - 2);
+	update16(mac, (((b[10] & 0xFF) << 8) | (b[11] & 0xFF)) - 1);
+}
+
 /**
  * Creates a new TSIG key, which can be used to sign or verify a message.
  * @param algorithm The algorithm of the shared key.
@@ -162,7 +323,8 @@ TSIG(Name algorithm, Name name, SecretKey key) {
 /**
  * Creates a new TSIG key from a pre-initialized Mac instance.
  * This assumes that init() has already been called on the mac
- * to set up the key.
+ * to set up the key.  If the Mac can be cloned, each thread signs and
+ * verifies with its own copy; otherwise, they take turns using this one.
  * @param mac The JCE HMAC object
  * @param Name The name of the key
  */
@@ -272,6 +434,22 @@ fromString(String str) {
  */
 public TSIGRecord
 generate(Message m, byte [] b, int error, TSIGRecord old) {
+	return generate(m.getHeader().getID(), ByteBuffer.wrap(b), error, old);
+}
+
+private TSIGRecord
+generate(int id, ByteBuffer data, int error, TSIGRecord old) {
+	Mac mac = threadMac();
+	if (mac != null)
+		return generate(mac, id, data, error, old);
+	synchronized (hmac) {
+		hmac.reset();
+		return generate(hmac, id, data, error, old);
+	}
+}
+
+private TSIGRecord
+generate(Mac mac, int id, ByteBuffer data, int error, TSIGRecord old) {
 	Date timeSigned;
 	if (error != Rcode.BADTIME)
 		timeSigned = new Date();
@@ -279,27 +457,21 @@ generate(Message m, byte [] b, int error, TSIGRecord old) {
 		timeSigned = old.getTimeSigned();
 	int fudge;
 	boolean signing = false;
-	if (error == Rcode.NOERROR || error == Rcode.BADTIME) {
+	if (error == Rcode.NOERROR || error == Rcode.BADTIME)
 		signing = true;
-		hmac.reset();
-	}
 
 	fudge = Options.intValue("tsigfudge");
 	if (fudge < 0 || fudge > 0x7FFF)
 		fudge = FUDGE;
 
-	if (old != null) {
-		DNSOutput out = new DNSOutput();
-		out.writeU16(old.getSignature().length);
-		if (signing) {
-			hmac.update(out.toByteArray());
-			hmac.update(old.getSignature());
-		}
+	if (old != null && signing) {
+		update16(mac, old.getSignature().length);
+		mac.update(old.getSignature());
 	}
 
 	/* Digest the message */
 	if (signing)
-		hmac.update(b);
+		mac.update(data);
 
 	DNSOutput out = new DNSOutput();
 	name.toWireCanonical(out);
@@ -317,11 +489,11 @@ generate(Message m, byte [] b, int error, TSIGRecord old) {
 	out.writeU16(0); /* No other data */
 
 	if (signing)
-		hmac.update(out.toByteArray());
+		mac.update(out.toByteArray());
 
 	byte [] signature;
 	if (signing)
-		signature = hmac.doFinal();
+		signature = mac.doFinal();
 	else
 		signature = new byte[0];
 
@@ -337,7 +509,7 @@ generate(Message m, byte [] b, int error, TSIGRecord old) {
 	}
 
 	return (new TSIGRecord(name, DClass.ANY, 0, alg, timeSigned, fudge,
-			       signature, m.getHeader().getID(), error, other));
+			       signature, id, error, other));
 }
 
 /**
@@ -375,33 +547,35 @@ applyStream(Message m, TSIGRecord old, boolean first) {
 		apply(m, old);
 		return;
 	}
+	Mac mac = threadMac();
+	if (mac != null) {
+		applyStream(mac, m, old);
+		return;
+	}
+	synchronized (hmac) {
+		hmac.reset();
+		applyStream(hmac, m, old);
+	}
+}
+
+private void
+applyStream(Mac mac, Message m, TSIGRecord old) {
 	Date timeSigned = new Date();
 	int fudge;
-	hmac.reset();
 
 	fudge = Options.intValue("tsigfudge");
 	if (fudge < 0 || fudge > 0x7FFF)
 		fudge = FUDGE;
 
-	DNSOutput out = new DNSOutput();
-	out.writeU16(old.getSignature().length);
-	hmac.update(out.toByteArray());
-	hmac.update(old.getSignature());
+	update16(mac, old.getSignature().length);
+	mac.update(old.getSignature());
 
 	/* Digest the message */
-	hmac.update(m.toWire());
-
-	out = new DNSOutput();
-	long time = timeSigned.getTime() / 1000;
-	int timeHigh = (int) (time >> 32);
-	long timeLow = (time & 0xFFFFFFFFL);
-	out.writeU16(timeHigh);
-	out.writeU32(timeLow);
-	out.writeU16(fudge);
+	mac.update(m.toWire());
 
-	hmac.update(out.toByteArray());
+	updateTime(mac, timeSigned, fudge);
 
-	byte [] signature = hmac.doFinal();
+	byte [] signature = mac.doFinal();
 	byte [] other = null;
 
 	Record r = new TSIGRecord(name, DClass.ANY, 0, alg, timeSigned, fudge,
@@ -427,9 +601,19 @@ applyStream(Message m, TSIGRecord old, boolean first) {
  */
 public byte
 verify(Message m, byte [] b, int length, TSIGRecord old) {
+	Mac mac = threadMac();
+	if (mac != null)
+		return verify(mac, m, b, old);
+	synchronized (hmac) {
+		hmac.reset();
+		return verify(hmac, m, b, old);
+	}
+}
+
+private byte
+verify(Mac mac, Message m, byte [] b, TSIGRecord old) {
 	m.tsigState = Message.TSIG_FAILED;
 	TSIGRecord tsig = m.getTSIG();
-	hmac.reset();
 	if (tsig == null)
 		return Rcode.FORMERR;
 
@@ -450,18 +634,11 @@ verify(Message m, byte [] b, int length, TSIGRecord old) {
 	if (old != null && tsig.getError() != Rcode.BADKEY &&
 	    tsig.getError() != Rcode.BADSIG)
 	{
-		DNSOutput out = new DNSOutput();
-		out.writeU16(old.getSignature().length);
-		hmac.update(out.toByteArray());
-		hmac.update(old.getSignature());
+		update16(mac, old.getSignature().length);
+		mac.update(old.getSignature());
 	}
-	m.getHeader().decCount(Section.ADDITIONAL);
-	byte [] header = m.getHeader().toWire();
-	m.getHeader().incCount(Section.ADDITIONAL);
-	hmac.update(header);
-
-	int len = m.tsigstart - header.length;	
-	hmac.update(b, header.length, len);
+	updateHeader(mac, b, true);
+	mac.update(b, Header.LENGTH, m.tsigstart - Header.LENGTH);
 
 	DNSOutput out = new DNSOutput();
 	tsig.getName().toWireCanonical(out);
@@ -482,12 +659,12 @@ verify(Message m, byte [] b, int length, TSIGRecord old) {
 		out.writeU16(0);
 	}
 
-	hmac.update(out.toByteArray());
+	mac.update(out.toByteArray());
 
 	byte [] signature = tsig.getSignature();
-	int digestLength = hmac.getMacLength();
+	int digestLength = mac.getMacLength();
 	int minDigestLength;
-	if (hmac.getAlgorithm().toLowerCase().contains("md5"))
+	if (mac.getAlgorithm().toLowerCase().contains("md5"))
 		minDigestLength = 10;
 	else
 		minDigestLength = digestLength / 2;
@@ -500,7 +677,7 @@ verify(Message m, byte [] b, int length, TSIGRecord old) {
 		if (Options.check("verbose"))
 			System.err.println("BADSIG: signature too short");
 		return Rcode.BADSIG;
-	} else if (!verify(hmac, signature, true)) {
+	} else if (!verify(mac, signature, true)) {
 		if (Options.check("verbose"))
 			System.err.println("BADSIG: signature verification");
 		return Rcode.BADSIG;
@@ -537,14 +714,16 @@ recordLength() {
 	return (name.length() + 10 +
 		alg.length() +
 		8 +	// time signed, fudge
-		18 +	// 2 byte MAC length, 16 byte MAC
+		2 + hmac.getMacLength() +	// MAC length, MAC
 		4 +	// original id, error
 		8);	// 2 byte error length, 6 byte max error field.
 }
 
 public static class StreamVerifier {
 	/**
-	 * A helper class for verifying multiple message responses.
+	 * A helper class for verifying multiple message responses.  Each
+	 * verifier has its own copy of the key's HMAC, so several transfers
+	 * using the same key may be verified at once.
 	 */
 
 	private TSIG key;
@@ -557,7 +736,7 @@ public static class StreamVerifier {
 	public
 	StreamVerifier(TSIG tsig, TSIGRecord old) {
 		key = tsig;
-		verifier = tsig.hmac;
+		verifier = tsig.streamMac();
 		nresponses = 0;
 		lastTSIG = old;
 	}
@@ -576,36 +755,39 @@ public static class StreamVerifier {
 	 */
 	public int
 	verify(Message m, byte [] b) {
+		return verify(m, b, b.length);
+	}
+
+	/**
+	 * Verifies a TSIG record on an incoming message that is part of a
+	 * multiple message response, digesting the message directly from
+	 * the buffer it was read into.
+	 * @param m The message
+	 * @param b An array containing the message in unparsed form
+	 * @param length The length of the message in the array
+	 * @return The result of the verification (as an Rcode)
+	 * @see Rcode
+	 */
+	public int
+	verify(Message m, byte [] b, int length) {
 		TSIGRecord tsig = m.getTSIG();
 	
 		nresponses++;
 
 		if (nresponses == 1) {
-			int result = key.verify(m, b, lastTSIG);
+			int result = key.verify(m, b, length, lastTSIG);
 			if (result == Rcode.NOERROR) {
 				byte [] signature = tsig.getSignature();
-				DNSOutput out = new DNSOutput();
-				out.writeU16(signature.length);
-				verifier.update(out.toByteArray());
+				update16(verifier, signature.length);
 				verifier.update(signature);
 			}
 			lastTSIG = tsig;
 			return result;
 		}
 
-		if (tsig != null)
-			m.getHeader().decCount(Section.ADDITIONAL);
-		byte [] header = m.getHeader().toWire();
-		if (tsig != null)
-			m.getHeader().incCount(Section.ADDITIONAL);
-		verifier.update(header);
-
-		int len;
-		if (tsig == null)
-			len = b.length - header.length;
-		else
-			len = m.tsigstart - header.length;
-		verifier.update(b, header.length, len);
+		updateHeader(verifier, b, tsig != null);
+		int end = (tsig == null) ? length : m.tsigstart;
+		verifier.update(b, Header.LENGTH, end - Header.LENGTH);
 
 		if (tsig != null) {
 			lastsigned = nresponses;
@@ -631,14 +813,7 @@ public static class StreamVerifier {
 			return Rcode.BADKEY;
 		}
 
-		DNSOutput out = new DNSOutput();
-		long time = tsig.getTimeSigned().getTime() / 1000;
-		int timeHigh = (int) (time >> 32);
-		long timeLow = (time & 0xFFFFFFFFL);
-		out.writeU16(timeHigh);
-		out.writeU32(timeLow);
-		out.writeU16(tsig.getFudge());
-		verifier.update(out.toByteArray());
+		updateTime(verifier, tsig.getTimeSigned(), tsig.getFudge());
 
 		if (TSIG.verify(verifier, tsig.getSignature()) == false) {
 			if (Options.check("verbose"))
@@ -648,9 +823,7 @@ public static class StreamVerifier {
 		}
 
 		verifier.reset();
-		out = new DNSOutput();
-		out.writeU16(tsig.getSignature().length);
-		verifier.update(out.toByteArray());
+		update16(verifier, tsig.getSignature().length);
 		verifier.update(tsig.getSignature());
 
 		m.tsigState = Message.TSIG_VERIFIED;
@@ -658,4 +831,109 @@ public static class StreamVerifier {
 	}
 }
 
+
+public static class StreamGenerator {
+	/**
+	 * A helper class for signing multiple message responses, such as zone
+	 * transfers.  The first and last messages are always signed, and the
+	 * messages in between are signed at a fixed interval; the signature
+	 * on each signed message covers all of the unsigned messages before it.
+	 */
+
+	private TSIG key;
+	private Mac signer;
+	private int interval;
+	private int unsigned;
+	private boolean first;
+	private TSIGRecord lastTSIG;
+
+	/**
+	 * Creates an object to sign a multiple message response.
+	 * @param tsig The key
+	 * @param old The TSIG from the request
+	 * @param interval Sign every interval messages.  This must be between
+	 * 1 (sign every message) and 100.
+	 */
+	public
+	StreamGenerator(TSIG tsig, TSIGRecord old, int interval) {
+		if (interval < 1 || interval > 100)
+			throw new IllegalArgumentException("invalid TSIG interval");
+		key = tsig;
+		/*
+		 * A transfer can take a long time; don't share the key's HMAC
+		 * with messages signed or verified while it runs.
+		 */
+		signer = tsig.streamMac();
+		this.interval = interval;
+		first = true;
+		lastTSIG = old;
+	}
+
+	private void
+	start(TSIGRecord tsig) {
+		lastTSIG = tsig;
+		unsigned = 0;
+		signer.reset();
+		byte [] signature = tsig.getSignature();
+		update16(signer, signature.length);
+		signer.update(signature);
+	}
+
+	/**
+	 * Digests a rendered message which is part of a multiple message
+	 * response, and signs it if necessary.
+	 * @param b The rendered message, without a TSIG record
+	 * @param id The message ID
+	 * @param last Whether this is the last message
+	 * @return The TSIG record to be added to the message, or null if the
+	 * message should be sent unsigned.
+	 */
+	public TSIGRecord
+	generate(byte [] b, int id, boolean last) {
+		return generate(ByteBuffer.wrap(b), id, last);
+	}
+
+	/**
+	 * Digests a message which is part of a multiple message response
+	 * as it was rendered, without copying it, and signs it if necessary.
+	 * @param out The rendered message, without a TSIG record
+	 * @param id The message ID
+	 * @param last Whether this is the last message
+	 * @return The TSIG record to be added to the message, or null if the
+	 * message should be sent unsigned.
+	 */
+	public TSIGRecord
+	generate(DNSOutput out, int id, boolean last) {
+		return generate(out.contents(), id, last);
+	}
+
+	private TSIGRecord
+	generate(ByteBuffer data, int id, boolean last) {
+		if (first) {
+			first = false;
+			start(key.generate(id, data, Rcode.NOERROR, lastTSIG));
+			return lastTSIG;
+		}
+
+		signer.update(data);
+		if (!last && ++unsigned < interval)
+			return null;
+
+		Date timeSigned = new Date();
+		int fudge = Options.intValue("tsigfudge");
+		if (fudge < 0 || fudge > 0x7FFF)
+			fudge = FUDGE;
+
+		updateTime(signer, timeSigned, fudge);
+
+		byte [] signature = signer.doFinal();
+		TSIGRecord tsig = new TSIGRecord(key.name, DClass.ANY, 0,
+						 key.alg, timeSigned, fudge,
+						 signature, id, Rcode.NOERROR,
+						 null);
+		start(tsig);
+		return tsig;
+	}
+}
+
 }
@@ -35,6 +35,12 @@ check(long i) {
  */
 public static long
 parse(String s, boolean clamp) {
+	return parse((CharSequence) s, clamp);
+}
+
+/* Parses a TTL-like value from any text, such as a Tokenizer's buffer. */
+static long
+parse(CharSequence s, boolean clamp) {
 	if (s == null || s.length() == 0 || !Character.isDigit(s.charAt(0)))
 		throw new NumberFormatException();
 	long value = 0;
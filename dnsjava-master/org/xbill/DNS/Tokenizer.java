@@ -19,11 +19,18 @@ package org.xbill.DNS;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
 
 import org.xbill.DNS.utils.*;
 
 /**
  * Tokenizer is used to parse DNS records and zones from text format,
+ * <p>
+ * Input is read in blocks into a buffer (or used in place, for a String or
+ * a CharBuffer backed by an array), and the text of each token is collected
+ * in a reusable array.  A String is only created when a token is returned
+ * by {@link #get}; the methods which parse numbers, TTLs and names read the
+ * token's text directly.
  *
  * @author Brian Wellington
  * @author Bob Halley
@@ -31,8 +38,11 @@ import org.xbill.DNS.utils.*;
 
 public class Tokenizer {
 
-private static String delim = " \t\n;()\"";
-private static String quotes = "\"";
+private static final int bufferSize = 8192;
+
+/* The characters which end an unquoted string, and a quoted string. */
+private static final boolean [] delim = table(" \t\n;()\"");
+private static final boolean [] quotes = table("\"");
 
 /** End of file */
 public static final int EOF		= 0;
@@ -52,15 +62,30 @@ public static final int QUOTED_STRING	= 4;
 /** A comment; only returned when wantComment is set */
 public static final int COMMENT		= 5;
 
-private PushbackInputStream is;
+/* The input, and the position of the next character in it. */
+private char [] in;
+private int pos;
+private int limit;
+
+/* Where more input is read from, if anywhere. */
+private InputStream is;
+private ByteBuffer [] regions;
+private int region;
+private CharBuffer chars;
+private byte [] bytes;
+
 private boolean ungottenToken;
 private int multiline;
 private boolean quoting;
-private String delimiters;
+private boolean [] delimiters;
 private Token current;
-private StringBuffer sb;
 private boolean wantClose;
 
+/* The text of the current token, and a view of it. */
+private char [] text;
+private int length;
+private CharBuffer view;
+
 private String filename;
 private int line;
 
@@ -78,11 +103,11 @@ public static class Token {
 	}
 
 	private Token
-	set(int type, StringBuffer value) {
+	set(int type) {
 		if (type < 0)
 			throw new IllegalArgumentException();
 		this.type = type;
-		this.value = value == null ? null : value.toString();
+		this.value = null;
 		return this;
 	}
 
@@ -138,32 +163,109 @@ static class TokenizerException extends TextParseException {
 	}
 }
 
-/**
- * Creates a Tokenizer from an arbitrary input stream.
- * @param is The InputStream to tokenize.
- */
-public
-Tokenizer(InputStream is) {
-	if (!(is instanceof BufferedInputStream))
-		is = new BufferedInputStream(is);
-	this.is = new PushbackInputStream(is, 2);
+private static boolean []
+table(String s) {
+	boolean [] table = new boolean[128];
+	for (int i = 0; i < s.length(); i++)
+		table[s.charAt(i)] = true;
+	return table;
+}
+
+private void
+init() {
 	ungottenToken = false;
 	multiline = 0;
 	quoting = false;
 	delimiters = delim;
 	current = new Token();
-	sb = new StringBuffer();
+	text = new char[64];
 	filename = "<none>";
 	line = 1;
 }
 
+/* Sets up a buffer, which is filled from a stream or a non-array buffer. */
+private void
+initBuffer(boolean wantBytes) {
+	in = new char[bufferSize];
+	if (wantBytes)
+		bytes = new byte[bufferSize];
+}
+
+/**
+ * Creates a Tokenizer from an arbitrary input stream.  The stream is read
+ * in blocks, so it does not need to be buffered.
+ * @param is The InputStream to tokenize.
+ */
+public
+Tokenizer(InputStream is) {
+	init();
+	initBuffer(true);
+	this.is = is;
+}
+
 /**
  * Creates a Tokenizer from a string.
  * @param s The String to tokenize.
  */
 public
 Tokenizer(String s) {
-	this(new ByteArrayInputStream(s.getBytes()));
+	init();
+	in = s.toCharArray();
+	for (int i = 0; i < in.length; i++) {
+		if (in[i] >= 0x80) {
+			/* Read non-ASCII text as the bytes it is encoded to. */
+			byte [] b = s.getBytes();
+			in = new char[b.length];
+			for (int j = 0; j < b.length; j++)
+				in[j] = (char) (b[j] & 0xFF);
+			break;
+		}
+	}
+	limit = in.length;
+}
+
+/**
+ * Creates a Tokenizer from the remaining characters of a CharBuffer.  The
+ * buffer's position is not changed.
+ * @param buf The CharBuffer to tokenize.
+ */
+public
+Tokenizer(CharBuffer buf) {
+	init();
+	if (buf.hasArray()) {
+		in = buf.array();
+		pos = buf.arrayOffset() + buf.position();
+		limit = buf.arrayOffset() + buf.limit();
+	} else {
+		initBuffer(false);
+		chars = buf.duplicate();
+	}
+}
+
+/**
+ * Creates a Tokenizer from the remaining bytes of a ByteBuffer, such as a
+ * region of a memory mapped file.  Each byte is read as one character.  The
+ * buffer's position is not changed.
+ * @param buf The ByteBuffer to tokenize.
+ */
+public
+Tokenizer(ByteBuffer buf) {
+	this(new ByteBuffer [] {buf}, "<none>", 1);
+}
+
+/*
+ * Creates a Tokenizer which reads a sequence of buffers (such as the mapped
+ * regions of a large file) as one input.  The file name and line number are
+ * used in error messages.
+ */
+Tokenizer(ByteBuffer [] regions, String filename, int line) {
+	init();
+	initBuffer(true);
+	this.regions = new ByteBuffer[regions.length];
+	for (int i = 0; i < regions.length; i++)
+		this.regions[i] = regions[i].duplicate();
+	this.filename = filename;
+	this.line = line;
 }
 
 /**
@@ -177,13 +279,52 @@ Tokenizer(File f) throws FileNotFoundException {
 	filename = f.getName();
 }
 
+/*
+ * Reads more input into the buffer, once all of it has been read.  The last
+ * character is kept, so that it can still be returned by ungetChar().
+ */
+private boolean
+fill() throws IOException {
+	if (is == null && regions == null && chars == null)
+		return false;
+	if (limit > 0) {
+		in[0] = in[limit - 1];
+		pos = limit = 1;
+	}
+	int space = in.length - limit;
+	int n = -1;
+	if (chars != null) {
+		n = Math.min(chars.remaining(), space);
+		chars.get(in, limit, n);
+		limit += n;
+		return (n > 0);
+	} else if (regions != null) {
+		while (region < regions.length &&
+		       !regions[region].hasRemaining())
+			region++;
+		if (region < regions.length) {
+			ByteBuffer buf = regions[region];
+			n = Math.min(buf.remaining(), space);
+			buf.get(bytes, 0, n);
+		}
+	} else
+		n = is.read(bytes, 0, space);
+	if (n <= 0)
+		return false;
+	for (int i = 0; i < n; i++)
+		in[limit + i] = (char) (bytes[i] & 0xFF);
+	limit += n;
+	return true;
+}
+
 private int
 getChar() throws IOException {
-	int c = is.read();
+	if (pos == limit && !fill())
+		return -1;
+	int c = in[pos++];
 	if (c == '\r') {
-		int next = is.read();
-		if (next != '\n')
-			is.unread(next);
+		if ((pos < limit || fill()) && in[pos] == '\n')
+			pos++;
 		c = '\n';
 	}
 	if (c == '\n')
@@ -191,11 +332,12 @@ getChar() throws IOException {
 	return c;
 }
 
+/* Returns the last character read by getChar() to the input. */
 private void
-ungetChar(int c) throws IOException {
+ungetChar(int c) {
 	if (c == -1)
 		return;
-	is.unread(c);
+	pos--;
 	if (c == '\n')
 		line--;
 }
@@ -221,17 +363,22 @@ checkUnbalancedParens() throws TextParseException {
 		throw exception("unbalanced parentheses");
 }
 
-/**
- * Gets the next token from a tokenizer.
- * @param wantWhitespace If true, leading whitespace will be returned as a
- * token.
- * @param wantComment If true, comments are returned as tokens.
- * @return The next token in the stream.
- * @throws TextParseException The input was invalid.
- * @throws IOException An I/O error occurred.
+private void
+append(int c) {
+	if (length == text.length) {
+		char [] newtext = new char[text.length * 2];
+		System.arraycopy(text, 0, newtext, 0, length);
+		text = newtext;
+	}
+	text[length++] = (char) c;
+}
+
+/*
+ * Reads the next token, leaving its text in the text array rather than
+ * creating a String.
  */
-public Token
-get(boolean wantWhitespace, boolean wantComment) throws IOException {
+private Token
+next(boolean wantWhitespace, boolean wantComment) throws IOException {
 	int type;
 	int c;
 
@@ -251,22 +398,22 @@ get(boolean wantWhitespace, boolean wantComment) throws IOException {
 	}
 	int skipped = skipWhitespace();
 	if (skipped > 0 && wantWhitespace)
-		return current.set(WHITESPACE, null);
+		return current.set(WHITESPACE);
 	type = IDENTIFIER;
-	sb.setLength(0);
+	length = 0;
 	while (true) {
 		c = getChar();
-		if (c == -1 || delimiters.indexOf(c) != -1) {
+		if (c == -1 || (c < 128 && delimiters[c])) {
 			if (c == -1) {
 				if (quoting)
 					throw exception("EOF in " +
 							"quoted string");
-				else if (sb.length() == 0)
-					return current.set(EOF, null);
+				else if (length == 0)
+					return current.set(EOF);
 				else
-					return current.set(type, sb);
+					return current.set(type);
 			}
-			if (sb.length() == 0 && type != QUOTED_STRING) {
+			if (length == 0 && type != QUOTED_STRING) {
 				if (c == '(') {
 					multiline++;
 					skipWhitespace();
@@ -291,28 +438,29 @@ get(boolean wantWhitespace, boolean wantComment) throws IOException {
 					}
 					continue;
 				} else if (c == '\n') {
-					return current.set(EOL, null);
+					return current.set(EOL);
 				} else if (c == ';') {
 					while (true) {
 						c = getChar();
 						if (c == '\n' || c == -1)
 							break;
-						sb.append((char)c);
+						if (wantComment)
+							append(c);
 					}
 					if (wantComment) {
 						ungetChar(c);
-						return current.set(COMMENT, sb);
+						return current.set(COMMENT);
 					} else if (c == -1 &&
 						   type != QUOTED_STRING)
 					{
 						checkUnbalancedParens();
-						return current.set(EOF, null);
+						return current.set(EOF);
 					} else if (multiline > 0) {
 						skipWhitespace();
-						sb.setLength(0);
+						length = 0;
 						continue;
 					} else
-						return current.set(EOL, null);
+						return current.set(EOL);
 				} else
 					throw new IllegalStateException();
 			} else
@@ -322,17 +470,34 @@ get(boolean wantWhitespace, boolean wantComment) throws IOException {
 			c = getChar();
 			if (c == -1)
 				throw exception("unterminated escape sequence");
-			sb.append('\\');
+			append('\\');
 		} else if (quoting && c == '\n') {
 			throw exception("newline in quoted string");
 		}
-		sb.append((char)c);
+		append(c);
 	}
-	if (sb.length() == 0 && type != QUOTED_STRING) {
+	if (length == 0 && type != QUOTED_STRING) {
 		checkUnbalancedParens();
-		return current.set(EOF, null);
+		return current.set(EOF);
 	}
-	return current.set(type, sb);
+	return current.set(type);
+}
+
+/**
+ * Gets the next token from a tokenizer.
+ * @param wantWhitespace If true, leading whitespace will be returned as a
+ * token.
+ * @param wantComment If true, comments are returned as tokens.
+ * @return The next token in the stream.
+ * @throws TextParseException The input was invalid.
+ * @throws IOException An I/O error occurred.
+ */
+public Token
+get(boolean wantWhitespace, boolean wantComment) throws IOException {
+	Token token = next(wantWhitespace, wantComment);
+	if (token.value == null && token.type >= IDENTIFIER)
+		token.value = new String(text, 0, length);
+	return token;
 }
 
 /**
@@ -384,6 +549,22 @@ _getIdentifier(String expected) throws IOException {
 	return next.value;
 }
 
+/*
+ * Gets the next token, which must be an identifier, and returns a view of
+ * its text.  The view is only valid until the next token is read.
+ */
+private CharSequence
+_getIdentifierText(String expected) throws IOException {
+	Token next = next(false, false);
+	if (next.type != IDENTIFIER)
+		throw exception("expected " + expected);
+	if (view == null || view.array() != text)
+		view = CharBuffer.wrap(text);
+	view.clear();
+	view.limit(length);
+	return view;
+}
+
 /**
  * Gets the next token from a tokenizer, ensures it is an unquoted string,
  * and converts it to a string.
@@ -404,14 +585,17 @@ getIdentifier() throws IOException {
  */
 public long
 getLong() throws IOException {
-	String next = _getIdentifier("an integer");
+	CharSequence next = _getIdentifierText("an integer");
 	if (!Character.isDigit(next.charAt(0)))
 		throw exception("expected an integer");
-	try {
-		return Long.parseLong(next);
-	} catch (NumberFormatException e) {
-		throw exception("expected an integer");
+	long value = 0;
+	for (int i = 0; i < next.length(); i++) {
+		int digit = Character.digit(next.charAt(i), 10);
+		if (digit < 0 || value > (Long.MAX_VALUE - digit) / 10)
+			throw exception("expected an integer");
+		value = value * 10 + digit;
 	}
+	return value;
 }
 
 /**
@@ -471,9 +655,9 @@ getUInt8() throws IOException {
  */
 public long
 getTTL() throws IOException {
-	String next = _getIdentifier("a TTL value");
+	CharSequence next = _getIdentifierText("a TTL value");
 	try {
-		return TTL.parseTTL(next);
+		return TTL.parse(next, true);
 	}
 	catch (NumberFormatException e) {
 		throw exception("expected a TTL value");
@@ -489,7 +673,7 @@ getTTL() throws IOException {
  */
 public long
 getTTLLike() throws IOException {
-	String next = _getIdentifier("a TTL-like value");
+	CharSequence next = _getIdentifierText("a TTL-like value");
 	try {
 		return TTL.parse(next, false);
 	}
@@ -510,7 +694,7 @@ getTTLLike() throws IOException {
  */
 public Name
 getName(Name origin) throws IOException {
-	String next = _getIdentifier("a name");
+	CharSequence next = _getIdentifierText("a name");
 	try {
 		Name name = Name.fromString(next, origin);
 		if (!name.isAbsolute())
@@ -580,12 +764,15 @@ private String
 remainingStrings() throws IOException {
         StringBuffer buffer = null;
         while (true) {
-                Tokenizer.Token t = get();
+                Tokenizer.Token t = next(false, false);
                 if (!t.isString())
                         break;
                 if (buffer == null)
                         buffer = new StringBuffer();
-                buffer.append(t.value);
+                if (t.value != null)
+                        buffer.append(t.value);
+                else
+                        buffer.append(text, 0, length);
         }
         unget();
         if (buffer == null)
@@ -41,14 +41,17 @@ static {
 }
 
 private boolean bound = false;
+int uses;
+Object poolKey;
 
 public
 UDPClient(long endTime) throws IOException {
 	super(DatagramChannel.open(), endTime);
 }
 
-private void
-bind_random(InetSocketAddress addr) throws IOException
+static boolean
+bind_random(DatagramChannel channel, InetSocketAddress addr)
+throws IOException
 {
 	if (prng_initializing) {
 		try {
@@ -57,10 +60,9 @@ bind_random(InetSocketAddress addr) throws IOException
 		catch (InterruptedException e) {
 		}
 		if (prng_initializing)
-			return;
+			return false;
 	}
 
-	DatagramChannel channel = (DatagramChannel) key.channel();
 	InetSocketAddress temp;
 
 	for (int i = 0; i < 1024; i++) {
@@ -73,30 +75,46 @@ bind_random(InetSocketAddress addr) throws IOException
 			else
 				temp = new InetSocketAddress(port);
 			channel.socket().bind(temp);
-			bound = true;
-			return;
+			return true;
 		}
 		catch (SocketException e) {
 		}
 	}
+	return false;
 }
 
-void
-bind(SocketAddress addr) throws IOException {
+/*
+ * Binds a channel to the specified local address, or to a random port if
+ * the address is null or does not specify a port.  Returns false if the
+ * channel could not be bound to a random port, in which case the system
+ * will choose a port when the channel is connected.
+ */
+static boolean
+bind(DatagramChannel channel, SocketAddress addr) throws IOException {
 	if (addr == null ||
 	    (addr instanceof InetSocketAddress &&
 	     ((InetSocketAddress)addr).getPort() == 0))
 	{
-		bind_random((InetSocketAddress) addr);
-		if (bound)
-			return;
+		if (bind_random(channel, (InetSocketAddress) addr))
+			return true;
 	}
 
 	if (addr != null) {
-		DatagramChannel channel = (DatagramChannel) key.channel();
 		channel.socket().bind(addr);
-		bound = true;
+		return true;
 	}
+	return false;
+}
+
+void
+bind(SocketAddress addr) throws IOException {
+	DatagramChannel channel = (DatagramChannel) key.channel();
+	bound = bind(channel, addr);
+}
+
+boolean
+isBound() {
+	return bound;
 }
 
 void
@@ -118,33 +136,80 @@ send(byte [] data) throws IOException {
 byte []
 recv(int max) throws IOException {
 	DatagramChannel channel = (DatagramChannel) key.channel();
-	byte [] temp = new byte[max];
+	BufferPool pool = BufferPool.getDefault();
+	ByteBuffer buffer = pool.acquire();
+	byte [] data;
 	key.interestOps(SelectionKey.OP_READ);
 	try {
-		while (!key.isReadable())
+		buffer.limit(Math.min(max, buffer.capacity()));
+		long ret;
+		/*
+		 * A pooled channel may still be marked readable from the
+		 * last time it was used, so try reading before waiting
+		 * rather than trusting the key's ready set.
+		 */
+		while ((ret = channel.read(buffer)) == 0) {
+			key.selector().selectedKeys().clear();
 			blockUntil(key, endTime);
+		}
+		if (ret < 0)
+			throw new EOFException();
+		data = new byte[(int) ret];
+		buffer.flip();
+		buffer.get(data);
 	}
 	finally {
 		if (key.isValid())
 			key.interestOps(0);
+		pool.release(buffer);
 	}
-	long ret = channel.read(ByteBuffer.wrap(temp));
-	if (ret <= 0)
-		throw new EOFException();
-	int len = (int) ret;
-	byte [] data = new byte[len];
-	System.arraycopy(temp, 0, data, 0, len);
 	verboseLog("UDP read", channel.socket().getLocalSocketAddress(),
 		   channel.socket().getRemoteSocketAddress(), data);
 	return data;
 }
 
+/*
+ * Prepares a pooled client for another exchange, discarding any datagrams
+ * (such as late responses to earlier queries) which have arrived since it
+ * was last used.
+ */
+void
+reuse(long endTime) throws IOException {
+	this.endTime = endTime;
+	DatagramChannel channel = (DatagramChannel) key.channel();
+	BufferPool pool = BufferPool.getDefault();
+	ByteBuffer buffer = pool.acquire();
+	try {
+		do {
+			buffer.clear();
+		} while (channel.read(buffer) > 0);
+	}
+	finally {
+		pool.release(buffer);
+	}
+	key.selector().selectedKeys().clear();
+}
+
 static byte []
 sendrecv(SocketAddress local, SocketAddress remote, byte [] data, int max,
 	 long endTime)
 throws IOException
 {
-	UDPClient client = new UDPClient(endTime);
+	UDPClient client = UDPSocketPool.borrow(local, remote, endTime);
+	if (client != null) {
+		boolean ok = false;
+		try {
+			client.send(data);
+			byte [] response = client.recv(max);
+			ok = true;
+			return response;
+		}
+		finally {
+			UDPSocketPool.release(client, ok);
+		}
+	}
+
+	client = new UDPClient(endTime);
 	try {
 		client.bind(local);
 		client.connect(remote);
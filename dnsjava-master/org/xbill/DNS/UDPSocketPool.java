@@ -0,0 +1,258 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+import java.io.*;
+import java.net.*;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * A pool of UDP sockets used by SimpleResolver for synchronous queries.
+ * Without the pool, every query creates, binds and closes its own socket.
+ * With the pool, sockets which have been bound to a random local port and
+ * connected to a server are kept for later queries to the same server.
+ * <p>
+ * To preserve resistance to spoofed responses, an idle socket is chosen at
+ * random for each query, and a socket is closed (and later replaced by one
+ * bound to a new random port) after it has been used for a limited number
+ * of queries.  A socket on which a query failed or timed out is never
+ * reused, and datagrams which arrive while a socket is idle are discarded.
+ * <p>
+ * The pool is disabled by default.  It can be enabled by calling
+ * {@link #setSize} or by setting the "udppoolsize" option.
+ *
+ * @see SimpleResolver
+ * @see Options
+ */
+
+public final class UDPSocketPool {
+
+private static final int defaultMaxUses = 64;
+
+private static Map idle = new HashMap();
+private static int size = Math.max(Options.intValue("udppoolsize"), 0);
+private static int maxUses = defaultMaxUses;
+private static SecureRandom random = new SecureRandom();
+
+private static long hits;
+private static long misses;
+private static long bindFailures;
+private static int inUse;
+private static int idleCount;
+
+private
+UDPSocketPool() {}
+
+/**
+ * Sets the maximum number of idle sockets kept for each combination of
+ * local and server address.  A value of 0 disables the pool, and closes
+ * all idle sockets.
+ * @param sockets The maximum number of idle sockets per server.
+ */
+public static void
+setSize(int sockets) {
+	if (sockets < 0)
+		throw new IllegalArgumentException("invalid pool size");
+	synchronized (UDPSocketPool.class) {
+		size = sockets;
+	}
+	if (sockets == 0)
+		clear();
+}
+
+/**
+ * Gets the maximum number of idle sockets kept for each combination of
+ * local and server address.  A value of 0 indicates that the pool is
+ * disabled.
+ */
+public static synchronized int
+getSize() {
+	return size;
+}
+
+/**
+ * Sets the number of queries after which a socket is closed rather than
+ * returned to the pool.  The default is 64.
+ * @param uses The maximum number of queries sent on one socket.
+ */
+public static synchronized void
+setMaxUses(int uses) {
+	if (uses <= 0)
+		throw new IllegalArgumentException("invalid maximum uses");
+	maxUses = uses;
+}
+
+/**
+ * Gets the number of queries after which a socket is closed rather than
+ * returned to the pool.
+ */
+public static synchronized int
+getMaxUses() {
+	return maxUses;
+}
+
+/** Closes all idle sockets. */
+public static void
+clear() {
+	List clients = new ArrayList();
+	synchronized (UDPSocketPool.class) {
+		Iterator it = idle.values().iterator();
+		while (it.hasNext())
+			clients.addAll((List) it.next());
+		idle.clear();
+		idleCount = 0;
+	}
+	close(clients);
+}
+
+/**
+ * Returns the number of queries which were sent on an idle socket from the
+ * pool.
+ */
+public static synchronized long
+getHits() {
+	return hits;
+}
+
+/**
+ * Returns the number of queries for which the pool was enabled, but which
+ * required a new socket.
+ */
+public static synchronized long
+getMisses() {
+	return misses;
+}
+
+/**
+ * Returns the number of new pooled sockets which could not be bound to a
+ * random port, either because of an error or because no free port was
+ * found.
+ */
+public static synchronized long
+getBindFailures() {
+	return bindFailures;
+}
+
+/** Returns the number of pooled sockets currently being used by a query. */
+public static synchronized int
+getInUse() {
+	return inUse;
+}
+
+/** Returns the number of idle sockets in the pool. */
+public static synchronized int
+getIdle() {
+	return idleCount;
+}
+
+private static void
+close(List clients) {
+	Iterator it = clients.iterator();
+	while (it.hasNext()) {
+		try {
+			((UDPClient) it.next()).cleanup();
+		}
+		catch (IOException e) {
+		}
+	}
+}
+
+/* Removes a random idle client from the pool, or returns null if none. */
+private static synchronized UDPClient
+take(Object key) {
+	List list = (List) idle.get(key);
+	if (list == null || list.isEmpty())
+		return null;
+	UDPClient client;
+	client = (UDPClient) list.remove(random.nextInt(list.size()));
+	if (list.isEmpty())
+		idle.remove(key);
+	idleCount--;
+	hits++;
+	inUse++;
+	return client;
+}
+
+/**
+ * Gets a connected client for a query, or returns null if the pool is
+ * disabled.
+ */
+static UDPClient
+borrow(SocketAddress local, SocketAddress remote, long endTime)
+throws IOException
+{
+	synchronized (UDPSocketPool.class) {
+		if (size == 0)
+			return null;
+	}
+	Object key = Arrays.asList(new Object[] {local, remote});
+	UDPClient client;
+	while ((client = take(key)) != null) {
+		try {
+			client.reuse(endTime);
+			return client;
+		}
+		catch (IOException e) {
+			/*
+			 * Probably an ICMP error from an earlier query; get
+			 * another socket.
+			 */
+			release(client, false);
+		}
+	}
+
+	synchronized (UDPSocketPool.class) {
+		misses++;
+	}
+	client = new UDPClient(endTime);
+	boolean done = false;
+	try {
+		client.bind(local);
+		client.connect(remote);
+		done = true;
+	}
+	finally {
+		synchronized (UDPSocketPool.class) {
+			if (!done || !client.isBound())
+				bindFailures++;
+			if (done)
+				inUse++;
+		}
+		if (!done)
+			client.cleanup();
+	}
+	client.poolKey = key;
+	return client;
+}
+
+/**
+ * Returns a client to the pool after a query.  The client is closed if the
+ * query failed, if it has been used too many times, or if the pool is full.
+ */
+static void
+release(UDPClient client, boolean ok) {
+	client.uses++;
+	synchronized (UDPSocketPool.class) {
+		inUse--;
+		if (ok && client.uses < maxUses && size > 0) {
+			List list = (List) idle.get(client.poolKey);
+			if (list == null) {
+				list = new ArrayList();
+				idle.put(client.poolKey, list);
+			}
+			if (list.size() < size) {
+				list.add(client);
+				idleCount++;
+				return;
+			}
+		}
+	}
+	try {
+		client.cleanup();
+	}
+	catch (IOException e) {
+	}
+}
+
+}
@@ -3,11 +3,29 @@
 package org.xbill.DNS;
 
 import java.io.*;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import org.xbill.DNS.utils.base32;
 
 /**
  * A DNS Zone.  This encapsulates all data related to a Zone, and provides
  * convenient lookup methods.
+ * <p>
+ * A zone may be created in concurrent mode, in which lookups never lock or
+ * wait for updates.  The contents of a concurrent zone are an immutable
+ * version, and each update copies the parts it changes and then replaces the
+ * current version, so readers see either all or none of an update.  This
+ * makes single updates more expensive; groups of changes, such as IXFR
+ * deltas, should be applied with {@link #applyDeltas}, which creates one new
+ * version for all of them.
+ * <p>
+ * The data of a very large zone may instead be kept outside of the Java heap
+ * in a {@link RecordStore}.  Records are then converted to objects each time
+ * they are found.
+ * <p>
+ * The owner names of NSEC and NSEC3 records are kept in sorted indexes as
+ * the zone changes, so that the records needed to prove that a name does not
+ * exist can be found without scanning or rehashing the zone.
  *
  * @author Brian Wellington
  */
@@ -29,6 +47,248 @@ private int dclass = DClass.IN;
 private RRset NS;
 private SOARecord SOA;
 private boolean hasWild;
+private Chains chains = new Chains();
+
+/* Used instead of the above fields in concurrent mode. */
+private boolean concurrent;
+private volatile Version version;
+
+/* Incremented after each change. */
+private volatile long generation;
+
+private static final base32 b32 = new base32(base32.Alphabet.BASE32HEX,
+					     false, false);
+private static final Name wildLabel = Name.fromConstantString("*");
+
+/*
+ * The owner names of the NSEC and NSEC3 records in a zone, in canonical
+ * order.
+ */
+private static final class Chains implements Serializable {
+	private static final long serialVersionUID = 4478305911752360145L;
+
+	final TreeSet nsec;
+	final TreeSet nsec3;
+
+	Chains() {
+		nsec = new TreeSet();
+		nsec3 = new TreeSet();
+	}
+
+	Chains(Chains c) {
+		nsec = new TreeSet(c.nsec);
+		nsec3 = new TreeSet(c.nsec3);
+	}
+
+	private static boolean
+	changes(TreeSet chain, Name name, Object types, int type) {
+		return chain.contains(name) != (oneRRset(types, type) != null);
+	}
+
+	/* Returns whether new contents for a name would change the chains. */
+	boolean
+	changes(Name name, Object types) {
+		return changes(nsec, name, types, Type.NSEC) ||
+		       changes(nsec3, name, types, Type.NSEC3);
+	}
+
+	private static void
+	update(TreeSet chain, Name name, Object types, int type) {
+		if (oneRRset(types, type) != null)
+			chain.add(name);
+		else
+			chain.remove(name);
+	}
+
+	void
+	update(Name name, Object types) {
+		update(nsec, name, types, Type.NSEC);
+		update(nsec3, name, types, Type.NSEC3);
+	}
+}
+
+/*
+ * An immutable version of the contents of a concurrent zone.  Names are
+ * spread over a fixed number of hash buckets, so that an update only copies
+ * the buckets that it changes.  A version is only modified while it is being
+ * created by an update, before it is published.
+ */
+private static final class Version implements Serializable {
+	private static final long serialVersionUID = -7315218765396781027L;
+	private static final int BUCKETS = 256;
+
+	private final Map [] buckets;
+	/* The buckets copied by the current update, or null if published. */
+	private transient boolean [] copied;
+	Object originNode;
+	SOARecord SOA;
+	RRset NS;
+	boolean hasWild;
+	/* The chains are copied only if an update changes them. */
+	Chains chains;
+	private transient boolean chainsCopied;
+
+	Version() {
+		buckets = new Map[BUCKETS];
+		copied = new boolean[BUCKETS];
+		chains = new Chains();
+		chainsCopied = true;
+	}
+
+	/* Starts an update based on an existing version. */
+	Version(Version v) {
+		buckets = v.buckets.clone();
+		copied = new boolean[BUCKETS];
+		chains = v.chains;
+		originNode = v.originNode;
+		SOA = v.SOA;
+		NS = v.NS;
+		hasWild = v.hasWild;
+	}
+
+	private static int
+	index(Name name) {
+		int h = name.hashCode();
+		return (h ^ (h >>> 16)) & (BUCKETS - 1);
+	}
+
+	Object
+	get(Name name) {
+		Map m = buckets[index(name)];
+		return (m == null) ? null : m.get(name);
+	}
+
+	void
+	put(Name name, Object types) {
+		int i = index(name);
+		Map m = buckets[i];
+		if (!copied[i]) {
+			m = (m == null) ? new HashMap() : new HashMap(m);
+			buckets[i] = m;
+			copied[i] = true;
+		}
+		if (types != null)
+			m.put(name, types);
+		else
+			m.remove(name);
+		if (chains.changes(name, types)) {
+			if (!chainsCopied) {
+				chains = new Chains(chains);
+				chainsCopied = true;
+			}
+			chains.update(name, types);
+		}
+	}
+
+	/* Returns the nodes in canonical order. */
+	SortedMap
+	sorted() {
+		SortedMap map = new TreeMap();
+		for (int i = 0; i < BUCKETS; i++)
+			if (buckets[i] != null)
+				map.putAll(buckets[i]);
+		return map;
+	}
+
+	void
+	addRRset(Name name, RRset rrset) {
+		if (!hasWild && name.isWild())
+			hasWild = true;
+		Object types = get(name);
+		if (types == null) {
+			put(name, rrset);
+			return;
+		}
+		int rtype = rrset.getType();
+		List list = new ArrayList();
+		if (types instanceof List)
+			list.addAll((List) types);
+		else
+			list.add(types);
+		for (int i = 0; i < list.size(); i++) {
+			RRset set = (RRset) list.get(i);
+			if (set.getType() == rtype) {
+				list.set(i, rrset);
+				put(name, list.size() == 1 ? (Object) rrset : list);
+				return;
+			}
+		}
+		list.add(rrset);
+		put(name, list);
+	}
+
+	void
+	removeRRset(Name name, int type) {
+		Object types = get(name);
+		if (types == null)
+			return;
+		if (types instanceof List) {
+			List list = new ArrayList((List) types);
+			for (int i = 0; i < list.size(); i++) {
+				RRset set = (RRset) list.get(i);
+				if (set.getType() == type) {
+					list.remove(i);
+					if (list.size() == 1)
+						put(name, list.get(0));
+					else
+						put(name, list);
+					return;
+				}
+			}
+		} else if (((RRset) types).getType() == type)
+			put(name, null);
+	}
+
+	/* RRsets in a version are never modified, so changes copy them. */
+	void
+	addRecord(Record r) {
+		Name name = r.getName();
+		RRset rrset = oneRRset(get(name), r.getRRsetType());
+		if (rrset == null)
+			rrset = new RRset(r);
+		else {
+			rrset = new RRset(rrset);
+			rrset.addRR(r);
+		}
+		addRRset(name, rrset);
+	}
+
+	void
+	removeRecord(Record r) {
+		Name name = r.getName();
+		int rtype = r.getRRsetType();
+		RRset rrset = oneRRset(get(name), rtype);
+		if (rrset == null)
+			return;
+		if (rrset.size() == 1 && rrset.first().equals(r))
+			removeRRset(name, rtype);
+		else {
+			rrset = new RRset(rrset);
+			rrset.deleteRR(r);
+			addRRset(name, rrset);
+		}
+	}
+
+	/* Updates the cached origin data after changes. */
+	void
+	refresh(Name origin) {
+		originNode = get(origin);
+		RRset soa = oneRRset(originNode, Type.SOA);
+		if (soa != null)
+			SOA = (SOARecord) soa.first();
+		RRset ns = oneRRset(originNode, Type.NS);
+		if (ns != null)
+			NS = ns;
+	}
+
+	/* Finishes an update; the version must not be changed afterwards. */
+	Version
+	publish() {
+		copied = null;
+		chainsCopied = false;
+		return this;
+	}
+}
 
 class ZoneIterator implements Iterator {
 	private Iterator zentries;
@@ -36,9 +296,16 @@ class ZoneIterator implements Iterator {
 	private int count;
 	private boolean wantLastSOA;
 
+	private Object originNode;
+
 	ZoneIterator(boolean axfr) {
-		synchronized (Zone.this) {
+		Version v = version;
+		if (v != null) {
+			zentries = v.sorted().entrySet().iterator();
+			originNode = v.originNode;
+		} else synchronized (Zone.this) {
 			zentries = data.entrySet().iterator();
+			originNode = Zone.this.originNode;
 		}
 		wantLastSOA = axfr;
 		RRset [] sets = allRRsets(originNode);
@@ -92,7 +359,7 @@ class ZoneIterator implements Iterator {
 	}
 }
 
-private void
+void
 validate() throws IOException {
 	originNode = exactName(origin);
 	if (originNode == null)
@@ -110,7 +377,7 @@ validate() throws IOException {
 		throw new IOException(origin + ": no NS set specified");
 }
 
-private final void
+final void
 maybeAddRecord(Record record) throws IOException {
 	int rtype = record.getType();
 	Name name = record.getName();
@@ -124,6 +391,88 @@ maybeAddRecord(Record record) throws IOException {
 		addRecord(record);
 }
 
+/*
+ * Switches a newly created zone to concurrent mode, moving its contents into
+ * the first version.
+ */
+void
+makeConcurrent() {
+	Version v = new Version();
+	Iterator it = data.entrySet().iterator();
+	while (it.hasNext()) {
+		Map.Entry entry = (Map.Entry) it.next();
+		v.put((Name) entry.getKey(), entry.getValue());
+	}
+	v.originNode = originNode;
+	v.SOA = SOA;
+	v.NS = NS;
+	v.hasWild = hasWild;
+	data = null;
+	chains = null;
+	originNode = null;
+	SOA = null;
+	NS = null;
+	concurrent = true;
+	version = v.publish();
+}
+
+/*
+ * Returns a map which keeps the data of a zone in a store.  Each name's
+ * RRsets are stored with their records and signatures in wire format.
+ */
+private static Map
+storeMap(RecordStore store) {
+	return new RecordStore.StoreMap(store, new RecordStore.Codec() {
+		public void
+		encode(Object types, DNSOutput out) {
+			RRset [] sets = rrsets(types);
+			Compression c = new Compression();
+			out.writeU16(sets.length);
+			for (int i = 0; i < sets.length; i++) {
+				int countPos = out.current();
+				out.writeU16(0);
+				int count = 0;
+				Iterator it = sets[i].rrs(false);
+				while (it.hasNext()) {
+					((Record) it.next()).toWire(out,
+							Section.ANSWER, c);
+					count++;
+				}
+				it = sets[i].sigs();
+				while (it.hasNext()) {
+					((Record) it.next()).toWire(out,
+							Section.ANSWER, c);
+					count++;
+				}
+				out.writeU16At(count, countPos);
+			}
+		}
+
+		public Object
+		decode(Name name, DNSInput in) throws IOException {
+			int nsets = in.readU16();
+			LinkedList list = new LinkedList();
+			for (int i = 0; i < nsets; i++) {
+				RRset rrset = new RRset();
+				int count = in.readU16();
+				for (int j = 0; j < count; j++)
+					rrset.addRR(Record.fromWire(in,
+							Section.ANSWER));
+				if (nsets == 1)
+					return rrset;
+				list.add(rrset);
+			}
+			return list;
+		}
+	});
+}
+
+/* Creates an empty zone, to be filled by a zone transfer. */
+Zone(Name zone) {
+	data = new TreeMap();
+	origin = zone;
+}
+
 /**
  * Creates a Zone from the records in the specified master file.
  * @param zone The name of the zone.
@@ -132,8 +481,42 @@ maybeAddRecord(Record record) throws IOException {
  */
 public
 Zone(Name zone, String file) throws IOException {
+	this(zone, file, false);
+}
+
+/**
+ * Creates a Zone from the records in the specified master file.
+ * @param zone The name of the zone.
+ * @param file The master file to read from.
+ * @param concurrent Whether lookups in the zone should not lock.
+ * @see Master
+ */
+public
+Zone(Name zone, String file, boolean concurrent) throws IOException {
 	data = new TreeMap();
+	fromFile(zone, file);
+	if (concurrent)
+		makeConcurrent();
+}
 
+/**
+ * Creates a Zone from the records in the specified master file, keeping its
+ * data in a {@link RecordStore}.  The Zone is not concurrent.
+ * @param zone The name of the zone.
+ * @param file The master file to read from.
+ * @param store The store to keep the data in, which must be empty and not
+ * used by any other Cache or Zone.
+ * @throws IllegalArgumentException The store is already in use.
+ * @see Master
+ */
+public
+Zone(Name zone, String file, RecordStore store) throws IOException {
+	data = storeMap(store);
+	fromFile(zone, file);
+}
+
+private void
+fromFile(Name zone, String file) throws IOException {
 	if (zone == null)
 		throw new IllegalArgumentException("no zone name specified");
 	Master m = new Master(file, zone);
@@ -153,8 +536,42 @@ Zone(Name zone, String file) throws IOException {
  */
 public
 Zone(Name zone, Record [] records) throws IOException {
+	this(zone, records, false);
+}
+
+/**
+ * Creates a Zone from an array of records.
+ * @param zone The name of the zone.
+ * @param records The records to add to the zone.
+ * @param concurrent Whether lookups in the zone should not lock.
+ * @see Master
+ */
+public
+Zone(Name zone, Record [] records, boolean concurrent) throws IOException {
 	data = new TreeMap();
+	fromRecords(zone, records);
+	if (concurrent)
+		makeConcurrent();
+}
+
+/**
+ * Creates a Zone from an array of records, keeping its data in a
+ * {@link RecordStore}.  The Zone is not concurrent.
+ * @param zone The name of the zone.
+ * @param records The records to add to the zone.
+ * @param store The store to keep the data in, which must be empty and not
+ * used by any other Cache or Zone.
+ * @throws IllegalArgumentException The store is already in use.
+ * @see Master
+ */
+public
+Zone(Name zone, Record [] records, RecordStore store) throws IOException {
+	data = storeMap(store);
+	fromRecords(zone, records);
+}
 
+private void
+fromRecords(Name zone, Record [] records) throws IOException {
 	if (zone == null)
 		throw new IllegalArgumentException("no zone name specified");
 	origin = zone;
@@ -168,15 +585,13 @@ fromXFR(ZoneTransferIn xfrin) throws IOException, ZoneTransferException {
 	data = new TreeMap();
 
 	origin = xfrin.getName();
-	List records = xfrin.run();
-	for (Iterator it = records.iterator(); it.hasNext(); ) {
-		Record record = (Record) it.next();
-		maybeAddRecord(record);
-	}
+	ZoneTransferIn.ZoneHandler handler;
+	handler = new ZoneTransferIn.ZoneHandler(this);
+	xfrin.run(handler);
 	if (!xfrin.isAXFR())
 		throw new IllegalArgumentException("zones can only be " +
 						   "created from AXFRs");
-	validate();
+	handler.finish();
 }
 
 /**
@@ -189,6 +604,21 @@ Zone(ZoneTransferIn xfrin) throws IOException, ZoneTransferException {
 	fromXFR(xfrin);
 }
 
+/**
+ * Creates a Zone by doing the specified zone transfer.
+ * @param xfrin The incoming zone transfer to execute.
+ * @param concurrent Whether lookups in the zone should not lock.
+ * @see ZoneTransferIn
+ */
+public
+Zone(ZoneTransferIn xfrin, boolean concurrent)
+throws IOException, ZoneTransferException
+{
+	fromXFR(xfrin);
+	if (concurrent)
+		makeConcurrent();
+}
+
 /**
  * Creates a Zone by performing a zone transfer to the specified host.
  * @see ZoneTransferIn
@@ -211,13 +641,31 @@ getOrigin() {
 /** Returns the Zone origin's NS records */
 public RRset
 getNS() {
-	return NS;
+	Version v = version;
+	return (v != null) ? v.NS : NS;
 }
 
 /** Returns the Zone's SOA record */
 public SOARecord
 getSOA() {
-	return SOA;
+	Version v = version;
+	return (v != null) ? v.SOA : SOA;
+}
+
+/**
+ * Returns a number which changes whenever the contents of the Zone are
+ * changed through its methods.  This can be used to invalidate data derived
+ * from the Zone.
+ */
+public long
+getGeneration() {
+	return generation;
+}
+
+/** Returns whether lookups in the Zone are done without locking. */
+public boolean
+isConcurrent() {
+	return concurrent;
 }
 
 /** Returns the Zone's class */
@@ -226,13 +674,27 @@ getDClass() {
 	return dclass;
 }
 
-private synchronized Object
+private Object
 exactName(Name name) {
-	return data.get(name);
+	Version v = version;
+	if (v != null)
+		return v.get(name);
+	synchronized (this) {
+		return data.get(name);
+	}
 }
 
-private synchronized RRset []
+private RRset []
 allRRsets(Object types) {
+	if (concurrent)
+		return rrsets(types);
+	synchronized (this) {
+		return rrsets(types);
+	}
+}
+
+private static RRset []
+rrsets(Object types) {
 	if (types instanceof List) {
 		List typelist = (List) types;
 		return (RRset []) typelist.toArray(new RRset[typelist.size()]);
@@ -242,10 +704,12 @@ allRRsets(Object types) {
 	}
 }
 
-private synchronized RRset
+private static RRset
 oneRRset(Object types, int type) {
 	if (type == Type.ANY)
 		throw new IllegalArgumentException("oneRRset(ANY)");
+	if (types == null)
+		return null;
 	if (types instanceof List) {
 		List list = (List) types;
 		for (int i = 0; i < list.size(); i++) {
@@ -285,10 +749,12 @@ addRRset(Name name, RRset rrset) {
 			RRset set = (RRset) list.get(i);
 			if (set.getType() == rtype) {
 				list.set(i, rrset);
+				data.put(name, list);
 				return;
 			}
 		}
 		list.add(rrset);
+		data.put(name, list);
 	} else {
 		RRset set = (RRset) types;
 		if (set.getType() == rtype)
@@ -316,6 +782,8 @@ removeRRset(Name name, int type) {
 				list.remove(i);
 				if (list.size() == 0)
 					data.remove(name);
+				else
+					data.put(name, list);
 				return;
 			}
 		}
@@ -327,13 +795,28 @@ removeRRset(Name name, int type) {
 	}
 }
 
-private synchronized SetResponse
+private SetResponse
 lookup(Name name, int type) {
+	Version v = version;
+	if (v != null)
+		return lookup(v, name, type);
+	synchronized (this) {
+		return lookup(null, name, type);
+	}
+}
+
+/*
+ * Does a lookup in a version of a concurrent zone, or in the zone's own
+ * data (with the zone locked) if the version is null.
+ */
+private SetResponse
+lookup(Version v, Name name, int type) {
 	int labels;
 	int olabels;
 	int tlabels;
 	RRset rrset;
 	Name tname;
+	Name probe = null;
 	Object types;
 	SetResponse sr;
 
@@ -351,10 +834,15 @@ lookup(Name name, int type) {
 			tname = origin;
 		else if (isExact)
 			tname = name;
-		else
-			tname = new Name(name, labels - tlabels);
+		else {
+			if (probe == null)
+				probe = new Name(name, labels - tlabels);
+			else
+				probe.setSuffix(name, labels - tlabels);
+			tname = probe;
+		}
 
-		types = exactName(tname);
+		types = (v != null) ? v.get(tname) : data.get(tname);
 		if (types == null)
 			continue;
 
@@ -369,7 +857,7 @@ lookup(Name name, int type) {
 		/* If this is an ANY lookup, return everything. */
 		if (isExact && type == Type.ANY) {
 			sr = new SetResponse(SetResponse.SUCCESSFUL);
-			RRset [] sets = allRRsets(types);
+			RRset [] sets = rrsets(types);
 			for (int i = 0; i < sets.length; i++)
 				sr.addRRset(sets[i]);
 			return sr;
@@ -402,11 +890,11 @@ lookup(Name name, int type) {
 			return SetResponse.ofType(SetResponse.NXRRSET);
 	}
 
-	if (hasWild) {
+	if ((v != null) ? v.hasWild : hasWild) {
 		for (int i = 0; i < labels - olabels; i++) {
 			tname = name.wild(i + 1);
 
-			types = exactName(tname);
+			types = (v != null) ? v.get(tname) : data.get(tname);
 			if (types == null)
 				continue;
 
@@ -449,6 +937,168 @@ findExactMatch(Name name, int type) {
 	return oneRRset(types, type);
 }
 
+/*
+ * Finishes a change to a zone which is not concurrent, updating the cached
+ * origin data if the origin was changed, and the NSEC and NSEC3 chains.
+ */
+private void
+changed(Name name) {
+	Object types = data.get(name);
+	if (name.equals(origin))
+		originNode = types;
+	if (chains.changes(name, types))
+		chains.update(name, types);
+	generation++;
+}
+
+/*
+ * Returns the RRset of a type at the owner in a chain which is equal to or
+ * closest before a name, wrapping around to the last owner.  The version
+ * is null in a zone which is not concurrent, which must be locked.
+ */
+private RRset
+covering(Version v, TreeSet chain, Name name, int type) {
+	if (chain.isEmpty())
+		return null;
+	Name owner = (Name) chain.floor(name);
+	if (owner == null)
+		owner = (Name) chain.last();
+	return oneRRset((v != null) ? v.get(owner) : data.get(owner), type);
+}
+
+/**
+ * Finds the NSEC records for a name: those owned by the name if it exists,
+ * or otherwise those which cover it and prove that it does not exist.  The
+ * covering records are owned by the closest name before it in canonical
+ * order.
+ * @param name The name
+ * @return The NSEC RRset, or null if the name is not in the Zone or the Zone
+ * has no NSEC records.
+ */
+public RRset
+findNSEC(Name name) {
+	if (!name.subdomain(origin))
+		return null;
+	Version v = version;
+	if (v != null)
+		return covering(v, v.chains.nsec, name, Type.NSEC);
+	synchronized (this) {
+		return covering(null, chains.nsec, name, Type.NSEC);
+	}
+}
+
+/* Returns the owner of the NSEC3 records for a name. */
+private Name
+hashed(NSEC3Record params, Name name) throws NoSuchAlgorithmException {
+	try {
+		return new Name(b32.toString(params.hashName(name)), origin);
+	}
+	catch (TextParseException e) {
+		throw new IllegalStateException("invalid hashed name");
+	}
+}
+
+/* Returns the parameters of a zone's NSEC3 chain, or null if it has none. */
+private NSEC3Record
+nsec3Params(Version v, TreeSet chain) {
+	if (chain.isEmpty())
+		return null;
+	Name owner = (Name) chain.first();
+	RRset rrset = oneRRset((v != null) ? v.get(owner) : data.get(owner),
+			       Type.NSEC3);
+	return (NSEC3Record) rrset.first();
+}
+
+/**
+ * Finds the NSEC3 records for a name: those owned by the hash of the name,
+ * if the name exists, or otherwise those which cover the hash.  The name is
+ * hashed with the parameters of the Zone's NSEC3 records.
+ * @param name The name
+ * @return The NSEC3 RRset, or null if the name is not in the Zone or the
+ * Zone has no NSEC3 records.
+ * @throws NoSuchAlgorithmException The hash algorithm is unknown.
+ */
+public RRset
+findNSEC3(Name name) throws NoSuchAlgorithmException {
+	if (!name.subdomain(origin))
+		return null;
+	Version v = version;
+	if (v != null)
+		return findNSEC3(v, v.chains.nsec3, name);
+	synchronized (this) {
+		return findNSEC3(null, chains.nsec3, name);
+	}
+}
+
+private RRset
+findNSEC3(Version v, TreeSet chain, Name name)
+throws NoSuchAlgorithmException
+{
+	NSEC3Record params = nsec3Params(v, chain);
+	if (params == null)
+		return null;
+	return covering(v, chain, hashed(params, name), Type.NSEC3);
+}
+
+/**
+ * Finds the NSEC3 records which prove that a name does not exist, as
+ * described in RFC 5155, section 7.2.2.  These are the records which match
+ * the closest encloser of the name, cover the next closer name, and cover
+ * the wildcard at the closest encloser.
+ * @param name The name
+ * @return An array of the three NSEC3 RRsets, in that order, which may
+ * contain the same RRset more than once; or null if the name exists, is
+ * not in the Zone, or the Zone has no NSEC3 records.
+ * @throws NoSuchAlgorithmException The hash algorithm is unknown.
+ */
+public RRset []
+findNSEC3Proof(Name name) throws NoSuchAlgorithmException {
+	if (!name.subdomain(origin))
+		return null;
+	Version v = version;
+	if (v != null)
+		return findNSEC3Proof(v, v.chains.nsec3, name);
+	synchronized (this) {
+		return findNSEC3Proof(null, chains.nsec3, name);
+	}
+}
+
+private RRset []
+findNSEC3Proof(Version v, TreeSet chain, Name name)
+throws NoSuchAlgorithmException
+{
+	NSEC3Record params = nsec3Params(v, chain);
+	if (params == null)
+		return null;
+	Name nextCloser = null;
+	Name encloser = name;
+	while (true) {
+		Name h = hashed(params, encloser);
+		if (chain.contains(h)) {
+			if (nextCloser == null)
+				return null;
+			Name wild;
+			try {
+				wild = Name.concatenate(wildLabel, encloser);
+			}
+			catch (NameTooLongException e) {
+				throw new IllegalStateException("name too long");
+			}
+			return new RRset [] {
+				covering(v, chain, h, Type.NSEC3),
+				covering(v, chain, hashed(params, nextCloser),
+					 Type.NSEC3),
+				covering(v, chain, hashed(params, wild),
+					 Type.NSEC3)
+			};
+		}
+		if (encloser.labels() <= origin.labels())
+			return null;
+		nextCloser = encloser;
+		encloser = new Name(encloser, 1);
+	}
+}
+
 /**
  * Adds an RRset to the Zone
  * @param rrset The RRset to be added
@@ -457,7 +1107,20 @@ findExactMatch(Name name, int type) {
 public void
 addRRset(RRset rrset) {
 	Name name = rrset.getName();
-	addRRset(name, rrset);
+	if (concurrent) {
+		synchronized (this) {
+			Version v = new Version(version);
+			v.addRRset(name, rrset);
+			v.refresh(origin);
+			version = v.publish();
+			generation++;
+		}
+		return;
+	}
+	synchronized (this) {
+		addRRset(name, rrset);
+		changed(name);
+	}
 }
 
 /**
@@ -470,13 +1133,22 @@ addRecord(Record r) {
 	Name name = r.getName();
 	int rtype = r.getRRsetType();
 	synchronized (this) {
+		if (concurrent) {
+			Version v = new Version(version);
+			v.addRecord(r);
+			v.refresh(origin);
+			version = v.publish();
+			generation++;
+			return;
+		}
 		RRset rrset = findRRset(name, rtype);
-		if (rrset == null) {
+		if (rrset == null)
 			rrset = new RRset(r);
-			addRRset(name, rrset);
-		} else {
+		else
 			rrset.addRR(r);
-		}
+		/* The set found may be a copy, if the data is in a store. */
+		addRRset(name, rrset);
+		changed(name);
 	}
 }
 
@@ -490,13 +1162,132 @@ removeRecord(Record r) {
 	Name name = r.getName();
 	int rtype = r.getRRsetType();
 	synchronized (this) {
+		if (concurrent) {
+			Version v = new Version(version);
+			v.removeRecord(r);
+			v.refresh(origin);
+			version = v.publish();
+			generation++;
+			return;
+		}
 		RRset rrset = findRRset(name, rtype);
 		if (rrset == null)
 			return;
 		if (rrset.size() == 1 && rrset.first().equals(r))
 			removeRRset(name, rtype);
-		else
+		else {
 			rrset.deleteRR(r);
+			addRRset(name, rrset);
+		}
+		changed(name);
+	}
+}
+
+/**
+ * Applies a series of changes, such as those in an IXFR response, to the
+ * Zone.  The deletions and additions of each delta are applied in order.  In
+ * a concurrent zone, all of the changes become visible at once, and the zone
+ * is not changed if an exception is thrown.
+ * @param deltas A List of {@link ZoneTransferIn.Delta} objects, the first
+ * of which must start at the zone's current serial number.
+ * @throws IllegalArgumentException The deltas do not start at the current
+ * serial number, or are not contiguous.
+ * @throws IOException The changes would remove the zone's SOA or NS records.
+ */
+public void
+applyDeltas(List deltas) throws IOException {
+	synchronized (this) {
+		long serial = getSOA().getSerial();
+		for (Iterator it = deltas.iterator(); it.hasNext(); ) {
+			ZoneTransferIn.Delta delta;
+			delta = (ZoneTransferIn.Delta) it.next();
+			if (delta.start != serial)
+				throw new IllegalArgumentException(
+					"delta starts at serial " +
+					delta.start + ", expected " + serial);
+			serial = delta.end;
+		}
+		if (!concurrent) {
+			for (Iterator it = deltas.iterator(); it.hasNext(); ) {
+				ZoneTransferIn.Delta delta;
+				delta = (ZoneTransferIn.Delta) it.next();
+				for (Iterator r = delta.deletes.iterator();
+				     r.hasNext(); )
+					removeRecord((Record) r.next());
+				for (Iterator r = delta.adds.iterator();
+				     r.hasNext(); )
+					addRecord((Record) r.next());
+			}
+			generation++;
+			validate();
+			return;
+		}
+		Version v = new Version(version);
+		for (Iterator it = deltas.iterator(); it.hasNext(); ) {
+			ZoneTransferIn.Delta delta;
+			delta = (ZoneTransferIn.Delta) it.next();
+			for (Iterator r = delta.deletes.iterator(); r.hasNext(); )
+				v.removeRecord((Record) r.next());
+			for (Iterator r = delta.adds.iterator(); r.hasNext(); )
+				v.addRecord((Record) r.next());
+		}
+		v.refresh(origin);
+		RRset soa = oneRRset(v.originNode, Type.SOA);
+		if (soa == null || soa.size() != 1)
+			throw new IOException(origin +
+					      ": exactly 1 SOA must be specified");
+		if (oneRRset(v.originNode, Type.NS) == null)
+			throw new IOException(origin + ": no NS set specified");
+		version = v.publish();
+		generation++;
+	}
+}
+
+/**
+ * Brings the Zone up to date by running a zone transfer, which should be an
+ * IXFR from the zone's current serial number.  Each delta is applied with
+ * {@link #applyDeltas} as soon as it has been received; if the server sends
+ * the entire zone, the contents of the Zone are replaced once the transfer
+ * is complete.  In a concurrent zone, lookups continue to see the previous
+ * contents until each delta or the new contents are complete.
+ * @param xfrin The incoming zone transfer to execute.
+ * @return Whether the Zone was changed.
+ * @see ZoneTransferIn#newIXFR
+ */
+public boolean
+update(ZoneTransferIn xfrin) throws IOException, ZoneTransferException {
+	if (!xfrin.getName().equals(origin))
+		throw new IllegalArgumentException("zone transfer is not for " +
+						   origin);
+	ZoneTransferIn.ZoneHandler handler;
+	handler = new ZoneTransferIn.ZoneHandler(this);
+	xfrin.run(handler);
+	return handler.finish();
+}
+
+/*
+ * Replaces the contents of the Zone with those of another zone, which must
+ * be in the same mode.
+ */
+void
+replace(Zone z) {
+	synchronized (this) {
+		if (concurrent) {
+			version = z.version;
+		} else {
+			if (data instanceof RecordStore.StoreMap) {
+				/* Keep the data in the store. */
+				data.clear();
+				data.putAll(z.data);
+			} else
+				data = z.data;
+			chains = z.chains;
+			originNode = z.originNode;
+			SOA = z.SOA;
+			NS = z.NS;
+			hasWild = z.hasWild;
+		}
+		generation++;
 	}
 }
 
@@ -519,33 +1310,64 @@ AXFR() {
 }
 
 private void
-nodeToString(StringBuffer sb, Object node) {
+writeNode(MasterWriter w, Object node) throws IOException {
 	RRset [] sets = allRRsets(node);
-	for (int i = 0; i < sets.length; i++) {
-		RRset rrset = sets[i];
-		Iterator it = rrset.rrs();
-		while (it.hasNext())
-			sb.append(it.next() + "\n");
-		it = rrset.sigs();
-		while (it.hasNext())
-			sb.append(it.next() + "\n");
+	for (int i = 0; i < sets.length; i++)
+		w.write(sets[i]);
+}
+
+private void
+writeNodes(MasterWriter w, Map data, Object originNode) throws IOException {
+	Iterator zentries = data.entrySet().iterator();
+	writeNode(w, originNode);
+	while (zentries.hasNext()) {
+		Map.Entry entry = (Map.Entry) zentries.next();
+		if (!origin.equals(entry.getKey()))
+			writeNode(w, entry.getValue());
+	}
+}
+
+/* Writes the contents of the Zone, with the zone locked if necessary. */
+void
+write(MasterWriter w) throws IOException {
+	Version v = version;
+	if (v != null) {
+		writeNodes(w, v.sorted(), v.originNode);
+		return;
 	}
+	synchronized (this) {
+		writeNodes(w, data, originNode);
+	}
+}
+
+/**
+ * Writes the contents of the Zone in master file format.  The records are
+ * written as they are rendered, so the text of the zone is never held in
+ * memory; {@link MasterWriter} provides more options.
+ * @param out The Writer to write to.  It is flushed, but not closed.
+ * @throws IOException An error occurred while writing.
+ */
+public void
+toMasterFile(Writer out) throws IOException {
+	MasterWriter w = new MasterWriter(out);
+	write(w);
+	w.flush();
 }
 
 /**
  * Returns the contents of the Zone in master file format.
+ * @see #toMasterFile(Writer)
  */
-public synchronized String
+public String
 toMasterFile() {
-	Iterator zentries = data.entrySet().iterator();
-	StringBuffer sb = new StringBuffer();
-	nodeToString(sb, originNode);
-	while (zentries.hasNext()) {
-		Map.Entry entry = (Map.Entry) zentries.next();
-		if (!origin.equals(entry.getKey()))
-			nodeToString(sb, entry.getValue());
+	StringWriter sw = new StringWriter();
+	try {
+		toMasterFile(sw);
+	}
+	catch (IOException e) {
+		throw new IllegalStateException(e.getMessage());
 	}
-	return sb.toString();
+	return sw.toString();
 }
 
 /**
@@ -0,0 +1,652 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.xbill.DNS.utils.base32;
+
+/**
+ * Signs a whole zone with DNSSEC.  The signer removes any existing RRSIG,
+ * NSEC, NSEC3 and NSEC3PARAM records, adds the zone's keys to its DNSKEY
+ * RRset, builds an NSEC or NSEC3 chain, and signs every authoritative RRset.
+ * Signatures are computed in parallel by the tasks of a fork/join pool.
+ * <p>
+ * Keys are obtained from a {@link KeyProvider}.  Keys with the SEP flag set
+ * (key signing keys) sign only the DNSKEY RRset, and other keys (zone signing
+ * keys) sign every RRset; if all keys have the SEP flag set, they sign every
+ * RRset.
+ * <p>
+ * A zone can be re-signed incrementally by passing the previously signed
+ * version of the zone.  The signatures of an RRset are then reused if its
+ * data, its TTL and the keys signing it are unchanged and its signatures
+ * will not expire within the refresh interval, so only the RRsets which have
+ * changed (including the NSEC or NSEC3 records around them) are signed
+ * again.
+ *
+ * @see DNSSEC
+ */
+
+public class ZoneSigner {
+
+/**
+ * Provides the keys used to sign a zone.
+ */
+public static interface KeyProvider {
+	/**
+	 * Returns the keys with which a zone should be signed.
+	 * @param zone The name of the zone.
+	 * @return A List of DNSKEY records.
+	 */
+	public List getKeys(Name zone) throws DNSSEC.DNSSECException;
+
+	/**
+	 * Returns the private key corresponding to a DNSKEY record.
+	 */
+	public PrivateKey getPrivateKey(DNSKEYRecord key)
+	throws DNSSEC.DNSSECException;
+}
+
+/**
+ * A KeyProvider which holds a fixed set of keys in memory.
+ */
+public static class SimpleKeyProvider implements KeyProvider {
+	private List keys = new ArrayList();
+	private Map privateKeys = new HashMap();
+
+	/**
+	 * Adds a key.  The key is used for the zone with the same name.
+	 * @param key The DNSKEY record.
+	 * @param privkey The corresponding private key.
+	 */
+	public synchronized void
+	addKey(DNSKEYRecord key, PrivateKey privkey) {
+		keys.add(key);
+		privateKeys.put(key, privkey);
+	}
+
+	public synchronized List
+	getKeys(Name zone) {
+		List list = new ArrayList();
+		for (Iterator it = keys.iterator(); it.hasNext(); ) {
+			DNSKEYRecord key = (DNSKEYRecord) it.next();
+			if (key.getName().equals(zone))
+				list.add(key);
+		}
+		return list;
+	}
+
+	public synchronized PrivateKey
+	getPrivateKey(DNSKEYRecord key) throws DNSSEC.DNSSECException {
+		PrivateKey privkey = (PrivateKey) privateKeys.get(key);
+		if (privkey == null)
+			throw new DNSSEC.DNSSECException("no private key for " +
+							 key.getName() + "/" +
+							 key.getFootprint());
+		return privkey;
+	}
+}
+
+private static final long defaultValidity = 30 * 86400;
+private static final long defaultOffset = 3600;
+
+/* The number of RRsets signed by each task. */
+private static final int BATCH = 64;
+
+private KeyProvider keyProvider;
+private ForkJoinPool pool = ForkJoinPool.commonPool();
+private String provider;
+private Date inception;
+private Date expiration;
+private long refresh = -1;
+
+private boolean nsec3;
+private int hashAlg;
+private int nsec3Flags;
+private int iterations;
+private byte [] salt;
+private base32 b32 = new base32(base32.Alphabet.BASE32HEX, false, false);
+
+private int signatures;
+private int reused;
+
+/**
+ * Creates a ZoneSigner.  By default, zones are signed with an NSEC chain,
+ * and signatures are valid from one hour before signing until 30 days
+ * after it.
+ * @param keys The source of the keys.
+ */
+public
+ZoneSigner(KeyProvider keys) {
+	keyProvider = keys;
+}
+
+/**
+ * Sets the pool used to compute signatures.  The default is the common
+ * fork/join pool.
+ */
+public void
+setPool(ForkJoinPool pool) {
+	this.pool = pool;
+}
+
+/**
+ * Sets the name of the JCA provider passed to JCA getInstance() methods.
+ * The default is null, which uses the default provider.
+ */
+public void
+setProvider(String provider) {
+	this.provider = provider;
+}
+
+/**
+ * Sets the validity period of new signatures.  If null, signatures are
+ * valid from one hour before the zone is signed until 30 days after it.
+ */
+public void
+setValidity(Date inception, Date expiration) {
+	if ((inception == null) != (expiration == null))
+		throw new IllegalArgumentException("both or neither of " +
+						   "inception and expiration " +
+						   "must be set");
+	if (inception != null && !inception.before(expiration))
+		throw new IllegalArgumentException("inception must be before " +
+						   "expiration");
+	this.inception = inception;
+	this.expiration = expiration;
+}
+
+/**
+ * Sets the interval before the expiration of a signature during which it is
+ * not reused when re-signing incrementally.  The default is a quarter of the
+ * validity period.
+ * @param seconds The refresh interval in seconds.
+ */
+public void
+setRefresh(long seconds) {
+	if (seconds < 0)
+		throw new IllegalArgumentException("invalid refresh interval");
+	refresh = seconds;
+}
+
+/**
+ * Signs zones with an NSEC chain.  This is the default.
+ */
+public void
+setNSEC() {
+	nsec3 = false;
+}
+
+/**
+ * Signs zones with an NSEC3 chain.
+ * @param hashAlg The hash algorithm.
+ * @param optOut Whether delegations without DS records should be left out
+ * of the chain.
+ * @param iterations The number of additional hash iterations.
+ * @param salt The salt, or null.
+ * @see NSEC3Record
+ */
+public void
+setNSEC3(int hashAlg, boolean optOut, int iterations, byte [] salt) {
+	if (hashAlg != NSEC3Record.Digest.SHA1)
+		throw new IllegalArgumentException("unsupported NSEC3 hash " +
+						   "algorithm: " + hashAlg);
+	if (iterations < 0 || iterations > 0xFFFF)
+		throw new IllegalArgumentException("invalid iterations");
+	if (salt != null && salt.length > 255)
+		throw new IllegalArgumentException("invalid salt");
+	nsec3 = true;
+	this.hashAlg = hashAlg;
+	this.nsec3Flags = optOut ? NSEC3Record.Flags.OPT_OUT : 0;
+	this.iterations = iterations;
+	this.salt = salt;
+}
+
+/**
+ * Returns the number of signatures computed by the last call to sign().
+ */
+public int
+getSignatureCount() {
+	return signatures;
+}
+
+/**
+ * Returns the number of signatures reused from the previous version of the
+ * zone by the last call to sign().
+ */
+public int
+getReusedCount() {
+	return reused;
+}
+
+/* The state of one signing operation. */
+private static class Signing {
+	Name origin;
+	int dclass;
+	long minimum;
+	Date inception;
+	Date expiration;
+	Date refreshDate;
+	List zsks;
+	List ksks;
+	Map privateKeys;
+	/* Name -> List of RRsets, without signatures. */
+	TreeMap nodes = new TreeMap();
+	Set delegations = new HashSet();
+	/* Names in the chain, in canonical order. */
+	List authoritative = new ArrayList();
+}
+
+/* Signs a list of RRsets with the keys that should sign them. */
+private static class SignTask implements Callable {
+	private List rrsets;
+	private Signing s;
+	private String provider;
+
+	SignTask(List rrsets, Signing s, String provider) {
+		this.rrsets = rrsets;
+		this.s = s;
+		this.provider = provider;
+	}
+
+	public Object
+	call() throws DNSSEC.DNSSECException {
+		List sigs = new ArrayList();
+		for (Iterator it = rrsets.iterator(); it.hasNext(); ) {
+			RRset rrset = (RRset) it.next();
+			List keys = signers(s, rrset);
+			/* Render the set only once for several keys. */
+			if (keys.size() > 1)
+				rrset = new ImmutableRRset(rrset);
+			for (Iterator k = keys.iterator(); k.hasNext(); ) {
+				DNSKEYRecord key = (DNSKEYRecord) k.next();
+				PrivateKey privkey;
+				privkey = (PrivateKey) s.privateKeys.get(key);
+				sigs.add(DNSSEC.sign(rrset, key, privkey,
+						     s.inception, s.expiration,
+						     provider));
+			}
+		}
+		return sigs;
+	}
+}
+
+/* Returns the keys which should sign an RRset. */
+private static List
+signers(Signing s, RRset rrset) {
+	if (rrset.getType() != Type.DNSKEY)
+		return s.zsks;
+	List list = new ArrayList(s.zsks);
+	for (Iterator it = s.ksks.iterator(); it.hasNext(); ) {
+		Object key = it.next();
+		if (!list.contains(key))
+			list.add(key);
+	}
+	return list;
+}
+
+private static void
+addRRset(Signing s, RRset rrset) {
+	List list = (List) s.nodes.get(rrset.getName());
+	if (list == null) {
+		list = new ArrayList();
+		s.nodes.put(rrset.getName(), list);
+	}
+	list.add(rrset);
+}
+
+private static RRset
+findRRset(List rrsets, int type) {
+	for (Iterator it = rrsets.iterator(); it.hasNext(); ) {
+		RRset rrset = (RRset) it.next();
+		if (rrset.getType() == type)
+			return rrset;
+	}
+	return null;
+}
+
+private static int []
+types(List rrsets, int extra1, int extra2) {
+	int [] types = new int[rrsets.size() + 2];
+	int n = 0;
+	for (Iterator it = rrsets.iterator(); it.hasNext(); )
+		types[n++] = ((RRset) it.next()).getType();
+	if (extra1 != 0)
+		types[n++] = extra1;
+	if (extra2 != 0)
+		types[n++] = extra2;
+	int [] array = new int[n];
+	System.arraycopy(types, 0, array, 0, n);
+	return array;
+}
+
+/* Returns whether a name is at or below one of the zone's delegations. */
+private static boolean
+belowDelegation(Signing s, Name name) {
+	int labels = name.labels();
+	int originLabels = s.origin.labels();
+	for (int i = 1; i < labels - originLabels; i++)
+		if (s.delegations.contains(new Name(name, i)))
+			return true;
+	return false;
+}
+
+/* Reads the zone, replacing its DNSKEY RRset and removing DNSSEC records. */
+private void
+collect(Signing s, Zone zone) throws DNSSEC.DNSSECException {
+	List keys = keyProvider.getKeys(s.origin);
+	if (keys == null || keys.isEmpty())
+		throw new DNSSEC.DNSSECException("no keys for " + s.origin);
+	s.zsks = new ArrayList();
+	s.ksks = new ArrayList();
+	s.privateKeys = new HashMap();
+	for (Iterator it = keys.iterator(); it.hasNext(); ) {
+		DNSKEYRecord key = (DNSKEYRecord) it.next();
+		if (!key.getName().equals(s.origin))
+			throw new DNSSEC.DNSSECException("key " + key.getName() +
+							 " is not for " +
+							 s.origin);
+		if ((key.getFlags() & DNSKEYRecord.Flags.SEP_KEY) != 0)
+			s.ksks.add(key);
+		else
+			s.zsks.add(key);
+		s.privateKeys.put(key, keyProvider.getPrivateKey(key));
+	}
+	if (s.zsks.isEmpty())
+		s.zsks = s.ksks;
+
+	RRset dnskeys = null;
+	for (Iterator it = zone.iterator(); it.hasNext(); ) {
+		RRset rrset = (RRset) it.next();
+		int type = rrset.getType();
+		if (type == Type.RRSIG || type == Type.NSEC ||
+		    type == Type.NSEC3 || type == Type.NSEC3PARAM)
+			continue;
+		RRset copy = new RRset();
+		for (Iterator r = rrset.rrs(false); r.hasNext(); )
+			copy.addRR((Record) r.next());
+		if (type == Type.DNSKEY && rrset.getName().equals(s.origin)) {
+			if (dnskeys != null)
+				continue;
+			dnskeys = copy;
+		}
+		addRRset(s, copy);
+		if (type == Type.NS && !rrset.getName().equals(s.origin))
+			s.delegations.add(rrset.getName());
+	}
+
+	/* Add the keys to the DNSKEY RRset, with its TTL. */
+	long ttl = (dnskeys != null) ? dnskeys.getTTL()
+				     : zone.getSOA().getTTL();
+	boolean add = (dnskeys == null);
+	if (add)
+		dnskeys = new RRset();
+	for (Iterator it = keys.iterator(); it.hasNext(); ) {
+		DNSKEYRecord key = (DNSKEYRecord) it.next();
+		dnskeys.addRR(key.withDClass(s.dclass, ttl));
+	}
+	if (add)
+		addRRset(s, dnskeys);
+
+	for (Iterator it = s.nodes.keySet().iterator(); it.hasNext(); ) {
+		Name name = (Name) it.next();
+		if (!belowDelegation(s, name))
+			s.authoritative.add(name);
+	}
+}
+
+/* Adds an NSEC record to each authoritative name. */
+private void
+buildNSEC(Signing s) {
+	int n = s.authoritative.size();
+	for (int i = 0; i < n; i++) {
+		Name name = (Name) s.authoritative.get(i);
+		Name next = (Name) s.authoritative.get((i + 1) % n);
+		List rrsets = (List) s.nodes.get(name);
+		NSECRecord nsec = new NSECRecord(name, s.dclass, s.minimum,
+						 next, types(rrsets, Type.NSEC,
+							     Type.RRSIG));
+		rrsets.add(new RRset(nsec));
+	}
+}
+
+private byte []
+hash(Name name) throws DNSSEC.DNSSECException {
+	try {
+		return NSEC3Record.hashName(name, hashAlg, iterations, salt);
+	}
+	catch (NoSuchAlgorithmException e) {
+		throw new DNSSEC.DNSSECException(e.getMessage());
+	}
+}
+
+/* Adds NSEC3 records for the authoritative names, and an NSEC3PARAM. */
+private void
+buildNSEC3(Signing s) throws DNSSEC.DNSSECException {
+	boolean optOut = (nsec3Flags & NSEC3Record.Flags.OPT_OUT) != 0;
+	List apex = (List) s.nodes.get(s.origin);
+	apex.add(new RRset(new NSEC3PARAMRecord(s.origin, s.dclass, 0,
+						hashAlg, 0, iterations,
+						salt)));
+
+	/* Hashed owner (as a String) -> types, ordered by hash. */
+	TreeMap chain = new TreeMap();
+	for (Iterator it = s.authoritative.iterator(); it.hasNext(); ) {
+		Name name = (Name) it.next();
+		List rrsets = (List) s.nodes.get(name);
+		int [] types;
+		if (s.delegations.contains(name)) {
+			boolean secure = (findRRset(rrsets, Type.DS) != null);
+			if (!secure && optOut)
+				continue;
+			types = types(rrsets, secure ? Type.RRSIG : 0, 0);
+		} else
+			types = types(rrsets, Type.RRSIG, 0);
+		if (chain.put(b32.toString(hash(name)), types) != null)
+			throw new DNSSEC.DNSSECException("NSEC3 hash collision " +
+							 "at " + name);
+
+		/* Add any empty non-terminals above the name. */
+		int labels = name.labels() - s.origin.labels();
+		for (int i = 1; i < labels; i++) {
+			Name parent = new Name(name, i);
+			if (s.nodes.containsKey(parent))
+				break;
+			String h = b32.toString(hash(parent));
+			if (!chain.containsKey(h))
+				chain.put(h, new int[0]);
+		}
+	}
+
+	List owners = new ArrayList(chain.keySet());
+	int n = owners.size();
+	for (int i = 0; i < n; i++) {
+		String owner = (String) owners.get(i);
+		String next = (String) owners.get((i + 1) % n);
+		Name name;
+		try {
+			name = Name.fromString(owner, s.origin);
+		}
+		catch (TextParseException e) {
+			throw new DNSSEC.DNSSECException(e.getMessage());
+		}
+		NSEC3Record nsec3 = new NSEC3Record(name, s.dclass, s.minimum,
+						    hashAlg, nsec3Flags,
+						    iterations, salt,
+						    b32.fromString(next),
+						    (int []) chain.get(owner));
+		addRRset(s, new RRset(nsec3));
+	}
+}
+
+/* Returns whether two RRsets have the same records and TTL. */
+private static boolean
+sameData(RRset a, RRset b) {
+	if (a.size() != b.size() || a.getTTL() != b.getTTL())
+		return false;
+	Set set = new HashSet();
+	for (Iterator it = a.rrs(false); it.hasNext(); )
+		set.add(it.next());
+	for (Iterator it = b.rrs(false); it.hasNext(); )
+		if (!set.contains(it.next()))
+			return false;
+	return true;
+}
+
+/*
+ * Returns the signatures of an RRset in the previous version of the zone, if
+ * they can be reused, or null.
+ */
+private static List
+reusable(Signing s, Zone previous, RRset rrset) {
+	RRset old = previous.findExactMatch(rrset.getName(), rrset.getType());
+	if (old == null || !sameData(old, rrset))
+		return null;
+	List sigs = new ArrayList();
+	List keys = signers(s, rrset);
+	for (Iterator k = keys.iterator(); k.hasNext(); ) {
+		DNSKEYRecord key = (DNSKEYRecord) k.next();
+		RRSIGRecord found = null;
+		for (Iterator it = old.sigs(); it.hasNext(); ) {
+			RRSIGRecord sig = (RRSIGRecord) it.next();
+			if (sig.getFootprint() == key.getFootprint() &&
+			    sig.getAlgorithm() == key.getAlgorithm() &&
+			    sig.getSigner().equals(key.getName()) &&
+			    sig.getOrigTTL() == rrset.getTTL() &&
+			    sig.getExpire().after(s.refreshDate))
+			{
+				found = sig;
+				break;
+			}
+		}
+		if (found == null)
+			return null;
+		sigs.add(found);
+	}
+	return sigs;
+}
+
+/* Returns whether an RRset at an authoritative name should be signed. */
+private static boolean
+isSigned(Signing s, Name name, int type) {
+	if (!s.delegations.contains(name))
+		return true;
+	return (type == Type.DS || type == Type.NSEC);
+}
+
+private static List
+result(Future f) throws DNSSEC.DNSSECException {
+	try {
+		return (List) f.get();
+	}
+	catch (InterruptedException e) {
+		throw new DNSSEC.DNSSECException("interrupted while signing");
+	}
+	catch (ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof DNSSEC.DNSSECException)
+			throw (DNSSEC.DNSSECException) cause;
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if (cause instanceof Error)
+			throw (Error) cause;
+		throw new DNSSEC.DNSSECException(cause.toString());
+	}
+}
+
+/**
+ * Signs a zone.
+ * @param zone The zone to sign.
+ * @return A new, signed Zone, in the same mode as the original.
+ * @throws DNSSEC.DNSSECException The keys could not be obtained, or a
+ * signature could not be computed.
+ * @throws IOException The signed zone is invalid.
+ */
+public Zone
+sign(Zone zone) throws IOException, DNSSEC.DNSSECException {
+	return sign(zone, null);
+}
+
+/**
+ * Signs a zone, reusing the signatures of RRsets which have not changed
+ * since a previous version of the zone was signed.
+ * @param zone The zone to sign.
+ * @param previous The previous signed version of the zone, or null.
+ * @return A new, signed Zone, in the same mode as the original.
+ * @throws DNSSEC.DNSSECException The keys could not be obtained, or a
+ * signature could not be computed.
+ * @throws IOException The signed zone is invalid.
+ */
+public Zone
+sign(Zone zone, Zone previous) throws IOException, DNSSEC.DNSSECException {
+	Signing s = new Signing();
+	s.origin = zone.getOrigin();
+	s.dclass = zone.getDClass();
+	s.minimum = zone.getSOA().getMinimum();
+	long now = System.currentTimeMillis();
+	if (inception != null) {
+		s.inception = inception;
+		s.expiration = expiration;
+	} else {
+		s.inception = new Date(now - defaultOffset * 1000);
+		s.expiration = new Date(now + defaultValidity * 1000);
+	}
+	long validity = s.expiration.getTime() - s.inception.getTime();
+	long refreshMillis = (refresh >= 0) ? refresh * 1000 : validity / 4;
+	s.refreshDate = new Date(now + refreshMillis);
+
+	collect(s, zone);
+	if (nsec3)
+		buildNSEC3(s);
+	else
+		buildNSEC(s);
+
+	/* Find the RRsets to sign, and the signatures to reuse. */
+	List records = new ArrayList();
+	List work = new ArrayList();
+	int reusedSigs = 0;
+	for (Iterator it = s.nodes.entrySet().iterator(); it.hasNext(); ) {
+		Map.Entry entry = (Map.Entry) it.next();
+		Name name = (Name) entry.getKey();
+		boolean auth = !belowDelegation(s, name);
+		List rrsets = (List) entry.getValue();
+		for (Iterator r = rrsets.iterator(); r.hasNext(); ) {
+			RRset rrset = (RRset) r.next();
+			for (Iterator rr = rrset.rrs(false); rr.hasNext(); )
+				records.add(rr.next());
+			if (!auth || !isSigned(s, name, rrset.getType()))
+				continue;
+			List sigs = null;
+			if (previous != null)
+				sigs = reusable(s, previous, rrset);
+			if (sigs != null) {
+				records.addAll(sigs);
+				reusedSigs += sigs.size();
+			} else
+				work.add(rrset);
+		}
+	}
+
+	List tasks = new ArrayList();
+	for (int i = 0; i < work.size(); i += BATCH) {
+		List batch = work.subList(i, Math.min(i + BATCH, work.size()));
+		tasks.add(new SignTask(batch, s, provider));
+	}
+	List futures = pool.invokeAll(tasks);
+	int newSigs = 0;
+	for (Iterator it = futures.iterator(); it.hasNext(); ) {
+		List sigs = result((Future) it.next());
+		records.addAll(sigs);
+		newSigs += sigs.size();
+	}
+	signatures = newSigs;
+	reused = reusedSigs;
+
+	return new Zone(s.origin, (Record []) records.toArray(
+				new Record[records.size()]),
+			zone.isConcurrent());
+}
+
+}
@@ -23,6 +23,8 @@ package org.xbill.DNS;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 
 /**
@@ -55,6 +57,9 @@ private ZoneTransferHandler handler;
 private SocketAddress localAddress;
 private SocketAddress address;
 private TCPClient client;
+private boolean persistentTCP;
+private NioClient.Stream stream;
+private long endTime;
 private TSIG tsig;
 private TSIG.StreamVerifier verifier;
 private long timeout = 900 * 1000;
@@ -83,7 +88,6 @@ public static class Delta {
 	/** A list of records deleted between the start and end versions */
 	public List deletes;
 
-	private
 	Delta() {
 		adds = new ArrayList();
 		deletes = new ArrayList();
@@ -163,6 +167,184 @@ private static class BasicHandler implements ZoneTransferHandler {
 	}
 };
 
+/**
+ * A handler which writes an AXFR to a master file as it is received, so
+ * that the zone is never held in memory.  The trailing SOA record is not
+ * written.  {@link #close} must be called when the transfer is complete, or
+ * has failed.
+ */
+public static class MasterFileHandler implements ZoneTransferHandler {
+	private MasterWriter writer;
+	private boolean soaSeen;
+	private boolean closed;
+
+	/**
+	 * Creates a handler which writes to a file.
+	 * @param file The master file to create.
+	 * @throws IOException The file could not be created.
+	 */
+	public
+	MasterFileHandler(File file) throws IOException {
+		this(file, false);
+	}
+
+	/**
+	 * Creates a handler which writes to a file, which may be compressed.
+	 * @param file The master file to create.
+	 * @param gzip Whether the file should be compressed with gzip.
+	 * @throws IOException The file could not be created.
+	 * @see MasterWriter
+	 */
+	public
+	MasterFileHandler(File file, boolean gzip) throws IOException {
+		writer = new MasterWriter(new FileOutputStream(file).getChannel(),
+					  gzip);
+	}
+
+	public void startAXFR() {
+	}
+
+	public void startIXFR() throws ZoneTransferException {
+		throw new ZoneTransferException("an IXFR response can't be " +
+						"written to a master file");
+	}
+
+	public void startIXFRDeletes(Record soa) {
+	}
+
+	public void startIXFRAdds(Record soa) {
+	}
+
+	public void handleRecord(Record r) throws ZoneTransferException {
+		if (r.getType() == Type.SOA) {
+			if (soaSeen)
+				return;
+			soaSeen = true;
+		}
+		try {
+			writer.write(r);
+		}
+		catch (IOException e) {
+			throw new ZoneTransferException(e.getMessage());
+		}
+	}
+
+	/** Returns the number of records written. */
+	public long
+	getRecordCount() {
+		return writer.getRecordCount();
+	}
+
+	/** Writes any buffered records and closes the file. */
+	public void
+	close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		writer.close();
+	}
+};
+
+/**
+ * A handler which applies a zone transfer to a {@link Zone} as it is
+ * received.  The deltas of an IXFR are applied one at a time, as soon as
+ * each is complete, so only one delta is held in memory.  The records of an
+ * AXFR are added to a new set of zone data as they arrive, which replaces
+ * the contents of the Zone when the transfer is complete.  {@link #finish}
+ * must be called when the transfer is complete.
+ *
+ * @see Zone#update
+ */
+public static class ZoneHandler implements ZoneTransferHandler {
+	private Zone zone;
+	private Zone axfr;
+	private Delta delta;
+	private boolean changed;
+
+	/**
+	 * Creates a handler which applies a transfer to a zone.
+	 * @param zone The zone to update.
+	 */
+	public
+	ZoneHandler(Zone zone) {
+		this.zone = zone;
+	}
+
+	private void
+	apply() throws ZoneTransferException {
+		if (delta == null)
+			return;
+		try {
+			zone.applyDeltas(Collections.singletonList(delta));
+		}
+		catch (IOException e) {
+			throw new ZoneTransferException(e.getMessage());
+		}
+		catch (IllegalArgumentException e) {
+			throw new ZoneTransferException(e.getMessage());
+		}
+		delta = null;
+		changed = true;
+	}
+
+	public void startAXFR() {
+		axfr = new Zone(zone.getOrigin());
+	}
+
+	public void startIXFR() throws ZoneTransferException {
+		if (zone.getSOA() == null)
+			throw new ZoneTransferException("zones can only be " +
+							"created from AXFRs");
+	}
+
+	public void startIXFRDeletes(Record soa) throws ZoneTransferException {
+		apply();
+		delta = new Delta();
+		delta.deletes.add(soa);
+		delta.start = getSOASerial(soa);
+	}
+
+	public void startIXFRAdds(Record soa) {
+		delta.adds.add(soa);
+		delta.end = getSOASerial(soa);
+	}
+
+	public void handleRecord(Record r) throws ZoneTransferException {
+		if (axfr != null) {
+			try {
+				axfr.maybeAddRecord(r);
+			}
+			catch (IOException e) {
+				throw new ZoneTransferException(e.getMessage());
+			}
+		} else if (delta.adds.size() > 0)
+			delta.adds.add(r);
+		else
+			delta.deletes.add(r);
+	}
+
+	/**
+	 * Applies the last delta of an IXFR, or replaces the contents of the
+	 * zone with those of an AXFR.
+	 * @return Whether the zone was changed.
+	 * @throws IOException The AXFR did not contain a valid zone.
+	 * @throws ZoneTransferException The last delta could not be applied.
+	 */
+	public boolean
+	finish() throws IOException, ZoneTransferException {
+		if (axfr != null) {
+			axfr.validate();
+			if (zone.isConcurrent())
+				axfr.makeConcurrent();
+			zone.replace(axfr);
+			axfr = null;
+			changed = true;
+		} else
+			apply();
+		return changed;
+	}
+};
+
 private
 ZoneTransferIn() {}
 
@@ -342,9 +524,24 @@ setLocalAddress(SocketAddress addr) {
 	this.localAddress = addr;
 }
 
+/**
+ * Sets whether the zone transfer uses a persistent TCP connection, which
+ * may already be open from earlier queries or transfers, and which is left
+ * open for later ones if the transfer completes.  This is disabled by
+ * default.
+ * @param flag Whether to use a persistent TCP connection.
+ * @see SimpleResolver#setPersistentTCP
+ */
+public void
+setPersistentTCP(boolean flag) {
+	this.persistentTCP = flag;
+}
+
 private void
 openConnection() throws IOException {
-	long endTime = System.currentTimeMillis() + timeout;
+	endTime = System.currentTimeMillis() + timeout;
+	if (persistentTCP)
+		return;
 	client = new TCPClient(endTime);
 	if (localAddress != null)
 		client.bind(localAddress);
@@ -369,7 +566,13 @@ sendQuery() throws IOException {
 		verifier = new TSIG.StreamVerifier(tsig, query.getTSIG());
 	}
 	byte [] out = query.toWire(Message.MAXLENGTH);
-	client.send(out);
+	if (persistentTCP) {
+		if (stream != null)
+			stream.close(false);
+		stream = NioClient.openStream(localAddress, address, out,
+					      endTime);
+	} else
+		client.send(out);
 }
 
 private static long
@@ -502,6 +705,10 @@ parseRR(Record rec) throws ZoneTransferException {
 
 private void
 closeConnection() {
+	if (stream != null) {
+		stream.close(state == END);
+		stream = null;
+	}
 	try {
 		if (client != null)
 			client.cleanup();
@@ -526,7 +733,11 @@ private void
 doxfr() throws IOException, ZoneTransferException {
 	sendQuery();
 	while (state != END) {
-		byte [] in = client.recv();
+		byte [] in;
+		if (stream != null)
+			in = stream.recv();
+		else
+			in = client.recv();
 		Message response =  parseMessage(in);
 		if (response.getHeader().getRcode() == Rcode.NOERROR &&
 		    verifier != null)
@@ -0,0 +1,268 @@
+// SPDX-License-Identifier: BSD-2-Clause
+
+package org.xbill.DNS;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * An outgoing DNS Zone Transfer.  The records of the transfer are packed
+ * into as few messages as possible: each message holds as many records as
+ * fit in the maximum message size (64K by default), and names are
+ * compressed across all of the records in a message.  Messages are rendered
+ * one at a time, as they are requested, so that a slow client never causes
+ * the whole transfer to be held in memory.
+ * <p>
+ * If the transfer is signed with TSIG, the first and last messages are
+ * signed, and the messages in between are signed at an interval (every
+ * message by default); see {@link #setSignInterval}.
+ *
+ * @see ZoneTransferIn
+ */
+
+public class ZoneTransferOut {
+
+private static final int MAX_MESSAGE = 65535;
+
+private Iterator records;
+private Record pending;
+private Record question;
+private int id;
+private TSIG tsig;
+private TSIGRecord queryTSIG;
+private TSIG.StreamGenerator generator;
+private int signInterval = 1;
+private int maxSize = MAX_MESSAGE;
+private DNSOutput out;
+private Compression compression;
+private int messages;
+private boolean done;
+
+/* Iterates over the records of a zone, in AXFR order. */
+private static class AXFRIterator implements Iterator {
+	private Iterator rrsets;
+	private Iterator rrs;
+
+	AXFRIterator(Zone zone) {
+		rrsets = zone.AXFR();
+	}
+
+	public boolean
+	hasNext() {
+		while (rrs == null || !rrs.hasNext()) {
+			if (!rrsets.hasNext())
+				return false;
+			RRset rrset = (RRset) rrsets.next();
+			List list = new ArrayList(rrset.size());
+			Iterator it = rrset.rrs(false);
+			while (it.hasNext())
+				list.add(it.next());
+			it = rrset.sigs();
+			while (it.hasNext())
+				list.add(it.next());
+			rrs = list.iterator();
+		}
+		return true;
+	}
+
+	public Object
+	next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return rrs.next();
+	}
+
+	public void
+	remove() {
+		throw new UnsupportedOperationException();
+	}
+}
+
+private
+ZoneTransferOut(Iterator records, Message query, TSIG tsig) {
+	this.records = records;
+	this.question = query.getQuestion();
+	this.id = query.getHeader().getID();
+	this.tsig = tsig;
+	this.queryTSIG = query.getTSIG();
+}
+
+/**
+ * Creates an AXFR response.
+ * @param zone The zone to transfer.
+ * @param query The AXFR query.
+ * @param tsig The key used to sign the response, or null if it should not
+ * be signed.
+ */
+public static ZoneTransferOut
+newAXFR(Zone zone, Message query, TSIG tsig) {
+	return new ZoneTransferOut(new AXFRIterator(zone), query, tsig);
+}
+
+/**
+ * Creates an IXFR response containing a list of deltas.
+ * @param zone The zone to transfer, whose SOA is the ending version of the
+ * response.
+ * @param deltas The changes since the version requested, as a list of
+ * {@link ZoneTransferIn.Delta} objects, in order.  The first record of
+ * each delta's deletes and adds must be the starting and ending SOA.
+ * @param query The IXFR query.
+ * @param tsig The key used to sign the response, or null if it should not
+ * be signed.
+ */
+public static ZoneTransferOut
+newIXFR(Zone zone, List deltas, Message query, TSIG tsig) {
+	List list = new ArrayList();
+	SOARecord soa = zone.getSOA();
+	list.add(soa);
+	for (Iterator it = deltas.iterator(); it.hasNext(); ) {
+		ZoneTransferIn.Delta delta = (ZoneTransferIn.Delta) it.next();
+		list.addAll(delta.deletes);
+		list.addAll(delta.adds);
+	}
+	list.add(soa);
+	return new ZoneTransferOut(list.iterator(), query, tsig);
+}
+
+/**
+ * Sets the maximum size of each message, including the TSIG record.  The
+ * default is 65535.
+ */
+public void
+setMaxMessageSize(int size) {
+	if (size < Header.LENGTH + 512 || size > MAX_MESSAGE)
+		throw new IllegalArgumentException("invalid message size");
+	maxSize = size;
+}
+
+/**
+ * Sets the interval at which messages are signed, if the transfer is
+ * signed with TSIG.  The first and last messages are always signed.  The
+ * default is 1, which signs every message; TSIG allows at most 100.
+ */
+public void
+setSignInterval(int interval) {
+	if (interval < 1 || interval > 100)
+		throw new IllegalArgumentException("invalid TSIG interval");
+	signInterval = interval;
+}
+
+/** Returns the number of messages rendered so far. */
+public int
+getMessageCount() {
+	return messages;
+}
+
+/**
+ * Renders the next message of the transfer.
+ * @return The message in wire format, or null if all messages have been
+ * rendered.
+ */
+public byte []
+nextMessage() {
+	if (done)
+		return null;
+	if (out == null) {
+		out = new DNSOutput(maxSize);
+		compression = new Compression(256);
+		if (tsig != null)
+			generator = new TSIG.StreamGenerator(tsig, queryTSIG,
+							     signInterval);
+	} else {
+		out.jump(0);
+		compression.reset(256);
+	}
+
+	int limit = maxSize;
+	if (tsig != null)
+		limit -= tsig.recordLength();
+
+	Header header = new Header(id);
+	header.setFlag(Flags.QR);
+	header.setFlag(Flags.AA);
+	header.toWire(out);
+	int qdcount = 0;
+	if (messages == 0 && question != null) {
+		question.toWire(out, Section.QUESTION, compression);
+		qdcount = 1;
+	}
+
+	int ancount = 0;
+	while (true) {
+		Record r = pending;
+		pending = null;
+		if (r == null) {
+			if (!records.hasNext())
+				break;
+			r = (Record) records.next();
+		}
+		int pos = out.current();
+		r.toWire(out, Section.ANSWER, compression);
+		if (out.current() > limit && ancount > 0) {
+			/*
+			 * The record doesn't fit; send it in the next message.
+			 * Names compressed at this position are never used,
+			 * since the table is reset for each message.
+			 */
+			out.jump(pos);
+			pending = r;
+			break;
+		}
+		ancount++;
+	}
+	boolean last = (pending == null);
+	out.writeU16At(qdcount, 4);
+	out.writeU16At(ancount, 6);
+
+	if (generator != null) {
+		TSIGRecord r = generator.generate(out, id, last);
+		if (r != null) {
+			r.toWire(out, Section.ADDITIONAL, null);
+			out.writeU16At(1, 10);
+		}
+	}
+	messages++;
+	done = last;
+	return out.toByteArray();
+}
+
+/**
+ * Sends the whole transfer on a connected TCP channel.  Each message is
+ * rendered only once the previous one has been written, so the transfer
+ * proceeds no faster than the client reads it.  If the channel is in
+ * non-blocking mode, this waits until it is writable instead of spinning.
+ * @param channel The channel.
+ * @throws IOException An error occurred while writing.
+ */
+public void
+send(SocketChannel channel) throws IOException {
+	Selector selector = null;
+	try {
+		byte [] b;
+		while ((b = nextMessage()) != null) {
+			ByteBuffer buf = ByteBuffer.allocate(b.length + 2);
+			buf.putShort((short) b.length);
+			buf.put(b);
+			buf.flip();
+			while (buf.hasRemaining()) {
+				if (channel.write(buf) > 0)
+					continue;
+				if (selector == null) {
+					selector = Selector.open();
+					channel.register(selector,
+							 SelectionKey.OP_WRITE);
+				}
+				selector.select();
+				selector.selectedKeys().clear();
+			}
+		}
+	}
+	finally {
+		if (selector != null)
+			selector.close();
+	}
+}
+
+}
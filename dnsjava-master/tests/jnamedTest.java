@@ -0,0 +1,179 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import junit.framework.TestCase;
+import org.xbill.DNS.*;
+
+public class jnamedTest extends TestCase
+{
+    private File m_zone;
+    private File m_conf;
+    private InetAddress m_addr;
+    private int m_port;
+    private jnamed m_server;
+
+    private void start(String records) throws Exception
+    {
+	m_addr = InetAddress.getByName("127.0.0.1");
+	ServerSocket s = new ServerSocket(0, 1, m_addr);
+	m_port = s.getLocalPort();
+	s.close();
+
+	m_zone = File.createTempFile("jnamed", ".db");
+	FileWriter fw = new FileWriter(m_zone);
+	fw.write("$TTL 3600\n" +
+		 "@ IN SOA ns admin 1 3600 600 86400 300\n" +
+		 "@ IN NS ns\n" +
+		 "ns IN A 192.168.0.53\n" +
+		 "www IN A 192.168.0.80\n" +
+		 records);
+	fw.close();
+	m_conf = File.createTempFile("jnamed", ".conf");
+	fw = new FileWriter(m_conf);
+	fw.write("primary example.com. " + m_zone.getPath() + "\n" +
+		 "address 127.0.0.1\n" +
+		 "port " + m_port + "\n" +
+		 "threads 1\n");
+	fw.close();
+	m_server = new jnamed(m_conf.getPath());
+    }
+
+    protected void tearDown()
+    {
+	if (m_zone != null)
+	    m_zone.delete();
+	if (m_conf != null)
+	    m_conf.delete();
+    }
+
+    private Message question(boolean edns) throws IOException
+    {
+	Record question = Record.newRecord(Name.fromString("www.example.com."),
+					   Type.A, DClass.IN);
+	Message query = Message.newQuery(question);
+	if (edns)
+	    query.addRecord(new OPTRecord(512, 0, 0), Section.ADDITIONAL);
+	return query;
+    }
+
+    private Message query(boolean edns) throws IOException
+    {
+	return new Message(m_server.reply(question(edns).toWire(), null));
+    }
+
+    /* Queries the server over UDP. */
+    private Message resolve() throws IOException
+    {
+	SimpleResolver res = new SimpleResolver("127.0.0.1");
+	res.setPort(m_port);
+	res.setTimeout(5);
+	return res.send(question(false));
+    }
+
+    private void send(SocketChannel channel, byte [] b) throws IOException
+    {
+	ByteBuffer buf = ByteBuffer.allocate(b.length + 2);
+	buf.putShort((short) b.length);
+	buf.put(b);
+	buf.flip();
+	while (buf.hasRemaining())
+	    channel.write(buf);
+    }
+
+    private byte [] receive(SocketChannel channel) throws IOException
+    {
+	ByteBuffer length = ByteBuffer.allocate(2);
+	while (length.hasRemaining())
+	    if (channel.read(length) < 0)
+		throw new EOFException();
+	length.flip();
+	ByteBuffer buf = ByteBuffer.allocate(length.getShort() & 0xFFFF);
+	while (buf.hasRemaining())
+	    if (channel.read(buf) < 0)
+		throw new EOFException();
+	return buf.array();
+    }
+
+    public void test_cached_opt() throws Exception
+    {
+	start("");
+	/* Each answer is cached, and must not be used for the other kind. */
+	for (int i = 0; i < 2; i++) {
+	    Message response = query(false);
+	    assertEquals(1, response.getSectionArray(Section.ANSWER).length);
+	    assertNull(response.getOPT());
+
+	    response = query(true);
+	    assertEquals(1, response.getSectionArray(Section.ANSWER).length);
+	    assertNotNull(response.getOPT());
+	}
+	assertNull(query(false).getOPT());
+    }
+
+    public void test_axfr_slow_client() throws Exception
+    {
+	/* More than the socket buffers hold. */
+	int hosts = 300000;
+	StringBuffer sb = new StringBuffer();
+	for (int i = 0; i < hosts; i++)
+	    sb.append("h" + i + " IN A 10.0.0.1\n");
+	start(sb.toString());
+
+	SocketChannel xfr = SocketChannel.open();
+	xfr.socket().setReceiveBufferSize(4096);
+	xfr.connect(new InetSocketAddress(m_addr, m_port));
+	Record question = Record.newRecord(Name.fromString("example.com."),
+					   Type.AXFR, DClass.IN);
+	send(xfr, Message.newQuery(question).toWire());
+	Thread.sleep(1000);
+
+	/* A transfer which isn't being read doesn't hold up queries. */
+	assertEquals(Rcode.NOERROR, resolve().getRcode());
+
+	int records = 0, soas = 0;
+	while (soas < 2) {
+	    Record [] answers = new Message(receive(xfr)).getSectionArray(Section.ANSWER);
+	    for (int i = 0; i < answers.length; i++)
+		if (answers[i].getType() == Type.SOA)
+		    soas++;
+	    records += answers.length;
+	}
+	assertEquals(hosts + 5, records);
+	xfr.close();
+    }
+
+    public void test_tcp_pipeline_unread() throws Exception
+    {
+	start("");
+	final int queries = 100000;
+	final SocketChannel channel = SocketChannel.open();
+	channel.connect(new InetSocketAddress(m_addr, m_port));
+	final byte [] query = question(false).toWire();
+	final IOException [] failure = new IOException[1];
+	Thread writer = new Thread() {
+	    public void run() {
+		try {
+		    for (int i = 0; i < queries; i++)
+			send(channel, query);
+		}
+		catch (IOException e) {
+		    failure[0] = e;
+		}
+	    }
+	};
+	writer.start();
+	Thread.sleep(1000);
+
+	/* A client which doesn't read its responses doesn't hold up others. */
+	assertEquals(Rcode.NOERROR, resolve().getRcode());
+
+	/* And it gets every response once it reads them. */
+	for (int i = 0; i < queries; i++)
+	    assertEquals(Rcode.NOERROR, new Message(receive(channel)).getRcode());
+	writer.join();
+	assertNull(failure[0]);
+	channel.close();
+    }
+}
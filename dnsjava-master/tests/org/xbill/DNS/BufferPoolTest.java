@@ -0,0 +1,49 @@
+package org.xbill.DNS;
+
+import java.nio.ByteBuffer;
+
+import	junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase
+{
+    public void test_acquire_release()
+    {
+	BufferPool pool = new BufferPool(512, 1, false);
+	assertEquals(512, pool.getBufferSize());
+	assertFalse(pool.isDirect());
+
+	ByteBuffer b1 = pool.acquire();
+	assertEquals(512, b1.capacity());
+	b1.put((byte) 1);
+	ByteBuffer b2 = pool.acquire();
+	assertNotSame(b1, b2);
+	pool.release(b1);
+	pool.release(b2);
+
+	/* Only one idle buffer is kept, and it is returned cleared. */
+	ByteBuffer b3 = pool.acquire();
+	assertSame(b1, b3);
+	assertEquals(0, b3.position());
+	assertEquals(512, b3.remaining());
+	assertNotSame(b1, pool.acquire());
+    }
+
+    public void test_release_foreign()
+    {
+	BufferPool pool = new BufferPool(512, 4, true);
+	ByteBuffer b = ByteBuffer.allocate(512);
+	pool.release(b);
+	ByteBuffer b2 = pool.acquire();
+	assertNotSame(b, b2);
+	assertTrue(b2.isDirect());
+    }
+
+    public void test_invalid()
+    {
+	try {
+	    new BufferPool(0, 1, false);
+	    fail("IllegalArgumentException not thrown");
+	}
+	catch(IllegalArgumentException e){}
+    }
+}
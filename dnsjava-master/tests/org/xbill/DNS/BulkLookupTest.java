@@ -0,0 +1,191 @@
+package org.xbill.DNS;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+public class BulkLookupTest extends TestCase
+{
+    /*
+     * Answers queries from other threads: hostN names have an address,
+     * alias is a CNAME for host1, and everything else doesn't exist.
+     * Counts the queries, and the most outstanding at once.
+     */
+    private static class StubResolver implements Resolver
+    {
+	private int m_queries;
+	private int m_outstanding;
+	private int m_maxOutstanding;
+
+	synchronized int getQueries()
+	{
+	    return m_queries;
+	}
+
+	synchronized int getMaxOutstanding()
+	{
+	    return m_maxOutstanding;
+	}
+
+	public Message send(Message query) throws IOException
+	{
+	    synchronized (this) {
+		m_queries++;
+		m_outstanding++;
+		if (m_outstanding > m_maxOutstanding)
+		    m_maxOutstanding = m_outstanding;
+	    }
+	    try {
+		Thread.sleep(5);
+	    }
+	    catch (InterruptedException e) {
+	    }
+	    Record question = query.getQuestion();
+	    Name name = question.getName();
+	    Message response = new Message(query.getHeader().getID());
+	    response.getHeader().setFlag(Flags.QR);
+	    response.getHeader().setFlag(Flags.AA);
+	    response.addRecord(question, Section.QUESTION);
+	    String label = name.getLabelString(0);
+	    if (label.startsWith("host"))
+		response.addRecord(new ARecord(name, DClass.IN, 3600,
+					       InetAddress.getByName("10.0.0.1")),
+				   Section.ANSWER);
+	    else if (label.equals("alias"))
+		response.addRecord(new CNAMERecord(name, DClass.IN, 3600,
+						   Name.fromString("host1.example.")),
+				   Section.ANSWER);
+	    else
+		response.getHeader().setRcode(Rcode.NXDOMAIN);
+	    synchronized (this) {
+		m_outstanding--;
+	    }
+	    return response;
+	}
+
+	public Object sendAsync(final Message query, final ResolverListener listener)
+	{
+	    final Object id = new Object();
+	    Thread t = new Thread() {
+		public void run() {
+		    try {
+			listener.receiveMessage(id, send(query));
+		    }
+		    catch (IOException e) {
+			listener.handleException(id, e);
+		    }
+		}
+	    };
+	    t.setDaemon(true);
+	    t.start();
+	    return id;
+	}
+
+	public void setPort(int port) {}
+	public void setTCP(boolean flag) {}
+	public void setIgnoreTruncation(boolean flag) {}
+	public void setEDNS(int level) {}
+	public void setEDNS(int level, int payloadSize, int flags, List options) {}
+	public void setTSIGKey(TSIG key) {}
+	public void setTimeout(int secs, int msecs) {}
+	public void setTimeout(int secs) {}
+    }
+
+    private List questions(int n) throws TextParseException
+    {
+	List l = new ArrayList();
+	for (int i = 0; i < n; i++) {
+	    Name name = Name.fromString("host" + i + ".example.");
+	    l.add(Record.newRecord(name, Type.A, DClass.IN));
+	}
+	return l;
+    }
+
+    public void test_results() throws Exception
+    {
+	List questions = questions(2);
+	questions.add(Record.newRecord(Name.fromString("alias.example."), Type.A, DClass.IN));
+	questions.add(Record.newRecord(Name.fromString("missing.example."), Type.A, DClass.IN));
+	questions.add(Record.newRecord(Name.fromString("www.example."), Type.AXFR, DClass.IN));
+
+	BulkLookup bulk = new BulkLookup(new StubResolver());
+	Map results = new HashMap();
+	for (Iterator it = bulk.run(questions.iterator()); it.hasNext(); ) {
+	    BulkLookup.Result r = (BulkLookup.Result) it.next();
+	    results.put(r.getQuestion().getName().toString(), r);
+	}
+	assertEquals(5, results.size());
+
+	BulkLookup.Result r = (BulkLookup.Result) results.get("host0.example.");
+	assertEquals(Lookup.SUCCESSFUL, r.getResult());
+	assertEquals(1, r.getAnswers().length);
+
+	r = (BulkLookup.Result) results.get("alias.example.");
+	assertEquals(Lookup.SUCCESSFUL, r.getResult());
+	assertEquals(Name.fromString("host1.example."), r.getAnswers()[0].getName());
+	assertEquals(1, r.getAliases().length);
+
+	r = (BulkLookup.Result) results.get("missing.example.");
+	assertEquals(Lookup.HOST_NOT_FOUND, r.getResult());
+	assertNull(r.getAnswers());
+
+	/* Meta-type queries may not be sent. */
+	r = (BulkLookup.Result) results.get("www.example.");
+	assertEquals(Lookup.UNRECOVERABLE, r.getResult());
+    }
+
+    public void test_maxOutstanding() throws Exception
+    {
+	StubResolver resolver = new StubResolver();
+	BulkLookup bulk = new BulkLookup(resolver);
+	bulk.setMaxOutstanding(10);
+	int n = 0;
+	for (Iterator it = bulk.run(questions(200).iterator()); it.hasNext(); it.next())
+	    n++;
+	assertEquals(200, n);
+	assertEquals(200, resolver.getQueries());
+	assertTrue(resolver.getMaxOutstanding() <= 10);
+    }
+
+    public void test_upstreams() throws Exception
+    {
+	StubResolver r1 = new StubResolver();
+	StubResolver r2 = new StubResolver();
+	BulkLookup bulk = new BulkLookup(new Resolver [] {r1, r2});
+	for (Iterator it = bulk.run(questions(100).iterator()); it.hasNext(); it.next())
+	    ;
+	assertEquals(50, r1.getQueries());
+	assertEquals(50, r2.getQueries());
+    }
+
+    public void test_rate() throws Exception
+    {
+	StubResolver resolver = new StubResolver();
+	BulkLookup bulk = new BulkLookup(resolver);
+	bulk.setRate(100);
+	long start = System.currentTimeMillis();
+	for (Iterator it = bulk.run(questions(50).iterator()); it.hasNext(); it.next())
+	    ;
+	/* 50 queries at 100 per second take about half a second. */
+	assertTrue(System.currentTimeMillis() - start >= 400);
+	assertEquals(50, resolver.getQueries());
+    }
+
+    public void test_rate_aliases() throws Exception
+    {
+	List questions = new ArrayList();
+	for (int i = 0; i < 50; i++)
+	    questions.add(Record.newRecord(Name.fromString("alias.example."), Type.A, DClass.IN));
+	StubResolver resolver = new StubResolver();
+	BulkLookup bulk = new BulkLookup(resolver);
+	bulk.setRate(100);
+	long start = System.currentTimeMillis();
+	for (Iterator it = bulk.run(questions.iterator()); it.hasNext(); )
+	    assertEquals(Lookup.SUCCESSFUL, ((BulkLookup.Result) it.next()).getResult());
+	/* The queries for the aliases' targets count towards the rate. */
+	assertTrue(System.currentTimeMillis() - start >= 900);
+	assertEquals(100, resolver.getQueries());
+    }
+}
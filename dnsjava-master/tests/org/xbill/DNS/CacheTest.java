@@ -0,0 +1,213 @@
+package org.xbill.DNS;
+
+import java.io.*;
+import java.net.InetAddress;
+
+import	junit.framework.TestCase;
+
+public class CacheTest extends TestCase
+{
+    private Name m_name;
+    private ARecord m_a1;
+    private ARecord m_a2;
+    private SOARecord m_soa;
+
+    protected void setUp() throws Exception
+    {
+	m_name = Name.fromString("www.example.com.");
+	m_a1 = new ARecord(m_name, DClass.IN, 3600,
+			   InetAddress.getByName("192.168.0.1"));
+	m_a2 = new ARecord(m_name, DClass.IN, 3600,
+			   InetAddress.getByName("192.168.0.2"));
+	Name zone = Name.fromString("example.com.");
+	m_soa = new SOARecord(zone, DClass.IN, 3600, zone, zone,
+			      1, 3600, 600, 86400, 300);
+    }
+
+    private void checkLookups(Cache c) throws TextParseException
+    {
+	c.addRRset(new RRset(m_a1), Credibility.NONAUTH_ANSWER);
+	c.addRecord(m_a2, Credibility.NONAUTH_ANSWER, null);
+
+	SetResponse sr = c.lookupRecords(m_name, Type.A, Credibility.NORMAL);
+	assertTrue(sr.isSuccessful());
+	assertEquals(2, sr.answers()[0].size());
+
+	sr = c.lookupRecords(m_name, Type.A, Credibility.AUTH_ANSWER);
+	assertTrue(sr.isUnknown());
+
+	Name other = Name.fromString("other.example.com.");
+	c.addNegative(other, 0, m_soa, Credibility.NONAUTH_AUTHORITY);
+	assertTrue(c.lookupRecords(other, Type.A, Credibility.NORMAL).isNXDOMAIN());
+
+	c.addNegative(m_name, Type.MX, m_soa, Credibility.NONAUTH_AUTHORITY);
+	assertTrue(c.lookupRecords(m_name, Type.MX, Credibility.NORMAL).isNXRRSET());
+	assertTrue(c.lookupRecords(m_name, Type.A, Credibility.NORMAL).isSuccessful());
+	assertEquals(2, c.getSize());
+
+	c.flushSet(m_name, Type.A);
+	assertTrue(c.lookupRecords(m_name, Type.A, Credibility.NORMAL).isUnknown());
+	assertTrue(c.lookupRecords(m_name, Type.MX, Credibility.NORMAL).isNXRRSET());
+
+	c.flushName(m_name);
+	assertTrue(c.lookupRecords(m_name, Type.MX, Credibility.NORMAL).isUnknown());
+	assertEquals(1, c.getSize());
+
+	c.clearCache();
+	assertEquals(0, c.getSize());
+    }
+
+    public void test_lookups()
+	throws TextParseException
+    {
+	checkLookups(new Cache());
+    }
+
+    public void test_lookups_concurrent()
+	throws TextParseException
+    {
+	Cache c = new Cache(DClass.IN, true);
+	checkLookups(c);
+	assertEquals(0, c.getBytes());
+    }
+
+    public void test_maxBytes_nonconcurrent()
+    {
+	Cache c = new Cache();
+	assertEquals(-1, c.getMaxBytes());
+	try {
+	    c.setMaxBytes(1000);
+	    fail("IllegalStateException not thrown");
+	}
+	catch(IllegalStateException e){}
+    }
+
+    public void test_maxBytes() throws Exception
+    {
+	Cache c = new Cache(DClass.IN, true);
+	c.setMaxBytes(10000);
+	assertEquals(10000, c.getMaxBytes());
+	for (int i = 0; i < 1000; i++) {
+	    Name n = Name.fromString("host" + i + ".example.com.");
+	    c.addRRset(new RRset(m_a1.withName(n)), Credibility.NONAUTH_ANSWER);
+	}
+	assertTrue(c.getBytes() > 0);
+	assertTrue(c.getBytes() <= 10000);
+	assertTrue(c.getSize() < 1000);
+
+	/* The most recent entry must survive. */
+	Name last = Name.fromString("host999.example.com.");
+	assertTrue(c.lookupRecords(last, Type.A, Credibility.NORMAL).isSuccessful());
+    }
+
+    public void test_maxEntries_concurrent() throws Exception
+    {
+	Cache c = new Cache(DClass.IN, true);
+	c.setMaxEntries(10);
+	for (int i = 0; i < 100; i++) {
+	    Name n = Name.fromString("host" + i + ".example.com.");
+	    c.addRRset(new RRset(m_a1.withName(n)), Credibility.NONAUTH_ANSWER);
+	}
+	assertEquals(10, c.getSize());
+    }
+
+    public void test_removeExpired()
+    {
+	Cache c = new Cache(DClass.IN, true);
+	c.setMaxCache(0);
+	c.addRRset(new RRset(m_a1), Credibility.NONAUTH_ANSWER);
+	c.addNegative(m_name, Type.MX, m_soa, Credibility.NONAUTH_AUTHORITY);
+	assertEquals(1, c.getSize());
+	assertEquals(1, c.removeExpired());
+	assertEquals(1, c.getSize());
+	assertTrue(c.lookupRecords(m_name, Type.MX, Credibility.NORMAL).isNXRRSET());
+    }
+
+    public void test_cleanInterval()
+    {
+	Cache c = new Cache();
+	assertEquals(0, c.getCleanInterval());
+	c = new Cache(DClass.IN, true);
+	assertEquals(60, c.getCleanInterval());
+	c.setCleanInterval(0);
+	assertEquals(0, c.getCleanInterval());
+	try {
+	    c.setCleanInterval(-1);
+	    fail("IllegalArgumentException not thrown");
+	}
+	catch(IllegalArgumentException e){}
+    }
+
+    public void test_threads() throws Exception
+    {
+	final Cache c = new Cache(DClass.IN, true);
+	final Throwable [] failure = new Throwable[1];
+	Thread [] threads = new Thread[8];
+	for (int t = 0; t < threads.length; t++) {
+	    final int base = t;
+	    threads[t] = new Thread() {
+		public void run() {
+		    try {
+			for (int i = 0; i < 500; i++) {
+			    Name n = Name.fromString("host" + (i % 50) + ".example.com.");
+			    Record r = m_a1.withName(n);
+			    if ((i + base) % 3 == 0)
+				c.addRecord(r, Credibility.NONAUTH_ANSWER, null);
+			    else if ((i + base) % 3 == 1)
+				c.addNegative(n, Type.MX, m_soa, Credibility.NONAUTH_AUTHORITY);
+			    else
+				c.lookupRecords(n, Type.A, Credibility.NORMAL);
+			}
+		    }
+		    catch (Throwable e) {
+			failure[0] = e;
+		    }
+		}
+	    };
+	    threads[t].start();
+	}
+	for (int t = 0; t < threads.length; t++)
+	    threads[t].join();
+	assertNull(failure[0]);
+	assertEquals(50, c.getSize());
+	c.clearCache();
+	assertEquals(0, c.getBytes());
+    }
+
+    public void test_snapshot() throws Exception
+    {
+	Cache c = new Cache(DClass.IN);
+	c.addRecord(m_a1, Credibility.NONAUTH_ANSWER, null);
+	c.addRecord(m_a2, Credibility.NONAUTH_ANSWER, null);
+	Name other = Name.fromString("other.example.com.");
+	c.addNegative(other, 0, m_soa, Credibility.NONAUTH_AUTHORITY);
+	c.addNegative(m_name, Type.MX, m_soa, Credibility.NONAUTH_AUTHORITY);
+	Name shortName = Name.fromString("short.example.com.");
+	c.addRecord(new ARecord(shortName, DClass.IN, 1,
+				InetAddress.getByName("192.168.0.3")),
+		    Credibility.NONAUTH_ANSWER, null);
+
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	c.dump(out);
+	/* Let the short-lived record expire. */
+	Thread.sleep(1100);
+
+	Cache restored = new Cache(DClass.IN, true);
+	assertEquals(3, restored.restore(new ByteArrayInputStream(out.toByteArray())));
+	SetResponse sr = restored.lookupRecords(m_name, Type.A, Credibility.NORMAL);
+	assertTrue(sr.isSuccessful());
+	assertEquals(2, sr.answers()[0].size());
+	sr = restored.lookupRecords(m_name, Type.A, Credibility.AUTH_ANSWER);
+	assertTrue(sr.isUnknown());
+	assertTrue(restored.lookupRecords(other, Type.A, Credibility.NORMAL).isNXDOMAIN());
+	assertTrue(restored.lookupRecords(m_name, Type.MX, Credibility.NORMAL).isNXRRSET());
+	assertTrue(restored.lookupRecords(shortName, Type.A, Credibility.NORMAL).isUnknown());
+
+	try {
+	    new Cache(DClass.CH).restore(new ByteArrayInputStream(out.toByteArray()));
+	    fail("restored a snapshot of the wrong class");
+	}
+	catch (IOException e) {
+	}
+    }
+}
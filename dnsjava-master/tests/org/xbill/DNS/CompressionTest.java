@@ -34,6 +34,9 @@
 //
 package org.xbill.DNS;
 
+import	java.lang.ref.WeakReference;
+import	java.net.InetAddress;
+import	java.util.Arrays;
 import	junit.framework.TestCase;
 import	org.xbill.DNS.Compression;
 import	org.xbill.DNS.Name;
@@ -45,6 +48,11 @@ public class CompressionTest extends TestCase
 	Options.set("verbosecompression");
     }
 
+    public void tearDown()
+    {
+	Options.unset("verbosecompression");
+    }
+
     public void test() throws TextParseException
     {
 	Compression c = new Compression();
@@ -58,4 +66,91 @@ public class CompressionTest extends TestCase
 	c.add(10, n2);
 	assertEquals(10, c.get(n2));
     }
+
+    public void test_suffix_case_insensitive() throws Exception
+    {
+	Compression c = new Compression();
+	DNSOutput o = new DNSOutput();
+	Name.fromString("www.example.com.").toWire(o, c);
+	int pos = o.current();
+	Name.fromString("MAIL.Example.COM.").toWire(o, c);
+	byte [] exp = new byte[] { 4, 'M', 'A', 'I', 'L', (byte)0xC0, 4 };
+	byte [] out = o.toByteArray();
+	byte [] tail = new byte[out.length - pos];
+	System.arraycopy(out, pos, tail, 0, tail.length);
+	assertTrue(Arrays.equals(exp, tail));
+
+	assertEquals(4, c.get(Name.fromString("example.com.")));
+	assertEquals(pos, c.get(Name.fromString("mail.example.com.")));
+	assertEquals(-1, c.get(Name.fromString("other.com.")));
+    }
+
+    public void test_reset() throws Exception
+    {
+	Compression c = new Compression(1);
+	DNSOutput o = new DNSOutput();
+	Name n = Name.fromString("www.example.com.");
+	n.toWire(o, c);
+	assertEquals(0, c.get(n));
+	c.reset(1);
+	assertEquals(-1, c.get(n));
+
+	o = new DNSOutput();
+	n.toWire(o, c);
+	n.toWire(o, c);
+	assertEquals(n.length() + 2, o.current());
+    }
+
+    public void test_release() throws Exception
+    {
+	Compression c = Compression.acquire(1);
+	DNSOutput o = new DNSOutput();
+	Name n = new Name("www.example.com.");
+	c.add(0, n);
+	n.toWire(o, c);
+	WeakReference nameRef = new WeakReference(n);
+	WeakReference outputRef = new WeakReference(o);
+	Compression.release(c);
+	n = null;
+	o = null;
+	/* The pooled object doesn't keep the message alive. */
+	for (int i = 0; i < 10 && (nameRef.get() != null || outputRef.get() != null); i++)
+	    System.gc();
+	assertNull(nameRef.get());
+	assertNull(outputRef.get());
+	assertSame(c, Compression.acquire(1));
+    }
+
+    public void test_discarded() throws Exception
+    {
+	Compression c = new Compression();
+	DNSOutput o = new DNSOutput();
+	Name n = Name.fromString("www.example.com.");
+	o.writeU16(0);
+	n.toWire(o, c);
+	/* The name is no longer part of the output, so can't be used. */
+	o.jump(2);
+	n.toWire(o, c);
+	assertEquals(2 + n.length(), o.current());
+    }
+
+    public void test_large_message() throws Exception
+    {
+	/* Too much output to be useful. */
+	Options.unset("verbosecompression");
+	Message m = new Message();
+	for (int i = 0; i < 2000; i++) {
+	    Name n = Name.fromString("host" + i + ".sub" + (i % 10) + ".example.com.");
+	    m.addRecord(new ARecord(n, DClass.IN, 3600,
+				    InetAddress.getByName("10.0.0.1")), Section.ANSWER);
+	    m.addRecord(new CNAMERecord(Name.fromString("alias" + i + ".example.com."),
+					DClass.IN, 3600, n), Section.ANSWER);
+	}
+	byte [] wire = m.toWire();
+	Message m2 = new Message(wire);
+	assertTrue(Arrays.equals(m.getSectionArray(Section.ANSWER),
+				 m2.getSectionArray(Section.ANSWER)));
+	/* Rendering again (reusing the compression table) is identical. */
+	assertTrue(Arrays.equals(wire, m.toWire()));
+    }
 }
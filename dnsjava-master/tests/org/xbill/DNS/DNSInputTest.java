@@ -34,6 +34,8 @@
 //
 package org.xbill.DNS;
 
+import	java.nio.ByteBuffer;
+import	java.nio.ByteOrder;
 import	java.util.Arrays;
 import	junit.framework.TestCase;
 
@@ -307,4 +309,51 @@ public class DNSInputTest extends TestCase
 	assertEquals( 3, m_di.current() );
 	assertEquals( out[0], 2 );
     }
+
+    public void test_byteBuffer_offset() throws WireParseException
+    {
+	ByteBuffer b = ByteBuffer.allocateDirect( 16 );
+	b.put( new byte[] { 9, 9, 9 } );
+	b.put( m_raw );
+	b.flip();
+	b.position( 3 );
+	DNSInput di = new DNSInput( b );
+	assertEquals( 0, di.current() );
+	assertEquals( 10, di.remaining() );
+	assertEquals( 1, di.readU16() );
+	di.jump( 4 );
+	assertEquals( 4, di.readU8() );
+	try {
+	    di.jump( 10 );
+	    fail( "IllegalArgumentException not thrown" );
+	}
+	catch( IllegalArgumentException e ){
+	    // pass
+	}
+    }
+
+    public void test_byteBuffer_littleEndian() throws WireParseException
+    {
+	ByteBuffer b = ByteBuffer.allocateDirect( 10 ).order( ByteOrder.LITTLE_ENDIAN );
+	b.put( m_raw );
+	b.flip();
+	DNSInput di = new DNSInput( b );
+	assertEquals( 1, di.readU16() );
+	assertEquals( 0x02030405L, di.readU32() );
+	assertEquals( 0xFFFF, di.readU16() );
+	assertEquals( 8, b.position() );
+    }
+
+    public void test_restoreActive() throws WireParseException
+    {
+	m_di.setActive( 4 );
+	int save = m_di.saveActive();
+	assertEquals( 4, save );
+	m_di.readU8();
+	m_di.setActive( 1 );
+	m_di.readU8();
+	assertEquals( 0, m_di.remaining() );
+	m_di.restoreActive( save );
+	assertEquals( 2, m_di.remaining() );
+    }
 }
@@ -34,6 +34,10 @@
 //
 package org.xbill.DNS;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import junit.framework.TestCase;
 
 public class DNSOutputTest extends TestCase
@@ -265,4 +269,40 @@ public class DNSOutputTest extends TestCase
 	}
     }
 
+    public void test_byteBuffer()
+    {
+	ByteBuffer b = ByteBuffer.allocateDirect( 8 );
+	b.position( 2 );
+	DNSOutput out = new DNSOutput( b );
+	out.writeU16( 0x1234 );
+	out.writeU8( 0x56 );
+	out.writeByteArray( new byte[] { 7, 8 } );
+	out.writeU16At( 0xABCD, 0 );
+	assertEquals( 5, out.current() );
+	assertEquals( 2, b.position() );
+	byte[] exp = new byte[] { (byte)0xAB, (byte)0xCD, 0x56, 7, 8 };
+	assertTrue( Arrays.equals( exp, out.toByteArray() ) );
+	assertEquals( (byte)0xAB, b.get( 2 ) );
+	try {
+	    out.writeU16( 1 );
+	    fail( "BufferOverflowException not thrown" );
+	}
+	catch( BufferOverflowException e ){
+	    // pass
+	}
+    }
+
+    public void test_byteBuffer_littleEndian()
+    {
+	ByteBuffer b = ByteBuffer.allocateDirect( 8 ).order( ByteOrder.LITTLE_ENDIAN );
+	DNSOutput out = new DNSOutput( b );
+	out.writeU16( 0x1234 );
+	out.writeU32( 0x56789ABCL );
+	out.writeU16At( 0xABCD, 0 );
+	byte[] exp = new byte[] { (byte)0xAB, (byte)0xCD, 0x56, 0x78, (byte)0x9A, (byte)0xBC };
+	assertTrue( Arrays.equals( exp, out.toByteArray() ) );
+	assertEquals( 0x56, b.get( 2 ) );
+	assertEquals( ByteOrder.LITTLE_ENDIAN, b.order() );
+    }
+
 }
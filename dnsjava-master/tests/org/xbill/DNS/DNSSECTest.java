@@ -0,0 +1,114 @@
+package org.xbill.DNS;
+
+import java.net.InetAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.xbill.DNS.DNSSEC.Algorithm;
+
+public class DNSSECTest extends TestCase
+{
+    private Name m_name;
+    private KeyPair m_pair;
+    private DNSKEYRecord m_key;
+    private Date m_inception;
+    private Date m_expiration;
+
+    protected void setUp() throws Exception
+    {
+	m_name = Name.fromString("example.com.");
+	KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+	gen.initialize(1024);
+	m_pair = gen.generateKeyPair();
+	m_key = new DNSKEYRecord(m_name, DClass.IN, 3600, DNSKEYRecord.Flags.ZONE_KEY,
+				 DNSKEYRecord.Protocol.DNSSEC, Algorithm.RSASHA256,
+				 m_pair.getPublic());
+	long now = System.currentTimeMillis();
+	m_inception = new Date(now - 3600 * 1000);
+	m_expiration = new Date(now + 3600 * 1000);
+    }
+
+    protected void tearDown()
+    {
+	DNSSEC.setKeyCacheSize(1024);
+	DNSSEC.setVerifiedCacheSize(8192);
+    }
+
+    private RRset rrset(int i) throws Exception
+    {
+	Name name = Name.fromString("host" + i, m_name);
+	return new RRset(new ARecord(name, DClass.IN, 3600,
+				     InetAddress.getByName("10.0.0." + i)));
+    }
+
+    private RRSIGRecord sign(RRset rrset) throws Exception
+    {
+	return DNSSEC.sign(rrset, m_key, m_pair.getPrivate(), m_inception, m_expiration);
+    }
+
+    public void test_keyCache() throws Exception
+    {
+	DNSKEYRecord copy = (DNSKEYRecord) Record.fromWire(m_key.toWire(Section.ANSWER),
+							   Section.ANSWER);
+	assertSame(DNSSEC.toPublicKey(m_key), DNSSEC.toPublicKey(copy));
+	DNSSEC.setKeyCacheSize(0);
+	assertNotSame(DNSSEC.toPublicKey(m_key), DNSSEC.toPublicKey(copy));
+    }
+
+    public void test_verifiedCache() throws Exception
+    {
+	RRset rrset = rrset(1);
+	RRSIGRecord sig = sign(rrset);
+	DNSSEC.verify(rrset, sig, m_key);
+	DNSSEC.verify(rrset, sig, m_key);
+
+	/* A cached signature must not match different data. */
+	RRset other = rrset(2);
+	try {
+	    DNSSEC.verify(other, sig, m_key);
+	    fail("verified a signature over different data");
+	}
+	catch (DNSSEC.DNSSECException e) {
+	}
+
+	/* Nor an expired signature. */
+	RRSIGRecord expired = DNSSEC.sign(rrset, m_key, m_pair.getPrivate(),
+					  new Date(m_inception.getTime() - 7200 * 1000),
+					  new Date(m_inception.getTime() - 3600 * 1000));
+	try {
+	    DNSSEC.verify(rrset, expired, m_key);
+	    fail("verified an expired signature");
+	}
+	catch (DNSSEC.SignatureExpiredException e) {
+	}
+    }
+
+    public void test_batch() throws Exception
+    {
+	int n = 20;
+	RRset [] rrsets = new RRset[n];
+	RRSIGRecord [] sigs = new RRSIGRecord[n];
+	DNSKEYRecord [] keys = new DNSKEYRecord[n];
+	for (int i = 0; i < n; i++) {
+	    rrsets[i] = rrset(i);
+	    sigs[i] = sign(rrsets[i]);
+	    keys[i] = m_key;
+	}
+	/* Swap two signatures, so neither verifies. */
+	RRSIGRecord tmp = sigs[3];
+	sigs[3] = sigs[4];
+	sigs[4] = tmp;
+
+	DNSSEC.DNSSECException [] results = DNSSEC.verify(rrsets, sigs, keys);
+	assertEquals(n, results.length);
+	for (int i = 0; i < n; i++) {
+	    if (i == 3 || i == 4)
+		assertNotNull(results[i]);
+	    else
+		assertNull(results[i]);
+	}
+    }
+}
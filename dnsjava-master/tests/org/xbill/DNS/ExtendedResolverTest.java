@@ -0,0 +1,127 @@
+package org.xbill.DNS;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ExtendedResolverTest extends TestCase
+{
+    /*
+     * Answers queries after a delay, or fails them with a timeout if the
+     * delay is negative, and counts the queries.
+     */
+    private static class StubResolver implements Resolver
+    {
+	private long m_delay;
+	private int m_queries;
+
+	StubResolver(long delay)
+	{
+	    m_delay = delay;
+	}
+
+	synchronized int getQueries()
+	{
+	    return m_queries;
+	}
+
+	public Message send(Message query) throws IOException
+	{
+	    synchronized (this) {
+		m_queries++;
+	    }
+	    if (m_delay < 0)
+		throw new InterruptedIOException("timed out");
+	    try {
+		Thread.sleep(m_delay);
+	    }
+	    catch (InterruptedException e) {
+		throw new InterruptedIOException("interrupted");
+	    }
+	    Record question = query.getQuestion();
+	    Message response = new Message(query.getHeader().getID());
+	    response.getHeader().setFlag(Flags.QR);
+	    response.addRecord(question, Section.QUESTION);
+	    response.addRecord(new ARecord(question.getName(), DClass.IN, 3600,
+					   InetAddress.getByName("10.0.0.1")),
+			       Section.ANSWER);
+	    return response;
+	}
+
+	public Object sendAsync(final Message query, final ResolverListener listener)
+	{
+	    final Object id = new Object();
+	    Thread t = new Thread() {
+		public void run() {
+		    try {
+			listener.receiveMessage(id, send(query));
+		    }
+		    catch (IOException e) {
+			listener.handleException(id, e);
+		    }
+		}
+	    };
+	    t.setDaemon(true);
+	    t.start();
+	    return id;
+	}
+
+	public void setPort(int port) {}
+	public void setTCP(boolean flag) {}
+	public void setIgnoreTruncation(boolean flag) {}
+	public void setEDNS(int level) {}
+	public void setEDNS(int level, int payloadSize, int flags, List options) {}
+	public void setTSIGKey(TSIG key) {}
+	public void setTimeout(int secs, int msecs) {}
+	public void setTimeout(int secs) {}
+    }
+
+    private Message query() throws TextParseException
+    {
+	Name name = Name.fromString("www.example.com.");
+	return Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+    }
+
+    public void test_latencyAware() throws Exception
+    {
+	StubResolver slow = new StubResolver(200);
+	StubResolver fast = new StubResolver(5);
+	ExtendedResolver res = new ExtendedResolver(new Resolver [] {slow, fast});
+	res.setLatencyAware(true);
+	for (int i = 0; i < 20; i++)
+	    assertNotNull(res.send(query()));
+	assertEquals(20, slow.getQueries() + fast.getQueries());
+	assertTrue(fast.getQueries() >= 15);
+    }
+
+    public void test_backoff() throws Exception
+    {
+	StubResolver failing = new StubResolver(-1);
+	StubResolver good = new StubResolver(0);
+	ExtendedResolver res = new ExtendedResolver(new Resolver [] {failing, good});
+	res.setLatencyAware(true);
+	/* Each query tries a server three times before moving on. */
+	while (failing.getQueries() < 3)
+	    assertNotNull(res.send(query()));
+	int failed = failing.getQueries();
+	for (int i = 0; i < 10; i++)
+	    assertNotNull(res.send(query()));
+	assertEquals(failed, failing.getQueries());
+    }
+
+    public void test_hedging() throws Exception
+    {
+	StubResolver slow = new StubResolver(2000);
+	StubResolver fast = new StubResolver(5);
+	ExtendedResolver res = new ExtendedResolver(new Resolver [] {slow, fast});
+	res.setHedging(true);
+	long start = System.currentTimeMillis();
+	assertNotNull(res.send(query()));
+	assertTrue(System.currentTimeMillis() - start < 1000);
+	assertEquals(1, slow.getQueries());
+	assertEquals(1, fast.getQueries());
+    }
+}
@@ -0,0 +1,136 @@
+package org.xbill.DNS;
+
+import java.net.InetAddress;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+public class ImmutableRRsetTest extends TestCase
+{
+    private Name m_name;
+    private RRset m_rrset;
+
+    protected void setUp() throws Exception
+    {
+	m_name = Name.fromString("www.example.com.");
+	m_rrset = new RRset();
+	for (int i = 1; i <= 3; i++)
+	    m_rrset.addRR(new ARecord(m_name, DClass.IN, 3600,
+				      InetAddress.getByName("10.0.0." + (4 - i))));
+	m_rrset.addRR(new RRSIGRecord(m_name, DClass.IN, 3600, Type.A, 8, 3600,
+				      new Date(), new Date(), 1234,
+				      Name.fromString("example.com."), new byte [] {1, 2, 3}));
+    }
+
+    public void test_copy() throws Exception
+    {
+	ImmutableRRset rrset = new ImmutableRRset(m_rrset);
+	assertEquals(3, rrset.size());
+	assertEquals(m_rrset.first(), rrset.first());
+	assertEquals(m_name, rrset.getName());
+	assertEquals(Type.A, rrset.getType());
+	assertEquals(3600, rrset.getTTL());
+	Iterator it = rrset.sigs();
+	assertTrue(it.next() instanceof RRSIGRecord);
+	assertFalse(it.hasNext());
+	assertEquals(m_rrset.toString(), rrset.toString());
+
+	/* A copy of an immutable set is an ordinary set. */
+	RRset copy = new RRset(rrset);
+	copy.addRR(new ARecord(m_name, DClass.IN, 60, InetAddress.getByName("10.0.0.9")));
+	assertEquals(4, copy.size());
+	assertEquals(60, copy.getTTL());
+	assertEquals(3, rrset.size());
+    }
+
+    public void test_records() throws Exception
+    {
+	Record [] records = new Record [] {
+	    new ARecord(m_name, DClass.IN, 3600, InetAddress.getByName("10.0.0.1")),
+	    new ARecord(m_name, DClass.IN, 60, InetAddress.getByName("10.0.0.2")),
+	};
+	ImmutableRRset rrset = new ImmutableRRset(records);
+	assertEquals(2, rrset.size());
+	assertEquals(60, rrset.getTTL());
+	try {
+	    new ImmutableRRset(new Record [] {
+		records[0], new CNAMERecord(m_name, DClass.IN, 60, m_name) });
+	    fail("records from different sets");
+	}
+	catch (IllegalArgumentException e) {
+	}
+	try {
+	    new ImmutableRRset(new RRset());
+	    fail("empty set");
+	}
+	catch (IllegalArgumentException e) {
+	}
+    }
+
+    public void test_immutable()
+    {
+	ImmutableRRset rrset = new ImmutableRRset(m_rrset);
+	try {
+	    rrset.addRR(m_rrset.first());
+	    fail("added a record");
+	}
+	catch (UnsupportedOperationException e) {
+	}
+	try {
+	    rrset.deleteRR(m_rrset.first());
+	    fail("deleted a record");
+	}
+	catch (UnsupportedOperationException e) {
+	}
+	try {
+	    rrset.clear();
+	    fail("cleared the set");
+	}
+	catch (UnsupportedOperationException e) {
+	}
+	Iterator it = rrset.rrs(false);
+	it.next();
+	try {
+	    it.remove();
+	    fail("removed a record");
+	}
+	catch (UnsupportedOperationException e) {
+	}
+	assertEquals(3, rrset.size());
+    }
+
+    public void test_cycle()
+    {
+	ImmutableRRset rrset = new ImmutableRRset(m_rrset);
+	Set firsts = new HashSet();
+	for (int i = 0; i < 3; i++) {
+	    Iterator it = rrset.rrs();
+	    firsts.add(it.next());
+	    assertTrue(it.hasNext());
+	    it.next();
+	    it.next();
+	    assertFalse(it.hasNext());
+	}
+	assertEquals(3, firsts.size());
+	assertEquals(m_rrset.first(), rrset.rrs(false).next());
+    }
+
+    public void test_digest() throws Exception
+    {
+	RRSIGRecord sig = (RRSIGRecord) m_rrset.sigs().next();
+	ImmutableRRset rrset = new ImmutableRRset(m_rrset);
+	byte [] expected = DNSSEC.digestRRset(sig, m_rrset);
+	assertTrue(Arrays.equals(expected, DNSSEC.digestRRset(sig, rrset)));
+	assertSame(rrset.canonicalRdata(), rrset.canonicalRdata());
+	assertTrue(Arrays.equals(expected, DNSSEC.digestRRset(sig, rrset)));
+
+	/* The records are in canonical order. */
+	byte [][] rdata = rrset.canonicalRdata();
+	assertEquals(3, rdata.length);
+	for (int i = 0; i < rdata.length; i++) {
+	    assertEquals(6, rdata[i].length);
+	    assertEquals(4, rdata[i][1]);
+	    assertEquals(i + 1, rdata[i][5]);
+	}
+    }
+}
@@ -0,0 +1,134 @@
+package org.xbill.DNS;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class LookupTest extends TestCase
+{
+    /* Answers every query with one A record, slowly, and counts the queries. */
+    private static class StubResolver implements Resolver
+    {
+	private int m_queries;
+	private String m_address;
+	private long m_delay;
+
+	StubResolver(String address, long delay)
+	{
+	    m_address = address;
+	    m_delay = delay;
+	}
+
+	synchronized int getQueries()
+	{
+	    return m_queries;
+	}
+
+	public Message send(Message query) throws IOException
+	{
+	    synchronized (this) {
+		m_queries++;
+	    }
+	    try {
+		Thread.sleep(m_delay);
+	    }
+	    catch (InterruptedException e) {
+		throw new IOException("interrupted");
+	    }
+	    Record question = query.getQuestion();
+	    Message response = new Message(query.getHeader().getID());
+	    response.getHeader().setFlag(Flags.QR);
+	    response.getHeader().setFlag(Flags.AA);
+	    response.addRecord(question, Section.QUESTION);
+	    response.addRecord(new ARecord(question.getName(), DClass.IN, 3600,
+					   InetAddress.getByName(m_address)),
+			       Section.ANSWER);
+	    return response;
+	}
+
+	public Object sendAsync(Message query, ResolverListener listener)
+	{
+	    throw new UnsupportedOperationException();
+	}
+
+	public void setPort(int port) {}
+	public void setTCP(boolean flag) {}
+	public void setIgnoreTruncation(boolean flag) {}
+	public void setEDNS(int level) {}
+	public void setEDNS(int level, int payloadSize, int flags, List options) {}
+	public void setTSIGKey(TSIG key) {}
+	public void setTimeout(int secs, int msecs) {}
+	public void setTimeout(int secs) {}
+    }
+
+    private Name m_name;
+    private Cache m_cache;
+
+    protected void setUp() throws Exception
+    {
+	m_name = Name.fromString("www.example.com.");
+	m_cache = new Cache(DClass.IN, true);
+    }
+
+    private Lookup lookup(Resolver resolver)
+    {
+	Lookup l = new Lookup(m_name, Type.A);
+	l.setResolver(resolver);
+	l.setCache(m_cache);
+	return l;
+    }
+
+    private String address(Record [] answers)
+    {
+	return ((ARecord) answers[0]).getAddress().getHostAddress();
+    }
+
+    public void test_coalescing() throws Exception
+    {
+	final StubResolver resolver = new StubResolver("10.0.0.1", 500);
+	final Record [][] answers = new Record[8][];
+	Thread [] threads = new Thread[answers.length];
+	for (int i = 0; i < threads.length; i++) {
+	    final int n = i;
+	    threads[i] = new Thread() {
+		public void run() {
+		    answers[n] = lookup(resolver).run();
+		}
+	    };
+	    threads[i].start();
+	}
+	for (int i = 0; i < threads.length; i++)
+	    threads[i].join(5000);
+	assertEquals(1, resolver.getQueries());
+	for (int i = 0; i < answers.length; i++) {
+	    assertNotNull(answers[i]);
+	    assertEquals("10.0.0.1", address(answers[i]));
+	}
+    }
+
+    public void test_refreshAhead() throws Exception
+    {
+	m_cache.addRRset(new RRset(new ARecord(m_name, DClass.IN, 3600,
+					       InetAddress.getByName("10.0.0.1"))),
+			 Credibility.NORMAL);
+	StubResolver resolver = new StubResolver("10.0.0.2", 0);
+	/* Let a second of the lifetime pass. */
+	Thread.sleep(1100);
+
+	Lookup l = lookup(resolver);
+	assertEquals("10.0.0.1", address(l.run()));
+	assertEquals(0, resolver.getQueries());
+
+	l = lookup(resolver);
+	l.setRefreshAhead(100);
+	assertEquals("10.0.0.1", address(l.run()));
+	long end = System.currentTimeMillis() + 5000;
+	while (System.currentTimeMillis() < end &&
+	       !"10.0.0.2".equals(address(lookup(resolver).run())))
+	    Thread.sleep(10);
+	assertEquals(1, resolver.getQueries());
+	assertEquals("10.0.0.2", address(lookup(resolver).run()));
+    }
+}
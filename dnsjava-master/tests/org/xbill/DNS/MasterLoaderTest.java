@@ -0,0 +1,121 @@
+package org.xbill.DNS;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import	junit.framework.TestCase;
+
+public class MasterLoaderTest extends TestCase
+{
+    private File m_file;
+
+    protected void setUp() throws Exception
+    {
+	m_file = File.createTempFile("zone", ".db");
+    }
+
+    protected void tearDown()
+    {
+	m_file.delete();
+    }
+
+    private void write(String text) throws IOException
+    {
+	Writer w = new FileWriter(m_file);
+	w.write(text);
+	w.close();
+    }
+
+    private List master(Name origin) throws IOException
+    {
+	Master m = new Master(m_file.getPath(), origin);
+	List list = new ArrayList();
+	Record r;
+	while ((r = m.nextRecord()) != null)
+	    list.add(r);
+	return list;
+    }
+
+    private List loader(Name origin, int chunkSize) throws IOException
+    {
+	MasterLoader loader = new MasterLoader(m_file, origin, -1);
+	loader.setChunkSize(chunkSize);
+	loader.setPool(new ForkJoinPool(4));
+	final List list = new ArrayList();
+	long n = loader.load(new MasterLoader.RecordHandler() {
+	    public void handleRecord(Record r) {
+		list.add(r);
+	    }
+	});
+	assertEquals(list.size(), n);
+	assertEquals(n, loader.getRecordCount());
+	assertTrue(loader.getRecordsPerSecond() > 0);
+	return list;
+    }
+
+    private String zone()
+    {
+	StringBuffer sb = new StringBuffer();
+	sb.append("$TTL 3600\n");
+	sb.append("@ IN SOA ns hostmaster ( 1 ; serial (not a paren\n");
+	sb.append("\t3600 600\n\t86400 300 )\n");
+	sb.append("\tNS ns\n");
+	for (int i = 0; i < 200; i++) {
+	    sb.append("host" + i + " A 10.0.0." + (i % 250) + "\n");
+	    sb.append("\tTXT \"a ( quoted ; string\" ; comment )\n");
+	    if (i == 100)
+		sb.append("$ORIGIN sub.example.com.\r\n$TTL 60\r\n");
+	}
+	return sb.toString();
+    }
+
+    public void test_load() throws Exception
+    {
+	write(zone());
+	Name origin = Name.fromString("example.com.");
+	List expected = master(origin);
+	assertEquals(402, expected.size());
+	/* Chunks much smaller than records split at every boundary. */
+	assertEquals(expected, loader(origin, 1));
+	assertEquals(expected, loader(origin, 1000));
+	assertEquals(expected, loader(origin, 1 << 20));
+
+	List list = loader(origin, 1);
+	Record last = (Record) list.get(list.size() - 1);
+	assertEquals(Name.fromString("host199.sub.example.com."), last.getName());
+	assertEquals(60, last.getTTL());
+    }
+
+    public void test_noDefaultTTL() throws Exception
+    {
+	/* Without $TTL, records take their TTL from the previous one. */
+	write("a 100 IN A 10.0.0.1\nb A 10.0.0.2\nc 200 A 10.0.0.3\nd A 10.0.0.4\n");
+	Name origin = Name.fromString("example.com.");
+	List list = loader(origin, 1);
+	assertEquals(master(origin), list);
+	assertEquals(100, ((Record) list.get(1)).getTTL());
+	assertEquals(200, ((Record) list.get(3)).getTTL());
+    }
+
+    public void test_nextRecord_error() throws Exception
+    {
+	StringBuffer sb = new StringBuffer("$TTL 1\n");
+	for (int i = 0; i < 50; i++)
+	    sb.append("a" + i + " A 10.0.0.1\n");
+	sb.append("bad A notanaddress\n");
+	write(sb.toString());
+	MasterLoader loader = new MasterLoader(m_file, Name.root, -1);
+	loader.setChunkSize(16);
+	for (int i = 0; i < 50; i++)
+	    assertNotNull(loader.nextRecord());
+	try {
+	    loader.nextRecord();
+	    fail("TextParseException not thrown");
+	}
+	catch (TextParseException e) {
+	    assertTrue(e.getMessage(), e.getMessage().indexOf(":52:") >= 0);
+	}
+	assertNull(loader.nextRecord());
+    }
+}
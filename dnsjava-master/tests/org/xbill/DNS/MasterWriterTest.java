@@ -0,0 +1,107 @@
+package org.xbill.DNS;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+import junit.framework.TestCase;
+
+public class MasterWriterTest extends TestCase
+{
+    private Name m_origin;
+    private Zone m_zone;
+
+    protected void setUp() throws Exception
+    {
+	m_origin = Name.fromString("example.com.");
+	Name ns = Name.fromString("ns.example.com.");
+	List records = new ArrayList();
+	records.add(new SOARecord(m_origin, DClass.IN, 3600, m_origin, m_origin,
+				  1, 3600, 600, 86400, 300));
+	records.add(new NSRecord(m_origin, DClass.IN, 3600, ns));
+	records.add(new ARecord(ns, DClass.IN, 3600, InetAddress.getByName("192.168.0.53")));
+	for (int i = 0; i < 1000; i++) {
+	    Name n = Name.fromString("host" + i, m_origin);
+	    records.add(new ARecord(n, DClass.IN, 3600,
+				    InetAddress.getByName("10.0." + (i / 256) + "." + (i % 256))));
+	    records.add(new TXTRecord(n, DClass.IN, 3600, "host number " + i));
+	}
+	records.add(new MXRecord(m_origin, DClass.IN, 3600, 10,
+				 Name.fromString("mail.example.net.")));
+	m_zone = new Zone(m_origin, (Record []) records.toArray(new Record[records.size()]));
+    }
+
+    private Set parse(InputStream in) throws IOException
+    {
+	Set records = new HashSet();
+	Master m = new Master(in, Name.fromString("other.example."));
+	Record r;
+	while ((r = m.nextRecord()) != null)
+	    records.add(r);
+	return records;
+    }
+
+    private Set contents(Zone zone)
+    {
+	Set records = new HashSet();
+	for (Iterator it = zone.iterator(); it.hasNext(); ) {
+	    RRset rrset = (RRset) it.next();
+	    for (Iterator r = rrset.rrs(false); r.hasNext(); )
+		records.add(r.next());
+	}
+	return records;
+    }
+
+    public void test_writer() throws IOException
+    {
+	StringWriter sw = new StringWriter();
+	m_zone.toMasterFile(sw);
+	String text = sw.toString();
+	assertEquals(m_zone.toMasterFile(), text);
+	assertTrue(text.startsWith(m_zone.getSOA().toString() + "\n"));
+	assertEquals(contents(m_zone), parse(new ByteArrayInputStream(text.getBytes("US-ASCII"))));
+    }
+
+    public void test_relative() throws IOException
+    {
+	StringWriter sw = new StringWriter();
+	MasterWriter w = new MasterWriter(sw);
+	w.setOrigin(m_origin);
+	w.write(m_zone);
+	w.flush();
+	assertEquals(2004, w.getRecordCount());
+	String text = sw.toString();
+	assertTrue(text.startsWith("$ORIGIN example.com.\n@\t"));
+	assertTrue(text.indexOf("\nhost5\t") >= 0);
+	assertTrue(text.indexOf("host5.example.com.") < 0);
+	assertTrue(text.indexOf("mail.example.net.") >= 0);
+	assertTrue(text.length() < m_zone.toMasterFile().length());
+	assertEquals(contents(m_zone), parse(new ByteArrayInputStream(text.getBytes("US-ASCII"))));
+    }
+
+    public void test_gzip() throws IOException
+    {
+	File file = File.createTempFile("zone", ".db.gz");
+	try {
+	    FileChannel channel = new FileOutputStream(file).getChannel();
+	    MasterWriter w = new MasterWriter(channel, true);
+	    w.setOrigin(m_origin);
+	    w.write(m_zone);
+	    w.close();
+	    assertFalse(channel.isOpen());
+	    assertTrue(file.length() < m_zone.toMasterFile().length() / 4);
+	    InputStream in = new GZIPInputStream(new FileInputStream(file));
+	    try {
+		assertEquals(contents(m_zone), parse(in));
+	    }
+	    finally {
+		in.close();
+	    }
+	}
+	finally {
+	    file.delete();
+	}
+    }
+}
@@ -36,7 +36,11 @@ package org.xbill.DNS;
 
 import	java.net.InetAddress;
 import	java.net.UnknownHostException;
+import	java.nio.ByteBuffer;
+import	java.nio.ByteOrder;
+import	java.util.ArrayList;
 import	java.util.Arrays;
+import	java.util.List;
 import	junit.framework.Test;
 import	junit.framework.TestCase;
 import	junit.framework.TestSuite;
@@ -108,10 +112,159 @@ public class MessageTest
 
     }
 
+    public static class Test_byteBuffer extends TestCase
+    {
+	private Message response(int answers) throws Exception
+	{
+	    Name n = Name.fromString("www.example.com.");
+	    Message m = Message.newQuery(Record.newRecord(n, Type.A, DClass.IN));
+	    for (int i = 0; i < answers; i++)
+		m.addRecord(new ARecord(n, DClass.IN, 3600,
+					InetAddress.getByAddress(new byte[] {10, 0, (byte)(i >> 8), (byte)i})),
+			    Section.ANSWER);
+	    return m;
+	}
+
+	public void test_toWire_fromWire() throws Exception
+	{
+	    Message m = response(3);
+	    ByteBuffer b = ByteBuffer.allocateDirect(Message.MAXLENGTH);
+	    b.position(5);
+	    int len = m.toWire(b);
+	    assertEquals(m.toWire().length, len);
+	    assertEquals(5 + len, b.position());
+
+	    b.flip();
+	    b.position(5);
+	    Message m2 = new Message(b);
+	    assertEquals(m.getHeader().getID(), m2.getHeader().getID());
+	    assertEquals(3, m2.getSectionArray(Section.ANSWER).length);
+	    assertEquals(m.getQuestion(), m2.getQuestion());
+	}
+
+	public void test_toWire_littleEndian() throws Exception
+	{
+	    Message m = response(3);
+	    ByteBuffer b = ByteBuffer.allocateDirect(Message.MAXLENGTH);
+	    b.order(ByteOrder.LITTLE_ENDIAN);
+	    int len = m.toWire(b);
+	    b.flip();
+	    byte [] wire = new byte[len];
+	    b.duplicate().get(wire);
+	    assertTrue(Arrays.equals(m.toWire(), wire));
+
+	    Message m2 = new Message(b);
+	    assertEquals(m.getHeader().getID(), m2.getHeader().getID());
+	    assertEquals(3, m2.getSectionArray(Section.ANSWER).length);
+	    assertEquals(m.getSectionArray(Section.ANSWER)[2],
+			 m2.getSectionArray(Section.ANSWER)[2]);
+	}
+
+	public void test_toWire_truncated() throws Exception
+	{
+	    Message m = response(100);
+	    ByteBuffer b = ByteBuffer.allocate(512);
+	    int len = m.toWire(b);
+	    assertTrue(len <= 512);
+	    b.flip();
+	    Message m2 = new Message(b);
+	    assertTrue(m2.getHeader().getFlag(Flags.TC));
+	    assertTrue(m2.getSectionArray(Section.ANSWER).length < 100);
+
+	    assertEquals(-1, m.toWire(ByteBuffer.allocate(4)));
+	}
+
+	public void test_options() throws Exception
+	{
+	    Message m = response(0);
+	    List options = new ArrayList();
+	    options.add(new NSIDOption(new byte[] {1, 2}));
+	    options.add(new TCPKeepaliveOption(10));
+	    m.addRecord(new OPTRecord(1280, 0, 0, 0, options), Section.ADDITIONAL);
+	    Message m2 = new Message(m.toWire());
+	    assertEquals(2, m2.getOPT().getOptions().size());
+	}
+    }
+
+    public static class Test_lazy extends TestCase
+    {
+	private byte [] m_wire;
+
+	protected void setUp() throws Exception
+	{
+	    Name n = Name.fromString("www.example.com.");
+	    Message m = Message.newQuery(Record.newRecord(n, Type.A, DClass.IN));
+	    m.getHeader().setFlag(Flags.QR);
+	    m.addRecord(new ARecord(n, DClass.IN, 3600,
+				    InetAddress.getByName("10.0.0.1")), Section.ANSWER);
+	    m.addRecord(new NSRecord(Name.fromString("example.com."), DClass.IN, 3600,
+				     Name.fromString("ns.example.com.")), Section.AUTHORITY);
+	    m_wire = m.toWire();
+	}
+
+	public void test_sections() throws Exception
+	{
+	    Message eager = new Message(m_wire);
+	    Message lazy = new Message(m_wire, true);
+	    assertEquals(eager.getQuestion(), lazy.getQuestion());
+	    assertEquals(eager.getHeader().getID(), lazy.getHeader().getID());
+	    assertEquals(m_wire.length, lazy.numBytes());
+	    assertTrue(Arrays.equals(eager.getSectionArray(Section.ANSWER),
+				     lazy.getSectionArray(Section.ANSWER)));
+	    assertEquals(1, lazy.getSectionRRsets(Section.AUTHORITY).length);
+	    assertNull(lazy.getOPT());
+	    assertEquals(eager.toString(), lazy.toString());
+	}
+
+	public void test_forward() throws Exception
+	{
+	    Message lazy = new Message(m_wire, true);
+	    lazy.getHeader().setID(1234);
+	    byte [] out = lazy.toWire();
+	    assertEquals(m_wire.length, out.length);
+	    assertEquals(1234, new Message(out).getHeader().getID());
+	    for (int i = Header.LENGTH; i < out.length; i++)
+		assertEquals(m_wire[i], out[i]);
+
+	    lazy.removeAllRecords(Section.AUTHORITY);
+	    Message m2 = new Message(lazy.toWire());
+	    assertEquals(0, m2.getHeader().getCount(Section.AUTHORITY));
+	    assertEquals(1, m2.getSectionArray(Section.ANSWER).length);
+	}
+
+	public void test_invalid() throws Exception
+	{
+	    /* Change the A record's type to MX, so its rdata is invalid. */
+	    byte [] bad = (byte []) m_wire.clone();
+	    int pos = 12 + 17 + 4 + 2;
+	    assertEquals(Type.A, bad[pos + 1]);
+	    bad[pos + 1] = Type.MX;
+	    try {
+		new Message(bad);
+		fail("WireParseException not thrown");
+	    }
+	    catch(WireParseException e){}
+	    Message lazy = new Message(bad, true);
+	    try {
+		lazy.getSectionArray(Section.ANSWER);
+		fail("IllegalStateException not thrown");
+	    }
+	    catch(IllegalStateException e){}
+
+	    try {
+		new Message(new byte[] {0, 1, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 3, 'w'}, true);
+		fail("WireParseException not thrown");
+	    }
+	    catch(WireParseException e){}
+	}
+    }
+
     public static Test suite()
     {
 	TestSuite s = new TestSuite();
 	s.addTestSuite(Test_init.class);
+	s.addTestSuite(Test_byteBuffer.class);
+	s.addTestSuite(Test_lazy.class);
 	return s;
     }
 }
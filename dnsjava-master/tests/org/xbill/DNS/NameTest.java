@@ -1235,6 +1235,83 @@ public class NameTest extends TestCase
         assertFalse(n5.isAbsolute());
     }
 
+    public static class Test_wire extends TestCase
+    {
+	/* www.Example.COM., then mail pointing at example.com. */
+	private static final byte [] WIRE = new byte[] {
+	    3, 'w', 'w', 'w', 7, 'E', 'x', 'a', 'm', 'p', 'l', 'e',
+	    3, 'C', 'O', 'M', 0,
+	    4, 'm', 'a', 'i', 'l', (byte) 0xC0, 4
+	};
+
+	protected void tearDown()
+	{
+	    Name.setPoolSize(0);
+	}
+
+	public void test_wireEquals() throws Exception
+	{
+	    DNSInput in = new DNSInput(WIRE);
+	    Name n = Name.fromString("WWW.example.com.");
+	    assertTrue(n.wireEquals(in));
+	    assertEquals(n.hashCode(), Name.wireHashCode(in));
+	    assertEquals(0, in.current());
+	    assertFalse(Name.fromString("www.example.com").wireEquals(in));
+	    assertFalse(Name.fromString("www.example.").wireEquals(in));
+
+	    in.jump(17);
+	    Name mail = Name.fromString("mail.example.com.");
+	    assertTrue(mail.wireEquals(in));
+	    assertEquals(mail.hashCode(), Name.wireHashCode(in));
+	    assertFalse(n.wireEquals(in));
+	}
+
+	public void test_wireEquals_badPointer() throws Exception
+	{
+	    /* A pointer to itself must not loop. */
+	    DNSInput in = new DNSInput(new byte[] {(byte) 0xC0, 0});
+	    assertFalse(Name.root.wireEquals(in));
+	    Name.wireHashCode(in);
+
+	    in = new DNSInput(new byte[] {3, 'c', 'o', 'm'});
+	    assertFalse(Name.fromString("com.").wireEquals(in));
+	}
+
+	public void test_intern() throws Exception
+	{
+	    Name n1 = Name.fromString("www.example.com.");
+	    Name n2 = Name.fromString("www.example.com.");
+	    assertSame(n1, n1.intern());
+	    assertSame(n2, n2.intern());
+
+	    Name.setPoolSize(100);
+	    assertEquals(128, Name.getPoolSize());
+	    assertSame(n1, n1.intern());
+	    assertSame(n1, n2.intern());
+
+	    /* Names differing in case are not merged. */
+	    Name n3 = Name.fromString("WWW.example.com.");
+	    assertSame(n3, n3.intern());
+	}
+
+	public void test_fromWire_pooled() throws Exception
+	{
+	    Name.setPoolSize(16);
+	    Name n1 = Name.fromWire(new DNSInput(WIRE));
+	    DNSInput in = new DNSInput(WIRE);
+	    Name n2 = Name.fromWire(in);
+	    assertSame(n1, n2);
+	    assertEquals(17, in.current());
+
+	    Name mail = Name.fromWire(in);
+	    assertEquals(Name.fromString("mail.example.com."), mail);
+	    assertEquals(WIRE.length, in.current());
+	    in.jump(17);
+	    assertSame(mail, Name.fromWire(in));
+	    assertEquals(WIRE.length, in.current());
+	}
+    }
+
     public static Test suite()
     {
 	TestSuite s = new TestSuite();
@@ -1245,6 +1322,7 @@ public class NameTest extends TestCase
 	s.addTestSuite(Test_toWireCanonical.class);
 	s.addTestSuite(Test_equals.class);
 	s.addTestSuite(Test_compareTo.class);
+	s.addTestSuite(Test_wire.class);
 	return s;
     }
 }
@@ -0,0 +1,147 @@
+package org.xbill.DNS;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+public class RecordStoreTest extends TestCase
+{
+    private Name m_origin;
+
+    protected void setUp() throws Exception
+    {
+	m_origin = Name.fromString("example.com.");
+    }
+
+    private Record a(String name, int i) throws Exception
+    {
+	return new ARecord(Name.fromString(name, m_origin), DClass.IN, 3600,
+			   InetAddress.getByName("10.0." + (i / 256) + "." + (i % 256)));
+    }
+
+    private Zone zone(RecordStore store) throws Exception
+    {
+	List records = new ArrayList();
+	records.add(new SOARecord(m_origin, DClass.IN, 3600, m_origin, m_origin,
+				  1, 3600, 600, 86400, 300));
+	records.add(new NSRecord(m_origin, DClass.IN, 3600,
+				 Name.fromString("ns.example.com.")));
+	for (int i = 0; i < 2000; i++)
+	    records.add(a("host" + i, i));
+	records.add(new MXRecord(Name.fromString("Host7.example.com."), DClass.IN, 3600, 10,
+				 m_origin));
+	Record [] array = (Record []) records.toArray(new Record[records.size()]);
+	return (store == null) ? new Zone(m_origin, array) : new Zone(m_origin, array, store);
+    }
+
+    public void test_zone() throws Exception
+    {
+	RecordStore store = new RecordStore(4096);
+	Zone z = zone(store);
+	Zone heap = zone(null);
+	assertEquals(2001, store.size());
+
+	Name host7 = Name.fromString("host7.example.com.");
+	SetResponse sr = z.findRecords(host7, Type.A);
+	assertTrue(sr.isSuccessful());
+	assertEquals(heap.findExactMatch(host7, Type.A).first(), sr.answers()[0].first());
+	assertEquals(2, z.findRecords(host7, Type.ANY).answers().length);
+	assertTrue(z.findRecords(Name.fromString("none.example.com."), Type.A).isNXDOMAIN());
+	assertEquals(heap.toMasterFile().length(), z.toMasterFile().length());
+
+	int n = 0;
+	for (Iterator it = z.AXFR(); it.hasNext(); it.next())
+	    n++;
+	assertEquals(2004, n);
+
+	/* Changes are written back to the store. */
+	z.addRecord(a("host7", 9999));
+	assertEquals(2, z.findExactMatch(host7, Type.A).size());
+	assertTrue(store.getGarbage() > 0);
+	z.removeRecord(a("host7", 7));
+	z.removeRecord(a("host7", 9999));
+	assertNull(z.findExactMatch(host7, Type.A));
+	assertNotNull(z.findExactMatch(host7, Type.MX));
+	z.addRecord(new TXTRecord(m_origin, DClass.IN, 3600, "apex"));
+	assertNotNull(z.findExactMatch(m_origin, Type.TXT));
+	n = 0;
+	for (Iterator it = z.iterator(); it.hasNext(); it.next())
+	    n++;
+	assertEquals(2003, n);
+    }
+
+    public void test_compact() throws Exception
+    {
+	RecordStore store = new RecordStore(4096);
+	Zone z = zone(store);
+	for (int i = 0; i < 1000; i++)
+	    z.removeRecord(a("host" + i, i));
+	/* host7 still has its MX record. */
+	assertEquals(1002, store.size());
+	long bytes = store.getBytes();
+	store.compact();
+	assertEquals(0, store.getGarbage());
+	assertEquals(bytes, store.getBytes());
+	assertNull(z.findExactMatch(Name.fromString("host999", m_origin), Type.A));
+	assertNotNull(z.findExactMatch(Name.fromString("host1999", m_origin), Type.A));
+
+	/* Repeated changes compact the store as they go. */
+	Record r = a("host1999", 1999);
+	for (int i = 0; i < 2000; i++) {
+	    z.removeRecord(r);
+	    z.addRecord(r);
+	}
+	assertTrue(store.getGarbage() < store.getBytes() + 4096);
+    }
+
+    public void test_inUse() throws Exception
+    {
+	RecordStore store = new RecordStore();
+	new Cache(DClass.IN, store);
+	try {
+	    zone(store);
+	    fail("store used twice");
+	}
+	catch (IllegalArgumentException e) {
+	}
+    }
+
+    public void test_cache() throws Exception
+    {
+	RecordStore store = new RecordStore(4096);
+	Cache c = new Cache(DClass.IN, store);
+	c.setMaxEntries(100);
+	for (int i = 0; i < 150; i++)
+	    c.addRecord(a("host" + i, i), Credibility.AUTH_ANSWER, null);
+	assertEquals(100, c.getSize());
+	assertEquals(store.getBytes(), c.getBytes());
+	/* The oldest names were evicted. */
+	assertNull(c.findRecords(Name.fromString("host0", m_origin), Type.A));
+	RRset [] answers = c.findRecords(Name.fromString("host149", m_origin), Type.A);
+	assertEquals(a("host149", 149), answers[0].first());
+
+	Name name = Name.fromString("host100", m_origin);
+	c.addRecord(a("host100", 1), Credibility.AUTH_ANSWER, null);
+	assertEquals(2, c.findRecords(name, Type.A)[0].size());
+	c.addNegative(name, Type.MX, null, Credibility.AUTH_ANSWER);
+	c.addNegative(name, Type.TXT, new SOARecord(m_origin, DClass.IN, 3600, m_origin,
+						    m_origin, 1, 3600, 600, 86400, 300),
+		      Credibility.AUTH_ANSWER);
+	assertTrue(c.lookupRecords(name, Type.TXT, Credibility.AUTH_ANSWER).isNXRRSET());
+	assertEquals(2, c.findRecords(name, Type.A)[0].size());
+	c.flushSet(name, Type.A);
+	assertNull(c.findRecords(name, Type.A));
+
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	c.dump(out);
+	Cache copy = new Cache(DClass.IN);
+	copy.restore(new ByteArrayInputStream(out.toByteArray()));
+	assertEquals(100, copy.getSize());
+
+	c.clearCache();
+	assertEquals(0, c.getSize());
+	assertEquals(0, store.getBytes());
+    }
+}
@@ -0,0 +1,214 @@
+package org.xbill.DNS;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import	junit.framework.TestCase;
+
+public class SimpleResolverTest extends TestCase
+{
+    private Name m_name;
+
+    protected void setUp() throws Exception
+    {
+	m_name = Name.fromString("www.example.com.");
+    }
+
+    private static byte [] answer(byte [] query, int id) throws IOException
+    {
+	Message m = new Message(query);
+	Message r = new Message(id);
+	r.getHeader().setFlag(Flags.QR);
+	r.addRecord(m.getQuestion(), Section.QUESTION);
+	r.addRecord(new ARecord(m.getQuestion().getName(), DClass.IN, 3600,
+				InetAddress.getByName("192.168.0.1")),
+		    Section.ANSWER);
+	return r.toWire();
+    }
+
+    private SimpleResolver resolver(int port) throws UnknownHostException
+    {
+	SimpleResolver res = new SimpleResolver("127.0.0.1");
+	res.setPort(port);
+	res.setTimeout(2);
+	return res;
+    }
+
+    public void test_sendAsync_udp() throws Exception
+    {
+	final DatagramSocket server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+	try {
+	    Thread t = new Thread() {
+		public void run() {
+		    try {
+			byte [] buf = new byte[512];
+			DatagramPacket p = new DatagramPacket(buf, buf.length);
+			server.receive(p);
+			byte [] q = new byte[p.getLength()];
+			System.arraycopy(buf, 0, q, 0, q.length);
+			int id = ((q[0] & 0xFF) << 8) + (q[1] & 0xFF);
+			/* A response with the wrong ID must be ignored. */
+			byte [] bad = answer(q, (id + 1) & 0xFFFF);
+			server.send(new DatagramPacket(bad, bad.length, p.getSocketAddress()));
+			byte [] good = answer(q, id);
+			server.send(new DatagramPacket(good, good.length, p.getSocketAddress()));
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    };
+	    t.start();
+
+	    Message query = Message.newQuery(Record.newRecord(m_name, Type.A, DClass.IN));
+	    SimpleResolver res = resolver(server.getLocalPort());
+	    Message response = (Message) res.sendAsync(query).get(5, TimeUnit.SECONDS);
+	    assertEquals(1, response.getSectionArray(Section.ANSWER).length);
+	    t.join();
+	}
+	finally {
+	    server.close();
+	}
+    }
+
+    public void test_sendAsync_tcp() throws Exception
+    {
+	final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+	try {
+	    Thread t = new Thread() {
+		public void run() {
+		    try {
+			Socket s = server.accept();
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			byte [] q = new byte[in.readUnsignedShort()];
+			in.readFully(q);
+			int id = ((q[0] & 0xFF) << 8) + (q[1] & 0xFF);
+			byte [] r = answer(q, id);
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			out.writeShort(r.length);
+			out.write(r);
+			out.flush();
+			s.close();
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    };
+	    t.start();
+
+	    Message query = Message.newQuery(Record.newRecord(m_name, Type.A, DClass.IN));
+	    SimpleResolver res = resolver(server.getLocalPort());
+	    res.setTCP(true);
+	    Message response = (Message) res.sendAsync(query).get(5, TimeUnit.SECONDS);
+	    assertEquals(1, response.getSectionArray(Section.ANSWER).length);
+	    t.join();
+	}
+	finally {
+	    server.close();
+	}
+    }
+
+    private static byte [] readTCP(DataInputStream in) throws IOException
+    {
+	byte [] b = new byte[in.readUnsignedShort()];
+	in.readFully(b);
+	return b;
+    }
+
+    private static void writeTCP(DataOutputStream out, byte [] b) throws IOException
+    {
+	out.writeShort(b.length);
+	out.write(b);
+	out.flush();
+    }
+
+    private static byte [] keepaliveAnswer(byte [] query) throws IOException
+    {
+	Message m = new Message(query);
+	Message r = new Message(answer(query, m.getHeader().getID()));
+	List options = new ArrayList();
+	options.add(new TCPKeepaliveOption(50));
+	r.addRecord(new OPTRecord(1280, 0, 0, 0, options), Section.ADDITIONAL);
+	return r.toWire();
+    }
+
+    public void test_persistentTCP() throws Exception
+    {
+	final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+	final Object [] result = new Object[1];
+	try {
+	    Thread t = new Thread() {
+		public void run() {
+		    try {
+			Socket s = server.accept();
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			byte [] q1 = readTCP(in);
+			byte [] q2 = readTCP(in);
+			OPTRecord opt = new Message(q1).getOPT();
+			result[0] = opt.getOptions(EDNSOption.Code.TCP_KEEPALIVE);
+			/* Answer out of order. */
+			writeTCP(out, keepaliveAnswer(q2));
+			writeTCP(out, keepaliveAnswer(q1));
+			/* A third query must reuse the connection. */
+			writeTCP(out, keepaliveAnswer(readTCP(in)));
+			s.close();
+		    }
+		    catch (IOException e) {
+			result[0] = e;
+		    }
+		}
+	    };
+	    t.start();
+
+	    SimpleResolver res = resolver(server.getLocalPort());
+	    res.setTCP(true);
+	    res.setEDNS(0);
+	    res.setPersistentTCP(true);
+	    Name n2 = Name.fromString("mail.example.com.");
+	    Future f1 = res.sendAsync(Message.newQuery(Record.newRecord(m_name, Type.A, DClass.IN)));
+	    Future f2 = res.sendAsync(Message.newQuery(Record.newRecord(n2, Type.A, DClass.IN)));
+	    Message r1 = (Message) f1.get(5, TimeUnit.SECONDS);
+	    Message r2 = (Message) f2.get(5, TimeUnit.SECONDS);
+	    assertEquals(m_name, r1.getQuestion().getName());
+	    assertEquals(n2, r2.getQuestion().getName());
+
+	    Message r3 = res.send(Message.newQuery(Record.newRecord(m_name, Type.MX, DClass.IN)));
+	    assertEquals(Type.MX, r3.getQuestion().getType());
+	    t.join();
+	    assertEquals(1, ((List) result[0]).size());
+	}
+	finally {
+	    server.close();
+	}
+    }
+
+    public void test_sendAsync_timeout() throws Exception
+    {
+	DatagramSocket server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+	try {
+	    SimpleResolver res = resolver(server.getLocalPort());
+	    res.setTimeout(0, 200);
+	    Message query = Message.newQuery(Record.newRecord(m_name, Type.A, DClass.IN));
+
+	    final Object [] result = new Object[1];
+	    final CountDownLatch latch = new CountDownLatch(1);
+	    res.sendAsync(query, new ResolverListener() {
+		public void receiveMessage(Object id, Message m) {
+		    result[0] = m;
+		    latch.countDown();
+		}
+		public void handleException(Object id, Exception e) {
+		    result[0] = e;
+		    latch.countDown();
+		}
+	    });
+	    assertTrue(latch.await(5, TimeUnit.SECONDS));
+	    assertTrue(result[0] instanceof SocketTimeoutException);
+	}
+	finally {
+	    server.close();
+	}
+    }
+}
@@ -0,0 +1,50 @@
+package org.xbill.DNS;
+
+import java.io.IOException;
+
+import	junit.framework.TestCase;
+
+public class TCPKeepaliveOptionTest extends TestCase
+{
+    public void test_ctor_0arg()
+    {
+	TCPKeepaliveOption o = new TCPKeepaliveOption();
+	assertEquals(EDNSOption.Code.TCP_KEEPALIVE, o.getCode());
+	assertEquals(-1, o.getTimeout());
+	assertEquals(0, o.getData().length);
+    }
+
+    public void test_ctor_1arg()
+    {
+	TCPKeepaliveOption o = new TCPKeepaliveOption(300);
+	assertEquals(300, o.getTimeout());
+	assertEquals(2, o.getData().length);
+
+	try {
+	    new TCPKeepaliveOption(0x10000);
+	    fail("IllegalArgumentException not thrown");
+	}
+	catch(IllegalArgumentException e){}
+    }
+
+    public void test_wire() throws IOException
+    {
+	EDNSOption o = EDNSOption.fromWire(new TCPKeepaliveOption(300).toWire());
+	assertTrue(o instanceof TCPKeepaliveOption);
+	assertEquals(300, ((TCPKeepaliveOption) o).getTimeout());
+
+	o = EDNSOption.fromWire(new TCPKeepaliveOption().toWire());
+	assertEquals(-1, ((TCPKeepaliveOption) o).getTimeout());
+
+	try {
+	    EDNSOption.fromWire(new byte[] { 0, 11, 0, 1, 0 });
+	    fail("WireParseException not thrown");
+	}
+	catch(WireParseException e){}
+    }
+
+    public void test_toString()
+    {
+	assertEquals("{TCP_KEEPALIVE: 300}", new TCPKeepaliveOption(300).toString());
+    }
+}
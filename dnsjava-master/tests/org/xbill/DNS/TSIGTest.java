@@ -76,4 +76,40 @@ public class TSIGTest extends TestCase
 	assertEquals(result, Rcode.NOERROR);
 	assertTrue(parsed.isSigned());
     }
+
+    public void test_TSIG_concurrent() throws Exception
+    {
+	final TSIG key = new TSIG(TSIG.HMAC_SHA256, "example.", "12345678");
+	final Name qname = Name.fromString("www.example.");
+	final int [] failures = new int[1];
+	Thread [] threads = new Thread[8];
+	for (int i = 0; i < threads.length; i++) {
+	    threads[i] = new Thread() {
+		public void run() {
+		    try {
+			for (int j = 0; j < 200; j++) {
+			    Record rec = Record.newRecord(qname, Type.A, DClass.IN);
+			    Message msg = Message.newQuery(rec);
+			    msg.setTSIG(key, Rcode.NOERROR, null);
+			    byte [] bytes = msg.toWire(512);
+			    Message parsed = new Message(bytes);
+			    if (key.verify(parsed, bytes, null) != Rcode.NOERROR)
+				synchronized (failures) {
+				    failures[0]++;
+				}
+			}
+		    }
+		    catch (IOException e) {
+			synchronized (failures) {
+			    failures[0]++;
+			}
+		    }
+		}
+	    };
+	    threads[i].start();
+	}
+	for (int i = 0; i < threads.length; i++)
+	    threads[i].join();
+	assertEquals(0, failures[0]);
+    }
 }
@@ -39,6 +39,8 @@ import	java.io.ByteArrayInputStream;
 import	java.io.File;
 import	java.io.FileWriter;
 import	java.io.IOException;
+import	java.nio.ByteBuffer;
+import	java.nio.CharBuffer;
 import	junit.framework.TestCase;
 
 public class TokenizerTest extends TestCase
@@ -243,6 +245,113 @@ public class TokenizerTest extends TestCase
 	}
     }
 
+    private String contents(Tokenizer t) throws IOException
+    {
+	StringBuffer sb = new StringBuffer();
+	while (true) {
+	    Tokenizer.Token tt = t.get(true, true);
+	    sb.append(tt.toString());
+	    if (tt.type == Tokenizer.EOF)
+		break;
+	}
+	return sb.toString();
+    }
+
+    public void test_buffers() throws IOException
+    {
+	String s = "AnIdentifier \"a quoted \\\" string\"\r\n; this is \"my\"\t(comment)\nanotherIdentifier (\ramultilineIdentifier\n)";
+	String exp = contents(new Tokenizer(new ByteArrayInputStream(s.getBytes())));
+	assertEquals(exp, contents(new Tokenizer(s)));
+	assertEquals(exp, contents(new Tokenizer(CharBuffer.wrap(s.toCharArray()))));
+	/* A CharBuffer which isn't backed by an array. */
+	assertEquals(exp, contents(new Tokenizer(CharBuffer.wrap(s))));
+
+	ByteBuffer buf = ByteBuffer.allocateDirect(s.length() + 2);
+	buf.put((byte) 'x');
+	buf.put(s.getBytes());
+	buf.flip();
+	buf.get();
+	assertEquals(exp, contents(new Tokenizer(buf)));
+	assertEquals(1, buf.position());
+	assertEquals(exp, contents(new Tokenizer(buf)));
+
+	/* Regions are read in turn. */
+	ByteBuffer a = ByteBuffer.wrap("one tw".getBytes());
+	ByteBuffer b = ByteBuffer.wrap("o\r".getBytes());
+	ByteBuffer c = ByteBuffer.wrap("\nthree".getBytes());
+	m_t = new Tokenizer(new ByteBuffer [] {a, ByteBuffer.allocate(0), b, c}, "file", 10);
+	assertEquals("one", m_t.getString());
+	assertEquals("two", m_t.getString());
+	m_t.getEOL();
+	try {
+	    m_t.getLong();
+	    fail("TextParseException not thrown");
+	}
+	catch( TextParseException e ){
+	    assertEquals("file:11: expected an integer", e.getMessage());
+	}
+    }
+
+    public void test_large_input() throws IOException
+    {
+	/* Long enough that the buffer is refilled many times. */
+	StringBuffer sb = new StringBuffer();
+	for (int i = 0; sb.length() < 100000; i++) {
+	    sb.append("name" + i + " " + i + " ; comment\r\n");
+	}
+	sb.append("last ( 1 \r\n 2 )");
+	String s = sb.toString();
+	m_t = new Tokenizer(new ByteArrayInputStream(s.getBytes()));
+	Tokenizer t = new Tokenizer(s);
+	int lines = 0;
+	while (true) {
+	    Tokenizer.Token tt = m_t.get();
+	    assertEquals(t.get().toString(), tt.toString());
+	    if (tt.type == Tokenizer.EOF)
+		break;
+	    if (tt.type == Tokenizer.EOL)
+		lines++;
+	    else if (tt.value.startsWith("name")) {
+		long n = Long.parseLong(tt.value.substring(4));
+		assertEquals(n, m_t.getLong());
+		assertEquals(n, t.getUInt32());
+	    }
+	}
+	assertTrue(lines > 1000);
+
+	String text = "0123456789ABCDEF";
+	sb = new StringBuffer();
+	for (int i = 0; i < 100; i++)
+	    sb.append(text);
+	m_t = new Tokenizer(sb.toString() + " \"" + sb.toString() + "\"");
+	assertEquals(sb.toString(), m_t.getString());
+	assertEquals(sb.toString(), m_t.getString());
+    }
+
+    public void test_unget_typed() throws IOException
+    {
+	m_t = new Tokenizer("1H www 3600 AAAA");
+	assertEquals(3600, m_t.getTTL());
+	assertEquals("www", m_t.get().value);
+	m_t.unget();
+	assertEquals(Name.fromString("www.example."), m_t.getName(Name.fromString("example.")));
+	assertEquals(3600, m_t.getLong());
+	m_t.unget();
+	Tokenizer.Token tt = m_t.get();
+	assertEquals(Tokenizer.IDENTIFIER, tt.type);
+	assertEquals("3600", tt.value);
+	assertEquals("AAAA", m_t.getString());
+
+	m_t = new Tokenizer("99999999999999999999");
+	try {
+	    m_t.getLong();
+	    fail("TextParseException not thrown");
+	}
+	catch( TextParseException e ){}
+	m_t = new Tokenizer(Long.MAX_VALUE + "");
+	assertEquals(Long.MAX_VALUE, m_t.getLong());
+    }
+
     public void test_unwanted_comment() throws IOException
     {
 	m_t = new Tokenizer("; this whole thing is a comment\n");
@@ -0,0 +1,91 @@
+package org.xbill.DNS;
+
+import java.io.*;
+import java.net.*;
+
+import	junit.framework.TestCase;
+
+public class UDPSocketPoolTest extends TestCase
+{
+    private DatagramSocket m_server;
+    private Thread m_thread;
+
+    protected void setUp() throws Exception
+    {
+	m_server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+	m_thread = new Thread() {
+	    public void run() {
+		try {
+		    byte [] buf = new byte[512];
+		    while (true) {
+			DatagramPacket p = new DatagramPacket(buf, buf.length);
+			m_server.receive(p);
+			byte [] q = new byte[p.getLength()];
+			System.arraycopy(buf, 0, q, 0, q.length);
+			Message m = new Message(q);
+			m.getHeader().setFlag(Flags.QR);
+			byte [] r = m.toWire();
+			m_server.send(new DatagramPacket(r, r.length, p.getSocketAddress()));
+		    }
+		}
+		catch (IOException e) {
+		}
+	    }
+	};
+	m_thread.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+	UDPSocketPool.setSize(0);
+	m_server.close();
+	m_thread.join();
+    }
+
+    public void test_invalid()
+    {
+	try {
+	    UDPSocketPool.setSize(-1);
+	    fail("IllegalArgumentException not thrown");
+	}
+	catch(IllegalArgumentException e){}
+	try {
+	    UDPSocketPool.setMaxUses(0);
+	    fail("IllegalArgumentException not thrown");
+	}
+	catch(IllegalArgumentException e){}
+    }
+
+    public void test_reuse() throws Exception
+    {
+	SimpleResolver res = new SimpleResolver("127.0.0.1");
+	res.setPort(m_server.getLocalPort());
+	res.setTimeout(2);
+	Name name = Name.fromString("www.example.com.");
+	Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+
+	UDPSocketPool.setSize(2);
+	UDPSocketPool.setMaxUses(2);
+	long hits = UDPSocketPool.getHits();
+	long misses = UDPSocketPool.getMisses();
+
+	res.send(query);
+	assertEquals(misses + 1, UDPSocketPool.getMisses());
+	assertEquals(1, UDPSocketPool.getIdle());
+	assertEquals(0, UDPSocketPool.getInUse());
+
+	res.send(query);
+	assertEquals(hits + 1, UDPSocketPool.getHits());
+	/* The socket has reached its maximum number of uses. */
+	assertEquals(0, UDPSocketPool.getIdle());
+
+	res.send(query);
+	assertEquals(misses + 2, UDPSocketPool.getMisses());
+	assertEquals(1, UDPSocketPool.getIdle());
+
+	UDPSocketPool.setSize(0);
+	assertEquals(0, UDPSocketPool.getIdle());
+	res.send(query);
+	assertEquals(misses + 2, UDPSocketPool.getMisses());
+    }
+}
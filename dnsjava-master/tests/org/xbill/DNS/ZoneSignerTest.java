@@ -0,0 +1,181 @@
+package org.xbill.DNS;
+
+import java.net.InetAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import org.xbill.DNS.DNSSEC.Algorithm;
+import org.xbill.DNS.utils.base32;
+
+public class ZoneSignerTest extends TestCase
+{
+    private Name m_origin;
+    private DNSKEYRecord m_ksk;
+    private DNSKEYRecord m_zsk;
+    private ZoneSigner.SimpleKeyProvider m_keys;
+    private List m_records;
+
+    private DNSKEYRecord key(int flags) throws Exception
+    {
+	KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+	gen.initialize(1024);
+	KeyPair pair = gen.generateKeyPair();
+	DNSKEYRecord key = new DNSKEYRecord(m_origin, DClass.IN, 3600, flags,
+					    DNSKEYRecord.Protocol.DNSSEC,
+					    Algorithm.RSASHA256, pair.getPublic());
+	m_keys.addKey(key, pair.getPrivate());
+	return key;
+    }
+
+    protected void setUp() throws Exception
+    {
+	m_origin = Name.fromString("example.com.");
+	m_keys = new ZoneSigner.SimpleKeyProvider();
+	m_ksk = key(DNSKEYRecord.Flags.ZONE_KEY | DNSKEYRecord.Flags.SEP_KEY);
+	m_zsk = key(DNSKEYRecord.Flags.ZONE_KEY);
+
+	Name ns = Name.fromString("ns.example.com.");
+	Name sub = Name.fromString("sub.example.com.");
+	Name subns = Name.fromString("ns.sub.example.com.");
+	m_records = new ArrayList();
+	m_records.add(new SOARecord(m_origin, DClass.IN, 3600, m_origin, m_origin,
+				    1, 3600, 600, 86400, 300));
+	m_records.add(new NSRecord(m_origin, DClass.IN, 3600, ns));
+	m_records.add(new ARecord(ns, DClass.IN, 3600, InetAddress.getByName("192.168.0.53")));
+	m_records.add(new ARecord(Name.fromString("www.a.b.example.com."), DClass.IN, 3600,
+				  InetAddress.getByName("192.168.0.1")));
+	/* An insecure delegation, with glue. */
+	m_records.add(new NSRecord(sub, DClass.IN, 3600, subns));
+	m_records.add(new ARecord(subns, DClass.IN, 3600, InetAddress.getByName("192.168.1.53")));
+	/* A secure delegation. */
+	Name secure = Name.fromString("secure.example.com.");
+	m_records.add(new NSRecord(secure, DClass.IN, 3600, ns));
+	m_records.add(new DSRecord(secure, DClass.IN, 3600, DSRecord.Digest.SHA256, m_zsk));
+    }
+
+    private Zone zone() throws Exception
+    {
+	return new Zone(m_origin, (Record []) m_records.toArray(new Record[m_records.size()]));
+    }
+
+    private void checkSigned(RRset rrset, boolean signed) throws Exception
+    {
+	Iterator it = rrset.sigs();
+	if (!signed) {
+	    assertFalse(rrset.toString(), it.hasNext());
+	    return;
+	}
+	int n = 0;
+	while (it.hasNext()) {
+	    RRSIGRecord sig = (RRSIGRecord) it.next();
+	    DNSKEYRecord key = (sig.getFootprint() == m_ksk.getFootprint()) ? m_ksk : m_zsk;
+	    DNSSEC.verify(rrset, sig, key);
+	    n++;
+	}
+	assertEquals(rrset.toString(), rrset.getType() == Type.DNSKEY ? 2 : 1, n);
+    }
+
+    public void test_nsec() throws Exception
+    {
+	ZoneSigner signer = new ZoneSigner(m_keys);
+	Zone z = signer.sign(zone());
+
+	int nsecs = 0;
+	for (Iterator it = z.iterator(); it.hasNext(); ) {
+	    RRset rrset = (RRset) it.next();
+	    Name name = rrset.getName();
+	    int type = rrset.getType();
+	    boolean glue = name.subdomain(Name.fromString("sub.example.com.")) &&
+			   !name.equals(Name.fromString("sub.example.com."));
+	    boolean delegation = !name.equals(m_origin) && type == Type.NS;
+	    checkSigned(rrset, !glue && !delegation);
+	    if (type == Type.NSEC)
+		nsecs++;
+	}
+	/* The apex, ns, www.a.b, sub and secure. */
+	assertEquals(5, nsecs);
+
+	NSECRecord nsec = (NSECRecord) z.findExactMatch(Name.fromString("sub.example.com."),
+							 Type.NSEC).first();
+	assertTrue(nsec.hasType(Type.NS));
+	assertFalse(nsec.hasType(Type.A));
+	assertEquals(300, nsec.getTTL());
+	RRset keys = z.findExactMatch(m_origin, Type.DNSKEY);
+	assertEquals(2, keys.size());
+	/* SOA, NS, DNSKEY (twice) and five NSECs, plus two A and the DS. */
+	assertEquals(12, signer.getSignatureCount());
+    }
+
+    public void test_nsec3() throws Exception
+    {
+	ZoneSigner signer = new ZoneSigner(m_keys);
+	signer.setNSEC3(NSEC3Record.Digest.SHA1, true, 0, new byte [] {1, 2});
+	Zone z = signer.sign(zone());
+
+	assertNotNull(z.findExactMatch(m_origin, Type.NSEC3PARAM));
+	List nsec3s = new ArrayList();
+	for (Iterator it = z.iterator(); it.hasNext(); ) {
+	    RRset rrset = (RRset) it.next();
+	    if (rrset.getType() == Type.NSEC3) {
+		checkSigned(rrset, true);
+		nsec3s.add(rrset.first());
+	    }
+	    assertTrue(rrset.getType() != Type.NSEC);
+	}
+	/* The apex, ns, www.a.b, a.b, b, and secure, but not sub. */
+	assertEquals(6, nsec3s.size());
+
+	NSEC3Record first = (NSEC3Record) nsec3s.get(0);
+	Name sub = Name.fromString("sub.example.com.");
+	Name b = Name.fromString("b.example.com.");
+	boolean foundSub = false, foundB = false;
+	for (Iterator it = nsec3s.iterator(); it.hasNext(); ) {
+	    NSEC3Record r = (NSEC3Record) it.next();
+	    assertEquals(NSEC3Record.Flags.OPT_OUT, r.getFlags());
+	    if (r.getName().equals(hashed(first, sub)))
+		foundSub = true;
+	    if (r.getName().equals(hashed(first, b))) {
+		foundB = true;
+		assertEquals(0, r.getTypes().length);
+	    }
+	}
+	assertFalse(foundSub);
+	assertTrue(foundB);
+    }
+
+    private Name hashed(NSEC3Record nsec3, Name name) throws Exception
+    {
+	base32 b32 = new base32(base32.Alphabet.BASE32HEX, false, false);
+	return new Name(b32.toString(nsec3.hashName(name)), m_origin);
+    }
+
+    public void test_incremental() throws Exception
+    {
+	ZoneSigner signer = new ZoneSigner(m_keys);
+	Zone signed = signer.sign(zone());
+	int total = signer.getSignatureCount();
+
+	signed = signer.sign(zone(), signed);
+	assertEquals(0, signer.getSignatureCount());
+	assertEquals(total, signer.getReusedCount());
+
+	/*
+	 * A new name adds its A and NSEC, and changes the NSEC of the name
+	 * before it.
+	 */
+	m_records.add(new ARecord(Name.fromString("mail.example.com."), DClass.IN, 3600,
+				  InetAddress.getByName("192.168.0.25")));
+	Zone z = signer.sign(zone(), signed);
+	assertEquals(3, signer.getSignatureCount());
+	assertEquals(total + 2, signer.getSignatureCount() + signer.getReusedCount());
+	checkSigned(z.findExactMatch(Name.fromString("mail.example.com."), Type.A), true);
+
+	/* Signatures about to expire are replaced. */
+	signer.setRefresh(365 * 86400);
+	signer.sign(zone(), z);
+	assertEquals(0, signer.getReusedCount());
+    }
+}
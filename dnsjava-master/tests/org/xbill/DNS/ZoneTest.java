@@ -0,0 +1,276 @@
+package org.xbill.DNS;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import	junit.framework.TestCase;
+
+import org.xbill.DNS.utils.base32;
+
+public class ZoneTest extends TestCase
+{
+    private Name m_origin;
+    private Name m_www;
+    private Record [] m_records;
+    private byte [] m_salt = new byte [] {1, 2};
+    private base32 m_b32 = new base32(base32.Alphabet.BASE32HEX, false, false);
+
+    protected void setUp() throws Exception
+    {
+	m_origin = Name.fromString("example.com.");
+	m_www = Name.fromString("www.example.com.");
+	Name ns = Name.fromString("ns.example.com.");
+	m_records = new Record [] {
+	    soa(1),
+	    new NSRecord(m_origin, DClass.IN, 3600, ns),
+	    new ARecord(ns, DClass.IN, 3600, InetAddress.getByName("192.168.0.53")),
+	    new ARecord(m_www, DClass.IN, 3600, InetAddress.getByName("192.168.0.1")),
+	    new ARecord(Name.fromString("*.wild.example.com."), DClass.IN, 3600,
+			InetAddress.getByName("192.168.0.2")),
+	};
+    }
+
+    private SOARecord soa(long serial)
+    {
+	return new SOARecord(m_origin, DClass.IN, 3600, m_origin, m_origin,
+			     serial, 3600, 600, 86400, 300);
+    }
+
+    private ZoneTransferIn.Delta delta(long start, long end, Record add, Record delete)
+    {
+	ZoneTransferIn.Delta d = new ZoneTransferIn.Delta();
+	d.start = start;
+	d.end = end;
+	d.deletes.add(soa(start));
+	if (delete != null)
+	    d.deletes.add(delete);
+	d.adds.add(soa(end));
+	if (add != null)
+	    d.adds.add(add);
+	return d;
+    }
+
+    private void checkLookups(Zone z) throws Exception
+    {
+	assertEquals(1, z.getSOA().getSerial());
+	assertTrue(z.findRecords(m_www, Type.A).isSuccessful());
+	assertTrue(z.findRecords(m_www, Type.MX).isNXRRSET());
+	assertTrue(z.findRecords(Name.fromString("a.b.example.com."), Type.A).isNXDOMAIN());
+	assertTrue(z.findRecords(Name.fromString("x.wild.example.com."), Type.A).isSuccessful());
+	assertNotNull(z.findExactMatch(m_www, Type.A));
+
+	Record mx = new MXRecord(m_www, DClass.IN, 3600, 10, m_www);
+	z.addRecord(mx);
+	assertTrue(z.findRecords(m_www, Type.MX).isSuccessful());
+	z.removeRecord(mx);
+	assertTrue(z.findRecords(m_www, Type.MX).isNXRRSET());
+
+	Iterator it = z.AXFR();
+	int n = 0;
+	Record first = ((RRset) it.next()).first();
+	Record last = first;
+	for (n = 1; it.hasNext(); n++)
+	    last = ((RRset) it.next()).first();
+	assertEquals(Type.SOA, first.getType());
+	assertEquals(Type.SOA, last.getType());
+	assertEquals(6, n);
+    }
+
+    public void test_lookups() throws Exception
+    {
+	Zone z = new Zone(m_origin, m_records);
+	assertFalse(z.isConcurrent());
+	checkLookups(z);
+    }
+
+    public void test_lookups_concurrent() throws Exception
+    {
+	Zone z = new Zone(m_origin, m_records, true);
+	assertTrue(z.isConcurrent());
+	checkLookups(z);
+	assertEquals(new Zone(m_origin, m_records).toMasterFile(), z.toMasterFile());
+    }
+
+    private void checkDeltas(Zone z) throws Exception
+    {
+	Name mail = Name.fromString("mail.example.com.");
+	Record a = new ARecord(mail, DClass.IN, 3600, InetAddress.getByName("192.168.0.3"));
+	List deltas = new ArrayList();
+	deltas.add(delta(1, 2, a, null));
+	deltas.add(delta(2, 3, null, m_records[3]));
+	z.applyDeltas(deltas);
+	assertEquals(3, z.getSOA().getSerial());
+	assertTrue(z.findRecords(mail, Type.A).isSuccessful());
+	assertTrue(z.findRecords(m_www, Type.A).isNXDOMAIN());
+
+	try {
+	    z.applyDeltas(Collections.singletonList(delta(1, 4, null, null)));
+	    fail("IllegalArgumentException not thrown");
+	}
+	catch (IllegalArgumentException e) {
+	}
+	assertEquals(3, z.getSOA().getSerial());
+    }
+
+    public void test_applyDeltas() throws Exception
+    {
+	checkDeltas(new Zone(m_origin, m_records));
+    }
+
+    public void test_applyDeltas_concurrent() throws Exception
+    {
+	Zone z = new Zone(m_origin, m_records, true);
+	checkDeltas(z);
+
+	/* A failed update leaves the zone unchanged. */
+	List deltas = new ArrayList();
+	deltas.add(delta(3, 4, null, m_records[1]));
+	try {
+	    z.applyDeltas(deltas);
+	    fail("IOException not thrown");
+	}
+	catch (IOException e) {
+	}
+	assertEquals(3, z.getSOA().getSerial());
+	assertNotNull(z.findExactMatch(m_origin, Type.NS));
+    }
+
+    public void test_concurrent_readers() throws Exception
+    {
+	final Zone z = new Zone(m_origin, m_records, true);
+	final Throwable [] failure = new Throwable[1];
+	final AtomicBoolean done = new AtomicBoolean();
+	Thread reader = new Thread() {
+	    public void run() {
+		try {
+		    while (!done.get()) {
+			/* Each update replaces the record, so there is always one. */
+			SetResponse sr = z.findRecords(m_www, Type.A);
+			if (!sr.isSuccessful() || sr.answers()[0].size() != 1)
+			    throw new IllegalStateException("partial update");
+		    }
+		}
+		catch (Throwable e) {
+		    failure[0] = e;
+		}
+	    }
+	};
+	reader.start();
+	Record old = m_records[3];
+	for (int serial = 1; serial < 200; serial++) {
+	    byte [] addr = new byte [] {10, 0, 0, (byte) serial};
+	    Record a = new ARecord(m_www, DClass.IN, 3600, InetAddress.getByAddress(addr));
+	    z.applyDeltas(Collections.singletonList(delta(serial, serial + 1, a, old)));
+	    old = a;
+	}
+	done.set(true);
+	reader.join();
+	assertNull(failure[0]);
+	assertEquals(200, z.getSOA().getSerial());
+    }
+
+    private Name hashed(Name name) throws Exception
+    {
+	byte [] hash = NSEC3Record.hashName(name, NSEC3Record.Digest.SHA1, 3, m_salt);
+	return new Name(m_b32.toString(hash), m_origin);
+    }
+
+    /* The records, with an NSEC or NSEC3 chain over their owners added. */
+    private Record [] chained(boolean nsec3) throws Exception
+    {
+	TreeMap owners = new TreeMap();
+	for (int i = 0; i < m_records.length; i++)
+	    owners.put(m_records[i].getName(), m_records[i].getName());
+	if (nsec3) {
+	    /* NSEC3 also covers the empty non-terminal above the wildcard. */
+	    Name ent = Name.fromString("wild.example.com.");
+	    owners.put(ent, ent);
+	    TreeMap hashes = new TreeMap();
+	    Iterator it = owners.keySet().iterator();
+	    while (it.hasNext()) {
+		Name name = (Name) it.next();
+		hashes.put(hashed(name), name);
+	    }
+	    owners = hashes;
+	}
+	List list = new ArrayList(Arrays.asList(m_records));
+	Name [] names = (Name []) owners.keySet().toArray(new Name[0]);
+	for (int i = 0; i < names.length; i++) {
+	    Name next = names[(i + 1) % names.length];
+	    if (nsec3) {
+		byte [] hash = NSEC3Record.hashName((Name) owners.get(next),
+						    NSEC3Record.Digest.SHA1, 3, m_salt);
+		list.add(new NSEC3Record(names[i], DClass.IN, 3600, NSEC3Record.Digest.SHA1,
+					 0, 3, m_salt, hash, new int [0]));
+	    } else
+		list.add(new NSECRecord(names[i], DClass.IN, 3600, next, new int [0]));
+	}
+	return (Record []) list.toArray(new Record[list.size()]);
+    }
+
+    private boolean covers(Name owner, Name next, Name name)
+    {
+	if (owner.compareTo(next) < 0)
+	    return owner.compareTo(name) < 0 && name.compareTo(next) < 0;
+	return owner.compareTo(name) < 0 || name.compareTo(next) < 0;
+    }
+
+    public void test_findNSEC() throws Exception
+    {
+	Name ns = Name.fromString("ns.example.com.");
+	Name [] missing = { Name.fromString("c.example.com."), Name.fromString("zzz.example.com."),
+			   Name.fromString("x.www.example.com."), Name.fromString("wild.example.com."),
+			   Name.fromString("a.wild.example.com.") };
+	for (int i = 0; i < 2; i++) {
+	    Zone z = new Zone(m_origin, chained(false), i == 1);
+	    assertEquals(m_www, z.findNSEC(m_www).getName());
+	    for (int j = 0; j < missing.length; j++) {
+		NSECRecord nsec = (NSECRecord) z.findNSEC(missing[j]).first();
+		assertTrue(missing[j].toString(),
+			   covers(nsec.getName(), nsec.getNext(), missing[j]));
+	    }
+	    assertNull(z.findNSEC(Name.fromString("example.net.")));
+
+	    /* The index follows changes to the zone. */
+	    Record nsec = z.findExactMatch(ns, Type.NSEC).first();
+	    z.removeRecord(nsec);
+	    assertFalse(ns.equals(z.findNSEC(ns).getName()));
+	    z.addRecord(nsec);
+	    assertEquals(ns, z.findNSEC(ns).getName());
+	}
+	assertNull(new Zone(m_origin, m_records).findNSEC(ns));
+    }
+
+    public void test_findNSEC3() throws Exception
+    {
+	for (int i = 0; i < 2; i++) {
+	    Zone z = new Zone(m_origin, chained(true), i == 1);
+	    assertNull(z.findNSEC(m_origin));
+
+	    assertEquals(hashed(m_www), z.findNSEC3(m_www).getName());
+	    assertNull(z.findNSEC3Proof(m_www));
+	    Name mail = Name.fromString("mail.example.com.");
+	    NSEC3Record r = (NSEC3Record) z.findNSEC3(mail).first();
+	    Name next = new Name(m_b32.toString(r.getNext()), m_origin);
+	    assertTrue(covers(r.getName(), next, hashed(mail)));
+
+	    RRset [] proof = z.findNSEC3Proof(Name.fromString("x.y.www.example.com."));
+	    assertEquals(3, proof.length);
+	    assertEquals(hashed(m_www), proof[0].getName());
+	    Name [] covered = { hashed(Name.fromString("y.www.example.com.")),
+				hashed(Name.fromString("*.www.example.com.")) };
+	    for (int j = 0; j < 2; j++) {
+		r = (NSEC3Record) proof[j + 1].first();
+		next = new Name(m_b32.toString(r.getNext()), m_origin);
+		assertTrue(covers(r.getName(), next, covered[j]));
+	    }
+
+	    /* The empty non-terminal has a record, so it is an encloser. */
+	    proof = z.findNSEC3Proof(Name.fromString("a.b.wild.example.com."));
+	    assertEquals(hashed(Name.fromString("wild.example.com.")), proof[0].getName());
+	}
+	assertNull(new Zone(m_origin, m_records).findNSEC3(m_www));
+    }
+}
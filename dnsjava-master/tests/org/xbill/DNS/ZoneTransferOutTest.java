@@ -0,0 +1,394 @@
+package org.xbill.DNS;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.*;
+import javax.crypto.Mac;
+import javax.crypto.MacSpi;
+import javax.crypto.spec.SecretKeySpec;
+
+import	junit.framework.TestCase;
+
+public class ZoneTransferOutTest extends TestCase
+{
+    private Name m_origin;
+    private Zone m_zone;
+    private TSIG m_key;
+
+    protected void setUp() throws Exception
+    {
+	m_origin = Name.fromString("example.com.");
+	Name ns = Name.fromString("ns.example.com.");
+	List records = new ArrayList();
+	records.add(soa(2));
+	records.add(new NSRecord(m_origin, DClass.IN, 3600, ns));
+	records.add(new ARecord(ns, DClass.IN, 3600, InetAddress.getByName("192.168.0.53")));
+	for (int i = 0; i < 5000; i++) {
+	    Name n = Name.fromString("host" + i, m_origin);
+	    records.add(new ARecord(n, DClass.IN, 3600,
+				    InetAddress.getByName("10.0." + (i / 256) + "." + (i % 256))));
+	}
+	m_zone = new Zone(m_origin, (Record []) records.toArray(new Record[records.size()]));
+	m_key = new TSIG(TSIG.HMAC_SHA256, "xfr.example.com.", "c2VjcmV0c2VjcmV0c2VjcmV0");
+    }
+
+    private SOARecord soa(long serial)
+    {
+	return new SOARecord(m_origin, DClass.IN, 3600, m_origin, m_origin,
+			     serial, 3600, 600, 86400, 300);
+    }
+
+    private Message query(int type)
+    {
+	return Message.newQuery(Record.newRecord(m_origin, type, DClass.IN));
+    }
+
+    public void test_packing() throws IOException
+    {
+	ZoneTransferOut xfr = ZoneTransferOut.newAXFR(m_zone, query(Type.AXFR), null);
+	int records = 0;
+	byte [] b;
+	List messages = new ArrayList();
+	while ((b = xfr.nextMessage()) != null) {
+	    assertTrue(b.length <= 65535);
+	    messages.add(new Message(b));
+	}
+	assertNull(xfr.nextMessage());
+	assertEquals(messages.size(), xfr.getMessageCount());
+	for (int i = 0; i < messages.size(); i++) {
+	    Message m = (Message) messages.get(i);
+	    assertEquals(i == 0 ? 1 : 0, m.getHeader().getCount(Section.QUESTION));
+	    records += m.getHeader().getCount(Section.ANSWER);
+	}
+	/* Both SOAs, the NS, and the A records. */
+	assertEquals(5004, records);
+	assertTrue(messages.size() < 5);
+
+	Record [] first = ((Message) messages.get(0)).getSectionArray(Section.ANSWER);
+	Message lastMessage = (Message) messages.get(messages.size() - 1);
+	Record [] last = lastMessage.getSectionArray(Section.ANSWER);
+	assertEquals(Type.SOA, first[0].getType());
+	assertEquals(Type.SOA, last[last.length - 1].getType());
+    }
+
+    public void test_maxMessageSize() throws IOException
+    {
+	ZoneTransferOut xfr = ZoneTransferOut.newAXFR(m_zone, query(Type.AXFR), m_key);
+	xfr.setMaxMessageSize(1024);
+	byte [] b;
+	int records = 0;
+	while ((b = xfr.nextMessage()) != null) {
+	    assertTrue(b.length <= 1024);
+	    records += new Message(b).getHeader().getCount(Section.ANSWER);
+	}
+	assertEquals(5004, records);
+	assertTrue(xfr.getMessageCount() > 50);
+    }
+
+    public void test_signInterval() throws IOException
+    {
+	Message query = query(Type.AXFR);
+	query.setTSIG(m_key, Rcode.NOERROR, null);
+	byte [] qwire = query.toWire();
+	query = new Message(qwire);
+
+	ZoneTransferOut xfr = ZoneTransferOut.newAXFR(m_zone, query, m_key);
+	xfr.setMaxMessageSize(1024);
+	xfr.setSignInterval(10);
+	TSIG.StreamVerifier verifier = new TSIG.StreamVerifier(m_key, query.getTSIG());
+	byte [] b;
+	int n = 0, signed = 0;
+	boolean lastSigned = false;
+	while ((b = xfr.nextMessage()) != null) {
+	    Message m = new Message(b);
+	    assertEquals(Rcode.NOERROR, verifier.verify(m, b));
+	    lastSigned = (m.getTSIG() != null);
+	    if (lastSigned) {
+		assertTrue(m.isVerified());
+		signed++;
+	    }
+	    n++;
+	}
+	assertTrue(lastSigned);
+	assertTrue(signed < n);
+	assertTrue(signed >= n / 10);
+    }
+
+    /* A Mac which can't be cloned, as with some hardware providers. */
+    private static class UncloneableMac extends Mac
+    {
+	UncloneableMac(final Mac mac)
+	{
+	    super(new MacSpi() {
+		protected int engineGetMacLength() { return mac.getMacLength(); }
+		protected void engineInit(Key key, AlgorithmParameterSpec params) {}
+		protected void engineUpdate(byte input) { mac.update(input); }
+		protected void engineUpdate(byte [] input, int offset, int len) {
+		    mac.update(input, offset, len);
+		}
+		protected byte [] engineDoFinal() { return mac.doFinal(); }
+		protected void engineReset() { mac.reset(); }
+	    }, mac.getProvider(), mac.getAlgorithm());
+	}
+    }
+
+    public void test_sharedKey() throws Exception
+    {
+	Mac mac = Mac.getInstance("HmacSHA256");
+	mac.init(new SecretKeySpec("secretsecretsecret".getBytes(), "HmacSHA256"));
+	Mac shared = new UncloneableMac(mac);
+	shared.init(null);
+	try {
+	    shared.clone();
+	    fail("CloneNotSupportedException not thrown");
+	}
+	catch (CloneNotSupportedException e) {
+	}
+	TSIG key = new TSIG(shared, Name.fromString("xfr.example.com."));
+
+	/* Two transfers and their verification, interleaved on one key. */
+	ZoneTransferOut [] xfrs = new ZoneTransferOut[2];
+	TSIG.StreamVerifier [] verifiers = new TSIG.StreamVerifier[2];
+	for (int i = 0; i < 2; i++) {
+	    Message query = query(Type.AXFR);
+	    query.setTSIG(key, Rcode.NOERROR, null);
+	    query = new Message(query.toWire());
+	    xfrs[i] = ZoneTransferOut.newAXFR(m_zone, query, key);
+	    xfrs[i].setMaxMessageSize(1024);
+	    xfrs[i].setSignInterval(5);
+	    verifiers[i] = new TSIG.StreamVerifier(key, query.getTSIG());
+	}
+	int signed = 0;
+	boolean done = false;
+	while (!done) {
+	    done = true;
+	    for (int i = 0; i < 2; i++) {
+		byte [] b = xfrs[i].nextMessage();
+		if (b == null)
+		    continue;
+		done = false;
+		Message m = new Message(b);
+		assertEquals(Rcode.NOERROR, verifiers[i].verify(m, b));
+		if (m.getTSIG() != null) {
+		    assertTrue(m.isVerified());
+		    signed++;
+		}
+	    }
+	}
+	assertTrue(signed > 20);
+    }
+
+    private void serve(final ServerSocketChannel server, final ZoneTransferOut xfr,
+		       final Object [] result)
+    {
+	Thread t = new Thread() {
+	    public void run() {
+		try {
+		    SocketChannel ch = server.accept();
+		    DataInputStream in = new DataInputStream(ch.socket().getInputStream());
+		    byte [] q = new byte[in.readUnsignedShort()];
+		    in.readFully(q);
+		    result[0] = new Message(q);
+		    synchronized (result) {
+			while (result[1] == null)
+			    result.wait();
+		    }
+		    ((ZoneTransferOut) result[1]).send(ch);
+		    ch.close();
+		}
+		catch (Exception e) {
+		    result[0] = e;
+		    synchronized (result) {
+			result.notifyAll();
+		    }
+		}
+	    }
+	};
+	t.setDaemon(true);
+	t.start();
+    }
+
+    private ServerSocketChannel listen() throws IOException
+    {
+	ServerSocketChannel server = ServerSocketChannel.open();
+	server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+	return server;
+    }
+
+    private void respond(Object [] result, int type, List deltas) throws Exception
+    {
+	long end = System.currentTimeMillis() + 5000;
+	while (result[0] == null && System.currentTimeMillis() < end)
+	    Thread.sleep(10);
+	assertTrue(result[0] instanceof Message);
+	Message query = (Message) result[0];
+	assertNotNull(query.getTSIG());
+	assertEquals(Rcode.NOERROR, m_key.verify(query, query.toWire(), null));
+	ZoneTransferOut xfr;
+	if (type == Type.AXFR)
+	    xfr = ZoneTransferOut.newAXFR(m_zone, query, m_key);
+	else
+	    xfr = ZoneTransferOut.newIXFR(m_zone, deltas, query, m_key);
+	xfr.setSignInterval(100);
+	synchronized (result) {
+	    result[1] = xfr;
+	    result.notifyAll();
+	}
+    }
+
+    /* Runs a transfer from the server, with a handler if one is given. */
+    private Object transfer(ServerSocketChannel server, final ZoneTransferIn xfrin,
+			    final ZoneTransferIn.ZoneTransferHandler handler,
+			    int type, List deltas) throws Exception
+    {
+	final Object [] result = new Object[2];
+	final Object [] records = new Object[1];
+	xfrin.setTimeout(5);
+	Thread client = new Thread() {
+	    public void run() {
+		try {
+		    if (handler != null) {
+			xfrin.run(handler);
+			records[0] = Boolean.TRUE;
+		    } else
+			records[0] = xfrin.run();
+		}
+		catch (Exception e) {
+		    records[0] = e;
+		}
+	    }
+	};
+	serve(server, null, result);
+	client.start();
+	respond(result, type, deltas);
+	client.join(10000);
+	return records[0];
+    }
+
+    private SocketAddress address(ServerSocketChannel server)
+    {
+	return server.socket().getLocalSocketAddress();
+    }
+
+    private List deltas(Record mx)
+    {
+	ZoneTransferIn.Delta delta = new ZoneTransferIn.Delta();
+	delta.start = 1;
+	delta.end = 2;
+	delta.deletes.add(soa(1));
+	delta.adds.add(soa(2));
+	delta.adds.add(mx);
+	return Collections.singletonList(delta);
+    }
+
+    public void test_axfr() throws Exception
+    {
+	ServerSocketChannel server = listen();
+	try {
+	    ZoneTransferIn xfrin = ZoneTransferIn.newAXFR(m_origin, address(server), m_key);
+	    Object result = transfer(server, xfrin, null, Type.AXFR, null);
+	    assertTrue(String.valueOf(result), result instanceof List);
+	    assertTrue(xfrin.isAXFR());
+	    Zone z = new Zone(m_origin, (Record []) xfrin.getAXFR().toArray(new Record[0]));
+	    assertEquals(2, z.getSOA().getSerial());
+	    assertTrue(z.findRecords(Name.fromString("host4999", m_origin), Type.A).isSuccessful());
+	}
+	finally {
+	    server.close();
+	}
+    }
+
+    public void test_ixfr() throws Exception
+    {
+	Record mx = new MXRecord(m_origin, DClass.IN, 3600, 10, m_origin);
+	ServerSocketChannel server = listen();
+	try {
+	    ZoneTransferIn xfrin = ZoneTransferIn.newIXFR(m_origin, 1, false, address(server), m_key);
+	    Object result = transfer(server, xfrin, null, Type.IXFR, deltas(mx));
+	    assertTrue(String.valueOf(result), result instanceof List);
+	    assertTrue(xfrin.isIXFR());
+	    List got = xfrin.getIXFR();
+	    assertEquals(1, got.size());
+	    ZoneTransferIn.Delta d = (ZoneTransferIn.Delta) got.get(0);
+	    assertEquals(1, d.start);
+	    assertEquals(2, d.end);
+	    assertTrue(d.adds.contains(mx));
+	}
+	finally {
+	    server.close();
+	}
+    }
+
+    public void test_masterFileHandler() throws Exception
+    {
+	File file = File.createTempFile("axfr", ".db");
+	ServerSocketChannel server = listen();
+	try {
+	    ZoneTransferIn xfrin = ZoneTransferIn.newAXFR(m_origin, address(server), m_key);
+	    ZoneTransferIn.MasterFileHandler handler = new ZoneTransferIn.MasterFileHandler(file);
+	    Object result;
+	    try {
+		result = transfer(server, xfrin, handler, Type.AXFR, null);
+	    }
+	    finally {
+		handler.close();
+	    }
+	    assertEquals(Boolean.TRUE, result);
+	    assertEquals(5003, handler.getRecordCount());
+
+	    Zone z = new Zone(m_origin, file.getPath());
+	    assertEquals(2, z.getSOA().getSerial());
+	    assertTrue(z.findRecords(Name.fromString("host4999", m_origin), Type.A).isSuccessful());
+	}
+	finally {
+	    server.close();
+	    file.delete();
+	}
+    }
+
+    public void test_zoneHandler() throws Exception
+    {
+	Record [] old = new Record [] { soa(1), m_zone.getNS().first() };
+	Zone target = new Zone(m_origin, old, true);
+	long generation = target.getGeneration();
+	ServerSocketChannel server = listen();
+	try {
+	    /* The server answers an IXFR query with the whole zone. */
+	    ZoneTransferIn xfrin = ZoneTransferIn.newIXFR(m_origin, 1, false, address(server), m_key);
+	    ZoneTransferIn.ZoneHandler handler = new ZoneTransferIn.ZoneHandler(target);
+	    assertEquals(Boolean.TRUE, transfer(server, xfrin, handler, Type.AXFR, null));
+	    assertEquals(1, target.getSOA().getSerial());
+	    assertTrue(handler.finish());
+	    assertEquals(2, target.getSOA().getSerial());
+	    assertTrue(target.isConcurrent());
+	    assertTrue(target.getGeneration() != generation);
+	    assertTrue(target.findRecords(Name.fromString("host4999", m_origin), Type.A).isSuccessful());
+	}
+	finally {
+	    server.close();
+	}
+    }
+
+    public void test_zoneHandler_ixfr() throws Exception
+    {
+	Record mx = new MXRecord(m_origin, DClass.IN, 3600, 10, m_origin);
+	Record [] old = new Record [] { soa(1), m_zone.getNS().first() };
+	Zone target = new Zone(m_origin, old);
+	ServerSocketChannel server = listen();
+	try {
+	    ZoneTransferIn xfrin = ZoneTransferIn.newIXFR(m_origin, 1, false, address(server), m_key);
+	    ZoneTransferIn.ZoneHandler handler = new ZoneTransferIn.ZoneHandler(target);
+	    Object result = transfer(server, xfrin, handler, Type.IXFR, deltas(mx));
+	    assertEquals(Boolean.TRUE, result);
+	    assertTrue(handler.finish());
+	    assertEquals(2, target.getSOA().getSerial());
+	    assertNotNull(target.findExactMatch(m_origin, Type.MX));
+	}
+	finally {
+	    server.close();
+	}
+    }
+}